@@ -0,0 +1,189 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measurement and output shared by the benchmarks under src/bench/java. Each benchmark is a class
+ * with a main method; compile them with {@code mvn -Pbenchmarks test-compile} and run them with
+ * {@code java -cp <test classpath> <class>}.
+ *
+ * {@link #measure(Workload)} runs a workload once to warm up, then times a second run and counts
+ * the bytes the calling thread allocated meanwhile (on HotSpot-based JVMs; elsewhere, allocation is
+ * not reported). {@link #report} prints one line per measurement in the same format everywhere.
+ */
+public final class BenchmarkHarness {
+
+	/* results are summed into this, so that the JIT cannot drop the work */
+	private static volatile long sink;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	private BenchmarkHarness() {
+	}
+
+	/**
+	 * The code under test.
+	 */
+	public interface Workload {
+		/**
+		 * @return the number of operations done (messages, bytes, lookups...)
+		 */
+		long run() throws Exception;
+	}
+
+	public static final class Result {
+		private final long operations;
+		private final long nanos;
+		private final long allocatedBytes;
+
+		Result(long operations, long nanos, long allocatedBytes) {
+			this.operations = operations;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public long getOperations() {
+			return operations;
+		}
+
+		public double getSeconds() {
+			return nanos / 1e9;
+		}
+
+		public double getOperationsPerSecond() {
+			return operations / getSeconds();
+		}
+
+		/**
+		 * @return bytes allocated by the calling thread per operation, or -1 if not known
+		 */
+		public double getAllocatedPerOperation() {
+			return allocatedBytes < 0 ? -1 : (double) allocatedBytes / operations;
+		}
+	}
+
+	/**
+	 * Run a workload once to warm up, then time it and count the bytes allocated by this thread.
+	 */
+	public static Result measure(Workload workload) throws Exception {
+		workload.run();
+		return time(workload);
+	}
+
+	/**
+	 * Run a workload that does its work on other threads once to warm up, then time it (the
+	 * allocation of the other threads is not counted, so none is reported).
+	 */
+	public static Result measureOnPool(Workload workload) throws Exception {
+		workload.run();
+		return timeOnPool(workload);
+	}
+
+	/**
+	 * Time a single run of a workload, without warming up (e.g. for work that changes files).
+	 */
+	public static Result time(Workload workload) throws Exception {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		long operations = workload.run();
+		long nanos = System.nanoTime() - start;
+		if (allocated >= 0)
+			allocated = allocatedBytes() - allocated;
+		return new Result(operations, nanos, allocated);
+	}
+
+	/**
+	 * Time a single run of a workload that does its work on other threads, without warming up.
+	 */
+	public static Result timeOnPool(Workload workload) throws Exception {
+		Result result = time(workload);
+		return new Result(result.operations, result.nanos, -1);
+	}
+
+	/**
+	 * Print the rate of a result, and its allocation if known, e.g.
+	 * {@code "sealTextMessage:    120000 msg/s, 580.0 bytes allocated per msg"}.
+	 *
+	 * @param name what was measured
+	 * @param result the result
+	 * @param unit what an operation is, e.g. "msg"; "B" prints MB/s
+	 * @param details further values to print after the rate, may be empty
+	 */
+	public static void report(String name, Result result, String unit, String... details) {
+		List<String> parts = new ArrayList<>();
+		if ("B".equals(unit))
+			parts.add(String.format("%10.1f MB/s", result.getOperationsPerSecond() / (1024 * 1024)));
+		else
+			parts.add(String.format("%10.0f %s/s", result.getOperationsPerSecond(), unit));
+		if (result.allocatedBytes >= 0)
+			parts.add(String.format("%8.1f bytes allocated per %s", result.getAllocatedPerOperation(),
+					"B".equals(unit) ? "byte" : unit));
+		for (String detail : details)
+			parts.add(detail);
+		System.out.printf("%-32s %s%n", name, String.join(", ", parts));
+	}
+
+	/**
+	 * @return the thread counts to compare: 1, 2, 4... up to the number of processors
+	 */
+	public static int[] threadCounts() {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int n = 32 - Integer.numberOfLeadingZeros(cpus);
+		int[] counts = new int[n];
+		for (int i = 0; i < n; i++)
+			counts[i] = 1 << i;
+		return counts;
+	}
+
+	/**
+	 * @return the heap in use after full collections, for comparing the size of data structures
+	 */
+	public static long usedHeap() {
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return MEMORY.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Keep a result alive, so that the JIT cannot remove the work that produced it.
+	 */
+	public static void consume(long value) {
+		sink += value;
+	}
+
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.measureOnPool;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Broadcast of one text message to a few thousand recipients that are not in the shared key cache:
+ * {@link CryptTool#encryptTextMessage} in a loop against {@link CryptTool#encryptTextMessages} on
+ * pools of 1 up to the number of available processors.
+ */
+public class BroadcastBenchmark {
+	private static final int RECIPIENTS = 5000;
+	private static final String TEXT = "Dies ist eine Testnachricht an alle Empfänger. äöü";
+
+	public static void main(String[] args) throws Exception {
+		byte[] senderPrivateKey = new byte[32];
+		byte[] senderPublicKey = new byte[32];
+		CryptTool.generateKeyPair(senderPrivateKey, senderPublicKey);
+
+		List<byte[]> recipients = new ArrayList<>();
+		for (int i = 0; i < RECIPIENTS; i++) {
+			byte[] privateKey = new byte[32];
+			byte[] publicKey = new byte[32];
+			CryptTool.generateKeyPair(privateKey, publicKey);
+			recipients.add(publicKey);
+		}
+
+		report("encryptTextMessage:", measure(() -> run(senderPrivateKey, recipients, null)), "recipient");
+
+		for (int threads : BenchmarkHarness.threadCounts()) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			report(String.format("encryptTextMessages, %d thread(s):", threads),
+					measureOnPool(() -> run(senderPrivateKey, recipients, executor)), "recipient");
+			executor.shutdown();
+		}
+	}
+
+	private static long run(byte[] senderPrivateKey, List<byte[]> recipients, ExecutorService executor) {
+		/* nothing cached, as for a broadcast to recipients that are rarely messaged otherwise */
+		CryptTool.getSharedKeyCache().invalidateAll();
+		final AtomicLong bytes = new AtomicLong();
+		if (executor == null) {
+			for (byte[] recipient : recipients)
+				bytes.addAndGet(CryptTool.encryptTextMessage(TEXT, senderPrivateKey, recipient).getSize());
+		} else {
+			CryptTool.encryptTextMessages(TEXT, senderPrivateKey, recipients,
+					(publicKey, result) -> bytes.addAndGet(result.getSize()), executor);
+		}
+		BenchmarkHarness.consume(bytes.get());
+		return recipients.size();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import ch.threema.apitool.messages.DeliveryReceipt;
+import ch.threema.apitool.messages.TextMessage;
+import ch.threema.apitool.messages.ThreemaMessage;
+import ch.threema.apitool.results.EncryptResult;
+import ch.threema.apitool.results.UploadResult;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Decrypting and routing incoming messages (a text that is only checked for a command prefix, a
+ * receipt with 32 message IDs whose IDs are summed, and a file message whose type is counted):
+ * {@link CryptTool#decryptMessage} against {@link CryptTool#decryptMessageView}.
+ */
+public class DecodeViewBenchmark {
+	private static final int ITERATIONS = 30000;
+
+	public static void main(String[] args) throws Exception {
+		byte[] senderPrivateKey = new byte[32];
+		byte[] senderPublicKey = new byte[32];
+		byte[] recipientPrivateKey = new byte[32];
+		byte[] recipientPublicKey = new byte[32];
+		CryptTool.generateKeyPair(senderPrivateKey, senderPublicKey);
+		CryptTool.generateKeyPair(recipientPrivateKey, recipientPublicKey);
+
+		StringBuilder text = new StringBuilder("/status ");
+		while (text.length() < 400)
+			text.append("Dies ist eine Testnachricht. ");
+
+		byte[] receipt = new byte[2 + 32 * MessageId.MESSAGE_ID_LEN + 1];
+		receipt[0] = (byte) DeliveryReceipt.TYPE_CODE;
+		receipt[1] = 1;
+		for (int i = 2; i < receipt.length - 1; i++)
+			receipt[i] = (byte) i;
+		receipt[receipt.length - 1] = 1;
+
+		EncryptResult[] boxes = {
+				CryptTool.encryptTextMessage(text.toString(), senderPrivateKey, recipientPublicKey),
+				CryptTool.encrypt(receipt, senderPrivateKey, recipientPublicKey),
+				CryptTool.encryptFileMessage(new EncryptResult(new byte[0], new byte[32], null),
+						new UploadResult(200, new byte[16]), "text/plain", "report.txt", 1234, null,
+						senderPrivateKey, recipientPublicKey)
+		};
+
+		for (int round = 0; round < 2; round++) {
+			report("decryptMessage:", measure(() -> run(boxes, recipientPrivateKey, senderPublicKey, false)), "msg");
+			report("decryptMessageView:", measure(() -> run(boxes, recipientPrivateKey, senderPublicKey, true)), "msg");
+		}
+	}
+
+	private static long run(EncryptResult[] boxes, byte[] privateKey, byte[] publicKey, boolean view) throws Exception {
+		long sum = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			EncryptResult box = boxes[i % boxes.length];
+			ThreemaMessage message = view
+					? CryptTool.decryptMessageView(box.getResult(), privateKey, publicKey, box.getNonce())
+					: CryptTool.decryptMessage(box.getResult(), privateKey, publicKey, box.getNonce());
+
+			if (message instanceof TextMessage) {
+				CharSequence chars = ((TextMessage) message).getCharSequence();
+				if (chars.length() > 0 && chars.charAt(0) == '/')
+					sum++;
+			} else if (message instanceof DeliveryReceipt) {
+				DeliveryReceipt receipt = (DeliveryReceipt) message;
+				for (int j = 0; j < receipt.getAckedMessageCount(); j++)
+					sum += receipt.getAckedMessageId(j);
+			} else {
+				sum += message.getTypeCode();
+			}
+		}
+		BenchmarkHarness.consume(sum);
+		return ITERATIONS;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import ch.threema.apitool.results.EncryptResult;
+import ch.threema.apitool.results.UploadResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.measureOnPool;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Decryption of a burst of boxes (text messages, delivery receipts and file messages from a few
+ * hundred senders): {@link CryptTool#decryptMessage} one box at a time against
+ * {@link CryptTool#decryptMessages} on pools of 1 up to the number of available processors. The
+ * shared key cache is emptied before every run.
+ */
+public class DecryptMessagesBenchmark {
+	private static final int SENDERS = 200;
+	private static final int BOXES = 20000;
+
+	public static void main(String[] args) throws Exception {
+		byte[] recipientPrivateKey = new byte[32];
+		byte[] recipientPublicKey = new byte[32];
+		CryptTool.generateKeyPair(recipientPrivateKey, recipientPublicKey);
+
+		byte[][] senderPublicKeys = new byte[SENDERS][32];
+		byte[][] senderPrivateKeys = new byte[SENDERS][32];
+		for (int i = 0; i < SENDERS; i++)
+			CryptTool.generateKeyPair(senderPrivateKeys[i], senderPublicKeys[i]);
+
+		List<IncomingBox> boxes = new ArrayList<>();
+		for (int i = 0; i < BOXES; i++) {
+			int sender = i % SENDERS;
+			EncryptResult res;
+			if (i % 3 == 0) {
+				res = CryptTool.encryptTextMessage("Benchmark message number " + i, senderPrivateKeys[sender], recipientPublicKey);
+			} else if (i % 3 == 1) {
+				byte[] receipt = new byte[] { (byte) 0x80, 1, 0, 0, 0, 0, 0, 0, 0, (byte) i, 1 };
+				res = CryptTool.encrypt(receipt, senderPrivateKeys[sender], recipientPublicKey);
+			} else {
+				res = CryptTool.encryptFileMessage(new EncryptResult(new byte[0], new byte[32], null),
+						new UploadResult(200, new byte[16]), "image/jpeg", "IMG_" + i + ".jpg", 100000 + i, new UploadResult(200, new byte[16]),
+						senderPrivateKeys[sender], recipientPublicKey);
+			}
+			boxes.add(new IncomingBox(res.getResult(), res.getNonce(), recipientPrivateKey, senderPublicKeys[sender]));
+		}
+
+		report("decryptMessage:", measure(() -> run(boxes, null)), "box");
+
+		for (int threads : BenchmarkHarness.threadCounts()) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			report(String.format("decryptMessages, %d thread(s):", threads),
+					measureOnPool(() -> run(boxes, executor)), "box");
+			executor.shutdown();
+		}
+	}
+
+	private static long run(List<IncomingBox> boxes, ExecutorService executor) throws Exception {
+		CryptTool.getSharedKeyCache().invalidateAll();
+		if (executor == null) {
+			for (IncomingBox box : boxes)
+				CryptTool.decryptMessage(box.getBox(), box.getRecipientPrivateKey(), box.getSenderPublicKey(), box.getNonce());
+		} else {
+			CryptTool.decryptMessages(boxes, executor);
+		}
+		return boxes.size();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static ch.threema.apitool.BenchmarkHarness.report;
+import static ch.threema.apitool.BenchmarkHarness.time;
+
+/**
+ * Append rate, open time and lookup rate of a {@link FilePublicKeyStore} with 2M IDs, in a
+ * temporary directory.
+ */
+public class FilePublicKeyStoreBenchmark {
+	private static final int IDS = 2000000;
+	private static final int LOOKUPS = 10000000;
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("public-key-store-benchmark").toFile();
+		try {
+			File file = new File(dir, "keys");
+
+			/* appending changes the file, so it is timed once, without warm-up */
+			BenchmarkHarness.Result append = time(() -> {
+				byte[] key = new byte[32];
+				try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+					for (int i = 0; i < IDS; i++) {
+						key[0] = (byte) i;
+						store.setPublicKey(String.format("%08X", i), key);
+					}
+				}
+				return IDS;
+			});
+			report("append:", append, "key", String.format("%.1f MB on disk",
+					(file.length() + new File(file.getPath() + FilePublicKeyStore.INDEX_SUFFIX).length()) / 1e6));
+
+			long[] ids = new long[1024];
+			for (int i = 0; i < ids.length; i++)
+				ids[i] = PublicKeyTable.pack(String.format("%08X", (int) ((i * 7919L) % IDS)));
+
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+					double openMillis = (System.nanoTime() - start) / 1e6;
+
+					report("lookup:", time(() -> lookup(store, ids)), "lookup",
+							String.format("open %.1f ms for %d IDs", openMillis, store.size()));
+				}
+			}
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+
+	private static long lookup(FilePublicKeyStore store, long[] ids) {
+		long found = 0;
+		byte[] out = new byte[32];
+		for (int i = 0; i < LOOKUPS; i++) {
+			long id = ids[i & 1023] ^ ((long) (i >>> 10) & 0x0f);
+			if (store.get(id, out, 0))
+				found++;
+		}
+		BenchmarkHarness.consume(found);
+		return LOOKUPS;
+	}
+}
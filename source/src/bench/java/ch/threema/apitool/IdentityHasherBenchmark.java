@@ -0,0 +1,84 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Email hashing: a new Mac per call (as {@link CryptTool#hashEmail} used to hash) against
+ * {@link IdentityHasher}, and {@link IdentityHasher#hashLines} on an in-memory list.
+ */
+public class IdentityHasherBenchmark {
+	private static final int ITERATIONS = 500000;
+	private static final int LINES = 2000000;
+
+	public static void main(String[] args) throws Exception {
+		String[] emails = new String[1024];
+		StringBuilder list = new StringBuilder();
+		for (int i = 0; i < emails.length; i++)
+			emails[i] = "First.Last" + i + "@Example.com";
+		for (int i = 0; i < LINES; i++)
+			list.append(emails[i % emails.length]).append('\n');
+		byte[] input = list.toString().getBytes(StandardCharsets.UTF_8);
+
+		/* the cost of HMAC does not depend on the key */
+		byte[] key = new byte[32];
+
+		for (int round = 0; round < 2; round++) {
+			report("Mac per call:", measure(() -> run(emails, key, false)), "hash");
+			report("IdentityHasher:", measure(() -> run(emails, key, true)), "hash");
+
+			BenchmarkHarness.Result lines = measure(() -> IdentityHasher.EMAIL.hashLines(
+					new ByteArrayInputStream(input), new ByteArrayOutputStream(input.length * 3)));
+			report("hashLines:", lines, "entry",
+					String.format("%.1f MB/s input", input.length / lines.getSeconds() / 1e6));
+		}
+	}
+
+	private static long run(String[] emails, byte[] key, boolean hasher) throws Exception {
+		long sum = 0;
+		byte[] out = new byte[IdentityHasher.HASH_BYTES];
+		for (int i = 0; i < ITERATIONS; i++) {
+			String email = emails[i % emails.length];
+			if (hasher) {
+				IdentityHasher.EMAIL.hash(email, out, 0);
+			} else {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(new SecretKeySpec(key, "HmacSHA256"));
+				out = mac.doFinal(email.toLowerCase().trim().getBytes("US-ASCII"));
+			}
+			sum += out[0];
+		}
+		BenchmarkHarness.consume(sum);
+		return ITERATIONS;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import com.neilalexander.jnacl.NaCl;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import static ch.threema.apitool.BenchmarkHarness.report;
+import static ch.threema.apitool.BenchmarkHarness.time;
+
+/**
+ * Throughput of generating key pairs one at a time into two key files each (as the
+ * "-g" console command does) against {@link CryptTool#generateKeyPairs} into a single keystore
+ * file. Files are written to a temporary directory.
+ */
+public class KeyStoreBenchmark {
+	private static final int FILE_PAIRS = 5000;
+	private static final int STORE_PAIRS = 200000;
+
+	public static void main(String[] args) throws Exception {
+		File dir = Files.createTempDirectory("keystore-benchmark").toFile();
+		try {
+			for (int round = 0; round < 2; round++) {
+				report("key files:", time(() -> {
+					byte[] privateKey = new byte[NaCl.SECRETKEYBYTES];
+					byte[] publicKey = new byte[NaCl.PUBLICKEYBYTES];
+					for (int i = 0; i < FILE_PAIRS; i++) {
+						CryptTool.generateKeyPair(privateKey, publicKey);
+						DataUtils.writeKeyFile(new File(dir, i + ".private"), new Key(Key.KeyType.PRIVATE, privateKey));
+						DataUtils.writeKeyFile(new File(dir, i + ".public"), new Key(Key.KeyType.PUBLIC, publicKey));
+					}
+					return FILE_PAIRS;
+				}), "key pair");
+
+				for (KeyStoreWriter.Format format : KeyStoreWriter.Format.values()) {
+					File file = new File(dir, "keystore." + format);
+					report("keystore " + format + ":", time(() -> {
+						try (KeyStoreWriter writer = new KeyStoreWriter(
+								new BufferedOutputStream(new FileOutputStream(file), 1 << 20), format)) {
+							CryptTool.generateKeyPairs(STORE_PAIRS, writer, null);
+						}
+						return STORE_PAIRS;
+					}), "key pair");
+				}
+			}
+		} finally {
+			FileUtils.deleteDirectory(dir);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static ch.threema.apitool.BenchmarkHarness.report;
+import static ch.threema.apitool.BenchmarkHarness.time;
+
+/**
+ * Hit rate and lookup rate of {@link PublicKeyCache} with room for 1% of 1M IDs. Lookups follow
+ * a Zipf distribution (a few IDs are used much more often than most) and are mixed with scans of
+ * IDs that are used once, as in a broadcast to a large list.
+ */
+public class PublicKeyCacheBenchmark {
+	private static final int IDS = 1000000;
+	private static final int CACHE_SIZE = IDS / 100;
+	private static final int LOOKUPS = 5000000;
+	private static final int SCAN_EVERY = 100000;
+	private static final int SCAN_LENGTH = 20000;
+
+	public static void main(String[] args) throws Exception {
+		String[] ids = new String[IDS];
+		for (int i = 0; i < IDS; i++)
+			ids[i] = String.format("%08X", i);
+		int[] trace = zipfTrace(new Random(1));
+		byte[] key = new byte[32];
+
+		for (int round = 0; round < 2; round++) {
+			for (PublicKeyCache.Policy policy : PublicKeyCache.Policy.values()) {
+				PublicKeyCache cache = new PublicKeyCache(CACHE_SIZE, 0, TimeUnit.SECONDS, policy);
+				BenchmarkHarness.Result result = time(() -> {
+					int scanned = 0;
+					for (int i = 0; i < trace.length; i++) {
+						String id = ids[trace[i]];
+						if (cache.get(id) == null)
+							cache.putIfAbsent(id, key);
+						if (i % SCAN_EVERY == 0) {
+							for (int j = 0; j < SCAN_LENGTH; j++) {
+								String scan = ids[(int) ((scanned++ * 7919L) % IDS)];
+								if (cache.get(scan) == null)
+									cache.putIfAbsent(scan, key);
+							}
+						}
+					}
+					return cache.getHitCount() + cache.getMissCount();
+				});
+				report(policy + ":", result, "lookup", String.format("hit rate %.1f%%", 100 * cache.getHitRate()),
+						cache.getEvictionCount() + " evictions");
+			}
+		}
+	}
+
+	/* Zipf-distributed IDs (exponent 1), by inverting the cumulative distribution */
+	private static int[] zipfTrace(Random random) {
+		double[] cumulative = new double[IDS];
+		double sum = 0;
+		for (int i = 0; i < IDS; i++) {
+			sum += 1.0 / (i + 1);
+			cumulative[i] = sum;
+		}
+		int[] trace = new int[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+			rank = rank < 0 ? -rank - 1 : rank;
+			/* spread the popular IDs over the ID space */
+			trace[i] = (int) ((rank * 104729L) % IDS);
+		}
+		return trace;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static ch.threema.apitool.BenchmarkHarness.report;
+import static ch.threema.apitool.BenchmarkHarness.timeOnPool;
+
+/**
+ * Contention on the public key store: several threads look up keys, mostly cached, while a
+ * small share of lookups is for new IDs whose fetch takes 2 ms (like a database round trip).
+ * Compares {@link PublicKeyStore} with the previous implementation, which held one lock during
+ * fetches.
+ */
+public class PublicKeyStoreBenchmark {
+	private static final int THREADS = 16;
+	private static final int CACHED_IDS = 10000;
+	private static final double MISS_RATE = 0.001;
+	private static final long DURATION_MILLIS = 2000;
+	private static final long FETCH_MILLIS = 2;
+
+	public static void main(String[] args) throws Exception {
+		for (int round = 0; round < 2; round++) {
+			run("synchronized:", new LegacyStore()::getPublicKey);
+			run("PublicKeyStore:", new SlowStore()::getPublicKey);
+		}
+	}
+
+	private static void run(String name, Function<String, byte[]> store) throws Exception {
+		String[] ids = new String[CACHED_IDS];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = String.format("C%07d", i);
+			store.apply(ids[i]);
+		}
+
+		LongAdder hits = new LongAdder();
+		LongAdder hitNanos = new LongAdder();
+		AtomicInteger newIds = new AtomicInteger();
+		BenchmarkHarness.Result result = timeOnPool(() -> {
+			long end = System.currentTimeMillis() + DURATION_MILLIS;
+			Thread[] threads = new Thread[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				threads[t] = new Thread(() -> {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					while (System.currentTimeMillis() < end) {
+						if (random.nextDouble() < MISS_RATE) {
+							store.apply(String.format("N%07d", newIds.incrementAndGet()));
+						} else {
+							long start = System.nanoTime();
+							store.apply(ids[random.nextInt(ids.length)]);
+							hitNanos.add(System.nanoTime() - start);
+							hits.increment();
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			return hits.sum();
+		});
+
+		report(name, result, "hit", String.format("%.1f us per hit", hitNanos.sum() / 1e3 / hits.sum()),
+				newIds.get() + " fetches of new IDs");
+	}
+
+	private static byte[] fetch(String threemaId) {
+		if (threemaId.startsWith("N")) {
+			try {
+				Thread.sleep(FETCH_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return new byte[32];
+	}
+
+	private static class SlowStore extends PublicKeyStore {
+		@Override
+		protected byte[] fetchPublicKey(String threemaId) {
+			return fetch(threemaId);
+		}
+
+		@Override
+		protected void save(String threemaId, byte[] publicKey) {
+		}
+	}
+
+	/* PublicKeyStore as it was: one lock around the cache, held while fetching */
+	private static class LegacyStore {
+		private final Map<String, byte[]> cache = new HashMap<>();
+
+		byte[] getPublicKey(String threemaId) {
+			synchronized (this.cache) {
+				byte[] pk = this.cache.get(threemaId);
+				if (pk == null) {
+					pk = fetch(threemaId);
+					this.cache.put(threemaId, pk);
+				}
+				return pk;
+			}
+		}
+	}
+}
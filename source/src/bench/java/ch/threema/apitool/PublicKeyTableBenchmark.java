@@ -0,0 +1,114 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static ch.threema.apitool.BenchmarkHarness.report;
+import static ch.threema.apitool.BenchmarkHarness.time;
+import static ch.threema.apitool.BenchmarkHarness.usedHeap;
+
+/**
+ * Heap per entry and lookup rate with the public keys of 1M IDs: a HashMap (as PublicKeyStore
+ * used to cache), an unbounded {@link PublicKeyCache} and a {@link PublicKeyTable}. Heap use is
+ * taken after full collections, so run with a heap of 1 GB or more and nothing else going on.
+ */
+public class PublicKeyTableBenchmark {
+	private static final int IDS = 1000000;
+	private static final int LOOKUPS = 10000000;
+
+	public static void main(String[] args) throws Exception {
+		for (int round = 0; round < 2; round++) {
+			measure("HashMap:", () -> {
+				Map<String, byte[]> map = new HashMap<>();
+				return store(map::put, map::get);
+			});
+			measure("PublicKeyCache:", () -> {
+				PublicKeyCache cache = new PublicKeyCache();
+				return store(cache::put, cache::get);
+			});
+			measure("PublicKeyTable:", () -> {
+				PublicKeyTable table = new PublicKeyTable();
+				return store(table::put, table::get);
+			});
+			/* sized for the IDs up front, with the allocation-free lookup */
+			measure("PublicKeyTable, sized:", () -> {
+				PublicKeyTable table = new PublicKeyTable(IDS);
+				byte[] out = new byte[PublicKeyTable.KEY_BYTES];
+				return store((id, key) -> table.put(PublicKeyTable.pack(id), key, 0),
+						id -> table.get(PublicKeyTable.pack(id), out, 0) ? out : null);
+			});
+		}
+	}
+
+	private interface Store {
+		void put(String threemaId, byte[] publicKey);
+
+		byte[] get(String threemaId);
+	}
+
+	private static Store store(BiConsumer<String, byte[]> put, Function<String, byte[]> get) {
+		return new Store() {
+			@Override
+			public void put(String threemaId, byte[] publicKey) {
+				put.accept(threemaId, publicKey);
+			}
+
+			@Override
+			public byte[] get(String threemaId) {
+				return get.apply(threemaId);
+			}
+		};
+	}
+
+	private static void measure(String name, Supplier<Store> factory) throws Exception {
+		String[] ids = new String[IDS];
+		for (int i = 0; i < IDS; i++)
+			ids[i] = String.format("%08X", i * 2654435761L & 0xffffffffL);
+
+		long before = usedHeap();
+		Store store = factory.get();
+		for (int i = 0; i < IDS; i++) {
+			/* a new ID string and key for each entry, as when they come from a database */
+			store.put(new String(ids[i].toCharArray()), new byte[32]);
+		}
+		long bytesPerEntry = (usedHeap() - before) / IDS;
+
+		BenchmarkHarness.Result result = time(() -> {
+			long found = 0;
+			for (int i = 0; i < LOOKUPS; i++) {
+				if (store.get(ids[(int) ((i * 7919L) % IDS)]) != null)
+					found++;
+			}
+			BenchmarkHarness.consume(found);
+			return LOOKUPS;
+		});
+		report(name, result, "lookup", bytesPerEntry + " bytes per entry");
+	}
+}
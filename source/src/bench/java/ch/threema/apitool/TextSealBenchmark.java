@@ -0,0 +1,87 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import ch.threema.apitool.results.EncryptResult;
+
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Preparing a text message for sending (encryption and the request body of send_e2e, without the
+ * HTTP request): {@link CryptTool#encryptTextMessage} with hex strings against
+ * {@link CryptTool#sealTextMessage} with the reusable {@link FormBody}.
+ */
+public class TextSealBenchmark {
+	private static final int ITERATIONS = 100000;
+	private static final String TEXT = "Dies ist eine Testnachricht. äöü";
+
+	public static void main(String[] args) throws Exception {
+		byte[] privateKey = new byte[32];
+		byte[] publicKey = new byte[32];
+		CryptTool.generateKeyPair(privateKey, publicKey);
+
+		for (int round = 0; round < 2; round++) {
+			report("encryptTextMessage:", measure(() -> run(privateKey, publicKey, false)), "msg");
+			report("sealTextMessage:", measure(() -> run(privateKey, publicKey, true)), "msg");
+		}
+	}
+
+	private static long run(byte[] privateKey, byte[] publicKey, boolean sealed) throws Exception {
+		long bytes = 0;
+		FormBody body = new FormBody(16384);
+		for (int i = 0; i < ITERATIONS; i++) {
+			if (sealed) {
+				SealedBox box = CryptTool.sealTextMessage(TEXT, privateKey, publicKey);
+				body.reset().add("from", "*TESTING").add("secret", "secret").add("to", "ECHOECHO")
+						.addHex("nonce", box.getNonce(), 0, box.getNonce().length)
+						.addHex("box", box.getBuffer(), 0, box.getLength());
+				bytes += body.getLength();
+			} else {
+				/* as sendE2EMessage used to build its request body */
+				EncryptResult res = CryptTool.encryptTextMessage(TEXT, privateKey, publicKey);
+				Map<String, String> params = new HashMap<String, String>();
+				params.put("from", "*TESTING");
+				params.put("secret", "secret");
+				params.put("to", "ECHOECHO");
+				params.put("nonce", DataUtils.byteArrayToHexString(res.getNonce()));
+				params.put("box", DataUtils.byteArrayToHexString(res.getResult()));
+				StringBuilder s = new StringBuilder();
+				for (Map.Entry<String, String> param : params.entrySet()) {
+					if (s.length() > 0)
+						s.append('&');
+					s.append(param.getKey()).append('=').append(URLEncoder.encode(param.getValue(), "UTF-8"));
+				}
+				bytes += s.toString().getBytes("UTF-8").length;
+			}
+		}
+		BenchmarkHarness.consume(bytes);
+		return ITERATIONS;
+	}
+}
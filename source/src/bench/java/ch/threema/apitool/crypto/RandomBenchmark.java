@@ -0,0 +1,71 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import ch.threema.apitool.BenchmarkHarness;
+
+import java.security.SecureRandom;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Generating nonces: one shared SecureRandom (as CryptTool used to), a new SecureRandom per call
+ * (as encryptFileData and NaCl.genkeypair used to) and {@link RandomSources#system()}.
+ */
+public class RandomBenchmark {
+	private static final int ITERATIONS = 1000000;
+
+	private static final SecureRandom SHARED = new SecureRandom();
+
+	public static void main(String[] args) throws Exception {
+		RandomSource system = RandomSources.system();
+		for (int round = 0; round < 2; round++) {
+			report("shared SecureRandom:", measure(() -> run(0, system, ITERATIONS)), "nonce");
+			report("SecureRandom per call:", measure(() -> run(1, system, ITERATIONS / 20)), "nonce");
+			report("RandomSources.system:", measure(() -> run(2, system, ITERATIONS)), "nonce");
+		}
+	}
+
+	private static long run(int kind, RandomSource system, int iterations) {
+		byte[] nonce = new byte[24];
+		long sum = 0;
+		for (int i = 0; i < iterations; i++) {
+			switch (kind) {
+				case 0:
+					SHARED.nextBytes(nonce);
+					break;
+				case 1:
+					new SecureRandom().nextBytes(nonce);
+					break;
+				default:
+					system.nextBytes(nonce);
+			}
+			sum += nonce[0];
+		}
+		BenchmarkHarness.consume(sum);
+		return iterations;
+	}
+}
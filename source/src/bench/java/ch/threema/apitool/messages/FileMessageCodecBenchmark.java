@@ -0,0 +1,90 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.BenchmarkHarness;
+import ch.threema.apitool.DataUtils;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Encoding and decoding file messages: the org.json based code that {@link FileMessage} used
+ * before against {@link FileMessageCodec}.
+ */
+public class FileMessageCodecBenchmark {
+	private static final int ITERATIONS = 200000;
+
+	public static void main(String[] args) throws Exception {
+		FileMessage message = new FileMessage(new byte[16], new byte[32], "application/pdf",
+				"Quartalsbericht Q3 (\u00fcberarbeitet).pdf", 1834201, new byte[16]);
+		byte[] json = message.getData();
+
+		for (int round = 0; round < 2; round++) {
+			report("encode, org.json:", measure(() -> run(message, json, false, true)), "msg");
+			report("encode, codec:", measure(() -> run(message, json, false, false)), "msg");
+			report("decode, org.json:", measure(() -> run(message, json, true, true)), "msg");
+			report("decode, codec:", measure(() -> run(message, json, true, false)), "msg");
+		}
+	}
+
+	private static long run(FileMessage message, byte[] json, boolean decode, boolean org) throws Exception {
+		long sum = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			if (decode) {
+				FileMessage m;
+				if (org) {
+					/* as FileMessage.fromString used to parse */
+					JSONObject o = new JSONObject(new String(json, StandardCharsets.UTF_8));
+					m = new FileMessage(DataUtils.hexStringToByteArray(o.getString("b")),
+							DataUtils.hexStringToByteArray(o.getString("k")), o.getString("m"),
+							o.has("n") ? o.getString("n") : "unnamed", o.getInt("s"),
+							o.has("t") ? DataUtils.hexStringToByteArray(o.getString("t")) : null);
+				} else {
+					m = FileMessage.decode(json, 0, json.length);
+				}
+				sum += m.getFileSize();
+			} else if (org) {
+				/* as FileMessage.getData used to encode */
+				JSONObject o = new JSONObject();
+				o.put("b", DataUtils.byteArrayToHexString(message.getBlobId()));
+				o.put("t", DataUtils.byteArrayToHexString(message.getThumbnailBlobId()));
+				o.put("k", DataUtils.byteArrayToHexString(message.getEncryptionKey()));
+				o.put("m", message.getMimeType());
+				o.put("n", message.getFileName());
+				o.put("s", message.getFileSize());
+				o.put("i", 0);
+				sum += o.toString().getBytes("UTF-8").length;
+			} else {
+				sum += message.getData().length;
+			}
+		}
+		BenchmarkHarness.consume(sum);
+		return ITERATIONS;
+	}
+}
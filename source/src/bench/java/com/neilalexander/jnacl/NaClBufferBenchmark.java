@@ -0,0 +1,79 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl;
+
+import ch.threema.apitool.BenchmarkHarness;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Box encryption with byte arrays against heap and direct {@link ByteBuffer}s.
+ */
+public class NaClBufferBenchmark {
+	private static final int[] SIZES = { 100, 4096, 64 * 1024 };
+	private static final int ITERATIONS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(42);
+		byte[] privateKey = new byte[NaCl.SECRETKEYBYTES];
+		byte[] publicKey = new byte[NaCl.PUBLICKEYBYTES];
+		byte[] nonce = new byte[NaCl.NONCEBYTES];
+		random.nextBytes(privateKey);
+		random.nextBytes(publicKey);
+		random.nextBytes(nonce);
+		NaCl nacl = new NaCl(privateKey, publicKey);
+
+		for (int size : SIZES) {
+			byte[] message = new byte[size];
+			random.nextBytes(message);
+			int iterations = (int) Math.max(200, (long) ITERATIONS * 4096 / Math.max(size, 4096));
+
+			report(size + " bytes, byte[]:", measure(() -> {
+				for (int i = 0; i < iterations; i++)
+					nacl.encrypt(message, nonce);
+				return (long) size * iterations;
+			}), "B");
+
+			for (boolean direct : new boolean[] { false, true }) {
+				ByteBuffer in = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+				ByteBuffer out = direct ? ByteBuffer.allocateDirect(size + NaCl.BOXOVERHEAD)
+						: ByteBuffer.allocate(size + NaCl.BOXOVERHEAD);
+				in.put(message);
+				report(size + " bytes, " + (direct ? "direct" : "heap") + " buffer:", measure(() -> {
+					for (int i = 0; i < iterations; i++) {
+						in.clear();
+						out.clear();
+						nacl.encrypt(in, out, nonce);
+					}
+					return (long) size * iterations;
+				}), "B");
+			}
+		}
+	}
+}
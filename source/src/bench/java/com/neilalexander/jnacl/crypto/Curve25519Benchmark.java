@@ -0,0 +1,72 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+import java.util.Random;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Shared-key computation ({@link curve25519#crypto_scalarmult}), and public key derivation
+ * ({@link curve25519#crypto_scalarmult_base}) against the ladder over the base point.
+ */
+public class Curve25519Benchmark {
+	private static final int ITERATIONS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(42);
+		byte[][] scalars = new byte[64][32];
+		byte[][] points = new byte[64][32];
+		for (int i = 0; i < scalars.length; i++) {
+			random.nextBytes(scalars[i]);
+			curve25519.crypto_scalarmult_base(points[i], scalars[(i + 1) % scalars.length]);
+		}
+
+		byte[][] base = new byte[scalars.length][];
+		for (int i = 0; i < base.length; i++)
+			base[i] = curve25519.basev;
+
+		report("crypto_scalarmult:", measure(() -> run(scalars, points, ITERATIONS)), "op");
+		report("crypto_scalarmult, base point:", measure(() -> run(scalars, base, ITERATIONS)), "op");
+		report("crypto_scalarmult_base:", measure(() -> {
+			/* cheaper per call, so it gets more calls */
+			int iterations = ITERATIONS * 5;
+			byte[] q = new byte[32];
+			for (int i = 0; i < iterations; i++)
+				curve25519.crypto_scalarmult_base(q, scalars[i % scalars.length]);
+			return iterations;
+		}), "op");
+	}
+
+	private static long run(byte[][] scalars, byte[][] points, int iterations) {
+		byte[] q = new byte[32];
+		for (int i = 0; i < iterations; i++) {
+			int j = i % scalars.length;
+			curve25519.crypto_scalarmult(q, scalars[j], points[j]);
+		}
+		return iterations;
+	}
+}
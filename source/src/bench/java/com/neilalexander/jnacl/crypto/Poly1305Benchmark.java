@@ -0,0 +1,56 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+import java.util.Random;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Throughput of {@link poly1305} from short messages up to file blob sizes.
+ */
+public class Poly1305Benchmark {
+	private static final int[] SIZES = {64, 1024, 64 * 1024, 1024 * 1024};
+
+	public static void main(String[] args) throws Exception {
+		byte[] key = new byte[32];
+		byte[] tag = new byte[16];
+		new Random(42).nextBytes(key);
+
+		for (int size : SIZES) {
+			byte[] data = new byte[size];
+			new Random(size).nextBytes(data);
+
+			int iterations = Math.max(1, (64 * 1024 * 1024) / size);
+
+			report(size + " bytes:", measure(() -> {
+				for (int i = 0; i < iterations; i++)
+					poly1305.crypto_onetimeauth(tag, 0, data, 0, data.length, key);
+				return (long) size * iterations;
+			}), "B");
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+import ch.threema.apitool.BenchmarkHarness;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.measureOnPool;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * In-place secretbox of a 50 MB blob: sequential against the parallel variant on pools of 1 up to
+ * the number of available processors.
+ */
+public class SecretboxBenchmark {
+	private static final int SIZE = 50 * 1024 * 1024;
+	private static final int CHUNK = 1024 * 1024;
+	private static final int ITERATIONS = 5;
+
+	public static void main(String[] args) throws Exception {
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+		byte[] io = new byte[SIZE + 16];
+		new Random(42).nextBytes(key);
+		new Random(24).nextBytes(nonce);
+		new Random(SIZE).nextBytes(io);
+
+		report("sequential:", measure(() -> run(io, nonce, key, null)), "B");
+
+		for (int threads : BenchmarkHarness.threadCounts()) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			report(threads + " thread(s):", measureOnPool(() -> run(io, nonce, key, pool)), "B");
+			pool.shutdown();
+		}
+	}
+
+	private static long run(byte[] io, byte[] nonce, byte[] key, ForkJoinPool pool) {
+		for (int i = 0; i < ITERATIONS; i++) {
+			if (pool == null)
+				xsalsa20poly1305.crypto_secretbox_nopad(io, 0, io, 16, SIZE, nonce, key);
+			else
+				xsalsa20poly1305.crypto_secretbox_nopad_parallel(io, 0, io, 16, SIZE, nonce, key, pool, CHUNK);
+		}
+		return (long) SIZE * ITERATIONS;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+import java.util.Random;
+
+import static ch.threema.apitool.BenchmarkHarness.measure;
+import static ch.threema.apitool.BenchmarkHarness.report;
+
+/**
+ * Throughput of the XSalsa20 keystream at file blob sizes: the scalar one-block engine against the
+ * wide multi-block engine ({@link salsa20#stream_xor_wide}).
+ */
+public class XSalsa20Benchmark {
+	private static final int[] SIZES = {64 * 1024, 1024 * 1024, 50 * 1024 * 1024};
+
+	public static void main(String[] args) throws Exception {
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+		new Random(42).nextBytes(key);
+		new Random(24).nextBytes(nonce);
+
+		for (int size : SIZES) {
+			byte[] data = new byte[size];
+			new Random(size).nextBytes(data);
+
+			int iterations = Math.max(2, (256 * 1024 * 1024) / size);
+
+			report(size + " bytes, scalar:", measure(() -> run(data, nonce, key, iterations, false)), "B");
+			report(size + " bytes, wide:", measure(() -> run(data, nonce, key, iterations, true)), "B");
+		}
+	}
+
+	private static long run(byte[] data, byte[] nonce, byte[] key, int iterations, boolean wide) {
+		/* in place, like the file encryption in CryptTool (crypto_stream_xor_skip32 starts at 32) */
+		for (int i = 0; i < iterations; i++)
+			xsalsa20.crypto_stream_xor_at(null, data, 0, data, 0, data.length, nonce, key, 32, wide);
+		return (long) data.length * iterations;
+	}
+}
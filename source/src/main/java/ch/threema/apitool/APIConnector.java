@@ -24,17 +24,24 @@
 
 package ch.threema.apitool;
 
+import ch.threema.apitool.crypto.RandomSource;
+import ch.threema.apitool.crypto.RandomSources;
 import ch.threema.apitool.results.CapabilityResult;
 import ch.threema.apitool.results.EncryptResult;
 import ch.threema.apitool.results.UploadResult;
+import com.neilalexander.jnacl.NaCl;
 
 import javax.net.ssl.HttpsURLConnection;
 import java.io.*;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Facilitates HTTPS communication with the Threema Message API.
@@ -42,6 +49,12 @@ import java.util.Map;
 public class APIConnector {
 	private static final int BUFFER_SIZE = 16384;
 
+	/* IDs not found that are remembered at most */
+	private static final int MAX_NOT_FOUND = 10000;
+
+	/* request body of sendE2EMessage, reused by each thread (a box of 4000 bytes takes 8000 hex digits) */
+	private static final ThreadLocal<FormBody> formBody = ThreadLocal.withInitial(() -> new FormBody(BUFFER_SIZE));
+
 	public interface ProgressListener {
 
 		/**
@@ -67,6 +80,11 @@ public class APIConnector {
 	private final String apiIdentity;
 	private final String secret;
 
+	/* key lookups in progress, and IDs not found with the time until they are not looked up again */
+	private final ConcurrentMap<String, CompletableFuture<byte[]>> keyLookups = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Long> notFound = new ConcurrentHashMap<>();
+	private volatile long notFoundTtlNanos = TimeUnit.SECONDS.toNanos(60);
+
 	public APIConnector(String apiIdentity, String secret, PublicKeyStore publicKeyStore) {
 		this(apiIdentity, secret, "https://msgapi.threema.ch/", publicKeyStore);
 	}
@@ -105,13 +123,32 @@ public class APIConnector {
 	 * @throws IOException if a communication or server error occurs
 	 */
 	public String sendE2EMessage(String to, byte[] nonce, byte[] box) throws IOException {
+		return sendE2EMessage(to, nonce, box, box.length);
+	}
 
-		Map<String,String> postParams = makeRequestParams();
-		postParams.put("to", to);
-		postParams.put("nonce", DataUtils.byteArrayToHexString(nonce));
-		postParams.put("box", DataUtils.byteArrayToHexString(box));
+	/**
+	 * Send an end-to-end encrypted message from {@link CryptTool#sealTextMessage}. The nonce and box are
+	 * hex encoded directly into a request body buffer that is reused by the calling thread.
+	 *
+	 * @param to recipient ID
+	 * @param sealedBox the encrypted message
+	 * @return message ID
+	 * @throws IOException if a communication or server error occurs
+	 */
+	public String sendE2EMessage(String to, SealedBox sealedBox) throws IOException {
+		return sendE2EMessage(to, sealedBox.getNonce(), sealedBox.getBuffer(), sealedBox.getLength());
+	}
 
-		return doPost(new URL(this.apiUrl + "send_e2e"), postParams);
+	private String sendE2EMessage(String to, byte[] nonce, byte[] box, int boxLength) throws IOException {
+
+		FormBody body = formBody.get().reset()
+				.add("from", apiIdentity)
+				.add("secret", secret)
+				.add("to", to)
+				.addHex("nonce", nonce, 0, nonce.length)
+				.addHex("box", box, 0, boxLength);
+
+		return doPost(new URL(this.apiUrl + "send_e2e"), body.getData(), body.getLength());
 	}
 
 	/**
@@ -157,7 +194,9 @@ public class APIConnector {
 	}
 
 	/**
-	 * Lookup a public key by ID.
+	 * Lookup a public key by ID. The public key store is checked first; a key fetched from the
+	 * server is added to the store. Concurrent lookups of the same ID share one request, and an ID
+	 * that was not found is not looked up again for a while (see {@link #setNotFoundTtl}).
 	 *
 	 * @param id the ID whose public key is desired
 	 * @return the corresponding public key, or null if not found
@@ -165,18 +204,108 @@ public class APIConnector {
 	 */
 	public byte[] lookupKey(String id) throws IOException {
 		byte[] key = this.publicKeyStore.getPublicKey(id);
-		if(key == null) {
+		if(key != null || this.isNotFound(id)) {
+			return key;
+		}
+
+		CompletableFuture<byte[]> lookup = new CompletableFuture<>();
+		CompletableFuture<byte[]> running = this.keyLookups.putIfAbsent(id, lookup);
+		if(running != null) {
 			try {
-				Map<String, String> getParams = makeRequestParams();
-				String pubkeyHex = doGet(new URL(this.apiUrl + "pubkeys/" + id), getParams);
-				key = DataUtils.hexStringToByteArray(pubkeyHex);
-			} catch (FileNotFoundException e) {
-				return null;
+				return running.join();
+			} catch (CompletionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				if(e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw e;
+			}
+		}
+
+		try {
+			/* a lookup that finished since the checks above has already stored its result */
+			key = this.publicKeyStore.getCache().peek(id);
+			if(key == null && !this.isNotFound(id)) {
+				key = this.requestPublicKey(id);
+				if(key == null) {
+					this.rememberNotFound(id);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			lookup.completeExceptionally(e);
+			this.keyLookups.remove(id, lookup);
+			throw e;
+		}
+
+		lookup.complete(key);
+		try {
+			if(key != null && key.length == NaCl.PUBLICKEYBYTES) {
+				this.publicKeyStore.setPublicKey(id, key);
 			}
+		} catch (RuntimeException e) {
+			/* the store caches the key before saving it, so the key is still used; it is only
+			 * missing from the backing store (and looked up again once it leaves the cache) */
+		} finally {
+			this.keyLookups.remove(id, lookup);
 		}
 		return key;
 	}
 
+	/**
+	 * Set how long an ID whose public key was not found is not looked up again (default 60 seconds,
+	 * 0 to always look it up).
+	 *
+	 * @param ttl the time
+	 * @param unit unit of ttl
+	 */
+	public void setNotFoundTtl(long ttl, TimeUnit unit) {
+		if(ttl < 0) {
+			throw new IllegalArgumentException("Negative time");
+		}
+		this.notFoundTtlNanos = unit.toNanos(ttl);
+		this.notFound.clear();
+	}
+
+	/* fetch a public key from the server, or null if not found */
+	byte[] requestPublicKey(String id) throws IOException {
+		try {
+			Map<String, String> getParams = makeRequestParams();
+			String pubkeyHex = doGet(new URL(this.apiUrl + "pubkeys/" + id), getParams);
+			return DataUtils.hexStringToByteArray(pubkeyHex);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/* whether the ID was not found recently, so that it is not looked up again yet */
+	private boolean isNotFound(String id) {
+		Long notFoundUntil = this.notFound.get(id);
+		if(notFoundUntil == null) {
+			return false;
+		}
+		if(System.nanoTime() - notFoundUntil < 0) {
+			return true;
+		}
+		this.notFound.remove(id, notFoundUntil);
+		return false;
+	}
+
+	private void rememberNotFound(String id) {
+		long ttl = this.notFoundTtlNanos;
+		if(ttl == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		if(this.notFound.size() >= MAX_NOT_FOUND) {
+			/* drop expired entries, or all if that is not enough */
+			this.notFound.values().removeIf(until -> now - until >= 0);
+			if(this.notFound.size() >= MAX_NOT_FOUND) {
+				this.notFound.clear();
+			}
+		}
+		this.notFound.put(id, now + ttl);
+	}
+
 	/**
 	 * Lookup the capabilities of a ID
 	 *
@@ -217,7 +346,7 @@ public class APIConnector {
 
 		char[] chars = "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
 		String boundary = "";
-		SecureRandom rand = new SecureRandom();
+		RandomSource rand = RandomSources.get();
 		int count = rand.nextInt(11) + 30;
 		for (int i = 0; i < count; i++) {
 			boundary += chars[rand.nextInt(chars.length)];
@@ -371,6 +500,11 @@ public class APIConnector {
 
 		byte[] postData = makeUrlEncoded(postParams).getBytes("UTF-8");
 
+		return doPost(url, postData, postData.length);
+	}
+
+	private String doPost(URL url, byte[] postData, int postDataLength) throws IOException {
+
 		HttpsURLConnection connection = (HttpsURLConnection)url.openConnection();
 		connection.setDoOutput(true);
 		connection.setDoInput(true);
@@ -378,11 +512,11 @@ public class APIConnector {
 		connection.setRequestMethod("POST");
 		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
 		connection.setRequestProperty("Charset", "utf-8");
-		connection.setRequestProperty("Content-Length", Integer.toString(postData.length));
+		connection.setRequestProperty("Content-Length", Integer.toString(postDataLength));
 		connection.setUseCaches(false);
 
 		OutputStream os = connection.getOutputStream();
-		os.write(postData);
+		os.write(postData, 0, postDataLength);
 		os.flush();
 		os.close();
 
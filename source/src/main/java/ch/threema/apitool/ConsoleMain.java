@@ -80,7 +80,7 @@ public class ConsoleMain {
 				boolean matched = true;
 				int matchedSize = 0;
 				for(int n = 0; n < c.arguments.length; n++) {
-					if(n > arguments.length || !c.arguments[n].equals(arguments[n])) {
+					if(n >= arguments.length || !c.arguments[n].equals(arguments[n])) {
 						matched = false;
 						break;
 					}
@@ -126,7 +126,9 @@ public class ConsoleMain {
 				.add(new DecryptCommand(), "-d")
 				.add(new HashEmailCommand(), "-h", "-e")
 				.add(new HashPhoneCommand(), "-h", "-p")
+				.add(new HashBulkCommand(), "-h", "-b")
 				.add(new GenerateKeyPairCommand(), "-g")
+				.add(new GenerateKeyPairsCommand(), "-g", "-b")
 				.add(new DerivePublicKeyCommand(), "-p");
 
 		commands.create("Network operations")
@@ -165,6 +167,9 @@ public class ConsoleMain {
 			System.out.println("not recommended on shared machines as other users may be able to see");
 			System.out.println("the arguments), or as the path to a file that it should be read from");
 			System.out.println("(file contents also in hex with the prefix).\n");
+
+			System.out.println("Network operations keep the public keys they fetch in a file if one is");
+			System.out.println("given with -D" + Command.PUBLIC_KEY_STORE_PROPERTY + "=<file> (before -jar).\n");
 		}
 
 		String groupDescriptionTemplate = htmlOutput ? "<h3>%s</h3>\n" : "\n%s\n" + StringUtils.repeat("-", 80) + "\n\n";
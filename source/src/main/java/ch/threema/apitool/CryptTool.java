@@ -24,36 +24,113 @@
 
 package ch.threema.apitool;
 
+import ch.threema.apitool.crypto.CryptoBackend;
+import ch.threema.apitool.crypto.CryptoBackends;
+import ch.threema.apitool.crypto.PaddingPolicy;
+import ch.threema.apitool.crypto.RandomSource;
+import ch.threema.apitool.crypto.RandomSources;
+import ch.threema.apitool.crypto.SecretBoxStream;
+import ch.threema.apitool.crypto.SharedKeyCache;
 import ch.threema.apitool.exceptions.BadMessageException;
 import ch.threema.apitool.exceptions.DecryptionFailedException;
 import ch.threema.apitool.exceptions.MessageParseException;
 import ch.threema.apitool.exceptions.UnsupportedMessageTypeException;
 import ch.threema.apitool.messages.*;
+import ch.threema.apitool.results.DecryptResult;
 import ch.threema.apitool.results.EncryptResult;
 import ch.threema.apitool.results.UploadResult;
 import com.neilalexander.jnacl.NaCl;
 import org.apache.commons.io.EndianUtils;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.LongConsumer;
 
 /**
  * Contains static methods to do various Threema cryptography related tasks.
+ *
+ * The NaCl primitives are provided by the {@link CryptoBackend} returned by {@link CryptoBackends#get()}.
  */
 public class CryptTool {
 
-	/* HMAC-SHA256 keys for email/mobile phone hashing */
-	private static final byte[] EMAIL_HMAC_KEY = new byte[] {(byte)0x30,(byte)0xa5,(byte)0x50,(byte)0x0f,(byte)0xed,(byte)0x97,(byte)0x01,(byte)0xfa,(byte)0x6d,(byte)0xef,(byte)0xdb,(byte)0x61,(byte)0x08,(byte)0x41,(byte)0x90,(byte)0x0f,(byte)0xeb,(byte)0xb8,(byte)0xe4,(byte)0x30,(byte)0x88,(byte)0x1f,(byte)0x7a,(byte)0xd8,(byte)0x16,(byte)0x82,(byte)0x62,(byte)0x64,(byte)0xec,(byte)0x09,(byte)0xba,(byte)0xd7};
-	private static final byte[] PHONENO_HMAC_KEY = new byte[] {(byte)0x85,(byte)0xad,(byte)0xf8,(byte)0x22,(byte)0x69,(byte)0x53,(byte)0xf3,(byte)0xd9,(byte)0x6c,(byte)0xfd,(byte)0x5d,(byte)0x09,(byte)0xbf,(byte)0x29,(byte)0x55,(byte)0x5e,(byte)0xb9,(byte)0x55,(byte)0xfc,(byte)0xd8,(byte)0xaa,(byte)0x5e,(byte)0xc4,(byte)0xf9,(byte)0xfc,(byte)0xd8,(byte)0x69,(byte)0xe2,(byte)0x58,(byte)0x37,(byte)0x07,(byte)0x23};
-
 	private static final byte[] FILE_NONCE = new byte[]{0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x01};
 	private static final byte[] FILE_THUMBNAIL_NONCE = new byte[]{0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x00,0x02};
 
-	private static final SecureRandom random = new SecureRandom();
+	/* maximum number of boxes from one sender per task in decryptMessages */
+	private static final int DECRYPT_BATCH_CHUNK = 64;
+
+	/* recipients per task in encryptTextMessages, and the maximum number of tasks in progress */
+	private static final int BROADCAST_CHUNK = 64;
+	private static final int BROADCAST_MAX_PENDING = 16;
+
+	/* key pairs per task in generateKeyPairs */
+	private static final int KEY_PAIR_CHUNK = 256;
+
+	/* buffer of sealTextMessage, large enough for most messages (3500 bytes of text) */
+	private static final ThreadLocal<SealedBox> sealedBox = ThreadLocal.withInitial(
+			() -> new SealedBox(new byte[NaCl.NONCEBYTES], new byte[NaCl.BOXOVERHEAD + 1 + 3500 + 255]));
+
+	private static volatile SharedKeyCache sharedKeyCache = new SharedKeyCache();
+
+	private static volatile PaddingPolicy paddingPolicy = PaddingPolicy.RANDOM;
+
+	/**
+	 * @return the cache of shared keys used by {@link #encrypt} and {@link #decrypt} (for statistics and invalidation)
+	 */
+	public static SharedKeyCache getSharedKeyCache() {
+		return sharedKeyCache;
+	}
+
+	/**
+	 * Replace the cache of shared keys, e.g. with one of a different size (size 0 disables caching).
+	 *
+	 * @param cache the new cache
+	 */
+	public static void setSharedKeyCache(SharedKeyCache cache) {
+		sharedKeyCache = cache;
+	}
+
+	/**
+	 * @return the padding applied to messages before encryption
+	 */
+	public static PaddingPolicy getPaddingPolicy() {
+		return paddingPolicy;
+	}
+
+	/**
+	 * Replace the padding applied to messages before encryption, e.g. with
+	 * {@link PaddingPolicy#bucketed(int, int)} to send fewer bytes per message
+	 * (default {@link PaddingPolicy#RANDOM}).
+	 *
+	 * @param policy the new padding policy
+	 */
+	public static void setPaddingPolicy(PaddingPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("Padding policy must not be null");
+		}
+		paddingPolicy = policy;
+	}
 
 	/**
 	 * Encrypt a text message.
@@ -68,6 +145,178 @@ public class CryptTool {
 	}
 
 
+	/**
+	 * Encrypt a text message without allocating: the type byte, text and padding are written to a
+	 * buffer owned by the calling thread (with room for the authenticator in front) and encrypted in
+	 * place. For high-rate sending together with {@link APIConnector#sendE2EMessage(String, SealedBox)}.
+	 *
+	 * @param text the text to be encrypted (max. 3500 bytes)
+	 * @param senderPrivateKey the private key of the sending ID
+	 * @param recipientPublicKey the public key of the receiving ID
+	 * @return the encrypted message, valid until the next call on this thread
+	 */
+	public static SealedBox sealTextMessage(CharSequence text, byte[] senderPrivateKey, byte[] recipientPublicKey) {
+		CryptoBackend backend = CryptoBackends.get();
+		byte[] sharedKey = sharedKeyCache.get(senderPrivateKey, recipientPublicKey, backend);
+
+		SealedBox sealed = sealedBox.get();
+		RandomSource rnd = RandomSources.get();
+		rnd.nextBytes(sealed.getNonce());
+
+		int messageLength = 1 + DataUtils.utf8Length(text);
+		int padbytes = paddingPolicy.padding(messageLength, rnd);
+		int length = NaCl.BOXOVERHEAD + messageLength + padbytes;
+		if (sealed.getBuffer().length < length) {
+			sealed.setBuffer(new byte[length]);
+		}
+
+		/* type byte, text and padding after the room for the authenticator */
+		byte[] buffer = sealed.getBuffer();
+		buffer[NaCl.BOXOVERHEAD] = (byte) TextMessage.TYPE_CODE;
+		int end = DataUtils.encodeUtf8(text, buffer, NaCl.BOXOVERHEAD + 1);
+		Arrays.fill(buffer, end, length, (byte) padbytes);
+
+		backend.secretboxInplace(buffer, 0, length, sharedKey, sealed.getNonce());
+		sealed.setLength(length);
+
+		return sealed;
+	}
+
+	/**
+	 * Encrypt the same text message for many recipients, e.g. a broadcast. The message is encoded
+	 * once; the recipients are processed in parallel on the common fork/join pool, in chunks that
+	 * share one shared key computation (shared keys that are already cached are reused). The results
+	 * are handed to the consumer as they are produced, and only a bounded number of chunks is in
+	 * progress at any time, so the recipients may come from an arbitrarily long (lazy) iterable.
+	 *
+	 * @param text the text to be encrypted (max. 3500 bytes)
+	 * @param senderPrivateKey the private key of the sending ID
+	 * @param recipientPublicKeys the public keys of the receiving IDs
+	 * @param consumer receives each recipient public key (the same array) with its encrypted result;
+	 *                 it is called from the worker threads, possibly concurrently, in no particular order
+	 */
+	public static void encryptTextMessages(String text, byte[] senderPrivateKey, Iterable<byte[]> recipientPublicKeys,
+	                                       BiConsumer<byte[], EncryptResult> consumer) {
+		encryptTextMessages(text, senderPrivateKey, recipientPublicKeys, consumer, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Encrypt the same text message for many recipients on the given executor, see
+	 * {@link #encryptTextMessages(String, byte[], Iterable, BiConsumer)}. Returns when all results have
+	 * been consumed; an exception from the consumer or an invalid public key stops the broadcast and is
+	 * rethrown (recipients before it may or may not have been processed). Interrupting the calling
+	 * thread stops the broadcast as well: the chunks in progress are finished, then a
+	 * CancellationException is thrown with the interrupt status set.
+	 */
+	public static void encryptTextMessages(String text, final byte[] senderPrivateKey, Iterable<byte[]> recipientPublicKeys,
+	                                       final BiConsumer<byte[], EncryptResult> consumer, Executor executor) {
+		if (senderPrivateKey.length != NaCl.SECRETKEYBYTES) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+
+		/* type byte and message data, the same for all recipients */
+		TextMessage message = new TextMessage(text);
+		byte[] messageBytes = message.getData();
+		final byte[] body = new byte[1 + messageBytes.length];
+		body[0] = (byte) message.getTypeCode();
+		System.arraycopy(messageBytes, 0, body, 1, messageBytes.length);
+
+		/* chunks in submission order; waiting blocks through ForkJoinPool.managedBlock on pool threads */
+		ArrayDeque<CompletableFuture<Void>> pending = new ArrayDeque<>();
+		List<byte[]> chunk = new ArrayList<>(BROADCAST_CHUNK);
+		Throwable failure = null;
+		boolean interrupted = false;
+
+		try {
+			Iterator<byte[]> it = recipientPublicKeys.iterator();
+			while (it.hasNext()) {
+				byte[] publicKey = it.next();
+				if (publicKey.length != NaCl.PUBLICKEYBYTES) {
+					throw new IllegalArgumentException("Wrong key length");
+				}
+
+				chunk.add(publicKey);
+				if (chunk.size() == BROADCAST_CHUNK || !it.hasNext()) {
+					final byte[][] keys = chunk.toArray(new byte[chunk.size()][]);
+					chunk.clear();
+					pending.add(CompletableFuture.runAsync(() -> encryptChunk(body, senderPrivateKey, keys, consumer), executor));
+
+					/* finished chunks (and failures) are taken off as they come; at most a bounded number runs */
+					while (!pending.isEmpty() && (pending.peek().isDone() || pending.size() >= BROADCAST_MAX_PENDING)) {
+						pending.remove().get();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			interrupted = true;
+			failure = new CancellationException("Broadcast interrupted");
+		} catch (ExecutionException e) {
+			failure = e.getCause();
+		} finally {
+			/* wait for the chunks in progress (a bounded number) */
+			for (CompletableFuture<Void> future : pending) {
+				try {
+					future.join();
+				} catch (CompletionException e) {
+					if (failure == null)
+						failure = e.getCause();
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new RuntimeException(failure);
+		}
+	}
+
+	private static void encryptChunk(byte[] body, byte[] privateKey, byte[][] publicKeys, BiConsumer<byte[], EncryptResult> consumer) {
+		CryptoBackend backend = CryptoBackends.get();
+
+		/* cached shared keys are used, the others are computed together (but not cached) */
+		byte[][] sharedKeys = new byte[publicKeys.length][];
+		int missing = 0;
+		for (int i = 0; i < publicKeys.length; i++) {
+			sharedKeys[i] = sharedKeyCache.getIfPresent(privateKey, publicKeys[i]);
+			if (sharedKeys[i] == null)
+				missing++;
+		}
+		if (missing > 0) {
+			byte[][] missingKeys = new byte[missing][];
+			for (int i = 0, j = 0; i < publicKeys.length; i++) {
+				if (sharedKeys[i] == null)
+					missingKeys[j++] = publicKeys[i];
+			}
+			byte[][] computed = backend.beforenmBatch(privateKey, missingKeys);
+			for (int i = 0, j = 0; i < publicKeys.length; i++) {
+				if (sharedKeys[i] == null)
+					sharedKeys[i] = computed[j++];
+			}
+		}
+
+		RandomSource rnd = RandomSources.get();
+		PaddingPolicy padding = paddingPolicy;
+		for (int i = 0; i < publicKeys.length; i++) {
+			/* PKCS7 padding, as in encryptMessage */
+			int padbytes = padding.padding(body.length, rnd);
+			byte[] nonce = new byte[NaCl.NONCEBYTES];
+			rnd.nextBytes(nonce);
+
+			/* a box is a secretbox with the shared key: encrypt in place in the output array */
+			byte[] box = new byte[NaCl.BOXOVERHEAD + body.length + padbytes];
+			System.arraycopy(body, 0, box, NaCl.BOXOVERHEAD, body.length);
+			Arrays.fill(box, NaCl.BOXOVERHEAD + body.length, box.length, (byte) padbytes);
+			backend.secretboxInplace(box, sharedKeys[i], nonce);
+
+			consumer.accept(publicKeys[i], new EncryptResult(box, null, nonce));
+		}
+	}
+
 	/**
 	 * Encrypt an image message.
 	 *
@@ -119,9 +368,6 @@ public class CryptTool {
 
 
 	private static EncryptResult encryptMessage(ThreemaMessage threemaMessage, byte[] privateKey, byte[] publicKey) {
-		/* determine random amount of PKCS7 padding */
-		int padbytes = random.nextInt(254) + 1;
-
 		byte[] messageBytes;
 		try {
 			messageBytes = threemaMessage.getData();
@@ -129,6 +375,9 @@ public class CryptTool {
 			return null;
 		}
 
+		/* determine amount of PKCS7 padding */
+		int padbytes = paddingPolicy.padding(1 + messageBytes.length, RandomSources.get());
+
 		/* prepend type byte (0x02) to message data */
 		byte[] data = new byte[1 + messageBytes.length + padbytes];
 		data[0] = (byte)threemaMessage.getTypeCode();
@@ -153,7 +402,8 @@ public class CryptTool {
 	 * @return The decrypted data, or null if decryption failed
 	 */
 	public static byte[] decrypt(byte[] box, byte[] privateKey, byte[] publicKey, byte[] nonce) {
-		return new NaCl(privateKey, publicKey).decrypt(box, nonce);
+		CryptoBackend backend = CryptoBackends.get();
+		return backend.unbox(box, sharedKeyCache.get(privateKey, publicKey, backend), nonce);
 	}
 
 	/**
@@ -164,7 +414,21 @@ public class CryptTool {
 	 * @return The decrypted file data, or null if decryption failed
 	 */
 	public static byte[] decryptFileData(byte[] fileData, byte[] secret) {
-		return NaCl.symmetricDecryptData(fileData, secret, FILE_NONCE);
+		return CryptoBackends.get().secretboxOpen(fileData, secret, FILE_NONCE);
+	}
+
+	/**
+	 * Decrypt symmetrically encrypted file data from a channel (e.g. a downloaded blob on disk) without
+	 * holding it in memory. The data is authenticated before any of it is written to the output.
+	 *
+	 * @param in the encrypted file data, read from its current position to the end
+	 * @param out where the decrypted file data is written
+	 * @param secret The symmetric key that was used for encryption
+	 * @return the number of bytes written
+	 * @throws DecryptionFailedException if the data is corrupted or the key is wrong
+	 */
+	public static long decryptFileData(SeekableByteChannel in, WritableByteChannel out, byte[] secret) throws IOException, DecryptionFailedException {
+		return SecretBoxStream.decrypt(in, out, secret, FILE_NONCE);
 	}
 
 	/**
@@ -175,7 +439,7 @@ public class CryptTool {
 	 * @return The decrypted thumbnail data, or null if decryption failed
 	 */
 	public static byte[] decryptFileThumbnailData(byte[] fileData, byte[] secret) {
-		return NaCl.symmetricDecryptData(fileData, secret, FILE_THUMBNAIL_NONCE);
+		return CryptoBackends.get().secretboxOpen(fileData, secret, FILE_THUMBNAIL_NONCE);
 	}
 
 	/**
@@ -193,6 +457,146 @@ public class CryptTool {
 		if (data == null)
 			throw new DecryptionFailedException();
 
+		return parseMessage(data, false);
+	}
+
+	/**
+	 * Decrypt a message without materializing its contents: the returned message is a view over
+	 * the decrypted data. Text is a {@link Utf8Text} that is decoded on first use (see
+	 * {@link TextMessage#getCharSequence()}), delivery receipts expose their message IDs as numbers
+	 * ({@link DeliveryReceipt#getAckedMessageId(int)}) and file messages parse their JSON on the first
+	 * access of a field. This suits consumers that only route or count messages.
+	 *
+	 * Unlike {@link #decryptMessage}, a malformed file message is only detected when its fields are
+	 * accessed (or by {@link FileMessage#parse()}).
+	 *
+	 * @param box the box to be decrypted
+	 * @param recipientPrivateKey the private key of the receiving ID
+	 * @param senderPublicKey the public key of the sending ID
+	 * @param nonce the nonce that was used for the encryption
+	 * @return decrypted message (text, delivery receipt, image or file message)
+	 */
+	public static ThreemaMessage decryptMessageView(byte[] box, byte[] recipientPrivateKey, byte[] senderPublicKey, byte[] nonce) throws MessageParseException {
+		byte[] data = decrypt(box, recipientPrivateKey, senderPublicKey, nonce);
+		if (data == null)
+			throw new DecryptionFailedException();
+
+		return parseMessage(data, true);
+	}
+
+	/**
+	 * Decrypt a batch of messages, e.g. a burst of callbacks. Boxes from the same sender share one
+	 * shared key computation, and the boxes are decrypted and parsed in parallel on the common
+	 * fork/join pool.
+	 *
+	 * @param boxes the boxes to be decrypted
+	 * @return one result per box, in the same order; a box that cannot be decrypted or parsed does
+	 *         not affect the others
+	 */
+	public static List<DecryptResult> decryptMessages(Collection<IncomingBox> boxes) {
+		return decryptMessages(boxes, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Decrypt a batch of messages on the given executor, see {@link #decryptMessages(Collection)}.
+	 *
+	 * @param boxes the boxes to be decrypted
+	 * @param executor runs the decryption tasks (of up to {@value #DECRYPT_BATCH_CHUNK} boxes from one sender each)
+	 * @return one result per box, in the same order
+	 */
+	public static List<DecryptResult> decryptMessages(Collection<IncomingBox> boxes, Executor executor) {
+		final IncomingBox[] items = boxes.toArray(new IncomingBox[boxes.size()]);
+		final DecryptResult[] results = new DecryptResult[items.length];
+
+		/* group by key pair, keeping the order of first appearance */
+		Map<ByteBuffer, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < items.length; i++) {
+			IncomingBox item = items[i];
+			if (item.getRecipientPrivateKey().length != NaCl.SECRETKEYBYTES || item.getSenderPublicKey().length != NaCl.PUBLICKEYBYTES) {
+				results[i] = new DecryptResult(item, null, new IllegalArgumentException("Wrong key length"));
+				continue;
+			}
+
+			ByteBuffer pair = ByteBuffer.allocate(NaCl.SECRETKEYBYTES + NaCl.PUBLICKEYBYTES);
+			pair.put(item.getRecipientPrivateKey()).put(item.getSenderPublicKey()).flip();
+			List<Integer> group = groups.get(pair);
+			if (group == null) {
+				group = new ArrayList<>();
+				groups.put(pair, group);
+			}
+			group.add(i);
+		}
+
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		for (final List<Integer> group : groups.values()) {
+			final IncomingBox first = items[group.get(0)];
+			if (group.size() <= DECRYPT_BATCH_CHUNK) {
+				tasks.add(CompletableFuture.runAsync(() -> {
+					byte[] sharedKey;
+					try {
+						sharedKey = sharedKey(first);
+					} catch (RuntimeException e) {
+						fail(items, group, results, e);
+						return;
+					}
+					decryptChunk(items, group, results, sharedKey);
+				}, executor));
+				continue;
+			}
+
+			/* compute the shared key of a large group once, then decrypt its chunks in parallel */
+			CompletableFuture<byte[]> sharedKey = CompletableFuture.supplyAsync(() -> sharedKey(first), executor);
+			for (int from = 0; from < group.size(); from += DECRYPT_BATCH_CHUNK) {
+				final List<Integer> chunk = group.subList(from, Math.min(from + DECRYPT_BATCH_CHUNK, group.size()));
+				tasks.add(sharedKey.handleAsync((key, error) -> {
+					if (error == null) {
+						decryptChunk(items, chunk, results, key);
+						return null;
+					}
+					Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+					if (!(cause instanceof RuntimeException)) {
+						throw new CompletionException(cause);
+					}
+					fail(items, chunk, results, (RuntimeException) cause);
+					return null;
+				}, executor));
+			}
+		}
+		CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	private static byte[] sharedKey(IncomingBox box) {
+		return sharedKeyCache.get(box.getRecipientPrivateKey(), box.getSenderPublicKey(), CryptoBackends.get());
+	}
+
+	/* report the same error for all boxes of a chunk, e.g. when their shared key could not be computed */
+	private static void fail(IncomingBox[] items, List<Integer> chunk, DecryptResult[] results, RuntimeException e) {
+		for (int i : chunk) {
+			results[i] = new DecryptResult(items[i], null, e);
+		}
+	}
+
+	/* decrypt boxes that all have the given shared key */
+	private static void decryptChunk(IncomingBox[] items, List<Integer> chunk, DecryptResult[] results, byte[] sharedKey) {
+		CryptoBackend backend = CryptoBackends.get();
+		for (int i : chunk) {
+			IncomingBox item = items[i];
+			try {
+				byte[] data = backend.unbox(item.getBox(), sharedKey, item.getNonce());
+				if (data == null)
+					throw new DecryptionFailedException();
+
+				results[i] = new DecryptResult(item, parseMessage(data, false), null);
+			} catch (MessageParseException | RuntimeException e) {
+				results[i] = new DecryptResult(item, null, e);
+			}
+		}
+	}
+
+	/* with view set, the message refers to data instead of copying and decoding it */
+	private static ThreemaMessage parseMessage(byte[] data, boolean view) throws MessageParseException {
 		/* remove padding */
 		int padbytes = data[data.length-1] & 0xFF;
 		int realDataLength = data.length - padbytes;
@@ -208,6 +612,9 @@ public class CryptTool {
 				if (realDataLength < 2)
 					throw new BadMessageException();
 
+				if (view)
+					return new TextMessage(new Utf8Text(data, 1, realDataLength - 1));
+
 				try {
 					return new TextMessage(new String(data, 1, realDataLength - 1, "UTF-8"));
 				} catch (UnsupportedEncodingException e) {
@@ -224,9 +631,11 @@ public class CryptTool {
 				if (receiptType == null)
 					throw new BadMessageException();
 
-				List<MessageId> messageIds = new LinkedList<MessageId>();
-
 				int numMsgIds = ((realDataLength - 2) / MessageId.MESSAGE_ID_LEN);
+				if (view)
+					return new DeliveryReceipt(receiptType, data, 2, numMsgIds);
+
+				List<MessageId> messageIds = new LinkedList<MessageId>();
 				for (int i = 0; i < numMsgIds; i++) {
 					messageIds.add(new MessageId(data, 2 + i*MessageId.MESSAGE_ID_LEN));
 				}
@@ -243,16 +652,15 @@ public class CryptTool {
 				System.arraycopy(data, 1, blobId, 0, ThreemaMessage.BLOB_ID_LEN);
 				int size = EndianUtils.readSwappedInteger(data, 1 + ThreemaMessage.BLOB_ID_LEN);
 				byte[] fileNonce = new byte[NaCl.NONCEBYTES];
-				System.arraycopy(data, 1 + 4 + ThreemaMessage.BLOB_ID_LEN, nonce, 0, nonce.length);
+				System.arraycopy(data, 1 + 4 + ThreemaMessage.BLOB_ID_LEN, fileNonce, 0, fileNonce.length);
 
 				return new ImageMessage(blobId, size, fileNonce);
 
 			case FileMessage.TYPE_CODE:
-				try {
-					return FileMessage.fromString(new String(data, 1, realDataLength-1, "UTF-8"));
-				} catch (UnsupportedEncodingException e) {
-					throw new BadMessageException();
-				}
+				if (view)
+					return FileMessage.fromBytes(data, 1, realDataLength - 1);
+
+				return FileMessage.decode(data, 1, realDataLength - 1);
 
 			default:
 				throw new UnsupportedMessageTypeException();
@@ -270,7 +678,89 @@ public class CryptTool {
 			throw new IllegalArgumentException("Wrong key length");
 		}
 
-		NaCl.genkeypair(publicKey, privateKey);
+		CryptoBackends.get().generateKeyPair(privateKey, publicKey);
+	}
+
+	/**
+	 * Generate many key pairs in parallel on the common fork/join pool and write them, in one stream,
+	 * to a keystore.
+	 *
+	 * @param count number of key pairs to generate
+	 * @param writer receives the key pairs; not closed
+	 * @param progress called on the calling thread with the number of key pairs written so far, may be null
+	 * @throws IOException if writing fails
+	 */
+	public static void generateKeyPairs(long count, KeyStoreWriter writer, LongConsumer progress) throws IOException {
+		generateKeyPairs(count, writer, progress, ForkJoinPool.commonPool(), Math.max(1, ForkJoinPool.getCommonPoolParallelism()));
+	}
+
+	/**
+	 * Generate many key pairs on the given executor, see {@link #generateKeyPairs(long, KeyStoreWriter, LongConsumer)}.
+	 *
+	 * @param count number of key pairs to generate
+	 * @param writer receives the key pairs; not closed
+	 * @param progress called on the calling thread with the number of key pairs written so far, may be null
+	 * @param executor runs the generation tasks
+	 * @param parallelism number of chunks generated at the same time (while earlier ones are written)
+	 * @throws IOException if writing fails
+	 */
+	public static void generateKeyPairs(long count, KeyStoreWriter writer, LongConsumer progress,
+										Executor executor, int parallelism) throws IOException {
+		if (count < 0)
+			throw new IllegalArgumentException("count must not be negative");
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+
+		/* chunks are written in submission order; at most 2 * parallelism chunks are in flight */
+		ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+		long written = 0;
+		for (long submitted = 0; submitted < count; ) {
+			final int pairs = (int) Math.min(KEY_PAIR_CHUNK, count - submitted);
+			pending.add(CompletableFuture.supplyAsync(() -> generateKeyPairChunk(pairs), executor));
+			submitted += pairs;
+			if (pending.size() >= 2 * parallelism)
+				written = writeKeyPairChunk(pending.remove(), writer, written, progress);
+		}
+		while (!pending.isEmpty())
+			written = writeKeyPairChunk(pending.remove(), writer, written, progress);
+	}
+
+	private static byte[] generateKeyPairChunk(int pairs) {
+		CryptoBackend backend = CryptoBackends.get();
+		byte[] chunk = new byte[pairs * KeyStoreWriter.PAIR_BYTES];
+		byte[] privateKey = new byte[NaCl.SECRETKEYBYTES];
+		byte[] publicKey = new byte[NaCl.PUBLICKEYBYTES];
+		for (int i = 0, pos = 0; i < pairs; i++) {
+			backend.generateKeyPair(privateKey, publicKey);
+			System.arraycopy(privateKey, 0, chunk, pos, NaCl.SECRETKEYBYTES);
+			pos += NaCl.SECRETKEYBYTES;
+			System.arraycopy(publicKey, 0, chunk, pos, NaCl.PUBLICKEYBYTES);
+			pos += NaCl.PUBLICKEYBYTES;
+		}
+		Arrays.fill(privateKey, (byte) 0);
+		return chunk;
+	}
+
+	private static long writeKeyPairChunk(CompletableFuture<byte[]> future, KeyStoreWriter writer, long written,
+										  LongConsumer progress) throws IOException {
+		byte[] chunk;
+		try {
+			chunk = future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+		int pairs = chunk.length / KeyStoreWriter.PAIR_BYTES;
+		try {
+			writer.write(chunk, 0, pairs);
+		} finally {
+			Arrays.fill(chunk, (byte) 0);
+		}
+		written += pairs;
+		if (progress != null)
+			progress.accept(written);
+		return written;
 	}
 
 	/**
@@ -286,8 +776,8 @@ public class CryptTool {
 		}
 
 		byte[] nonce = randomNonce();
-		NaCl naCl = new NaCl(privateKey, publicKey);
-		return new EncryptResult(naCl.encrypt(data, nonce), null, nonce);
+		CryptoBackend backend = CryptoBackends.get();
+		return new EncryptResult(backend.box(data, sharedKeyCache.get(privateKey, publicKey, backend), nonce), null, nonce);
 	}
 
 	/**
@@ -298,16 +788,36 @@ public class CryptTool {
 	 */
 	public static EncryptResult encryptFileData(byte[] data) {
 		//create random key
-		SecureRandom rnd = new SecureRandom();
 		byte[] encryptionKey = new byte[NaCl.SYMMKEYBYTES];
-		rnd.nextBytes(encryptionKey);
+		RandomSources.get().nextBytes(encryptionKey);
 
 		//encrypt file data in-place
-		NaCl.symmetricEncryptDataInplace(data, encryptionKey, FILE_NONCE);
+		CryptoBackends.get().secretboxInplace(data, encryptionKey, FILE_NONCE);
 
 		return new EncryptResult(data, encryptionKey, FILE_NONCE);
 	}
 
+	/**
+	 * Encrypt file data from a channel using NaCl symmetric encryption with a random key, without
+	 * holding it in memory. The output has the same format as that of {@link #encryptFileData(byte[])}.
+	 *
+	 * @param in the file contents to be encrypted, read to the end
+	 * @param out where the encrypted data is written; the authenticator at its start is filled in last
+	 * @return the encryption result including the random key (but not the data)
+	 */
+	public static EncryptResult encryptFileData(ReadableByteChannel in, SeekableByteChannel out) throws IOException {
+		//create random key
+		byte[] encryptionKey = new byte[NaCl.SYMMKEYBYTES];
+		RandomSources.get().nextBytes(encryptionKey);
+
+		long size = SecretBoxStream.encrypt(in, out, encryptionKey, FILE_NONCE);
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("file too large");
+		}
+
+		return new EncryptResult((int) size, encryptionKey, FILE_NONCE);
+	}
+
 	/**
 	 * Encrypt file thumbnail data using NaCl symmetric encryption with a random key.
 	 *
@@ -316,7 +826,7 @@ public class CryptTool {
 	 */
 	public static EncryptResult encryptFileThumbnailData(byte[] data, byte[] encryptionKey) {
 		// encrypt file data in-place
-		NaCl.symmetricEncryptDataInplace(data, encryptionKey, FILE_THUMBNAIL_NONCE);
+		CryptoBackends.get().secretboxInplace(data, encryptionKey, FILE_THUMBNAIL_NONCE);
 
 		return new EncryptResult(data, encryptionKey, FILE_THUMBNAIL_NONCE);
 	}
@@ -328,15 +838,9 @@ public class CryptTool {
 	 * @return the raw hash
 	 */
 	public static byte[] hashEmail(String email) {
-		try {
-			Mac emailMac = Mac.getInstance("HmacSHA256");
-			emailMac.init(new SecretKeySpec(EMAIL_HMAC_KEY, "HmacSHA256"));
-			String normalizedEmail = email.toLowerCase().trim();
-			return emailMac.doFinal(normalizedEmail.getBytes("US-ASCII"));
-		} catch (Exception e) {
-			e.printStackTrace();
+		if (email == null)
 			return null;
-		}
+		return IdentityHasher.EMAIL.hash(email);
 	}
 
 	/**
@@ -346,15 +850,9 @@ public class CryptTool {
 	 * @return the raw hash
 	 */
 	public static byte[] hashPhoneNo(String phoneNo) {
-		try {
-			Mac phoneMac = Mac.getInstance("HmacSHA256");
-			phoneMac.init(new SecretKeySpec(PHONENO_HMAC_KEY, "HmacSHA256"));
-			String normalizedPhoneNo = phoneNo.replaceAll("[^0-9]", "");
-			return phoneMac.doFinal(normalizedPhoneNo.getBytes("US-ASCII"));
-		} catch (Exception e) {
-			e.printStackTrace();
+		if (phoneNo == null)
 			return null;
-		}
+		return IdentityHasher.PHONE_NO.hash(phoneNo);
 	}
 
 	/**
@@ -364,7 +862,7 @@ public class CryptTool {
 	 */
 	public static byte[] randomNonce() {
 		byte[] nonce = new byte[NaCl.NONCEBYTES];
-		random.nextBytes(nonce);
+		RandomSources.get().nextBytes(nonce);
 		return nonce;
 	}
 
@@ -375,6 +873,6 @@ public class CryptTool {
 	 * @return The corresponding public key.
 	 */
 	public static byte[] derivePublicKey(byte[] privateKey) {
-		return NaCl.derivePublicKey(privateKey);
+		return CryptoBackends.get().derivePublicKey(privateKey);
 	}
 }
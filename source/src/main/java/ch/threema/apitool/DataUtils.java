@@ -65,6 +65,80 @@ public class DataUtils {
 		return new String(hexChars);
 	}
 
+	/**
+	 * @return the length of the UTF-8 encoding of a string, as written by {@link #encodeUtf8}
+	 */
+	public static int utf8Length(CharSequence s) {
+		return utf8Length(s, 0, s.length());
+	}
+
+	/**
+	 * @return the length of the UTF-8 encoding of the characters start to end - 1 of a string
+	 */
+	public static int utf8Length(CharSequence s, int start, int end) {
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encode a string as UTF-8 into an existing buffer, without allocating. Unpaired surrogates are
+	 * replaced by '?', as {@link String#getBytes(String)} does.
+	 *
+	 * @param s the string to encode
+	 * @param buffer the buffer to write to; it must have room for {@link #utf8Length} bytes
+	 * @param offset position of the first byte in the buffer
+	 * @return position after the last byte written
+	 */
+	public static int encodeUtf8(CharSequence s, byte[] buffer, int offset) {
+		return encodeUtf8(s, 0, s.length(), buffer, offset);
+	}
+
+	/**
+	 * Encode the characters start to end - 1 of a string as UTF-8, see
+	 * {@link #encodeUtf8(CharSequence, byte[], int)}.
+	 *
+	 * @return position after the last byte written
+	 */
+	public static int encodeUtf8(CharSequence s, int start, int end, byte[] buffer, int offset) {
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer[offset++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[offset++] = (byte) (0xc0 | (c >> 6));
+				buffer[offset++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer[offset++] = (byte) (0xf0 | (cp >> 18));
+				buffer[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				buffer[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				buffer[offset++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				buffer[offset++] = '?';
+			} else {
+				buffer[offset++] = (byte) (0xe0 | (c >> 12));
+				buffer[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buffer[offset++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return offset;
+	}
+
 	/**
 	 * Read hexadecimal data from a file and return it as a byte array.
 	 *
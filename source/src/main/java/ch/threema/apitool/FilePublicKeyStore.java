@@ -0,0 +1,557 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import com.neilalexander.jnacl.NaCl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Public key store in a file, so that keys survive restarts and short-lived processes start with
+ * the keys fetched before.
+ *
+ * The keys are appended to a log of fixed-size records (packed Threema ID and public key, see
+ * {@link PublicKeyTable#pack(CharSequence)}); a new key for an ID is a new record. A hash index in
+ * a second file (the log's name plus ".idx") maps each ID to its latest record. Both files are
+ * memory-mapped: opening a store takes the same time regardless of its size, and lookups read the
+ * mapped files without locking. When more than half of the records have been replaced, the log is
+ * compacted on a background thread (changes wait for it, lookups do not). If that fails, it is only
+ * tried again once the log has doubled; {@link #getCompactionFailure()} and {@link #close()} report
+ * the failure.
+ *
+ * If the index does not match the log (e.g. after a crash during compaction), it is rebuilt from
+ * the log when the store is opened. The store holds up to {@value #MAX_RECORDS} records. Only one
+ * process may open a store at a time. Close the store to write all changes to disk.
+ */
+public class FilePublicKeyStore extends PublicKeyStore implements Closeable {
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	public static final String INDEX_SUFFIX = ".idx";
+
+	/* log: magic, unused, generation, number of records; then the records */
+	private static final int LOG_MAGIC = 0x54504b4c; /* "TPKL" */
+	private static final int LOG_GENERATION = 8;
+	private static final int LOG_RECORDS = 16;
+	private static final int LOG_HEADER = 32;
+	private static final int RECORD_BYTES = 8 + NaCl.PUBLICKEYBYTES;
+
+	/* index: magic, number of slots, generation of the log, records indexed, IDs; then the slots */
+	private static final int INDEX_MAGIC = 0x54504b58; /* "TPKX" */
+	private static final int INDEX_SLOTS = 4;
+	private static final int INDEX_GENERATION = 8;
+	private static final int INDEX_RECORDS = 16;
+	private static final int INDEX_ENTRIES = 24;
+	private static final int INDEX_HEADER = 32;
+
+	public static final int MAX_RECORDS = (Integer.MAX_VALUE - LOG_HEADER) / RECORD_BYTES;
+	private static final int MIN_RECORDS = 1024;
+
+	/* compaction once this many records (and more than half) have been replaced */
+	private static final long COMPACT_MIN_REPLACED = 1024;
+
+	/* lookup result: the record is not in this mapping, look again */
+	private static final long RETRY = -2;
+
+	private final Path logPath;
+	private final Path indexPath;
+
+	/* the current mappings; replaced as a whole when a file grows or is compacted */
+	private volatile State state;
+
+	/* records in the log; a record is readable once it is counted here */
+	private volatile long records;
+
+	/* guarded by this: the files and the number of IDs */
+	private FileChannel logChannel;
+	private FileChannel indexChannel;
+	private long entries;
+	private boolean closed;
+
+	/* guarded by this: the last failed background compaction, and when to try again */
+	private IOException compactionFailure;
+	private long compactionRetryRecords;
+
+	private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "FilePublicKeyStore compaction");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Open or create a store, with a cache of {@value #DEFAULT_CACHE_SIZE} keys in front of it.
+	 *
+	 * @param file the log file; the index is kept next to it
+	 * @throws IOException if the files cannot be read or are not a public key store
+	 */
+	public FilePublicKeyStore(File file) throws IOException {
+		this(file, new PublicKeyCache(DEFAULT_CACHE_SIZE, 0, TimeUnit.SECONDS, PublicKeyCache.Policy.SEGMENTED_LRU));
+	}
+
+	/**
+	 * Open or create a store with the given cache in front of it.
+	 *
+	 * @param file the log file; the index is kept next to it
+	 * @param cache the cache of public keys
+	 * @throws IOException if the files cannot be read or are not a public key store
+	 */
+	public FilePublicKeyStore(File file, Cache cache) throws IOException {
+		super(cache);
+		this.logPath = file.toPath();
+		this.indexPath = new File(file.getPath() + INDEX_SUFFIX).toPath();
+		synchronized (this) {
+			try {
+				this.open();
+			} catch (IOException | RuntimeException e) {
+				/* the mappings go away with the garbage collector, the files must not stay open */
+				compactor.shutdown();
+				closeQuietly(this.logChannel, e);
+				closeQuietly(this.indexChannel, e);
+				throw e;
+			}
+		}
+	}
+
+	private static void closeQuietly(FileChannel channel, Exception failure) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				failure.addSuppressed(e);
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		this.logChannel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		MappedByteBuffer log;
+		long logRecords;
+		if (logChannel.size() == 0) {
+			log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, LOG_HEADER + (long) MIN_RECORDS * RECORD_BYTES);
+			log.putInt(0, LOG_MAGIC);
+			log.putLong(LOG_GENERATION, 1);
+			log.putLong(LOG_RECORDS, 0);
+			logRecords = 0;
+		} else {
+			long size = Math.min(logChannel.size(), LOG_HEADER + (long) MAX_RECORDS * RECORD_BYTES);
+			if (size < LOG_HEADER) {
+				throw new IOException("Not a public key store: " + logPath);
+			}
+			log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (log.getInt(0) != LOG_MAGIC) {
+				throw new IOException("Not a public key store: " + logPath);
+			}
+			logRecords = Math.min(log.getLong(LOG_RECORDS), (size - LOG_HEADER) / RECORD_BYTES);
+		}
+		long generation = log.getLong(LOG_GENERATION);
+
+		/* use the index if it belongs to this log, else build it again */
+		MappedByteBuffer index = null;
+		if (Files.exists(indexPath)) {
+			this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long size = indexChannel.size();
+			if (size >= INDEX_HEADER) {
+				index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				int slots = index.getInt(INDEX_SLOTS);
+				if (index.getInt(0) != INDEX_MAGIC || Integer.bitCount(slots) != 1
+						|| size != INDEX_HEADER + 4L * slots
+						|| index.getLong(INDEX_GENERATION) != generation
+						|| index.getLong(INDEX_RECORDS) > logRecords) {
+					index = null;
+				}
+			}
+			if (index == null) {
+				indexChannel.close();
+			}
+		}
+
+		State s;
+		if (index != null) {
+			s = new State(log, index);
+			this.entries = index.getLong(INDEX_ENTRIES);
+		} else {
+			s = new State(log, this.createIndex(indexPath, slotsFor(logRecords), generation));
+			this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			s.index.putLong(INDEX_RECORDS, 0);
+			this.entries = 0;
+		}
+		this.state = s;
+		this.records = logRecords;
+
+		/* records appended after the index was last written */
+		for (long record = s.index.getLong(INDEX_RECORDS); record < logRecords; record++) {
+			long id = this.state.log.getLong(recordOffset(record));
+			if (id != 0) {
+				this.index(id, record);
+			}
+		}
+		this.state.index.putLong(INDEX_RECORDS, logRecords);
+	}
+
+	@Override
+	protected byte[] fetchPublicKey(String threemaId) {
+		long id = PublicKeyTable.packOrZero(threemaId);
+		if (id == 0) {
+			return null;
+		}
+		byte[] publicKey = new byte[NaCl.PUBLICKEYBYTES];
+		return this.get(id, publicKey, 0) ? publicKey : null;
+	}
+
+	@Override
+	protected void save(String threemaId, byte[] publicKey) {
+		if (publicKey.length != NaCl.PUBLICKEYBYTES) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+		try {
+			this.put(PublicKeyTable.pack(threemaId), publicKey);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Read the public key of a packed ID from the files, without locking or allocating.
+	 *
+	 * @param id the packed Threema ID
+	 * @param out receives the public key at outOffset
+	 * @return true if the ID was found
+	 */
+	public boolean get(long id, byte[] out, int outOffset) {
+		for (int attempt = 0; attempt < 3; attempt++) {
+			State s = this.state;
+			long record = find(s, id, this.records);
+			if (record >= 0) {
+				s.readKey(record, out, outOffset);
+				return true;
+			}
+			if (record != RETRY && s == this.state) {
+				return false;
+			}
+		}
+
+		/* the files keep changing: look while no changes are made */
+		synchronized (this) {
+			long record = find(this.state, id, this.records);
+			if (record >= 0) {
+				this.state.readKey(record, out, outOffset);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return the number of Threema IDs in the store
+	 */
+	public synchronized long size() {
+		return this.entries;
+	}
+
+	/**
+	 * Write all changes to disk.
+	 */
+	public synchronized void flush() {
+		State s = this.state;
+		s.log.force();
+		s.index.force();
+	}
+
+	/**
+	 * @return why the last background compaction failed, or null if it did not fail (or a later
+	 * compaction succeeded)
+	 */
+	public synchronized IOException getCompactionFailure() {
+		return this.compactionFailure;
+	}
+
+	/**
+	 * Remove replaced records from the log now (this also happens automatically in the background).
+	 *
+	 * @throws IOException if the compacted files cannot be written; the log stays as it is
+	 */
+	public synchronized void compact() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		State s = this.state;
+		long generation = s.log.getLong(LOG_GENERATION) + 1;
+
+		/* the latest record of each ID, into new files that replace the old ones */
+		Path compactLogPath = new File(logPath + ".compact").toPath();
+		Path compactIndexPath = new File(indexPath + ".compact").toPath();
+		int capacity = (int) Math.min(MAX_RECORDS, Math.max(MIN_RECORDS, this.entries + this.entries / 2));
+		MappedByteBuffer log;
+		try (FileChannel channel = FileChannel.open(compactLogPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			log = channel.map(FileChannel.MapMode.READ_WRITE, 0, LOG_HEADER + (long) capacity * RECORD_BYTES);
+		}
+		MappedByteBuffer index = this.createIndex(compactIndexPath, slotsFor(this.entries), generation);
+		State compacted = new State(log, index);
+
+		long count = 0;
+		for (int slot = 0; slot <= s.mask; slot++) {
+			int ref = s.index.getInt(INDEX_HEADER + 4 * slot);
+			if (ref != 0) {
+				long record = ref - 1;
+				int offset = recordOffset(count);
+				for (int i = 0; i < RECORD_BYTES; i += 8) {
+					log.putLong(offset + i, s.log.getLong(recordOffset(record) + i));
+				}
+				compacted.link(log.getLong(offset), count);
+				count++;
+			}
+		}
+		log.putInt(0, LOG_MAGIC);
+		log.putLong(LOG_GENERATION, generation);
+		log.putLong(LOG_RECORDS, count);
+		index.putLong(INDEX_RECORDS, count);
+		index.putLong(INDEX_ENTRIES, count);
+		log.force();
+		index.force();
+
+		/* if this stops between the moves, the generations differ and the index is rebuilt on open */
+		Files.move(compactLogPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.move(compactIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.logChannel.close();
+		this.indexChannel.close();
+		this.logChannel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		/* readers still using the old mappings see consistent (unlinked) files and look again on a miss */
+		this.records = count;
+		this.state = compacted;
+		this.compactionFailure = null;
+		this.compactionRetryRecords = 0;
+	}
+
+	/**
+	 * Write all changes to disk and close the files.
+	 *
+	 * @throws IOException if the files cannot be closed, or if the last background compaction
+	 * failed (the store is closed all the same)
+	 */
+	@Override
+	public void close() throws IOException {
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (!this.closed) {
+				this.flush();
+				this.closed = true;
+				this.logChannel.close();
+				this.indexChannel.close();
+				if (this.compactionFailure != null) {
+					throw new IOException("Public key store compaction failed: " + logPath, this.compactionFailure);
+				}
+			}
+		}
+	}
+
+	private synchronized void put(long id, byte[] publicKey) throws IOException {
+		if (this.closed) {
+			throw new IllegalStateException("Public key store closed");
+		}
+
+		/* a key fetched from this store is saved again by PublicKeyStore: nothing to do */
+		State s = this.state;
+		long existing = find(s, id, this.records);
+		if (existing >= 0 && s.keyEquals(existing, publicKey)) {
+			return;
+		}
+
+		long record = this.records;
+		if (record == s.capacity) {
+			if (record == MAX_RECORDS) {
+				throw new IllegalStateException("Public key store full");
+			}
+			long capacity = Math.min(MAX_RECORDS, 2 * record);
+			s = new State(logChannel.map(FileChannel.MapMode.READ_WRITE, 0, LOG_HEADER + capacity * RECORD_BYTES), s.index);
+			this.state = s;
+		}
+
+		/* the record is complete and counted before the index points to it */
+		int offset = recordOffset(record);
+		s.log.putLong(offset, id);
+		for (int i = 0; i < NaCl.PUBLICKEYBYTES; i++) {
+			s.log.put(offset + 8 + i, publicKey[i]);
+		}
+		s.log.putLong(LOG_RECORDS, record + 1);
+		this.records = record + 1;
+
+		this.index(id, record);
+		this.state.index.putLong(INDEX_RECORDS, record + 1);
+
+		if (this.records - this.entries >= COMPACT_MIN_REPLACED && this.records - this.entries > this.entries
+				&& this.records >= this.compactionRetryRecords && compactionScheduled.compareAndSet(false, true)) {
+			compactor.execute(() -> {
+				try {
+					this.compact();
+				} catch (IOException e) {
+					/* the log stays as it is; try again when it has doubled, not after every change */
+					synchronized (this) {
+						this.compactionFailure = e;
+						this.compactionRetryRecords = 2 * this.records;
+					}
+				} finally {
+					/* only now, so that changes made meanwhile do not queue another attempt */
+					compactionScheduled.set(false);
+				}
+			});
+		}
+	}
+
+	/* with the lock held: point the index at the record of the ID, growing the index if needed */
+	private void index(long id, long record) throws IOException {
+		State s = this.state;
+		if ((this.entries + 1) * 4 > (s.mask + 1L) * 3) {
+			long generation = s.log.getLong(LOG_GENERATION);
+			Path grownPath = new File(indexPath + ".grow").toPath();
+			MappedByteBuffer index = this.createIndex(grownPath, 2 * (s.mask + 1), generation);
+			State grown = new State(s.log, index);
+			for (int slot = 0; slot <= s.mask; slot++) {
+				int ref = s.index.getInt(INDEX_HEADER + 4 * slot);
+				if (ref != 0) {
+					grown.link(s.log.getLong(recordOffset(ref - 1)), ref - 1);
+				}
+			}
+			index.putLong(INDEX_RECORDS, s.index.getLong(INDEX_RECORDS));
+			index.putLong(INDEX_ENTRIES, this.entries);
+			Files.move(grownPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.indexChannel.close();
+			this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			s = grown;
+			this.state = s;
+		}
+
+		if (s.link(id, record)) {
+			this.entries++;
+			s.index.putLong(INDEX_ENTRIES, this.entries);
+		}
+	}
+
+	private MappedByteBuffer createIndex(Path path, int slots, long generation) throws IOException {
+		MappedByteBuffer index;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			index = channel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + 4L * slots);
+		}
+		index.putInt(0, INDEX_MAGIC);
+		index.putInt(INDEX_SLOTS, slots);
+		index.putLong(INDEX_GENERATION, generation);
+		return index;
+	}
+
+	/* slots for the given number of IDs at most 3/4 full */
+	private static int slotsFor(long entries) {
+		long slots = 1024;
+		while (slots * 3 < entries * 4 + 4) {
+			slots *= 2;
+		}
+		return (int) slots;
+	}
+
+	private static int recordOffset(long record) {
+		return (int) (LOG_HEADER + record * RECORD_BYTES);
+	}
+
+	/* record of the ID, -1 if not found, or RETRY if the index refers to a record not visible yet */
+	private static long find(State s, long id, long records) {
+		for (int slot = PublicKeyTable.hash(id) & s.mask; ; slot = (slot + 1) & s.mask) {
+			int ref = s.index.getInt(INDEX_HEADER + 4 * slot);
+			if (ref == 0) {
+				return -1;
+			}
+			long record = ref - 1;
+			if (record >= records || record >= s.capacity) {
+				return RETRY;
+			}
+			if (s.log.getLong(recordOffset(record)) == id) {
+				return record;
+			}
+		}
+	}
+
+	private static final class State {
+		final MappedByteBuffer log;
+		final MappedByteBuffer index;
+		final long capacity;
+		final int mask;
+
+		State(MappedByteBuffer log, MappedByteBuffer index) {
+			this.log = log;
+			this.index = index;
+			this.capacity = (log.capacity() - LOG_HEADER) / RECORD_BYTES;
+			this.mask = index.getInt(INDEX_SLOTS) - 1;
+		}
+
+		/* point the slot of the ID at the record; true if the ID is new */
+		boolean link(long id, long record) {
+			for (int slot = PublicKeyTable.hash(id) & mask; ; slot = (slot + 1) & mask) {
+				int position = INDEX_HEADER + 4 * slot;
+				int ref = index.getInt(position);
+				if (ref == 0 || log.getLong(recordOffset(ref - 1)) == id) {
+					index.putInt(position, (int) record + 1);
+					return ref == 0;
+				}
+			}
+		}
+
+		void readKey(long record, byte[] out, int outOffset) {
+			int offset = recordOffset(record) + 8;
+			for (int i = 0; i < NaCl.PUBLICKEYBYTES; i++) {
+				out[outOffset + i] = log.get(offset + i);
+			}
+		}
+
+		boolean keyEquals(long record, byte[] publicKey) {
+			int offset = recordOffset(record) + 8;
+			for (int i = 0; i < NaCl.PUBLICKEYBYTES; i++) {
+				if (log.get(offset + i) != publicKey[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer for application/x-www-form-urlencoded request bodies, encoded the same way as
+ * {@link java.net.URLEncoder} with UTF-8 does, but written directly as bytes. Binary values are hex
+ * encoded into the buffer without intermediate strings.
+ */
+class FormBody {
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	private static final byte[] HEX_UPPER = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+	private byte[] data;
+	private int length;
+
+	FormBody(int capacity) {
+		this.data = new byte[capacity];
+	}
+
+	FormBody reset() {
+		this.length = 0;
+		return this;
+	}
+
+	byte[] getData() {
+		return this.data;
+	}
+
+	int getLength() {
+		return this.length;
+	}
+
+	/**
+	 * Append a parameter with a text value.
+	 */
+	FormBody add(String name, CharSequence value) {
+		appendName(name);
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '.' || c == '-' || c == '*' || c == '_') {
+				ensure(1);
+				data[length++] = (byte) c;
+			} else if (c == ' ') {
+				ensure(1);
+				data[length++] = '+';
+			} else {
+				/* percent-encode the UTF-8 bytes of this character or surrogate pair (unpaired surrogates as '?') */
+				int cp = c;
+				if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+					cp = Character.toCodePoint(c, value.charAt(++i));
+				} else if (Character.isSurrogate(c)) {
+					cp = '?';
+				}
+
+				if (cp < 0x80) {
+					appendPercent(cp);
+				} else if (cp < 0x800) {
+					appendPercent(0xc0 | (cp >> 6));
+					appendPercent(0x80 | (cp & 0x3f));
+				} else if (cp < 0x10000) {
+					appendPercent(0xe0 | (cp >> 12));
+					appendPercent(0x80 | ((cp >> 6) & 0x3f));
+					appendPercent(0x80 | (cp & 0x3f));
+				} else {
+					appendPercent(0xf0 | (cp >> 18));
+					appendPercent(0x80 | ((cp >> 12) & 0x3f));
+					appendPercent(0x80 | ((cp >> 6) & 0x3f));
+					appendPercent(0x80 | (cp & 0x3f));
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Append a parameter with a binary value, hex encoded (lowercase).
+	 */
+	FormBody addHex(String name, byte[] value, int offset, int count) {
+		appendName(name);
+
+		ensure(2 * count);
+		for (int i = offset; i < offset + count; i++) {
+			data[length++] = HEX[(value[i] >> 4) & 0x0f];
+			data[length++] = HEX[value[i] & 0x0f];
+		}
+		return this;
+	}
+
+	private void appendPercent(int b) {
+		ensure(3);
+		data[length++] = '%';
+		data[length++] = HEX_UPPER[(b >> 4) & 0x0f];
+		data[length++] = HEX_UPPER[b & 0x0f];
+	}
+
+	private void appendName(String name) {
+		ensure(name.length() + 2);
+		if (length > 0) {
+			data[length++] = '&';
+		}
+		for (int i = 0; i < name.length(); i++) {
+			data[length++] = (byte) name.charAt(i);
+		}
+		data[length++] = '=';
+	}
+
+	private void ensure(int n) {
+		if (length + n > data.length) {
+			data = Arrays.copyOf(data, Math.max(2 * data.length, length + n));
+		}
+	}
+}
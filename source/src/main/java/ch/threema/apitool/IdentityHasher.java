@@ -0,0 +1,360 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Hashes email addresses and phone numbers for identity lookup, as {@link CryptTool#hashEmail} and
+ * {@link CryptTool#hashPhoneNo} do, but built for bulk use (e.g. matching a contact list with
+ * millions of entries): each thread keeps its own initialized Mac and normalization buffer, so
+ * hashing an ASCII value allocates next to nothing, and {@link #hashLines} hashes a file in parallel.
+ */
+public final class IdentityHasher {
+	/* HMAC-SHA256 keys for email/mobile phone hashing */
+	private static final byte[] EMAIL_HMAC_KEY = new byte[] {(byte)0x30,(byte)0xa5,(byte)0x50,(byte)0x0f,(byte)0xed,(byte)0x97,(byte)0x01,(byte)0xfa,(byte)0x6d,(byte)0xef,(byte)0xdb,(byte)0x61,(byte)0x08,(byte)0x41,(byte)0x90,(byte)0x0f,(byte)0xeb,(byte)0xb8,(byte)0xe4,(byte)0x30,(byte)0x88,(byte)0x1f,(byte)0x7a,(byte)0xd8,(byte)0x16,(byte)0x82,(byte)0x62,(byte)0x64,(byte)0xec,(byte)0x09,(byte)0xba,(byte)0xd7};
+	private static final byte[] PHONENO_HMAC_KEY = new byte[] {(byte)0x85,(byte)0xad,(byte)0xf8,(byte)0x22,(byte)0x69,(byte)0x53,(byte)0xf3,(byte)0xd9,(byte)0x6c,(byte)0xfd,(byte)0x5d,(byte)0x09,(byte)0xbf,(byte)0x29,(byte)0x55,(byte)0x5e,(byte)0xb9,(byte)0x55,(byte)0xfc,(byte)0xd8,(byte)0xaa,(byte)0x5e,(byte)0xc4,(byte)0xf9,(byte)0xfc,(byte)0xd8,(byte)0x69,(byte)0xe2,(byte)0x58,(byte)0x37,(byte)0x07,(byte)0x23};
+
+	/** Hashes email addresses (lowercased and trimmed). */
+	public static final IdentityHasher EMAIL = new IdentityHasher(EMAIL_HMAC_KEY, true);
+
+	/** Hashes phone numbers (digits only). */
+	public static final IdentityHasher PHONE_NO = new IdentityHasher(PHONENO_HMAC_KEY, false);
+
+	public static final int HASH_BYTES = 32;
+
+	/* input of hashLines is cut into batches of about this size, one task each */
+	private static final int LINE_BATCH_BYTES = 256 * 1024;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private final boolean email;
+	private final ThreadLocal<Worker> workers;
+
+	private IdentityHasher(final byte[] key, boolean email) {
+		this.email = email;
+		this.workers = ThreadLocal.withInitial(() -> new Worker(key));
+	}
+
+	/* per-thread state */
+	private static final class Worker {
+		final Mac mac;
+		byte[] normalized = new byte[256];
+
+		Worker(byte[] key) {
+			try {
+				mac = Mac.getInstance("HmacSHA256");
+				mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			} catch (GeneralSecurityException e) {
+				/* every Java platform must support HmacSHA256 */
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/* the Mac is reset by doFinal, ready for the next value */
+		void mac(byte[] data, int length, byte[] out, int outOffset) {
+			if (outOffset < 0 || outOffset + HASH_BYTES > out.length)
+				throw new IndexOutOfBoundsException();
+
+			mac.update(data, 0, length);
+			try {
+				mac.doFinal(out, outOffset);
+			} catch (ShortBufferException e) {
+				throw new IndexOutOfBoundsException();
+			}
+		}
+
+		byte[] normalized(int length) {
+			if (normalized.length < length)
+				normalized = new byte[Math.max(length, normalized.length * 2)];
+			return normalized;
+		}
+	}
+
+	/**
+	 * @param value the email address or phone number
+	 * @return the raw hash
+	 */
+	public byte[] hash(CharSequence value) {
+		byte[] out = new byte[HASH_BYTES];
+		hash(value, out, 0);
+		return out;
+	}
+
+	/**
+	 * Hash an email address or phone number into out[outOffset .. outOffset + 31].
+	 *
+	 * @param value the email address or phone number
+	 */
+	public void hash(CharSequence value, byte[] out, int outOffset) {
+		Worker worker = workers.get();
+		int length = value.length();
+		byte[] normalized = worker.normalized(length);
+		int n = 0;
+
+		if (email) {
+			/* as toLowerCase().trim(); values with non-ASCII characters take the String path */
+			int start = 0;
+			int end = length;
+			while (start < end && value.charAt(start) <= ' ')
+				start++;
+			while (end > start && value.charAt(end - 1) <= ' ')
+				end--;
+			for (int i = start; i < end; i++) {
+				char c = value.charAt(i);
+				if (c >= 0x80) {
+					hashNonAscii(worker, value.toString(), out, outOffset);
+					return;
+				}
+				normalized[n++] = (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				char c = value.charAt(i);
+				if (c >= '0' && c <= '9')
+					normalized[n++] = (byte) c;
+			}
+		}
+
+		worker.mac(normalized, n, out, outOffset);
+	}
+
+	/**
+	 * Hash a UTF-8 encoded email address or phone number into out[outOffset .. outOffset + 31].
+	 *
+	 * @param data buffer that contains the value
+	 * @param offset position of the value in data
+	 * @param length length of the value in bytes
+	 */
+	public void hash(byte[] data, int offset, int length, byte[] out, int outOffset) {
+		Worker worker = workers.get();
+		byte[] normalized = worker.normalized(length);
+		int n = 0;
+
+		if (email) {
+			int start = offset;
+			int end = offset + length;
+			while (start < end && data[start] >= 0 && data[start] <= ' ')
+				start++;
+			while (end > start && data[end - 1] >= 0 && data[end - 1] <= ' ')
+				end--;
+			for (int i = start; i < end; i++) {
+				byte c = data[i];
+				if (c < 0) {
+					hashNonAscii(worker, new String(data, offset, length, StandardCharsets.UTF_8), out, outOffset);
+					return;
+				}
+				normalized[n++] = (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+			}
+		} else {
+			/* bytes of multi-byte UTF-8 sequences are never ASCII digits */
+			for (int i = offset, end = offset + length; i < end; i++) {
+				byte c = data[i];
+				if (c >= '0' && c <= '9')
+					normalized[n++] = c;
+			}
+		}
+
+		worker.mac(normalized, n, out, outOffset);
+	}
+
+	private void hashNonAscii(Worker worker, String email, byte[] out, int outOffset) {
+		/* non-ASCII characters become '?', except where lowercasing yields ASCII (e.g. the Kelvin sign) */
+		byte[] normalized = email.toLowerCase(Locale.ROOT).trim().getBytes(StandardCharsets.US_ASCII);
+		worker.mac(normalized, normalized.length, out, outOffset);
+	}
+
+	/**
+	 * Hash a list with one entry per line (or a CSV file, whose first column is hashed) and write a
+	 * line {@code <entry>,<hash in hex>} for each entry, in input order. Blank lines are skipped, a
+	 * double-quoted first column is hashed without the quotes. The input is hashed in parallel on the
+	 * common fork/join pool.
+	 *
+	 * @param in the entries (UTF-8)
+	 * @param out where the hashes are written; neither stream is closed
+	 * @return the number of entries hashed
+	 * @throws IOException if reading or writing fails
+	 */
+	public long hashLines(InputStream in, OutputStream out) throws IOException {
+		return hashLines(in, out, ForkJoinPool.commonPool(), Math.max(1, ForkJoinPool.getCommonPoolParallelism()));
+	}
+
+	/**
+	 * Hash a list on the given executor, see {@link #hashLines(InputStream, OutputStream)}.
+	 *
+	 * @param in the entries (UTF-8)
+	 * @param out where the hashes are written; neither stream is closed
+	 * @param executor runs the hashing tasks
+	 * @param parallelism number of batches hashed at the same time (while more are read and written)
+	 * @return the number of entries hashed
+	 * @throws IOException if reading or writing fails
+	 */
+	public long hashLines(InputStream in, OutputStream out, Executor executor, int parallelism) throws IOException {
+		return hashLines(in, out, executor, parallelism, LINE_BATCH_BYTES);
+	}
+
+	long hashLines(InputStream in, OutputStream out, Executor executor, int parallelism, int batchBytes) throws IOException {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be at least 1");
+
+		/* results are written in submission order; at most 2 * parallelism batches are in flight */
+		ArrayDeque<CompletableFuture<Batch>> pending = new ArrayDeque<>();
+		long count = 0;
+		byte[] buffer = new byte[batchBytes];
+		int filled = 0;
+		boolean eof = false;
+
+		while (!eof || filled > 0) {
+			if (!eof && filled < buffer.length) {
+				int read = in.read(buffer, filled, buffer.length - filled);
+				if (read < 0)
+					eof = true;
+				else
+					filled += read;
+				if (!eof && filled < buffer.length)
+					continue;
+			}
+
+			/* cut after the last complete line (all that is left at the end of the input) */
+			int cut = filled;
+			if (!eof) {
+				while (cut > 0 && buffer[cut - 1] != '\n')
+					cut--;
+				if (cut == 0) {
+					/* a line longer than the buffer */
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					continue;
+				}
+			}
+
+			final byte[] batch = Arrays.copyOf(buffer, cut);
+			System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+			filled -= cut;
+
+			pending.add(CompletableFuture.supplyAsync(() -> hashBatch(batch), executor));
+			if (pending.size() >= 2 * parallelism)
+				count += write(pending.remove(), out);
+		}
+
+		while (!pending.isEmpty())
+			count += write(pending.remove(), out);
+		return count;
+	}
+
+	private static long write(CompletableFuture<Batch> future, OutputStream out) throws IOException {
+		Batch batch;
+		try {
+			batch = future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw e;
+		}
+		out.write(batch.data, 0, batch.length);
+		return batch.count;
+	}
+
+	private static final class Batch {
+		final byte[] data;
+		final int length;
+		final int count;
+
+		Batch(byte[] data, int length, int count) {
+			this.data = data;
+			this.length = length;
+			this.count = count;
+		}
+	}
+
+	private Batch hashBatch(byte[] input) {
+		int lines = 1;
+		for (byte b : input) {
+			if (b == '\n')
+				lines++;
+		}
+
+		/* each output line is at most the input line plus ',', the hash and '\n' */
+		byte[] output = new byte[input.length + lines * (2 + 2 * HASH_BYTES)];
+		byte[] hash = new byte[HASH_BYTES];
+		int pos = 0;
+		int count = 0;
+
+		for (int start = 0; start < input.length; ) {
+			int end = start;
+			while (end < input.length && input[end] != '\n')
+				end++;
+			int next = end + 1;
+
+			/* first CSV column, without the line break */
+			int columnEnd = start;
+			while (columnEnd < end && input[columnEnd] != ',' && input[columnEnd] != '\r')
+				columnEnd++;
+			int valueStart = start;
+			int valueEnd = columnEnd;
+			if (valueEnd - valueStart >= 2 && input[valueStart] == '"' && input[valueEnd - 1] == '"') {
+				valueStart++;
+				valueEnd--;
+			}
+
+			if (!isBlank(input, valueStart, valueEnd)) {
+				hash(input, valueStart, valueEnd - valueStart, hash, 0);
+				System.arraycopy(input, start, output, pos, columnEnd - start);
+				pos += columnEnd - start;
+				output[pos++] = ',';
+				for (byte b : hash) {
+					output[pos++] = HEX[(b >>> 4) & 0x0f];
+					output[pos++] = HEX[b & 0x0f];
+				}
+				output[pos++] = '\n';
+				count++;
+			}
+			start = next;
+		}
+
+		return new Batch(output, pos, count);
+	}
+
+	private static boolean isBlank(byte[] data, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (data[i] != ' ' && data[i] != '\t')
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+/**
+ * An incoming message box with everything needed to decrypt it, for {@link CryptTool#decryptMessages}.
+ */
+public class IncomingBox {
+	private final byte[] box;
+	private final byte[] nonce;
+	private final byte[] recipientPrivateKey;
+	private final byte[] senderPublicKey;
+	private final Object tag;
+
+	/**
+	 * @param box the box to be decrypted
+	 * @param nonce the nonce that was used for the encryption
+	 * @param recipientPrivateKey the private key of the receiving ID
+	 * @param senderPublicKey the public key of the sending ID
+	 * @param tag caller's reference for the box (e.g. the message ID of the callback), may be null
+	 */
+	public IncomingBox(byte[] box, byte[] nonce, byte[] recipientPrivateKey, byte[] senderPublicKey, Object tag) {
+		this.box = box;
+		this.nonce = nonce;
+		this.recipientPrivateKey = recipientPrivateKey;
+		this.senderPublicKey = senderPublicKey;
+		this.tag = tag;
+	}
+
+	public IncomingBox(byte[] box, byte[] nonce, byte[] recipientPrivateKey, byte[] senderPublicKey) {
+		this(box, nonce, recipientPrivateKey, senderPublicKey, null);
+	}
+
+	public byte[] getBox() {
+		return box;
+	}
+
+	public byte[] getNonce() {
+		return nonce;
+	}
+
+	public byte[] getRecipientPrivateKey() {
+		return recipientPrivateKey;
+	}
+
+	public byte[] getSenderPublicKey() {
+		return senderPublicKey;
+	}
+
+	public Object getTag() {
+		return tag;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import com.neilalexander.jnacl.NaCl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes key pairs into a single keystore file, e.g. for provisioning many IDs at once (see
+ * {@link CryptTool#generateKeyPairs}). Two formats are supported:
+ *
+ * <ul>
+ *     <li>BINARY: the magic bytes {@code TKS1}, followed by 64 bytes per key pair (private key,
+ *         then public key)</li>
+ *     <li>NDJSON: one line {@code {"privateKey":"private:<hex>","publicKey":"public:<hex>"}} per key
+ *         pair; the values are in the format of {@link Key#encode()}</li>
+ * </ul>
+ *
+ * Private keys are written unencrypted; the file must be protected accordingly.
+ */
+public class KeyStoreWriter implements Closeable {
+
+	public enum Format { BINARY, NDJSON }
+
+	public static final byte[] MAGIC = { 'T', 'K', 'S', '1' };
+
+	/* private key followed by public key */
+	public static final int PAIR_BYTES = NaCl.SECRETKEYBYTES + NaCl.PUBLICKEYBYTES;
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LINE_START = ("{\"privateKey\":\"" + Key.KeyType.PRIVATE + Key.separator).getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LINE_MIDDLE = ("\",\"publicKey\":\"" + Key.KeyType.PUBLIC + Key.separator).getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LINE_END = "\"}\n".getBytes(StandardCharsets.US_ASCII);
+	private static final int LINE_BYTES = LINE_START.length + LINE_MIDDLE.length + LINE_END.length + 2 * PAIR_BYTES;
+
+	private final OutputStream out;
+	private final Format format;
+	private final byte[] line = new byte[LINE_BYTES];
+	private long count;
+
+	/**
+	 * @param out where the keystore is written (buffering is up to the caller); closed by {@link #close()}
+	 * @param format the keystore format
+	 */
+	public KeyStoreWriter(OutputStream out, Format format) throws IOException {
+		this.out = out;
+		this.format = format;
+		if (format == Format.BINARY) {
+			out.write(MAGIC);
+		}
+	}
+
+	/**
+	 * Write one key pair.
+	 */
+	public void write(byte[] privateKey, byte[] publicKey) throws IOException {
+		if (privateKey.length != NaCl.SECRETKEYBYTES || publicKey.length != NaCl.PUBLICKEYBYTES) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+
+		if (format == Format.BINARY) {
+			out.write(privateKey);
+			out.write(publicKey);
+		} else {
+			writeLine(privateKey, 0, publicKey, 0);
+		}
+		count++;
+	}
+
+	/**
+	 * Write key pairs that are packed as {@value #PAIR_BYTES} bytes each (private key, then public key).
+	 *
+	 * @param pairs buffer that contains the key pairs
+	 * @param offset position of the first key pair in pairs
+	 * @param pairCount number of key pairs
+	 */
+	public void write(byte[] pairs, int offset, int pairCount) throws IOException {
+		if (offset < 0 || pairCount < 0 || offset + (long) pairCount * PAIR_BYTES > pairs.length) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		if (format == Format.BINARY) {
+			out.write(pairs, offset, pairCount * PAIR_BYTES);
+		} else {
+			for (int i = 0; i < pairCount; i++) {
+				int pair = offset + i * PAIR_BYTES;
+				writeLine(pairs, pair, pairs, pair + NaCl.SECRETKEYBYTES);
+			}
+		}
+		count += pairCount;
+	}
+
+	private void writeLine(byte[] privateKey, int privateOffset, byte[] publicKey, int publicOffset) throws IOException {
+		int pos = put(LINE_START, 0);
+		pos = putHex(privateKey, privateOffset, NaCl.SECRETKEYBYTES, pos);
+		pos = put(LINE_MIDDLE, pos);
+		pos = putHex(publicKey, publicOffset, NaCl.PUBLICKEYBYTES, pos);
+		pos = put(LINE_END, pos);
+		out.write(line, 0, pos);
+	}
+
+	private int put(byte[] bytes, int pos) {
+		System.arraycopy(bytes, 0, line, pos, bytes.length);
+		return pos + bytes.length;
+	}
+
+	private int putHex(byte[] bytes, int offset, int length, int pos) {
+		for (int i = offset; i < offset + length; i++) {
+			line[pos++] = HEX[(bytes[i] >>> 4) & 0x0f];
+			line[pos++] = HEX[bytes[i] & 0x0f];
+		}
+		return pos;
+	}
+
+	/**
+	 * @return the number of key pairs written so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		/* the line buffer held private keys in hex */
+		Arrays.fill(line, (byte) 0);
+		out.close();
+	}
+}
@@ -24,6 +24,8 @@
 
 package ch.threema.apitool;
 
+import org.apache.commons.io.EndianUtils;
+
 /**
  * Encapsulates the 8-byte message IDs that Threema uses.
  */
@@ -52,6 +54,39 @@ public class MessageId {
 		return messageId;
 	}
 
+	/**
+	 * @return the message ID as a number (the 8 bytes read in little-endian order)
+	 */
+	public long toLong() {
+		return toLong(messageId, 0);
+	}
+
+	/**
+	 * Read a message ID as a number without creating a MessageId, see {@link #toLong()}.
+	 *
+	 * @param data buffer that contains the message ID
+	 * @param offset position of the message ID in data
+	 * @return the message ID
+	 */
+	public static long toLong(byte[] data, int offset) {
+		if ((offset + MESSAGE_ID_LEN) > data.length)
+			throw new IllegalArgumentException("Bad message ID buffer length");
+
+		return EndianUtils.readSwappedLong(data, offset);
+	}
+
+	/**
+	 * Convert a message ID number back to a MessageId, see {@link #toLong()}.
+	 *
+	 * @param messageId the message ID
+	 * @return the message ID as a MessageId
+	 */
+	public static MessageId fromLong(long messageId) {
+		byte[] data = new byte[MESSAGE_ID_LEN];
+		EndianUtils.writeSwappedLong(data, 0, messageId);
+		return new MessageId(data);
+	}
+
 	@Override
 	public String toString() {
 		return DataUtils.byteArrayToHexString(messageId);
@@ -0,0 +1,347 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of public keys by Threema ID, used by {@link PublicKeyStore}. It can be bounded by a
+ * maximum number of entries (or bytes, see {@link #entriesForBytes(long)}), and entries can expire
+ * some time after they were added, so that a changed key is fetched again.
+ *
+ * When the cache is full, an entry is evicted according to the policy:
+ *
+ * <ul>
+ *     <li>{@link Policy#LRU}: the least recently used entry</li>
+ *     <li>{@link Policy#SEGMENTED_LRU}: new entries start in a probation segment and move to a
+ *         protected segment (80% of the cache) when used again; entries are evicted from probation
+ *         first, so that a burst of one-off lookups does not push out the keys in regular use</li>
+ * </ul>
+ *
+ * Lookups are lock-free: a hit only marks the entry as used, and the recency order is updated
+ * lazily when an entry has to be evicted (as in the CLOCK algorithm, an entry that was used since
+ * it was last considered gets a second chance). Evicted entries are simply dropped.
+ */
+public class PublicKeyCache implements PublicKeyStore.Cache {
+
+	public enum Policy { LRU, SEGMENTED_LRU }
+
+	/* rough heap size of an entry: 8 character ID, 32 byte key, map entry and list node */
+	public static final int ESTIMATED_ENTRY_BYTES = 200;
+
+	private static final int PROBATION = 0;
+	private static final int PROTECTED = 1;
+
+	private final long maximumSize;
+	private final long protectedSize;
+	private final long expiryNanos;
+	private final Policy policy;
+	private final ConcurrentHashMap<String, Node> entries = new ConcurrentHashMap<>();
+
+	/* recency lists, guarded by the lock; the head is the least recently used entry */
+	private final Object lock = new Object();
+	private final Node[] heads = { new Node(null, null, 0), new Node(null, null, 0) };
+	private final long[] sizes = new long[2];
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+
+	/**
+	 * Create an unbounded cache whose entries do not expire (as PublicKeyStore has always cached).
+	 */
+	public PublicKeyCache() {
+		this(Long.MAX_VALUE, 0, TimeUnit.NANOSECONDS, Policy.SEGMENTED_LRU);
+	}
+
+	/**
+	 * @param maximumSize maximum number of entries
+	 * @param expireAfterWrite time after which an entry is fetched again (0 for never)
+	 * @param unit unit of expireAfterWrite
+	 * @param policy which entry is evicted when the cache is full
+	 */
+	public PublicKeyCache(long maximumSize, long expireAfterWrite, TimeUnit unit, Policy policy) {
+		if (maximumSize < 1 || expireAfterWrite < 0 || policy == null) {
+			throw new IllegalArgumentException("Invalid cache size, expiry or policy");
+		}
+		this.maximumSize = maximumSize;
+		this.protectedSize = policy == Policy.SEGMENTED_LRU ? maximumSize - Math.max(1, maximumSize / 5) : 0;
+		this.expiryNanos = unit.toNanos(expireAfterWrite);
+		this.policy = policy;
+		for (Node head : heads) {
+			head.previous = head;
+			head.next = head;
+		}
+	}
+
+	/**
+	 * @param bytes memory to spend on the cache
+	 * @return maximum number of entries that fit into the given memory (all entries have the same size)
+	 */
+	public static long entriesForBytes(long bytes) {
+		return Math.max(1, bytes / ESTIMATED_ENTRY_BYTES);
+	}
+
+	/**
+	 * @return the public key for the Threema ID, or null if not cached (or expired)
+	 */
+	@Override
+	public byte[] get(String threemaId) {
+		Node node = entries.get(threemaId);
+		if (node != null && expiryNanos != 0 && now() - node.written >= expiryNanos) {
+			expire(node);
+			node = null;
+		}
+		if (node == null) {
+			misses.increment();
+			return null;
+		}
+
+		if (!node.used) {
+			node.used = true;
+		}
+		hits.increment();
+		return node.publicKey;
+	}
+
+	/**
+	 * Get a public key without counting a hit or miss or marking the entry as used.
+	 */
+	@Override
+	public byte[] peek(String threemaId) {
+		Node node = entries.get(threemaId);
+		if (node == null || (expiryNanos != 0 && now() - node.written >= expiryNanos)) {
+			return null;
+		}
+		return node.publicKey;
+	}
+
+	/**
+	 * Cache a public key, replacing any cached one.
+	 */
+	@Override
+	public void put(String threemaId, byte[] publicKey) {
+		Node node = new Node(threemaId, publicKey, expiryNanos != 0 ? now() : 0);
+		Node replaced = entries.put(threemaId, node);
+		synchronized (lock) {
+			if (replaced != null) {
+				unlink(replaced);
+			}
+			add(node);
+		}
+	}
+
+	/**
+	 * Cache a public key unless one is cached already (and not expired).
+	 *
+	 * @return the public key cached before, or null if the given one was added
+	 */
+	@Override
+	public byte[] putIfAbsent(String threemaId, byte[] publicKey) {
+		Node node = new Node(threemaId, publicKey, expiryNanos != 0 ? now() : 0);
+		while (true) {
+			Node current = entries.putIfAbsent(threemaId, node);
+			if (current == null) {
+				break;
+			}
+			if (expiryNanos == 0 || now() - current.written < expiryNanos) {
+				return current.publicKey;
+			}
+			expire(current);
+		}
+		synchronized (lock) {
+			add(node);
+		}
+		return null;
+	}
+
+	/**
+	 * Drop the public key of a Threema ID, e.g. after it has been revoked.
+	 */
+	@Override
+	public void invalidate(String threemaId) {
+		Node node = entries.remove(threemaId);
+		if (node != null) {
+			synchronized (lock) {
+				unlink(node);
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		for (String threemaId : entries.keySet()) {
+			invalidate(threemaId);
+		}
+	}
+
+	/**
+	 * @return the number of cached public keys
+	 */
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the share of lookups that were hits (0 before the first lookup)
+	 */
+	public double getHitRate() {
+		long hits = getHitCount();
+		long lookups = hits + getMissCount();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return the number of entries dropped because the cache was full
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the number of entries dropped because they had expired
+	 */
+	public long getExpirationCount() {
+		return expirations.sum();
+	}
+
+	/* time source, overridden in tests */
+	long now() {
+		return System.nanoTime();
+	}
+
+	private void expire(Node node) {
+		if (entries.remove(node.threemaId, node)) {
+			synchronized (lock) {
+				unlink(node);
+			}
+			expirations.increment();
+		}
+	}
+
+	/* with the lock held: link a new entry (unless it has been removed already) and evict if full */
+	private void add(Node node) {
+		if (maximumSize == Long.MAX_VALUE || entries.get(node.threemaId) != node || node.segment >= 0) {
+			return;
+		}
+		link(node, PROBATION);
+
+		while (sizes[PROBATION] + sizes[PROTECTED] > maximumSize) {
+			Node victim = heads[PROBATION].next;
+			if (victim == heads[PROBATION]) {
+				/* everything is protected */
+				demote();
+				continue;
+			}
+
+			unlink(victim);
+			if (victim.used) {
+				/* used since it was last considered: second chance */
+				victim.used = false;
+				if (policy == Policy.SEGMENTED_LRU) {
+					link(victim, PROTECTED);
+					if (sizes[PROTECTED] > protectedSize) {
+						demote();
+					}
+				} else {
+					link(victim, PROBATION);
+				}
+				continue;
+			}
+
+			entries.remove(victim.threemaId, victim);
+			evictions.increment();
+		}
+	}
+
+	/* move the least recently used protected entry to probation (or to the end of protected if used) */
+	private void demote() {
+		Node head = heads[PROTECTED];
+		while (head.next != head) {
+			Node node = head.next;
+			unlink(node);
+			if (node.used) {
+				node.used = false;
+				link(node, PROTECTED);
+			} else {
+				link(node, PROBATION);
+				return;
+			}
+		}
+	}
+
+	private void link(Node node, int segment) {
+		Node head = heads[segment];
+		node.previous = head.previous;
+		node.next = head;
+		head.previous.next = node;
+		head.previous = node;
+		node.segment = segment;
+		sizes[segment]++;
+	}
+
+	private void unlink(Node node) {
+		if (node.segment < 0) {
+			return;
+		}
+		node.previous.next = node.next;
+		node.next.previous = node.previous;
+		node.previous = null;
+		node.next = null;
+		sizes[node.segment]--;
+		node.segment = -1;
+	}
+
+	private static final class Node {
+		final String threemaId;
+		final byte[] publicKey;
+		final long written;
+
+		/* set on every hit without locking, cleared when the entry is considered for eviction */
+		volatile boolean used;
+
+		/* guarded by the lock; segment is -1 while not linked */
+		Node previous;
+		Node next;
+		int segment = -1;
+
+		Node(String threemaId, byte[] publicKey, long written) {
+			this.threemaId = threemaId;
+			this.publicKey = publicKey;
+			this.written = written;
+		}
+	}
+}
@@ -24,15 +24,89 @@
 
 package ch.threema.apitool;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Stores and caches public keys for Threema users. Extend this class to provide your
  * own storage implementation, e.g. in a file or database.
+ *
+ * The store is safe for concurrent use. Cached keys are read without locking. A key that is
+ * not cached is fetched once, even if several threads ask for it at the same time (they wait
+ * for the same fetch). fetchPublicKey() and save() are never called under a lock shared with
+ * other Threema IDs, so a slow store only delays the callers that need it.
  */
 public abstract class PublicKeyStore {
-	private final Map<String, byte[]> cache = new HashMap<>();
+
+	/**
+	 * Cache of public keys by Threema ID, see {@link PublicKeyCache} (bounded, with expiry) and
+	 * {@link PublicKeyTable} (compact, for many IDs). Implementations must be thread-safe.
+	 */
+	public interface Cache {
+
+		/**
+		 * @return the cached public key, or null if not cached (counts as a hit or miss)
+		 */
+		byte[] get(String threemaId);
+
+		/**
+		 * @return the cached public key, or null if not cached (not counted as a lookup)
+		 */
+		byte[] peek(String threemaId);
+
+		/**
+		 * Cache a public key, replacing any cached one.
+		 */
+		void put(String threemaId, byte[] publicKey);
+
+		/**
+		 * Cache a public key unless one is cached already.
+		 *
+		 * @return the public key cached before, or null if the given one was added
+		 */
+		byte[] putIfAbsent(String threemaId, byte[] publicKey);
+
+		/**
+		 * Drop the public key of a Threema ID, e.g. after it has been revoked.
+		 */
+		void invalidate(String threemaId);
+
+		/**
+		 * @return the number of cached public keys
+		 */
+		int size();
+	}
+
+	private final Cache cache;
+
+	/* fetches in progress, so that concurrent callers for the same ID wait for one fetch */
+	private final ConcurrentMap<String, CompletableFuture<byte[]>> loading = new ConcurrentHashMap<>();
+
+	/**
+	 * Create a store with an unbounded cache.
+	 */
+	public PublicKeyStore() {
+		this(new PublicKeyCache());
+	}
+
+	/**
+	 * Create a store with the given cache, e.g. a {@link PublicKeyCache} with a maximum size and expiry.
+	 * Keys evicted from the cache are fetched again when needed; they are not saved again.
+	 *
+	 * @param cache the cache of public keys
+	 */
+	public PublicKeyStore(Cache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return the cache of public keys (for statistics and invalidation)
+	 */
+	public final Cache getCache() {
+		return this.cache;
+	}
 
 	/**
 	 * Get the public key for a given Threema ID. The cache is checked first; if it
@@ -42,33 +116,67 @@ public abstract class PublicKeyStore {
 	 * @return The public key, or null if not found.
 	 */
 	public final byte[] getPublicKey(String threemaId) {
-		synchronized (this.cache) {
-			byte[] pk = this.cache.get(threemaId);
+		byte[] pk = this.cache.get(threemaId);
+		if (pk != null) {
+			return pk;
+		}
+
+		CompletableFuture<byte[]> load = new CompletableFuture<>();
+		CompletableFuture<byte[]> running = this.loading.putIfAbsent(threemaId, load);
+		if (running != null) {
+			return join(running);
+		}
 
+		try {
+			/* the key may have been set or loaded since the cache was checked */
+			pk = this.cache.peek(threemaId);
 			if (pk == null) {
 				pk = this.fetchPublicKey(threemaId);
-				this.setPublicKey(threemaId, pk);
+				if (pk != null) {
+					/* a key set in the meantime wins over the fetched one */
+					byte[] current = this.cache.putIfAbsent(threemaId, pk);
+					if (current == null) {
+						this.save(threemaId, pk);
+					} else {
+						pk = current;
+					}
+				}
 			}
+			load.complete(pk);
 			return pk;
+		} catch (RuntimeException | Error e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.loading.remove(threemaId, load);
 		}
+	}
 
+	private static byte[] join(CompletableFuture<byte[]> load) {
+		try {
+			return load.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw e;
+		}
 	}
 
 	/**
 	 * Store the public key for a given Threema ID in the cache, and the underlying store.
+	 * Concurrent calls for the same Threema ID may reach save() in any order.
 	 *
 	 * @param threemaId The Threema ID whose public key should be stored
 	 * @param publicKey The corresponding public key.
 	 */
 	public final void setPublicKey(String threemaId, byte[] publicKey) {
 		if(publicKey != null) {
-			synchronized (this.cache) {
-				this.cache.put(threemaId, publicKey);
-				this.save(threemaId, publicKey);
-			}
+			this.cache.put(threemaId, publicKey);
+			this.save(threemaId, publicKey);
 		}
 	}
-
 	/**
 	 * Fetch the public key for the given Threema ID from the store. Override to provide
 	 * your own implementation to read from the store.
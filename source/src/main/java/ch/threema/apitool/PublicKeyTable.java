@@ -0,0 +1,335 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import com.neilalexander.jnacl.NaCl;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compact table of public keys by Threema ID, for keeping the keys of many IDs in memory: 40 bytes
+ * per record plus 5 to 11 bytes of index, compared to about 200 bytes per entry in a
+ * {@link PublicKeyCache}. When the table is full, it grows by half. Can be used as the cache of a
+ * {@link PublicKeyStore}; it is unbounded and its entries do not expire.
+ *
+ * A Threema ID (8 ASCII characters) is packed into a long, see {@link #pack(CharSequence)}. The IDs
+ * and keys are stored one after the other in a long array and a byte array, and found through an
+ * open addressing hash index. Lookups are lock-free: a record is never changed once it is reachable
+ * from the index (a new key for an ID is a new record), and growing or compacting the table builds
+ * new arrays that are published at once. Changes are serialized.
+ */
+public class PublicKeyTable implements PublicKeyStore.Cache {
+
+	public static final int KEY_BYTES = NaCl.PUBLICKEYBYTES;
+
+	/* index entries other than record numbers */
+	private static final int EMPTY = -1;
+	private static final int REMOVED = -2;
+
+	private static final int MIN_CAPACITY = 16;
+
+	/* the largest number of records whose keys fit into one byte array */
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE / KEY_BYTES;
+
+	private volatile Tables tables;
+	private volatile int size;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public PublicKeyTable() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of IDs the table has room for before it grows
+	 */
+	public PublicKeyTable(int expectedSize) {
+		if (expectedSize < 0 || expectedSize > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Invalid table size");
+		}
+		this.tables = new Tables(Math.max(MIN_CAPACITY, expectedSize));
+	}
+
+	/**
+	 * Pack a Threema ID into a long (the ASCII characters in big-endian order).
+	 *
+	 * @param threemaId 8 ASCII characters, not NUL
+	 * @return the packed ID (never 0)
+	 */
+	public static long pack(CharSequence threemaId) {
+		long id = packOrZero(threemaId);
+		if (id == 0) {
+			throw new IllegalArgumentException("Invalid Threema ID");
+		}
+		return id;
+	}
+
+	/**
+	 * @return the Threema ID that was packed into id
+	 */
+	public static String unpack(long id) {
+		char[] chars = new char[8];
+		for (int i = 0; i < 8; i++) {
+			chars[i] = (char) ((id >>> (56 - 8 * i)) & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/* the packed ID, or 0 if it cannot be packed */
+	static long packOrZero(CharSequence threemaId) {
+		if (threemaId == null || threemaId.length() != 8) {
+			return 0;
+		}
+		long id = 0;
+		for (int i = 0; i < 8; i++) {
+			char c = threemaId.charAt(i);
+			if (c == 0 || c > 0x7f) {
+				return 0;
+			}
+			id = (id << 8) | c;
+		}
+		return id;
+	}
+
+	/**
+	 * Copy the public key of a packed ID without allocating.
+	 *
+	 * @param id the packed Threema ID
+	 * @param out receives the public key at outOffset
+	 * @return true if the ID was found
+	 */
+	public boolean get(long id, byte[] out, int outOffset) {
+		Tables t = this.tables;
+		int record = t.find(id);
+		if (record < 0) {
+			return false;
+		}
+		System.arraycopy(t.keys, record * KEY_BYTES, out, outOffset, KEY_BYTES);
+		return true;
+	}
+
+	/**
+	 * @return a copy of the public key of the ID, or null if not found (IDs that cannot be packed
+	 * are never found)
+	 */
+	@Override
+	public byte[] get(String threemaId) {
+		byte[] publicKey = peek(threemaId);
+		if (publicKey != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		return publicKey;
+	}
+
+	@Override
+	public byte[] peek(String threemaId) {
+		long id = packOrZero(threemaId);
+		if (id == 0) {
+			return null;
+		}
+		byte[] publicKey = new byte[KEY_BYTES];
+		return get(id, publicKey, 0) ? publicKey : null;
+	}
+
+	/**
+	 * Store the public key of a packed ID, replacing any stored one.
+	 *
+	 * @param id the packed Threema ID
+	 * @param publicKey holds the public key at offset
+	 */
+	public synchronized void put(long id, byte[] publicKey, int offset) {
+		if (id == 0) {
+			throw new IllegalArgumentException("Invalid Threema ID");
+		}
+		if (offset < 0 || offset + KEY_BYTES > publicKey.length) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+
+		Tables t = this.tables;
+		if (t.records == t.ids.length) {
+			t = this.rebuild(t);
+		}
+
+		/* the record is complete before it is published through the index */
+		int record = t.records++;
+		t.ids[record] = id;
+		System.arraycopy(publicKey, offset, t.keys, record * KEY_BYTES, KEY_BYTES);
+
+		int slot = t.slot(id);
+		if (slot >= 0) {
+			t.index.set(slot, record);
+		} else {
+			t.index.set(-slot - 1, record);
+			this.size++;
+		}
+	}
+
+	/**
+	 * IDs that cannot be packed are not stored.
+	 */
+	@Override
+	public void put(String threemaId, byte[] publicKey) {
+		if (publicKey.length != KEY_BYTES) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+		long id = packOrZero(threemaId);
+		if (id != 0) {
+			this.put(id, publicKey, 0);
+		}
+	}
+
+	@Override
+	public synchronized byte[] putIfAbsent(String threemaId, byte[] publicKey) {
+		byte[] current = this.peek(threemaId);
+		if (current == null) {
+			this.put(threemaId, publicKey);
+		}
+		return current;
+	}
+
+	/**
+	 * Remove the public key of a packed ID.
+	 *
+	 * @return true if the ID was found
+	 */
+	public synchronized boolean remove(long id) {
+		Tables t = this.tables;
+		int slot = t.slot(id);
+		if (slot < 0) {
+			return false;
+		}
+		t.index.set(slot, REMOVED);
+		this.size--;
+		return true;
+	}
+
+	@Override
+	public void invalidate(String threemaId) {
+		long id = packOrZero(threemaId);
+		if (id != 0) {
+			this.remove(id);
+		}
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/* with the lock held: copy the live records into new arrays, with room for half as many again */
+	private Tables rebuild(Tables t) {
+		if (this.size >= MAX_CAPACITY) {
+			throw new IllegalStateException("Public key table full");
+		}
+		Tables rebuilt = new Tables((int) Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, this.size + this.size / 2L)));
+		for (int slot = 0; slot < t.index.length(); slot++) {
+			int record = t.index.get(slot);
+			if (record >= 0) {
+				long id = t.ids[record];
+				int copy = rebuilt.records++;
+				rebuilt.ids[copy] = id;
+				System.arraycopy(t.keys, record * KEY_BYTES, rebuilt.keys, copy * KEY_BYTES, KEY_BYTES);
+				rebuilt.index.set(-rebuilt.slot(id) - 1, copy);
+			}
+		}
+		this.tables = rebuilt;
+		return rebuilt;
+	}
+
+	static int hash(long id) {
+		/* finalizer of MurmurHash3, as the packed IDs differ in few bits */
+		id ^= id >>> 33;
+		id *= 0xff51afd7ed558ccdL;
+		id ^= id >>> 33;
+		id *= 0xc4ceb9fe1a85ec53L;
+		id ^= id >>> 33;
+		return (int) id;
+	}
+
+	private static final class Tables {
+		/* records: packed ID and key, appended in order; written by the lock holder only */
+		final long[] ids;
+		final byte[] keys;
+		int records;
+
+		/* hash slot to record number, EMPTY or REMOVED; at most 3/4 of the slots are used */
+		final AtomicIntegerArray index;
+
+		Tables(int capacity) {
+			this.ids = new long[capacity];
+			this.keys = new byte[capacity * KEY_BYTES];
+			int slots = Integer.highestOneBit(Math.max(1, capacity + capacity / 3) - 1) << 1;
+			this.index = new AtomicIntegerArray(slots);
+			for (int slot = 0; slot < slots; slot++) {
+				this.index.set(slot, EMPTY);
+			}
+		}
+
+		/* record number of the ID, or -1 */
+		int find(long id) {
+			int mask = index.length() - 1;
+			for (int slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+				int record = index.get(slot);
+				if (record == EMPTY) {
+					return -1;
+				}
+				if (record >= 0 && ids[record] == id) {
+					return record;
+				}
+			}
+		}
+
+		/* slot of the ID, or -(slot to insert at) - 1 (the first removed or empty slot) */
+		int slot(long id) {
+			int mask = index.length() - 1;
+			int free = -1;
+			for (int slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+				int record = index.get(slot);
+				if (record == EMPTY) {
+					return -(free >= 0 ? free : slot) - 1;
+				}
+				if (record == REMOVED) {
+					if (free < 0) {
+						free = slot;
+					}
+				} else if (ids[record] == id) {
+					return slot;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import ch.threema.apitool.results.EncryptResult;
+
+import java.util.Arrays;
+
+/**
+ * Result of {@link CryptTool#sealTextMessage}: an encrypted message that lives in a buffer owned by
+ * the calling thread. It is only valid until the next call of sealTextMessage on the same thread;
+ * use {@link #toEncryptResult()} to keep it.
+ */
+public class SealedBox {
+	private final byte[] nonce;
+
+	private byte[] buffer;
+	private int length;
+
+	SealedBox(byte[] nonce, byte[] buffer) {
+		this.nonce = nonce;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @return the nonce that was used for encryption
+	 */
+	public byte[] getNonce() {
+		return this.nonce;
+	}
+
+	/**
+	 * @return the buffer that holds the box, starting at offset 0
+	 */
+	public byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * @return the length of the box in the buffer
+	 */
+	public int getLength() {
+		return this.length;
+	}
+
+	void setBuffer(byte[] buffer) {
+		this.buffer = buffer;
+	}
+
+	void setLength(int length) {
+		this.length = length;
+	}
+
+	/**
+	 * @return a copy of the box and nonce that stays valid
+	 */
+	public EncryptResult toEncryptResult() {
+		return new EncryptResult(Arrays.copyOf(this.buffer, this.length), null, this.nonce.clone());
+	}
+}
@@ -25,15 +25,22 @@
 package ch.threema.apitool.console.commands;
 
 import ch.threema.apitool.APIConnector;
+import ch.threema.apitool.FilePublicKeyStore;
 import ch.threema.apitool.PublicKeyStore;
 import ch.threema.apitool.console.commands.fields.*;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
 abstract public class Command {
+
+	public static final String PUBLIC_KEY_STORE_PROPERTY = "ch.threema.apitool.publicKeyStore";
+
 	private final List<Field> fields = new LinkedList<>();
+	/* opened by execute(), closed when run() returns */
+	private final List<Closeable> resources = new ArrayList<>();
 	private final String subject;
 	private final String description;
 
@@ -128,7 +135,19 @@ abstract public class Command {
 	}
 
 
-	protected APIConnector createConnector(String gatewayId, String secret) {
+	/**
+	 * Create a connector. Public keys are kept in the file named by the system property
+	 * {@value #PUBLIC_KEY_STORE_PROPERTY} (if set), so that later invocations do not fetch them again;
+	 * the file is closed when the command has finished.
+	 */
+	protected APIConnector createConnector(String gatewayId, String secret) throws IOException {
+		String publicKeyStore = System.getProperty(PUBLIC_KEY_STORE_PROPERTY);
+		if (publicKeyStore != null) {
+			FilePublicKeyStore store = new FilePublicKeyStore(new File(publicKeyStore));
+			this.resources.add(store);
+			return new APIConnector(gatewayId, secret, store);
+		}
+
 		return new APIConnector(gatewayId, secret, new PublicKeyStore() {
 			@Override
 			protected byte[] fetchPublicKey(String threemaId) {
@@ -173,7 +192,35 @@ abstract public class Command {
 			}
 		}
 
-		this.execute();
+		try {
+			this.execute();
+		} catch (Exception e) {
+			this.closeResources(e);
+			throw e;
+		}
+		this.closeResources(null);
+	}
+
+	/* close in reverse order of opening; errors are added to the given exception, if any */
+	private void closeResources(Exception failure) throws IOException {
+		IOException error = null;
+		for (int i = this.resources.size() - 1; i >= 0; i--) {
+			try {
+				this.resources.get(i).close();
+			} catch (IOException e) {
+				if (failure != null) {
+					failure.addSuppressed(e);
+				} else if (error == null) {
+					error = e;
+				} else {
+					error.addSuppressed(e);
+				}
+			}
+		}
+		this.resources.clear();
+		if (error != null) {
+			throw error;
+		}
 	}
 
 	public final String getSubject() {
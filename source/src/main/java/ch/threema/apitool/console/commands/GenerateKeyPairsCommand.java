@@ -0,0 +1,93 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.console.commands;
+
+import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.KeyStoreWriter;
+import ch.threema.apitool.console.commands.fields.TextField;
+import ch.threema.apitool.exceptions.InvalidCommandFieldValueException;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+
+public class GenerateKeyPairsCommand extends Command {
+	private final TextField count;
+	private final TextField outFile;
+	private final TextField format;
+
+	public GenerateKeyPairsCommand() {
+		super("Generate Key Pairs in Bulk",
+				"Generate the given number of key pairs on all cores and write them to a single keystore file. "
+						+ "The format is \"binary\" (default: \"TKS1\", then 32 bytes private and 32 bytes public key per pair) "
+						+ "or \"ndjson\" (one line {\"privateKey\":\"private:<hex>\",\"publicKey\":\"public:<hex>\"} per pair). "
+						+ "The private keys are not encrypted.");
+
+		this.count = this.createTextField("count");
+		this.outFile = this.createTextField("outFile");
+		this.format = this.createTextField("format", false);
+	}
+
+	@Override
+	protected void execute() throws Exception {
+		long count;
+		try {
+			count = Long.parseLong(this.count.getValue());
+		} catch (NumberFormatException e) {
+			count = -1;
+		}
+		if (count < 0) {
+			throw new InvalidCommandFieldValueException("field count value invalid");
+		}
+
+		KeyStoreWriter.Format format;
+		if (this.format.getValue() == null || "binary".equals(this.format.getValue())) {
+			format = KeyStoreWriter.Format.BINARY;
+		}
+		else if ("ndjson".equals(this.format.getValue())) {
+			format = KeyStoreWriter.Format.NDJSON;
+		}
+		else {
+			throw new InvalidCommandFieldValueException("field format value invalid");
+		}
+
+		final long total = count;
+		final long start = System.nanoTime();
+		final long[] lastReport = { start };
+		try (KeyStoreWriter writer = new KeyStoreWriter(
+				new BufferedOutputStream(new FileOutputStream(this.outFile.getValue()), 1 << 20), format)) {
+			CryptTool.generateKeyPairs(total, writer, written -> {
+				long now = System.nanoTime();
+				if (now - lastReport[0] >= 1_000_000_000L) {
+					lastReport[0] = now;
+					double seconds = (now - start) / 1e9;
+					System.err.printf("%d/%d key pairs (%.0f/s)%n", written, total, written / seconds);
+				}
+			});
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%d key pairs generated in %.1f s (%.0f/s)%n", total, seconds, total / seconds);
+	}
+}
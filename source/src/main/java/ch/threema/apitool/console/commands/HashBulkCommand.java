@@ -0,0 +1,77 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.console.commands;
+
+import ch.threema.apitool.IdentityHasher;
+import ch.threema.apitool.console.commands.fields.FileField;
+import ch.threema.apitool.console.commands.fields.TextField;
+import ch.threema.apitool.exceptions.InvalidCommandFieldValueException;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class HashBulkCommand extends Command {
+	private final TextField type;
+	private final FileField inFile;
+	private final TextField outFile;
+
+	public HashBulkCommand() {
+		super("Hash Email Addresses or Phone Numbers in Bulk",
+				"Hash a list of email addresses or phone numbers (type \"email\" or \"phone\") for identity lookup. "
+						+ "The input has one entry per line, or is a CSV file whose first column is hashed. "
+						+ "Writes a line \"<entry>,<hash in hex>\" per entry to the output file, in input order.");
+
+		this.type = this.createTextField("type");
+		this.inFile = this.createFileField("inFile");
+		this.outFile = this.createTextField("outFile");
+	}
+
+	@Override
+	protected void execute() throws Exception {
+		IdentityHasher hasher;
+		if ("email".equals(this.type.getValue())) {
+			hasher = IdentityHasher.EMAIL;
+		}
+		else if ("phone".equals(this.type.getValue())) {
+			hasher = IdentityHasher.PHONE_NO;
+		}
+		else {
+			throw new InvalidCommandFieldValueException("field type value invalid");
+		}
+
+		long start = System.nanoTime();
+		long count;
+		try (InputStream in = new FileInputStream(this.inFile.getValue());
+		     OutputStream out = new BufferedOutputStream(new FileOutputStream(this.outFile.getValue()), 1 << 20)) {
+			count = hasher.hashLines(in, out);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%d entries hashed in %.1f s (%.0f/s)%n", count, seconds, count / seconds);
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import java.util.Arrays;
+
+/**
+ * Implementation of the NaCl primitives used by the SDK (Curve25519/XSalsa20/Poly1305 "box" and
+ * XSalsa20/Poly1305 "secretbox"). Implementations must be thread safe.
+ *
+ * @see CryptoBackends
+ */
+public interface CryptoBackend {
+
+	/**
+	 * @return short name of the backend, e.g. for log output
+	 */
+	String getName();
+
+	/**
+	 * Compute the shared key for box/unbox between a private and a public key (crypto_box_beforenm).
+	 *
+	 * @param privateKey private key (32 bytes)
+	 * @param publicKey public key of the other party (32 bytes)
+	 * @return shared key (32 bytes)
+	 */
+	byte[] beforenm(byte[] privateKey, byte[] publicKey);
+
+	/**
+	 * Compute the shared keys between one private key and several public keys, e.g. for a broadcast.
+	 * Backends can override this if they compute batches faster than one key at a time.
+	 *
+	 * @param privateKey private key (32 bytes)
+	 * @param publicKeys public keys of the other parties (32 bytes each)
+	 * @return one shared key per public key, in the same order
+	 */
+	default byte[][] beforenmBatch(byte[] privateKey, byte[][] publicKeys) {
+		byte[][] sharedKeys = new byte[publicKeys.length][];
+		for (int i = 0; i < publicKeys.length; i++) {
+			sharedKeys[i] = beforenm(privateKey, publicKeys[i]);
+		}
+		return sharedKeys;
+	}
+
+	/**
+	 * Encrypt data with a shared key obtained from {@link #beforenm(byte[], byte[])}.
+	 *
+	 * @return box (data length + {@link com.neilalexander.jnacl.NaCl#BOXOVERHEAD} bytes)
+	 */
+	byte[] box(byte[] data, byte[] sharedKey, byte[] nonce);
+
+	/**
+	 * Decrypt a box with a shared key obtained from {@link #beforenm(byte[], byte[])}.
+	 *
+	 * @return decrypted data, or null if decryption failed
+	 */
+	byte[] unbox(byte[] box, byte[] sharedKey, byte[] nonce);
+
+	/**
+	 * Symmetrically encrypt data with a secret key.
+	 *
+	 * @return encrypted data (data length + {@link com.neilalexander.jnacl.NaCl#BOXOVERHEAD} bytes)
+	 */
+	byte[] secretbox(byte[] data, byte[] key, byte[] nonce);
+
+	/**
+	 * In-place version of {@link #secretbox(byte[], byte[], byte[])}; the data must begin at offset
+	 * {@link com.neilalexander.jnacl.NaCl#BOXOVERHEAD} of the array.
+	 */
+	void secretboxInplace(byte[] io, byte[] key, byte[] nonce);
+
+	/**
+	 * Version of {@link #secretboxInplace(byte[], byte[], byte[])} for a part of an array: the box takes
+	 * up length bytes from offset, and the data begins at offset + {@link com.neilalexander.jnacl.NaCl#BOXOVERHEAD}.
+	 * The default implementation works on a copy; backends should override it to avoid that.
+	 */
+	default void secretboxInplace(byte[] io, int offset, int length, byte[] key, byte[] nonce) {
+		byte[] box = Arrays.copyOfRange(io, offset, offset + length);
+		secretboxInplace(box, key, nonce);
+		System.arraycopy(box, 0, io, offset, length);
+	}
+
+	/**
+	 * Decrypt symmetrically encrypted data.
+	 *
+	 * @return decrypted data, or null if decryption failed
+	 */
+	byte[] secretboxOpen(byte[] data, byte[] key, byte[] nonce);
+
+	/**
+	 * Generate a new random key pair.
+	 *
+	 * @param privateKey is used to return the generated private key (32 bytes)
+	 * @param publicKey is used to return the generated public key (32 bytes)
+	 */
+	void generateKeyPair(byte[] privateKey, byte[] publicKey);
+
+	/**
+	 * @return the public key that corresponds with the given private key
+	 */
+	byte[] derivePublicKey(byte[] privateKey);
+}
@@ -0,0 +1,132 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import com.neilalexander.jnacl.NaCl;
+
+import java.util.Arrays;
+
+/**
+ * Selects the {@link CryptoBackend} used by {@link ch.threema.apitool.CryptTool}.
+ *
+ * The backend is chosen at runtime with the system property {@value #BACKEND_PROPERTY}: {@code jnacl}
+ * (the default) or {@code jca}. A backend is only used if it is available on this JVM and passes
+ * {@link #selfTest(CryptoBackend)}; otherwise jnacl is used.
+ */
+public final class CryptoBackends {
+
+	public static final String BACKEND_PROPERTY = "ch.threema.apitool.crypto.backend";
+
+	/* test vectors from tests/box.* in the nacl distribution, as in NaCl.selfTest */
+	private static final byte[] ALICE_PK = NaCl.getBinary("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a");
+	private static final byte[] ALICE_SK = NaCl.getBinary("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+	private static final byte[] BOB_PK = NaCl.getBinary("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f");
+	private static final byte[] BOB_SK = NaCl.getBinary("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+	private static final byte[] NONCE = NaCl.getBinary("69696ee955b62b73cd62bda875fc73d68219e0036b7a0b37");
+	private static final byte[] M = NaCl.getBinary(
+			"be075fc53c81f2d5cf141316ebeb0c7b5228c52a4c62cbd44b66849b64244ffce5ecbaaf33bd751a1ac728d45e6c6129" +
+			"6cdc3c01233561f41db66cce314adb310e3be8250c46f06dceea3a7fa1348057e2f6556ad6b1318a024a838f21af1fde" +
+			"048977eb48f59ffd4924ca1c60902e52f0a089bc76897040e082f937763848645e0705");
+	private static final byte[] C = NaCl.getBinary(
+			"f3ffc7703f9400e52a7dfb4b3d3305d98e993b9f48681273c29650ba32fc76ce48332ea7164d96a4476fb8c531a1186a" +
+			"c0dfc17c98dce87b4da7f011ec48c97271d2c20f9b928fe2270d6fb863d51738b48eeee314a7cc8ab932164548e526ae" +
+			"90224368517acfeabd6bb3732bc0e9da99832b61ca01b6de56244a9e88d5f9b37973f622a43d14a6599b1f654cb45a74" +
+			"e355a5");
+
+	private static volatile CryptoBackend backend;
+
+	private CryptoBackends() {
+	}
+
+	/**
+	 * @return the backend in use (selected on first call)
+	 */
+	public static CryptoBackend get() {
+		CryptoBackend b = backend;
+		if (b == null) {
+			synchronized (CryptoBackends.class) {
+				b = backend;
+				if (b == null) {
+					b = backend = select(System.getProperty(BACKEND_PROPERTY));
+				}
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Replace the backend in use, e.g. with a hardware or native implementation.
+	 *
+	 * @param newBackend the new backend
+	 * @throws IllegalArgumentException if the backend does not pass the self test
+	 */
+	public static synchronized void set(CryptoBackend newBackend) {
+		if (!selfTest(newBackend)) {
+			throw new IllegalArgumentException("Crypto backend " + newBackend.getName() + " failed the self test");
+		}
+		backend = newBackend;
+	}
+
+	/**
+	 * Check a backend against the NaCl box test vectors.
+	 *
+	 * @return true if all results match
+	 */
+	public static boolean selfTest(CryptoBackend candidate) {
+		try {
+			if (!Arrays.equals(ALICE_PK, candidate.derivePublicKey(ALICE_SK))
+					|| !Arrays.equals(BOB_PK, candidate.derivePublicKey(BOB_SK))) {
+				return false;
+			}
+
+			byte[] c = candidate.box(M, candidate.beforenm(ALICE_SK, BOB_PK), NONCE);
+			if (!Arrays.equals(C, c)) {
+				return false;
+			}
+
+			byte[] m = candidate.unbox(c, candidate.beforenm(BOB_SK, ALICE_PK), NONCE);
+			return Arrays.equals(M, m);
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	static CryptoBackend select(String name) {
+		if ("jca".equals(name)) {
+			try {
+				CryptoBackend jca = new JcaCryptoBackend();
+				if (selfTest(jca)) {
+					return jca;
+				}
+			} catch (Exception e) {
+				/* X25519 not available on this JVM */
+			}
+		} else if (name != null && !name.equals("jnacl")) {
+			throw new IllegalArgumentException("Unknown crypto backend " + name);
+		}
+
+		return new JnaclCryptoBackend();
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import com.neilalexander.jnacl.NaCl;
+import com.neilalexander.jnacl.crypto.hsalsa20;
+import com.neilalexander.jnacl.crypto.xsalsa20;
+
+import javax.crypto.KeyAgreement;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Uses the JDK's X25519 key agreement (Java 11+, intrinsified on some platforms) for the Curve25519
+ * step; the symmetric part is jnacl, as the JDK has no XSalsa20. Raw keys are passed to the JCA as
+ * X.509/PKCS#8 encodings, so this class compiles against Java 8 and simply fails the availability
+ * check there.
+ *
+ * RFC 7748 X25519 ignores the top bit of the public key and rejects an all-zero result, while NaCl
+ * uses all 256 bits and returns zero. Such (invalid or low-order) keys are passed on to jnacl, so the
+ * results are identical for every input.
+ */
+public class JcaCryptoBackend implements CryptoBackend {
+
+	/* DER prefixes of SubjectPublicKeyInfo / PrivateKeyInfo for OID 1.3.101.110 (X25519) */
+	private static final byte[] X509_PREFIX = hex("302a300506032b656e032100");
+	private static final byte[] PKCS8_PREFIX = hex("302e020100300506032b656e04220420");
+
+	private static final byte[] BASE_POINT = new byte[NaCl.PUBLICKEYBYTES];
+	static {
+		BASE_POINT[0] = 9;
+	}
+
+	private final JnaclCryptoBackend fallback = new JnaclCryptoBackend();
+
+	/* JCA engines are not thread safe */
+	private final ThreadLocal<KeyAgreement> keyAgreement = new ThreadLocal<KeyAgreement>() {
+		@Override
+		protected KeyAgreement initialValue() {
+			try {
+				return KeyAgreement.getInstance("X25519");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+	private final ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>() {
+		@Override
+		protected KeyFactory initialValue() {
+			try {
+				return KeyFactory.getInstance("X25519");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * @throws GeneralSecurityException if the JVM does not provide X25519
+	 */
+	public JcaCryptoBackend() throws GeneralSecurityException {
+		KeyAgreement.getInstance("X25519");
+		KeyFactory.getInstance("X25519");
+	}
+
+	@Override
+	public String getName() {
+		return "jca-x25519";
+	}
+
+	@Override
+	public byte[] beforenm(byte[] privateKey, byte[] publicKey) {
+		JnaclCryptoBackend.checkLength(privateKey, NaCl.SECRETKEYBYTES);
+		JnaclCryptoBackend.checkLength(publicKey, NaCl.PUBLICKEYBYTES);
+
+		byte[] shared = scalarmult(privateKey, publicKey);
+		if (shared == null) {
+			return fallback.beforenm(privateKey, publicKey);
+		}
+
+		byte[] sharedKey = new byte[NaCl.BEFORENMBYTES];
+		hsalsa20.crypto_core(sharedKey, null, shared, xsalsa20.sigma);
+		return sharedKey;
+	}
+
+	@Override
+	public byte[] box(byte[] data, byte[] sharedKey, byte[] nonce) {
+		return fallback.box(data, sharedKey, nonce);
+	}
+
+	@Override
+	public byte[] unbox(byte[] box, byte[] sharedKey, byte[] nonce) {
+		return fallback.unbox(box, sharedKey, nonce);
+	}
+
+	@Override
+	public byte[] secretbox(byte[] data, byte[] key, byte[] nonce) {
+		return fallback.secretbox(data, key, nonce);
+	}
+
+	@Override
+	public void secretboxInplace(byte[] io, byte[] key, byte[] nonce) {
+		fallback.secretboxInplace(io, key, nonce);
+	}
+
+	@Override
+	public byte[] secretboxOpen(byte[] data, byte[] key, byte[] nonce) {
+		return fallback.secretboxOpen(data, key, nonce);
+	}
+
+	@Override
+	public void generateKeyPair(byte[] privateKey, byte[] publicKey) {
+		JnaclCryptoBackend.checkLength(privateKey, NaCl.SECRETKEYBYTES);
+		JnaclCryptoBackend.checkLength(publicKey, NaCl.PUBLICKEYBYTES);
+
+		RandomSources.get().nextBytes(privateKey);
+		System.arraycopy(derivePublicKey(privateKey), 0, publicKey, 0, NaCl.PUBLICKEYBYTES);
+	}
+
+	@Override
+	public byte[] derivePublicKey(byte[] privateKey) {
+		JnaclCryptoBackend.checkLength(privateKey, NaCl.SECRETKEYBYTES);
+
+		byte[] publicKey = scalarmult(privateKey, BASE_POINT);
+		return publicKey != null ? publicKey : fallback.derivePublicKey(privateKey);
+	}
+
+	/**
+	 * @return X25519(privateKey, publicKey), or null if the JCA cannot compute the NaCl result
+	 */
+	private byte[] scalarmult(byte[] privateKey, byte[] publicKey) {
+		/* X25519 masks bit 255 of the u-coordinate, NaCl does not */
+		if ((publicKey[NaCl.PUBLICKEYBYTES - 1] & 0x80) != 0) {
+			return null;
+		}
+
+		try {
+			KeyFactory factory = keyFactory.get();
+			PrivateKey priv = factory.generatePrivate(new PKCS8EncodedKeySpec(concat(PKCS8_PREFIX, privateKey)));
+			PublicKey pub = factory.generatePublic(new X509EncodedKeySpec(concat(X509_PREFIX, publicKey)));
+
+			KeyAgreement agreement = keyAgreement.get();
+			agreement.init(priv);
+			agreement.doPhase(pub, true);
+			return agreement.generateSecret();
+		} catch (GeneralSecurityException e) {
+			/* e.g. an all-zero result for a low-order point */
+			return null;
+		}
+	}
+
+	private static byte[] concat(byte[] prefix, byte[] key) {
+		byte[] encoded = new byte[prefix.length + key.length];
+		System.arraycopy(prefix, 0, encoded, 0, prefix.length);
+		System.arraycopy(key, 0, encoded, prefix.length, key.length);
+		return encoded;
+	}
+
+	private static byte[] hex(String s) {
+		return NaCl.getBinary(s);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import com.neilalexander.jnacl.NaCl;
+import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
+
+/**
+ * The pure Java jnacl implementation. Always available, and used whenever no faster backend passes
+ * the self test.
+ */
+public class JnaclCryptoBackend implements CryptoBackend {
+
+	@Override
+	public String getName() {
+		return "jnacl";
+	}
+
+	@Override
+	public byte[] beforenm(byte[] privateKey, byte[] publicKey) {
+		checkLength(privateKey, NaCl.SECRETKEYBYTES);
+		checkLength(publicKey, NaCl.PUBLICKEYBYTES);
+
+		byte[] sharedKey = new byte[NaCl.BEFORENMBYTES];
+		curve25519xsalsa20poly1305.crypto_box_beforenm(sharedKey, publicKey, privateKey);
+		return sharedKey;
+	}
+
+	/* the batch shares one field inversion between all keys */
+	@Override
+	public byte[][] beforenmBatch(byte[] privateKey, byte[][] publicKeys) {
+		checkLength(privateKey, NaCl.SECRETKEYBYTES);
+		for (byte[] publicKey : publicKeys) {
+			checkLength(publicKey, NaCl.PUBLICKEYBYTES);
+		}
+
+		byte[][] sharedKeys = new byte[publicKeys.length][NaCl.BEFORENMBYTES];
+		curve25519xsalsa20poly1305.crypto_box_beforenm_batch(sharedKeys, publicKeys, privateKey, 0, publicKeys.length);
+		return sharedKeys;
+	}
+
+	@Override
+	public byte[] box(byte[] data, byte[] sharedKey, byte[] nonce) {
+		return NaCl.symmetricEncryptData(data, sharedKey, nonce);
+	}
+
+	@Override
+	public byte[] unbox(byte[] box, byte[] sharedKey, byte[] nonce) {
+		if (box.length < NaCl.BOXOVERHEAD) {
+			return null;
+		}
+		return NaCl.symmetricDecryptData(box, sharedKey, nonce);
+	}
+
+	@Override
+	public byte[] secretbox(byte[] data, byte[] key, byte[] nonce) {
+		return NaCl.symmetricEncryptData(data, key, nonce);
+	}
+
+	@Override
+	public void secretboxInplace(byte[] io, byte[] key, byte[] nonce) {
+		NaCl.symmetricEncryptDataInplace(io, key, nonce);
+	}
+
+	@Override
+	public void secretboxInplace(byte[] io, int offset, int length, byte[] key, byte[] nonce) {
+		NaCl.symmetricEncryptDataInplace(io, offset, length, key, nonce);
+	}
+
+	@Override
+	public byte[] secretboxOpen(byte[] data, byte[] key, byte[] nonce) {
+		return NaCl.symmetricDecryptData(data, key, nonce);
+	}
+
+	@Override
+	public void generateKeyPair(byte[] privateKey, byte[] publicKey) {
+		checkLength(privateKey, NaCl.SECRETKEYBYTES);
+		checkLength(publicKey, NaCl.PUBLICKEYBYTES);
+
+		RandomSources.get().nextBytes(privateKey);
+		curve25519xsalsa20poly1305.crypto_box_getpublickey(publicKey, privateKey);
+	}
+
+	@Override
+	public byte[] derivePublicKey(byte[] privateKey) {
+		return NaCl.derivePublicKey(privateKey);
+	}
+
+	static void checkLength(byte[] key, int length) {
+		if (key.length != length) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+/**
+ * Amount of PKCS7-style padding appended to a message before encryption, to hide the length of the
+ * message. Receivers strip any amount of 1 to 255 bytes, so the policy only affects the sender.
+ *
+ * A random number of 1 to maxRandom bytes is added to the message, and the result is rounded up to
+ * the next multiple of the bucket size. {@link #RANDOM} (bucket size 1, 1 to 254 random bytes) is the
+ * padding the SDK has always used; it adds 127.5 bytes on average (255 characters in hex). With
+ * buckets, e.g. {@code bucketed(32, 16)}, a short message is padded to 32 or 64 bytes instead, while
+ * messages of similar length still cannot be told apart.
+ */
+public final class PaddingPolicy {
+
+	/* the padding length is stored in one byte */
+	public static final int MAX_PADDING = 255;
+
+	public static final PaddingPolicy RANDOM = new PaddingPolicy(1, 254);
+
+	private final int bucketSize;
+	private final int maxRandom;
+
+	private PaddingPolicy(int bucketSize, int maxRandom) {
+		this.bucketSize = bucketSize;
+		this.maxRandom = maxRandom;
+	}
+
+	/**
+	 * @param bucketSize the length of the padded message is a multiple of this (at least 1)
+	 * @param maxRandom the random part of the padding is 1 to maxRandom bytes (at least 1)
+	 * @return the policy; bucketSize + maxRandom must be at most 256, as the padding is at most
+	 * bucketSize + maxRandom - 1 bytes
+	 */
+	public static PaddingPolicy bucketed(int bucketSize, int maxRandom) {
+		if (bucketSize < 1 || maxRandom < 1 || bucketSize + maxRandom - 1 > MAX_PADDING) {
+			throw new IllegalArgumentException("Invalid bucket size or random padding");
+		}
+		return new PaddingPolicy(bucketSize, maxRandom);
+	}
+
+	/**
+	 * @param length length of the message (including the type byte)
+	 * @param random source of the random part
+	 * @return number of padding bytes (1 to {@value #MAX_PADDING})
+	 */
+	public int padding(int length, RandomSource random) {
+		int padded = length + random.nextInt(maxRandom) + 1;
+		int remainder = padded % bucketSize;
+		if (remainder != 0) {
+			padded += bucketSize - remainder;
+		}
+		return padded - length;
+	}
+
+	public int getBucketSize() {
+		return bucketSize;
+	}
+
+	public int getMaxRandom() {
+		return maxRandom;
+	}
+
+	@Override
+	public String toString() {
+		return "PaddingPolicy{bucketSize=" + bucketSize + ", maxRandom=" + maxRandom + "}";
+	}
+}
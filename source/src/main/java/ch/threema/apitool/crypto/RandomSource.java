@@ -0,0 +1,49 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+/**
+ * Source of the random bytes for nonces, padding, keys and the like. Implementations must be
+ * thread-safe. The one in use is selected with {@link RandomSources}.
+ */
+public interface RandomSource {
+
+	/**
+	 * Fill bytes[offset .. offset + length - 1] with random bytes.
+	 */
+	void nextBytes(byte[] bytes, int offset, int length);
+
+	default void nextBytes(byte[] bytes) {
+		nextBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @param bound upper bound (exclusive), at least 1
+	 * @return a uniformly distributed random number from 0 to bound - 1
+	 */
+	default int nextInt(int bound) {
+		return RandomSources.nextInt(this, new byte[4], bound);
+	}
+}
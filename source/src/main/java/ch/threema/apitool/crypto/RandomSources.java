@@ -0,0 +1,226 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import com.neilalexander.jnacl.crypto.xsalsa20;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Selects the {@link RandomSource} used for nonces, padding, keys and multipart boundaries.
+ *
+ * By default, each thread has its own DRBG (NIST Hash_DRBG where available, SHA1PRNG on Java 8),
+ * seeded from the system source, so threads do not contend for one SecureRandom, and random bytes
+ * are generated in blocks of {@value #BLOCK_BYTES} bytes and handed out from there (which makes a
+ * nonce a copy). For benchmarks and tests, {@link #deterministic(long)} gives a reproducible source;
+ * it is only ever used when installed explicitly with {@link #set(RandomSource)}.
+ */
+public final class RandomSources {
+
+	static final int BLOCK_BYTES = 1024;
+
+	private static volatile RandomSource source;
+
+	private RandomSources() {
+	}
+
+	/**
+	 * @return the source in use ({@link #system()} unless replaced with {@link #set(RandomSource)})
+	 */
+	public static RandomSource get() {
+		RandomSource s = source;
+		if (s == null) {
+			synchronized (RandomSources.class) {
+				s = source;
+				if (s == null)
+					s = source = system();
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Replace the source in use, e.g. with {@link #deterministic(long)} for a benchmark, or with
+	 * {@link #system()} to go back to the default.
+	 *
+	 * @param newSource the new source
+	 */
+	public static synchronized void set(RandomSource newSource) {
+		if (newSource == null)
+			throw new IllegalArgumentException("random source must not be null");
+		source = newSource;
+	}
+
+	/**
+	 * @return a new source with a DRBG per thread, seeded from the system source
+	 */
+	public static RandomSource system() {
+		return new SystemRandomSource();
+	}
+
+	/**
+	 * A source that always produces the same bytes for the same seed (an XSalsa20 key stream). Only
+	 * for benchmarks and tests; with several threads, which thread gets which bytes is up to the
+	 * scheduler.
+	 *
+	 * @param seed the seed
+	 * @return a new deterministic source
+	 */
+	public static RandomSource deterministic(long seed) {
+		return new DeterministicRandomSource(seed);
+	}
+
+	/* see RandomSource.nextInt; scratch holds at least 4 bytes */
+	static int nextInt(RandomSource source, byte[] scratch, int bound) {
+		if (bound <= 0)
+			throw new IllegalArgumentException("bound must be positive");
+
+		/* rejection sampling below the largest multiple of bound that fits into 31 bits */
+		int limit = Integer.MAX_VALUE - (int) ((Integer.MAX_VALUE % (long) bound + 1) % bound);
+		while (true) {
+			source.nextBytes(scratch, 0, 4);
+			int r = ((scratch[0] & 0x7f) << 24) | ((scratch[1] & 0xff) << 16) | ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+			if (r <= limit)
+				return r % bound;
+		}
+	}
+
+	private static final class SystemRandomSource implements RandomSource {
+		/* seeds the per-thread generators; nextBytes does not block (unlike generateSeed) */
+		private final SecureRandom seeder = new SecureRandom();
+
+		private final ThreadLocal<Block> blocks = ThreadLocal.withInitial(() -> new Block(newGenerator()));
+
+		private static final class Block {
+			final SecureRandom generator;
+			final byte[] bytes = new byte[BLOCK_BYTES];
+			final byte[] scratch = new byte[4];
+			int position = BLOCK_BYTES;
+
+			Block(SecureRandom generator) {
+				this.generator = generator;
+			}
+		}
+
+		private SecureRandom newGenerator() {
+			SecureRandom generator;
+			try {
+				generator = SecureRandom.getInstance("DRBG");
+			} catch (NoSuchAlgorithmException e) {
+				try {
+					generator = SecureRandom.getInstance("SHA1PRNG");
+				} catch (NoSuchAlgorithmException e2) {
+					return new SecureRandom();
+				}
+			}
+
+			/*
+			 * DRBG instantiates itself from the platform entropy source and only mixes these bytes in
+			 * as additional input; SHA1PRNG, seeded before its first use, takes them as its only seed
+			 */
+			byte[] seed = new byte[48];
+			seeder.nextBytes(seed);
+			generator.setSeed(seed);
+			Arrays.fill(seed, (byte) 0);
+			return generator;
+		}
+
+		@Override
+		public void nextBytes(byte[] bytes, int offset, int length) {
+			if (offset < 0 || length < 0 || offset + length > bytes.length)
+				throw new IndexOutOfBoundsException();
+
+			Block block = blocks.get();
+			if (length > BLOCK_BYTES / 4) {
+				byte[] tmp = new byte[length];
+				block.generator.nextBytes(tmp);
+				System.arraycopy(tmp, 0, bytes, offset, length);
+				Arrays.fill(tmp, (byte) 0);
+				return;
+			}
+
+			while (length > 0) {
+				if (block.position == BLOCK_BYTES) {
+					block.generator.nextBytes(block.bytes);
+					block.position = 0;
+				}
+				int n = Math.min(length, BLOCK_BYTES - block.position);
+				System.arraycopy(block.bytes, block.position, bytes, offset, n);
+
+				/* bytes that have been handed out are not kept */
+				Arrays.fill(block.bytes, block.position, block.position + n, (byte) 0);
+				block.position += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public int nextInt(int bound) {
+			return RandomSources.nextInt(this, blocks.get().scratch, bound);
+		}
+	}
+
+	private static final class DeterministicRandomSource implements RandomSource {
+		private final byte[] key = new byte[32];
+		private final byte[] nonce = new byte[24];
+		private final byte[] block = new byte[BLOCK_BYTES];
+		private final byte[] scratch = new byte[4];
+		private int position = BLOCK_BYTES;
+
+		DeterministicRandomSource(long seed) {
+			for (int i = 0; i < 8; i++)
+				key[i] = (byte) (seed >>> (8 * i));
+		}
+
+		@Override
+		public synchronized void nextBytes(byte[] bytes, int offset, int length) {
+			if (offset < 0 || length < 0 || offset + length > bytes.length)
+				throw new IndexOutOfBoundsException();
+
+			while (length > 0) {
+				if (position == BLOCK_BYTES) {
+					xsalsa20.crypto_stream(block, BLOCK_BYTES, nonce, key);
+					/* next block: increment the nonce as a counter */
+					for (int i = 0; i < nonce.length && ++nonce[i] == 0; i++)
+						;
+					position = 0;
+				}
+				int n = Math.min(length, BLOCK_BYTES - position);
+				System.arraycopy(block, position, bytes, offset, n);
+				position += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public synchronized int nextInt(int bound) {
+			return RandomSources.nextInt(this, scratch, bound);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import ch.threema.apitool.exceptions.DecryptionFailedException;
+import com.neilalexander.jnacl.NaCl;
+import com.neilalexander.jnacl.crypto.poly1305;
+import com.neilalexander.jnacl.crypto.verify_16;
+import com.neilalexander.jnacl.crypto.xsalsa20;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streaming secretbox (XSalsa20/Poly1305) over channels, for file blobs that should not be held in
+ * memory. The wire format is the same as that of {@link NaCl#symmetricEncryptData(byte[], byte[], byte[])}:
+ * the 16-byte authenticator followed by the ciphertext. Each call uses one buffer of
+ * {@link #BUFFER_SIZE} bytes, regardless of the size of the data.
+ *
+ * As the authenticator comes first, encryption either needs a seekable output (to fill it in at
+ * the end) or a seekable input (to read it twice). Likewise, {@link #decrypt} reads its input twice
+ * so that no plaintext is written before the data has been authenticated.
+ */
+public final class SecretBoxStream {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private SecretBoxStream() {
+	}
+
+	/**
+	 * Encrypt everything from the input channel into the output channel. The authenticator is
+	 * written as a placeholder first and filled in at the end.
+	 *
+	 * @return number of bytes written (input length + {@link NaCl#BOXOVERHEAD})
+	 */
+	public static long encrypt(ReadableByteChannel in, SeekableByteChannel out, byte[] key, byte[] nonce) throws IOException {
+		checkKeyAndNonce(key, nonce);
+
+		long start = out.position();
+		writeFully(out, ByteBuffer.wrap(new byte[NaCl.BOXOVERHEAD]));
+
+		byte[] tag = new byte[NaCl.BOXOVERHEAD];
+		long length = crypt(in, out, key, nonce, new poly1305.state(polyKey(key, nonce)), true, tag);
+
+		long end = out.position();
+		out.position(start);
+		writeFully(out, ByteBuffer.wrap(tag));
+		out.position(end);
+
+		return length + NaCl.BOXOVERHEAD;
+	}
+
+	/**
+	 * Encrypt everything from the input channel (from its current position) into the output
+	 * channel, reading the input twice: once for the authenticator, once for the ciphertext.
+	 *
+	 * @return number of bytes written (input length + {@link NaCl#BOXOVERHEAD})
+	 */
+	public static long encryptTwoPass(SeekableByteChannel in, WritableByteChannel out, byte[] key, byte[] nonce) throws IOException {
+		checkKeyAndNonce(key, nonce);
+
+		long start = in.position();
+		byte[] tag = new byte[NaCl.BOXOVERHEAD];
+		crypt(in, null, key, nonce, new poly1305.state(polyKey(key, nonce)), true, tag);
+		writeFully(out, ByteBuffer.wrap(tag));
+
+		in.position(start);
+		return crypt(in, out, key, nonce, null, true, null) + NaCl.BOXOVERHEAD;
+	}
+
+	/**
+	 * Authenticate the box in the input channel (from its current position) and, if successful,
+	 * decrypt it into the output channel.
+	 *
+	 * @return number of bytes written
+	 * @throws DecryptionFailedException if the data is too short or fails authentication; nothing
+	 *         has been written to the output then
+	 */
+	public static long decrypt(SeekableByteChannel in, WritableByteChannel out, byte[] key, byte[] nonce) throws IOException, DecryptionFailedException {
+		checkKeyAndNonce(key, nonce);
+
+		byte[] tag = readTag(in);
+		long start = in.position();
+
+		byte[] correct = new byte[NaCl.BOXOVERHEAD];
+		crypt(in, null, key, nonce, new poly1305.state(polyKey(key, nonce)), false, correct);
+		if (verify_16.crypto_verify(tag, 0, correct) != 0) {
+			throw new DecryptionFailedException();
+		}
+
+		in.position(start);
+		return crypt(in, out, key, nonce, null, false, null);
+	}
+
+	/**
+	 * Decrypt the box in the input channel into the output channel in a single pass. The plaintext
+	 * is only authenticated at the end: if that fails, the output is truncated back to its
+	 * position at the start of the call.
+	 *
+	 * @return number of bytes written
+	 * @throws DecryptionFailedException if the data is too short or fails authentication
+	 */
+	public static long decryptSinglePass(ReadableByteChannel in, SeekableByteChannel out, byte[] key, byte[] nonce) throws IOException, DecryptionFailedException {
+		checkKeyAndNonce(key, nonce);
+
+		byte[] tag = readTag(in);
+		long start = out.position();
+
+		byte[] correct = new byte[NaCl.BOXOVERHEAD];
+		long length = crypt(in, out, key, nonce, new poly1305.state(polyKey(key, nonce)), false, correct);
+		if (verify_16.crypto_verify(tag, 0, correct) != 0) {
+			out.truncate(start);
+			throw new DecryptionFailedException();
+		}
+
+		return length;
+	}
+
+	/**
+	 * XOR the keystream into everything read from in and write it to out (if not null). If mac is
+	 * not null, the ciphertext (the output when encrypting, the input otherwise) is authenticated
+	 * and the authenticator stored in tag.
+	 *
+	 * @return number of bytes processed
+	 */
+	private static long crypt(ReadableByteChannel in, WritableByteChannel out, byte[] key, byte[] nonce,
+	                          poly1305.state mac, boolean encrypt, byte[] tag) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap(buf);
+		long position = 0;
+
+		for (;;) {
+			buffer.clear();
+			int n = in.read(buffer);
+			if (n < 0) {
+				break;
+			}
+			if (n == 0) {
+				continue;
+			}
+
+			if (mac != null && !encrypt) {
+				mac.update(buf, 0, n);
+			}
+
+			/* the first 32 bytes of the keystream are the Poly1305 key */
+			xsalsa20.crypto_stream_xor_at(null, buf, 0, buf, 0, n, nonce, key, 32 + position);
+
+			if (mac != null && encrypt) {
+				mac.update(buf, 0, n);
+			}
+
+			if (out != null) {
+				buffer.flip();
+				writeFully(out, buffer);
+			}
+
+			position += n;
+		}
+
+		if (mac != null) {
+			mac.finish(tag, 0);
+		}
+		return position;
+	}
+
+	private static byte[] polyKey(byte[] key, byte[] nonce) {
+		byte[] polyKey = new byte[32];
+		xsalsa20.crypto_stream_xor_at(polyKey, null, 0, null, 0, 0, nonce, key, 32);
+		return polyKey;
+	}
+
+	private static byte[] readTag(ReadableByteChannel in) throws IOException, DecryptionFailedException {
+		ByteBuffer tag = ByteBuffer.allocate(NaCl.BOXOVERHEAD);
+		while (tag.hasRemaining()) {
+			if (in.read(tag) < 0) {
+				throw new DecryptionFailedException();
+			}
+		}
+		return tag.array();
+	}
+
+	private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	private static void checkKeyAndNonce(byte[] key, byte[] nonce) {
+		if (key.length != NaCl.SYMMKEYBYTES) {
+			throw new IllegalArgumentException("Invalid symmetric key length");
+		}
+		if (nonce.length != NaCl.NONCEBYTES) {
+			throw new IllegalArgumentException("Invalid nonce length");
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import com.neilalexander.jnacl.NaCl;
+
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of NaCl shared keys (the result of {@link CryptoBackend#beforenm(byte[], byte[])}),
+ * keyed by the pair of own private key and peer public key. The cache does not keep the private keys,
+ * only their SHA-256 digests. Computing a shared key is a Curve25519
+ * scalar multiplication, which dominates the cost of encrypting or decrypting a message; with the
+ * cache, it is done once per peer.
+ *
+ * Entries that have not been used for the idle timeout are dropped. When the cache grows beyond its
+ * maximum size, the least recently used entries are evicted in one sweep (down to 90% of the maximum),
+ * so the bound is exceeded only briefly by concurrent insertions. Lookups are lock-free, and shared
+ * keys are computed without holding any lock; concurrent misses on the same pair may each compute
+ * the shared key, but all of them get the one that was cached first.
+ */
+public class SharedKeyCache {
+
+	public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MINUTES = 60;
+
+	private static final int DIGEST_BYTES = 32;
+
+	/* per-thread key for lookups, so that a hit allocates nothing */
+	private static final ThreadLocal<Probe> PROBE = ThreadLocal.withInitial(Probe::new);
+
+	private final int maximumSize;
+	private final long idleTimeoutNanos;
+	private final ConcurrentHashMap<Pair, Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public SharedKeyCache() {
+		this(DEFAULT_MAXIMUM_SIZE, DEFAULT_IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param maximumSize maximum number of shared keys kept (0 disables the cache)
+	 * @param idleTimeout time after which an unused shared key is dropped
+	 * @param unit unit of idleTimeout
+	 */
+	public SharedKeyCache(int maximumSize, long idleTimeout, TimeUnit unit) {
+		if (maximumSize < 0 || idleTimeout <= 0) {
+			throw new IllegalArgumentException("Invalid cache size or idle timeout");
+		}
+		this.maximumSize = maximumSize;
+		this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+	}
+
+	/**
+	 * Get the shared key between a private key and a peer's public key, computing it with the given
+	 * backend if it is not cached.
+	 *
+	 * @return the shared key; callers must not modify it
+	 */
+	public byte[] get(byte[] privateKey, byte[] publicKey, CryptoBackend backend) {
+		if (privateKey.length != NaCl.SECRETKEYBYTES || publicKey.length != NaCl.PUBLICKEYBYTES) {
+			throw new IllegalArgumentException("Wrong key length");
+		}
+
+		if (maximumSize == 0) {
+			misses.incrementAndGet();
+			return backend.beforenm(privateKey, publicKey);
+		}
+
+		long now = now();
+		Probe probe = PROBE.get();
+		Pair key;
+		try {
+			Pair lookup = probe.set(privateKey, publicKey);
+			Entry entry = entries.get(lookup);
+			if (entry != null) {
+				if (now - entry.lastAccess < idleTimeoutNanos) {
+					entry.lastAccess = now;
+					hits.incrementAndGet();
+					return entry.sharedKey;
+				}
+				if (entries.remove(lookup, entry)) {
+					evictions.incrementAndGet();
+				}
+			}
+			key = lookup.copy();
+		} finally {
+			probe.clear();
+		}
+
+		/* outside the map, so that other keys in the same bin are not blocked meanwhile */
+		misses.incrementAndGet();
+		Entry entry = new Entry(backend.beforenm(privateKey, publicKey), now);
+		Entry existing = entries.putIfAbsent(key, entry);
+		if (existing != null) {
+			entry = existing;
+			entry.lastAccess = now;
+		}
+
+		if (entries.size() > maximumSize) {
+			evict(now);
+		}
+		return entry.sharedKey;
+	}
+
+	/**
+	 * Get the shared key between a private key and a peer's public key only if it is cached, e.g. for
+	 * one-off broadcasts that should not displace the keys of regular peers.
+	 *
+	 * @return the shared key (callers must not modify it), or null if it is not cached
+	 */
+	public byte[] getIfPresent(byte[] privateKey, byte[] publicKey) {
+		Probe probe = PROBE.get();
+		Entry entry;
+		try {
+			entry = entries.get(probe.set(privateKey, publicKey));
+		} finally {
+			probe.clear();
+		}
+		long now = now();
+		if (entry == null || now - entry.lastAccess >= idleTimeoutNanos) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		entry.lastAccess = now;
+		hits.incrementAndGet();
+		return entry.sharedKey;
+	}
+
+	/**
+	 * Drop the shared key of one key pair.
+	 */
+	public void invalidate(byte[] privateKey, byte[] publicKey) {
+		Probe probe = PROBE.get();
+		try {
+			entries.remove(probe.set(privateKey, publicKey));
+		} finally {
+			probe.clear();
+		}
+	}
+
+	/**
+	 * Drop all shared keys with a peer, e.g. after its public key has changed or been revoked.
+	 */
+	public void invalidate(byte[] publicKey) {
+		entries.keySet().removeIf(p -> Arrays.equals(p.publicKey, publicKey));
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * @return the number of cached shared keys
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of lookups that found a cached shared key
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of lookups that had to compute the shared key
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of shared keys dropped because of size or idle time (not by invalidation)
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/* time source of the idle timeout; package-private so that tests can control it */
+	long now() {
+		return System.nanoTime();
+	}
+
+	private synchronized void evict(long now) {
+		if (entries.size() <= maximumSize) {
+			return;
+		}
+
+		/* drop idle entries first, then the least recently used ones down to 90% of the maximum */
+		List<Candidate> candidates = new ArrayList<>(entries.size());
+		for (Iterator<Map.Entry<Pair, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Pair, Entry> e = it.next();
+			long lastAccess = e.getValue().lastAccess;
+			if (now - lastAccess >= idleTimeoutNanos) {
+				it.remove();
+				evictions.incrementAndGet();
+			} else {
+				candidates.add(new Candidate(e.getKey(), e.getValue(), lastAccess));
+			}
+		}
+
+		int excess = entries.size() - maximumSize * 9 / 10;
+		if (excess <= 0) {
+			return;
+		}
+
+		/* sorted on the access times read above: lookups keep updating the entries meanwhile */
+		Collections.sort(candidates, Comparator.comparingLong(c -> c.lastAccess));
+		for (int i = 0; i < excess && i < candidates.size(); i++) {
+			Candidate c = candidates.get(i);
+			if (entries.remove(c.key, c.entry)) {
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static final class Pair {
+		private final byte[] privateKeyDigest;
+		private byte[] publicKey;
+		private int hash;
+
+		Pair(byte[] privateKeyDigest, byte[] publicKey, int hash) {
+			this.privateKeyDigest = privateKeyDigest;
+			this.publicKey = publicKey;
+			this.hash = hash;
+		}
+
+		/* lookups wrap the caller's public key; the cache keeps its own copy */
+		Pair copy() {
+			return new Pair(privateKeyDigest.clone(), publicKey.clone(), hash);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Pair)) {
+				return false;
+			}
+			Pair other = (Pair) o;
+			return hash == other.hash
+					&& Arrays.equals(publicKey, other.publicKey)
+					&& Arrays.equals(privateKeyDigest, other.privateKeyDigest);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/* lookup key of a thread, never stored in the map; cleared after each use */
+	private static final class Probe {
+		private final MessageDigest sha256;
+		private final Pair pair = new Pair(new byte[DIGEST_BYTES], null, 0);
+
+		Probe() {
+			try {
+				sha256 = MessageDigest.getInstance("SHA-256");
+			} catch (GeneralSecurityException e) {
+				/* every Java platform must support SHA-256 */
+				throw new IllegalStateException(e);
+			}
+		}
+
+		Pair set(byte[] privateKey, byte[] publicKey) {
+			sha256.update(privateKey);
+			try {
+				sha256.digest(pair.privateKeyDigest, 0, DIGEST_BYTES);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e);
+			}
+			pair.publicKey = publicKey;
+			pair.hash = 31 * Arrays.hashCode(pair.privateKeyDigest) + Arrays.hashCode(publicKey);
+			return pair;
+		}
+
+		void clear() {
+			Arrays.fill(pair.privateKeyDigest, (byte) 0);
+			pair.publicKey = null;
+			pair.hash = 0;
+		}
+	}
+
+	/* an entry considered for eviction, with the access time it had when the sweep started */
+	private static final class Candidate {
+		private final Pair key;
+		private final Entry entry;
+		private final long lastAccess;
+
+		Candidate(Pair key, Entry entry, long lastAccess) {
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private static final class Entry {
+		private final byte[] sharedKey;
+		private volatile long lastAccess;
+
+		Entry(byte[] sharedKey, long lastAccess) {
+			this.sharedKey = sharedKey;
+			this.lastAccess = lastAccess;
+		}
+	}
+}
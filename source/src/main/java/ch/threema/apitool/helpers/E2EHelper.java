@@ -26,6 +26,7 @@ package ch.threema.apitool.helpers;
 
 import ch.threema.apitool.APIConnector;
 import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.SealedBox;
 import ch.threema.apitool.exceptions.InvalidKeyException;
 import ch.threema.apitool.exceptions.MessageParseException;
 import ch.threema.apitool.exceptions.NotAllowedException;
@@ -98,9 +99,9 @@ public class E2EHelper {
 		if(publicKey == null) {
 			throw new Exception("invalid threema id");
 		}
-		EncryptResult res = CryptTool.encryptTextMessage(text, this.privateKey, publicKey);
+		SealedBox sealedBox = CryptTool.sealTextMessage(text, this.privateKey, publicKey);
 
-		return this.apiConnector.sendE2EMessage(threemaId, res.getNonce(), res.getResult());
+		return this.apiConnector.sendE2EMessage(threemaId, sealedBox);
 
 	}
 
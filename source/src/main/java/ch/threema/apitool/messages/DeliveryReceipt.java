@@ -26,6 +26,7 @@ package ch.threema.apitool.messages;
 
 import ch.threema.apitool.MessageId;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -37,11 +38,38 @@ public class DeliveryReceipt extends ThreemaMessage {
 	public static final int TYPE_CODE = 0x80;
 
 	private final Type receiptType;
-	private final List<MessageId> ackedMessageIds;
+	private volatile List<MessageId> ackedMessageIds;
+
+	/* packed message IDs, for receipts decoded as a view (ackedMessageIds is created on demand) */
+	private final byte[] data;
+	private final int offset;
+	private final int count;
 
 	public DeliveryReceipt(Type receiptType, List<MessageId> ackedMessageIds) {
 		this.receiptType = receiptType;
 		this.ackedMessageIds = ackedMessageIds;
+		this.data = null;
+		this.offset = 0;
+		this.count = 0;
+	}
+
+	/**
+	 * Create a receipt over packed message IDs without copying them. The data must not be changed
+	 * while the receipt is in use.
+	 *
+	 * @param receiptType the receipt type
+	 * @param data buffer that contains the message IDs, {@link MessageId#MESSAGE_ID_LEN} bytes each
+	 * @param offset position of the first message ID in data
+	 * @param count number of message IDs
+	 */
+	public DeliveryReceipt(Type receiptType, byte[] data, int offset, int count) {
+		if (offset < 0 || count < 0 || offset + count * MessageId.MESSAGE_ID_LEN > data.length)
+			throw new IllegalArgumentException("Bad message ID buffer length");
+
+		this.receiptType = receiptType;
+		this.data = data;
+		this.offset = offset;
+		this.count = count;
 	}
 
 	public Type getReceiptType() {
@@ -49,7 +77,38 @@ public class DeliveryReceipt extends ThreemaMessage {
 	}
 
 	public List<MessageId> getAckedMessageIds() {
-		return ackedMessageIds;
+		List<MessageId> ids = ackedMessageIds;
+		if (ids == null) {
+			ids = new ArrayList<MessageId>(count);
+			for (int i = 0; i < count; i++) {
+				ids.add(new MessageId(data, offset + i * MessageId.MESSAGE_ID_LEN));
+			}
+			ackedMessageIds = ids;
+		}
+		return ids;
+	}
+
+	/**
+	 * @return the number of acknowledged message IDs
+	 */
+	public int getAckedMessageCount() {
+		return data != null ? count : ackedMessageIds.size();
+	}
+
+	/**
+	 * Get an acknowledged message ID as a number (see {@link MessageId#toLong()}), without creating
+	 * MessageId objects for receipts decoded as a view.
+	 *
+	 * @param index index of the message ID, 0 to {@link #getAckedMessageCount()} - 1
+	 * @return the message ID
+	 */
+	public long getAckedMessageId(int index) {
+		if (data == null)
+			return ackedMessageIds.get(index).toLong();
+
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException();
+		return MessageId.toLong(data, offset + index * MessageId.MESSAGE_ID_LEN);
 	}
 
 	@Override
@@ -63,7 +122,7 @@ public class DeliveryReceipt extends ThreemaMessage {
 		sb.append(receiptType);
 		sb.append("): ");
 		int i = 0;
-		for (MessageId messageId : ackedMessageIds) {
+		for (MessageId messageId : getAckedMessageIds()) {
 			if (i != 0)
 				sb.append(", ");
 			sb.append(messageId);
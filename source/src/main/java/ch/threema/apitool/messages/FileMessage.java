@@ -24,25 +24,14 @@
 
 package ch.threema.apitool.messages;
 
-import ch.threema.apitool.DataUtils;
 import ch.threema.apitool.exceptions.BadMessageException;
-import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * A file message that can be sent/received with end-to-end encryption via Threema.
  */
 public class FileMessage extends ThreemaMessage {
-	private final static String KEY_BLOB_ID = "b";
-	private final static String KEY_THUMBNAIL_BLOB_ID = "t";
-	private final static String KEY_ENCRYPTION_KEY = "k";
-	private final static String KEY_MIME_TYPE = "m";
-	private final static String KEY_FILE_NAME = "n";
-	private final static String KEY_FILE_SIZE = "s";
-	private final static String KEY_TYPE = "i";
-
 	public static final int TYPE_CODE = 0x17;
 
 	private final byte[] blobId;
@@ -52,6 +41,12 @@ public class FileMessage extends ThreemaMessage {
 	private final int fileSize;
 	private final byte[] thumbnailBlobId;
 
+	/* undecoded JSON, for messages created by fromBytes (decoded is created on demand) */
+	private final byte[] json;
+	private final int jsonOffset;
+	private final int jsonLength;
+	private volatile FileMessage decoded;
+
 
 	public FileMessage(byte[] blobId, byte[] encryptionKey, String mimeType, String fileName, int fileSize, byte[] thumbnailBlobId) {
 		this.blobId = blobId;
@@ -60,30 +55,77 @@ public class FileMessage extends ThreemaMessage {
 		this.fileName = fileName;
 		this.fileSize = fileSize;
 		this.thumbnailBlobId = thumbnailBlobId;
+		this.json = null;
+		this.jsonOffset = 0;
+		this.jsonLength = 0;
+	}
+
+	private FileMessage(byte[] json, int offset, int length) {
+		this.blobId = null;
+		this.encryptionKey = null;
+		this.mimeType = null;
+		this.fileName = null;
+		this.fileSize = 0;
+		this.thumbnailBlobId = null;
+		this.json = json;
+		this.jsonOffset = offset;
+		this.jsonLength = length;
 	}
 
 	public byte[] getBlobId() {
-		return this.blobId;
+		return fields().blobId;
 	}
 
 	public byte[] getEncryptionKey() {
-		return this.encryptionKey;
+		return fields().encryptionKey;
 	}
 
 	public String getMimeType() {
-		return this.mimeType;
+		return fields().mimeType;
 	}
 
 	public String getFileName() {
-		return this.fileName;
+		return fields().fileName;
 	}
 
 	public int getFileSize() {
-		return this.fileSize;
+		return fields().fileSize;
 	}
 
 	public byte[] getThumbnailBlobId() {
-		return this.thumbnailBlobId;
+		return fields().thumbnailBlobId;
+	}
+
+	/**
+	 * Parse the fields of a message created by {@link #fromBytes} now, instead of on the first
+	 * access. Does nothing for other messages.
+	 *
+	 * @throws BadMessageException if the message is malformed
+	 */
+	public void parse() throws BadMessageException {
+		decode();
+	}
+
+	/* the message that holds the fields: this one, or the one decoded from the JSON */
+	private FileMessage decode() throws BadMessageException {
+		if (json == null)
+			return this;
+
+		FileMessage d = decoded;
+		if (d == null) {
+			/* decoding twice in a race gives equal messages, whose fields are final */
+			d = FileMessageCodec.decode(json, jsonOffset, jsonLength);
+			decoded = d;
+		}
+		return d;
+	}
+
+	private FileMessage fields() {
+		try {
+			return decode();
+		} catch (BadMessageException e) {
+			throw new IllegalStateException("Malformed file message", e);
+		}
 	}
 
 	@Override
@@ -93,67 +135,49 @@ public class FileMessage extends ThreemaMessage {
 
 	@Override
 	public String toString() {
-		return "file message " + this.fileName;
+		return "file message " + getFileName();
 	}
 
 	@Override
 	public byte[] getData() throws BadMessageException {
-		JSONObject o = new JSONObject();
-		try {
-			o.put(KEY_BLOB_ID, DataUtils.byteArrayToHexString(this.blobId));
-			o.put(KEY_THUMBNAIL_BLOB_ID, this.thumbnailBlobId != null ? DataUtils.byteArrayToHexString(this.thumbnailBlobId) : null);
-			o.put(KEY_ENCRYPTION_KEY, DataUtils.byteArrayToHexString(this.encryptionKey));
-			o.put(KEY_MIME_TYPE, this.mimeType);
-			o.put(KEY_FILE_NAME, this.fileName);
-			o.put(KEY_FILE_SIZE, this.fileSize);
-			o.put(KEY_TYPE, 0);
-		}
-		catch (Exception e) {
-			throw new BadMessageException();
-		}
+		FileMessage f = decode();
+		return FileMessageCodec.encode(f.blobId, f.thumbnailBlobId, f.encryptionKey, f.mimeType,
+				f.fileName, f.fileSize);
+	}
 
-		try {
-			return o.toString().getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			return null;
-		}
+	/**
+	 * Create a file message over its JSON encoding without parsing it. The fields are parsed on the
+	 * first access (or by {@link #parse()}), so routing a message by its type costs nothing; a
+	 * malformed message makes the getters throw IllegalStateException. The data must not be changed
+	 * until then.
+	 *
+	 * @param data buffer that contains the UTF-8 encoded JSON
+	 * @param offset position of the JSON in data
+	 * @param length length of the JSON in bytes
+	 * @return the file message
+	 */
+	public static FileMessage fromBytes(byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.length)
+			throw new IndexOutOfBoundsException();
+
+		return new FileMessage(data, offset, length);
+	}
 
+	/**
+	 * Parse a file message from its UTF-8 encoded JSON.
+	 *
+	 * @param data buffer that contains the UTF-8 encoded JSON
+	 * @param offset position of the JSON in data
+	 * @param length length of the JSON in bytes
+	 * @return the file message
+	 * @throws BadMessageException if the message is malformed
+	 */
+	public static FileMessage decode(byte[] data, int offset, int length) throws BadMessageException {
+		return FileMessageCodec.decode(data, offset, length);
 	}
 
 	public static FileMessage fromString(String json) throws BadMessageException {
-		try {
-			JSONObject o = new JSONObject(json);
-			byte[] encryptionKey = DataUtils.hexStringToByteArray(o.getString(KEY_ENCRYPTION_KEY));
-			String mimeType = o.getString(KEY_MIME_TYPE);
-			int fileSize = o.getInt(KEY_FILE_SIZE);
-			byte[] blobId = DataUtils.hexStringToByteArray(o.getString(KEY_BLOB_ID));
-
-			String fileName;
-			byte[] thumbnailBlobId = null;
-
-			//optional field
-			if(o.has(KEY_THUMBNAIL_BLOB_ID)) {
-				thumbnailBlobId = DataUtils.hexStringToByteArray(o.getString(KEY_THUMBNAIL_BLOB_ID));
-			}
-
-			if(o.has(KEY_FILE_NAME)) {
-				fileName = o.getString(KEY_FILE_NAME);
-			}
-			else {
-				fileName = "unnamed";
-			}
-
-			return new FileMessage(
-					blobId,
-					encryptionKey,
-					mimeType,
-					fileName,
-					fileSize,
-					thumbnailBlobId
-			);
-		}
-		catch (JSONException e) {
-			throw new BadMessageException();
-		}
+		byte[] data = json.getBytes(StandardCharsets.UTF_8);
+		return FileMessageCodec.decode(data, 0, data.length);
 	}
 }
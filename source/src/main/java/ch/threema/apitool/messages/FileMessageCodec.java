@@ -0,0 +1,597 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.DataUtils;
+import ch.threema.apitool.exceptions.BadMessageException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes the JSON encoding of file messages (keys b, t, k, m, n, s and i) directly as
+ * UTF-8 bytes, without building a JSON tree or intermediate hex strings. Unknown keys are skipped.
+ *
+ * Strings are escaped like org.json's JSONObject.quote, so each value is written byte for byte as
+ * the previous org.json based encoder wrote it (only the order of the keys differs).
+ */
+final class FileMessageCodec {
+	private static final char KEY_BLOB_ID = 'b';
+	private static final char KEY_THUMBNAIL_BLOB_ID = 't';
+	private static final char KEY_ENCRYPTION_KEY = 'k';
+	private static final char KEY_MIME_TYPE = 'm';
+	private static final char KEY_FILE_NAME = 'n';
+	private static final char KEY_FILE_SIZE = 's';
+	private static final char KEY_TYPE = 'i';
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	/* nesting limit when skipping the values of unknown keys */
+	private static final int MAX_DEPTH = 64;
+
+	private FileMessageCodec() {
+	}
+
+	/**
+	 * Encode a file message. Null strings and a null thumbnail blob ID are left out.
+	 *
+	 * @throws BadMessageException if the blob ID or encryption key is missing
+	 */
+	static byte[] encode(byte[] blobId, byte[] thumbnailBlobId, byte[] encryptionKey, String mimeType,
+	                     String fileName, int fileSize) throws BadMessageException {
+		if (blobId == null || encryptionKey == null)
+			throw new BadMessageException();
+
+		String size = Integer.toString(fileSize);
+
+		/* {"b":"..","t":"..","k":"..","m":"..","n":"..","s":..,"i":0} */
+		int length = 2 + 7 + blobId.length * 2 + 7 + encryptionKey.length * 2 + 5 + size.length() + 5;
+		if (thumbnailBlobId != null)
+			length += 7 + thumbnailBlobId.length * 2;
+		if (mimeType != null)
+			length += 7 + quotedLength(mimeType);
+		if (fileName != null)
+			length += 7 + quotedLength(fileName);
+
+		byte[] out = new byte[length];
+		int pos = 0;
+		out[pos++] = '{';
+		pos = putHex(out, pos, KEY_BLOB_ID, blobId);
+		if (thumbnailBlobId != null)
+			pos = putHex(out, pos, KEY_THUMBNAIL_BLOB_ID, thumbnailBlobId);
+		pos = putHex(out, pos, KEY_ENCRYPTION_KEY, encryptionKey);
+		if (mimeType != null)
+			pos = putString(out, pos, KEY_MIME_TYPE, mimeType);
+		if (fileName != null)
+			pos = putString(out, pos, KEY_FILE_NAME, fileName);
+		pos = putKey(out, pos, KEY_FILE_SIZE);
+		for (int i = 0; i < size.length(); i++)
+			out[pos++] = (byte) size.charAt(i);
+		out[pos++] = ',';
+		pos = putKey(out, pos, KEY_TYPE);
+		out[pos++] = '0';
+		out[pos++] = '}';
+
+		return out;
+	}
+
+	/**
+	 * Decode a file message. Keys other than b, t, k, m, n and s are skipped; a missing n gives
+	 * the name "unnamed", as does a null n (and a null t counts as no thumbnail).
+	 *
+	 * @param data buffer that contains the UTF-8 encoded JSON
+	 * @param offset position of the JSON in data
+	 * @param length length of the JSON in bytes
+	 * @throws BadMessageException if the JSON is malformed, or a required key is missing or has the wrong type
+	 */
+	static FileMessage decode(byte[] data, int offset, int length) throws BadMessageException {
+		return new Reader(data, offset, offset + length).readFileMessage();
+	}
+
+	private static int putKey(byte[] out, int pos, char key) {
+		out[pos++] = '"';
+		out[pos++] = (byte) key;
+		out[pos++] = '"';
+		out[pos++] = ':';
+		return pos;
+	}
+
+	private static int putHex(byte[] out, int pos, char key, byte[] value) {
+		pos = putKey(out, pos, key);
+		out[pos++] = '"';
+		for (byte b : value) {
+			out[pos++] = HEX[(b >>> 4) & 0x0f];
+			out[pos++] = HEX[b & 0x0f];
+		}
+		out[pos++] = '"';
+		out[pos++] = ',';
+		return pos;
+	}
+
+	/* runs of characters that need no escaping are written as UTF-8 by DataUtils */
+	private static int putString(byte[] out, int pos, char key, String value) {
+		pos = putKey(out, pos, key);
+		out[pos++] = '"';
+		int run = 0;
+		char previous = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (needsEscape(c, previous)) {
+				pos = DataUtils.encodeUtf8(value, run, i, out, pos);
+				pos = putEscape(out, pos, c);
+				run = i + 1;
+			}
+			previous = c;
+		}
+		pos = DataUtils.encodeUtf8(value, run, value.length(), out, pos);
+		out[pos++] = '"';
+		out[pos++] = ',';
+		return pos;
+	}
+
+	private static int putEscape(byte[] out, int pos, char c) {
+		out[pos++] = '\\';
+		switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				out[pos++] = (byte) c;
+				break;
+			case '\b': out[pos++] = 'b'; break;
+			case '\t': out[pos++] = 't'; break;
+			case '\n': out[pos++] = 'n'; break;
+			case '\f': out[pos++] = 'f'; break;
+			case '\r': out[pos++] = 'r'; break;
+			default:
+				out[pos++] = 'u';
+				out[pos++] = HEX[c >>> 12];
+				out[pos++] = HEX[(c >>> 8) & 0x0f];
+				out[pos++] = HEX[(c >>> 4) & 0x0f];
+				out[pos++] = HEX[c & 0x0f];
+		}
+		return pos;
+	}
+
+	/* length of a string as written by putString, without the quotes */
+	private static int quotedLength(String value) {
+		int length = 0;
+		int run = 0;
+		char previous = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (needsEscape(c, previous)) {
+				length += DataUtils.utf8Length(value, run, i) + (needsUnicodeEscape(c) ? 6 : 2);
+				run = i + 1;
+			}
+			previous = c;
+		}
+		return length + DataUtils.utf8Length(value, run, value.length());
+	}
+
+	/* the characters that JSONObject.quote escapes; none of them is a surrogate */
+	private static boolean needsEscape(char c, char previous) {
+		switch (c) {
+			case '"':
+			case '\\':
+			case '\b':
+			case '\t':
+			case '\n':
+			case '\f':
+			case '\r':
+				return true;
+			case '/':
+				return previous == '<';
+			default:
+				return needsUnicodeEscape(c);
+		}
+	}
+
+	/* the characters that JSONObject.quote writes as \\uXXXX */
+	private static boolean needsUnicodeEscape(char c) {
+		return c < 0x20 || (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100);
+	}
+
+	private static final class Reader {
+		private final byte[] data;
+		private final int end;
+		private int pos;
+
+		/* start and end of the last string read by readRawString, and whether it contains escapes */
+		private int stringStart;
+		private int stringEnd;
+		private boolean escaped;
+
+		Reader(byte[] data, int offset, int end) {
+			if (offset < 0 || end < offset || end > data.length)
+				throw new IndexOutOfBoundsException();
+
+			this.data = data;
+			this.pos = offset;
+			this.end = end;
+		}
+
+		FileMessage readFileMessage() throws BadMessageException {
+			byte[] blobId = null;
+			byte[] thumbnailBlobId = null;
+			byte[] encryptionKey = null;
+			String mimeType = null;
+			String fileName = null;
+			boolean hasFileSize = false;
+			int fileSize = 0;
+			int seen = 0;
+
+			expect('{');
+			if (peek() == '}') {
+				pos++;
+			} else {
+				while (true) {
+					expect('"');
+					readRawString();
+					int key = -1;
+					if (stringEnd - stringStart == 1 && !escaped)
+						key = data[stringStart];
+					else if (escaped)
+						key = singleCharKey(decodeString());
+					expect(':');
+
+					int bit = key >= 'a' && key <= 'z' ? 1 << (key - 'a') : 0;
+					switch (key) {
+						case KEY_BLOB_ID:
+						case KEY_THUMBNAIL_BLOB_ID:
+						case KEY_ENCRYPTION_KEY:
+						case KEY_MIME_TYPE:
+						case KEY_FILE_NAME:
+						case KEY_FILE_SIZE:
+							/* JSONObject rejects duplicate keys, and so do we for the ones we read */
+							if ((seen & bit) != 0)
+								throw new BadMessageException();
+							seen |= bit;
+							break;
+						default:
+							break;
+					}
+
+					switch (key) {
+						case KEY_BLOB_ID:
+							blobId = readHex(false);
+							break;
+						case KEY_THUMBNAIL_BLOB_ID:
+							thumbnailBlobId = readHex(true);
+							break;
+						case KEY_ENCRYPTION_KEY:
+							encryptionKey = readHex(false);
+							break;
+						case KEY_MIME_TYPE:
+							mimeType = readString(false);
+							break;
+						case KEY_FILE_NAME:
+							fileName = readString(true);
+							break;
+						case KEY_FILE_SIZE:
+							fileSize = readInt();
+							hasFileSize = true;
+							break;
+						default:
+							skipValue(0);
+					}
+
+					byte c = next();
+					if (c == '}')
+						break;
+					if (c != ',')
+						throw new BadMessageException();
+				}
+			}
+
+			if (blobId == null || encryptionKey == null || mimeType == null || !hasFileSize)
+				throw new BadMessageException();
+
+			return new FileMessage(blobId, encryptionKey, mimeType, fileName != null ? fileName : "unnamed",
+					fileSize, thumbnailBlobId);
+		}
+
+		private int singleCharKey(String key) {
+			return key.length() == 1 ? key.charAt(0) : -1;
+		}
+
+		/* next byte that is not whitespace, without consuming it */
+		private byte peek() throws BadMessageException {
+			while (pos < end) {
+				byte c = data[pos];
+				if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+					return c;
+				pos++;
+			}
+			throw new BadMessageException();
+		}
+
+		private byte next() throws BadMessageException {
+			byte c = peek();
+			pos++;
+			return c;
+		}
+
+		private void expect(char c) throws BadMessageException {
+			if (next() != c)
+				throw new BadMessageException();
+		}
+
+		/* after the opening quote: find the closing quote */
+		private void readRawString() throws BadMessageException {
+			stringStart = pos;
+			escaped = false;
+			while (pos < end) {
+				byte c = data[pos++];
+				if (c == '"') {
+					stringEnd = pos - 1;
+					return;
+				}
+				if (c == '\\') {
+					escaped = true;
+					pos++;
+				}
+			}
+			throw new BadMessageException();
+		}
+
+		/* a null value counts as absent if nullable, otherwise the value must be a string */
+		private boolean readStringOrNull(boolean nullable) throws BadMessageException {
+			byte c = next();
+			if (c == '"') {
+				readRawString();
+				return true;
+			}
+			if (nullable && c == 'n' && literal("ull"))
+				return false;
+			throw new BadMessageException();
+		}
+
+		private String readString(boolean nullable) throws BadMessageException {
+			return readStringOrNull(nullable) ? decodeString() : null;
+		}
+
+		/* hex digits go straight into the array; other characters are ignored like in DataUtils */
+		private byte[] readHex(boolean nullable) throws BadMessageException {
+			if (!readStringOrNull(nullable))
+				return null;
+
+			if (escaped) {
+				String hex = decodeString().replaceAll("[^0-9a-fA-F]", "");
+				if ((hex.length() & 1) != 0)
+					throw new BadMessageException();
+				byte[] out = new byte[hex.length() / 2];
+				for (int i = 0; i < out.length; i++)
+					out[i] = (byte) ((Character.digit(hex.charAt(2 * i), 16) << 4) | Character.digit(hex.charAt(2 * i + 1), 16));
+				return out;
+			}
+
+			int digits = 0;
+			for (int i = stringStart; i < stringEnd; i++) {
+				if (hexValue(data[i]) >= 0)
+					digits++;
+			}
+			if ((digits & 1) != 0)
+				throw new BadMessageException();
+
+			byte[] out = new byte[digits / 2];
+			int high = -1;
+			int n = 0;
+			for (int i = stringStart; i < stringEnd; i++) {
+				int v = hexValue(data[i]);
+				if (v < 0)
+					continue;
+				if (high < 0) {
+					high = v;
+				} else {
+					out[n++] = (byte) ((high << 4) | v);
+					high = -1;
+				}
+			}
+			return out;
+		}
+
+		private String decodeString() throws BadMessageException {
+			if (!escaped)
+				return new String(data, stringStart, stringEnd - stringStart, StandardCharsets.UTF_8);
+
+			StringBuilder sb = new StringBuilder(stringEnd - stringStart);
+			int from = stringStart;
+			int i = stringStart;
+			while (i < stringEnd) {
+				if (data[i] != '\\') {
+					i++;
+					continue;
+				}
+
+				sb.append(new String(data, from, i - from, StandardCharsets.UTF_8));
+				if (i + 1 >= stringEnd)
+					throw new BadMessageException();
+				byte e = data[i + 1];
+				i += 2;
+				switch (e) {
+					case 'b': sb.append('\b'); break;
+					case 't': sb.append('\t'); break;
+					case 'n': sb.append('\n'); break;
+					case 'f': sb.append('\f'); break;
+					case 'r': sb.append('\r'); break;
+					case 'u':
+						if (i + 4 > stringEnd)
+							throw new BadMessageException();
+						int u = 0;
+						for (int j = 0; j < 4; j++) {
+							int v = hexValue(data[i + j]);
+							if (v < 0)
+								throw new BadMessageException();
+							u = (u << 4) | v;
+						}
+						sb.append((char) u);
+						i += 4;
+						break;
+					case '"':
+					case '\\':
+					case '/':
+					case '\'':
+						sb.append((char) e);
+						break;
+					default:
+						throw new BadMessageException();
+				}
+				from = i;
+			}
+			sb.append(new String(data, from, stringEnd - from, StandardCharsets.UTF_8));
+			return sb.toString();
+		}
+
+		/* a number (truncated to int like JSONObject.getInt) or a string holding an int */
+		private int readInt() throws BadMessageException {
+			byte c = peek();
+			if (c == '"') {
+				pos++;
+				readRawString();
+				try {
+					return Integer.parseInt(decodeString());
+				} catch (NumberFormatException e) {
+					throw new BadMessageException();
+				}
+			}
+
+			int start = pos;
+			boolean integer = true;
+			while (pos < end) {
+				c = data[pos];
+				if (c == '.' || c == 'e' || c == 'E' || c == '+')
+					integer = false;
+				else if (c != '-' && (c < '0' || c > '9'))
+					break;
+				pos++;
+			}
+
+			int length = pos - start;
+			if (length == 0)
+				throw new BadMessageException();
+
+			if (integer && length <= 18) {
+				boolean negative = data[start] == '-';
+				int i = negative ? start + 1 : start;
+				if (i == pos)
+					throw new BadMessageException();
+				long value = 0;
+				for (; i < pos; i++) {
+					if (data[i] == '-')
+						throw new BadMessageException();
+					value = value * 10 + (data[i] - '0');
+				}
+				return (int) (negative ? -value : value);
+			}
+
+			try {
+				return (int) Double.parseDouble(new String(data, start, length, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				throw new BadMessageException();
+			}
+		}
+
+		private boolean literal(String rest) {
+			if (end - pos < rest.length())
+				return false;
+			for (int i = 0; i < rest.length(); i++) {
+				if (data[pos + i] != rest.charAt(i))
+					return false;
+			}
+			pos += rest.length();
+			return true;
+		}
+
+		private void skipValue(int depth) throws BadMessageException {
+			if (depth > MAX_DEPTH)
+				throw new BadMessageException();
+
+			byte c = next();
+			switch (c) {
+				case '"':
+					readRawString();
+					return;
+				case '{':
+					if (peek() == '}') {
+						pos++;
+						return;
+					}
+					while (true) {
+						expect('"');
+						readRawString();
+						expect(':');
+						skipValue(depth + 1);
+						c = next();
+						if (c == '}')
+							return;
+						if (c != ',')
+							throw new BadMessageException();
+					}
+				case '[':
+					if (peek() == ']') {
+						pos++;
+						return;
+					}
+					while (true) {
+						skipValue(depth + 1);
+						c = next();
+						if (c == ']')
+							return;
+						if (c != ',')
+							throw new BadMessageException();
+					}
+				case 't':
+					if (literal("rue"))
+						return;
+					break;
+				case 'f':
+					if (literal("alse"))
+						return;
+					break;
+				case 'n':
+					if (literal("ull"))
+						return;
+					break;
+				default:
+					if (c == '-' || (c >= '0' && c <= '9')) {
+						while (pos < end && ((data[pos] >= '0' && data[pos] <= '9') || data[pos] == '.'
+								|| data[pos] == 'e' || data[pos] == 'E' || data[pos] == '+' || data[pos] == '-'))
+							pos++;
+						return;
+					}
+			}
+			throw new BadMessageException();
+		}
+
+		private static int hexValue(byte c) {
+			if (c >= '0' && c <= '9')
+				return c - '0';
+			if (c >= 'a' && c <= 'f')
+				return c - 'a' + 10;
+			if (c >= 'A' && c <= 'F')
+				return c - 'A' + 10;
+			return -1;
+		}
+	}
+}
@@ -33,13 +33,28 @@ public class TextMessage extends ThreemaMessage {
 
 	public static final int TYPE_CODE = 0x01;
 
-	private final String text;
+	private final CharSequence text;
 
 	public TextMessage(String text) {
 		this.text = text;
 	}
 
+	/**
+	 * @param text the text, e.g. a {@link Utf8Text} view of a decrypted message
+	 */
+	public TextMessage(CharSequence text) {
+		this.text = text;
+	}
+
 	public String getText() {
+		return text.toString();
+	}
+
+	/**
+	 * @return the text without converting it to a String (for messages decoded with
+	 *         {@code CryptTool.decryptMessageView}, a {@link Utf8Text} over the decrypted data)
+	 */
+	public CharSequence getCharSequence() {
 		return text;
 	}
 
@@ -50,13 +65,20 @@ public class TextMessage extends ThreemaMessage {
 
 	@Override
 	public String toString() {
-		return text;
+		return text.toString();
 	}
 
 	@Override
 	public byte[] getData() {
+		if (text instanceof Utf8Text) {
+			Utf8Text utf8 = (Utf8Text) text;
+			byte[] data = new byte[utf8.byteLength()];
+			utf8.getBytes(data, 0);
+			return data;
+		}
+
 		try {
-			return text.getBytes("UTF-8");
+			return text.toString().getBytes("UTF-8");
 		} catch (UnsupportedEncodingException e) {
 			return null;
 		}
@@ -0,0 +1,123 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 text that is decoded from its bytes only when it is first needed. Pure ASCII text (the
+ * common case for routing keywords and bot commands) is never decoded at all: length, charAt and
+ * subSequence read the bytes directly.
+ *
+ * The bytes are not copied, so they must not be changed while the text is in use.
+ */
+public final class Utf8Text implements CharSequence {
+	private static final byte UNKNOWN = 0, ASCII = 1, NON_ASCII = 2;
+
+	private final byte[] data;
+	private final int offset;
+	private final int length;
+	private byte kind;
+	private String decoded;
+
+	public Utf8Text(byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.length)
+			throw new IndexOutOfBoundsException();
+
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * @return the length of the text in UTF-8 bytes (available without decoding)
+	 */
+	public int byteLength() {
+		return length;
+	}
+
+	/**
+	 * Copy the UTF-8 bytes of the text.
+	 *
+	 * @param dest where the bytes are written
+	 * @param destOffset position of the first byte in dest
+	 */
+	public void getBytes(byte[] dest, int destOffset) {
+		System.arraycopy(data, offset, dest, destOffset, length);
+	}
+
+	/**
+	 * @return true if the text consists of ASCII characters only
+	 */
+	public boolean isAscii() {
+		if (kind == UNKNOWN) {
+			byte k = ASCII;
+			for (int i = offset, end = offset + length; i < end; i++) {
+				if (data[i] < 0) {
+					k = NON_ASCII;
+					break;
+				}
+			}
+			kind = k;
+		}
+		return kind == ASCII;
+	}
+
+	@Override
+	public int length() {
+		return isAscii() ? length : toString().length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (isAscii()) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException();
+			return (char) data[offset + index];
+		}
+		return toString().charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (isAscii()) {
+			if (start < 0 || end > length || start > end)
+				throw new IndexOutOfBoundsException();
+			return new Utf8Text(data, offset + start, end - start);
+		}
+		return toString().subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		/* a race only decodes twice; String is safe to publish without synchronization */
+		String s = decoded;
+		if (s == null) {
+			s = new String(data, offset, length, isAscii() ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+			decoded = s;
+		}
+		return s;
+	}
+}
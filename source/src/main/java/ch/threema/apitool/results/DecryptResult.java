@@ -0,0 +1,71 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.results;
+
+import ch.threema.apitool.IncomingBox;
+import ch.threema.apitool.messages.ThreemaMessage;
+
+/**
+ * Result of decrypting one box of a batch: either the message or the reason it could not be decrypted
+ */
+public class DecryptResult {
+	private final IncomingBox box;
+	private final ThreemaMessage message;
+	private final Exception error;
+
+	public DecryptResult(IncomingBox box, ThreemaMessage message, Exception error) {
+		this.box = box;
+		this.message = message;
+		this.error = error;
+	}
+
+	/**
+	 * @return the box that was decrypted
+	 */
+	public IncomingBox getBox() {
+		return this.box;
+	}
+
+	/**
+	 * @return whether the box was decrypted and parsed
+	 */
+	public boolean isSuccess() {
+		return this.error == null;
+	}
+
+	/**
+	 * @return the decrypted message, or null if decryption failed
+	 */
+	public ThreemaMessage getMessage() {
+		return this.message;
+	}
+
+	/**
+	 * @return why decryption failed (usually a {@link ch.threema.apitool.exceptions.MessageParseException}), or null
+	 */
+	public Exception getError() {
+		return this.error;
+	}
+}
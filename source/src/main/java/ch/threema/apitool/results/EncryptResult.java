@@ -31,15 +31,27 @@ public class EncryptResult {
 	private final byte[] result;
 	private final byte[] secret;
 	private final byte[] nonce;
+	private final int size;
 
 	public EncryptResult(byte[] result, byte[] secret, byte[] nonce) {
 		this.result = result;
 		this.secret = secret;
 		this.nonce = nonce;
+		this.size = result.length;
 	}
 
 	/**
-	 * @return the encrypted data
+	 * Result of an encryption that was written to a channel rather than returned.
+	 */
+	public EncryptResult(int size, byte[] secret, byte[] nonce) {
+		this.result = null;
+		this.secret = secret;
+		this.nonce = nonce;
+		this.size = size;
+	}
+
+	/**
+	 * @return the encrypted data, or null if it was written to a channel
 	 */
 	public byte[] getResult() {
 		return this.result;
@@ -49,7 +61,7 @@ public class EncryptResult {
 	 * @return the size (in bytes) of the encrypted data
 	 */
 	public int getSize() {
-		return this.result.length;
+		return this.size;
 	}
 
 	/**
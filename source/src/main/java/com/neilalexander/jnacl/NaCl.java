@@ -27,9 +27,15 @@
 
 package com.neilalexander.jnacl;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Formatter;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.neilalexander.jnacl.crypto.*;
 
@@ -45,6 +51,28 @@ public class NaCl
     public static final int SYMMKEYBYTES = 32;
     public static final int STREAMKEYBYTES = 32;
 
+    /* recipients per fork/join task in precomputeBatch; each task shares one field inversion */
+    private static final int BATCHCHUNK = 64;
+
+    /* symmetric encryption of data of at least two chunks is spread over the fork/join pool */
+    private static final int PARALLELCHUNK = 1024 * 1024;
+
+    /* per-thread buffers of the ByteBuffer operations; declared before the self test, which uses them */
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /* per-thread generator for genkeypair; creating a SecureRandom per key pair is slow */
+    private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
 	private final byte[] precomputed = new byte[BEFORENMBYTES];
 
     /* Perform self test before anything else */
@@ -63,11 +91,79 @@ public class NaCl
 		curve25519xsalsa20poly1305.crypto_box_beforenm(this.precomputed, publickey, privatekey);
 	}
 	
+    private NaCl(byte[] precomputed) {
+        System.arraycopy(precomputed, 0, this.precomputed, 0, BEFORENMBYTES);
+    }
+
 	public NaCl(String privatekey, String publickey)
 	{			
 		this(getBinary(privatekey), getBinary(publickey));
 	}
 	
+    /**
+     * Precompute the shared keys between one private key and many public keys, e.g. before sending
+     * the same message to a large number of recipients. Equivalent to calling
+     * {@link #NaCl(byte[], byte[])} for every public key, but the recipients are processed in chunks
+     * that share one field inversion, and the chunks run in parallel on the common fork/join pool.
+     *
+     * @param privatekey private key of the sender
+     * @param publickeys public keys of the recipients
+     * @return one NaCl instance per public key, in the same order
+     */
+    public static List<NaCl> precomputeBatch(byte[] privatekey, List<byte[]> publickeys) {
+        if (privatekey.length != SECRETKEYBYTES)
+            throw new Error("Invalid private key length");
+
+        final byte[][] pk = publickeys.toArray(new byte[publickeys.size()][]);
+        for (byte[] publickey : pk) {
+            if (publickey.length != PUBLICKEYBYTES)
+                throw new Error("Invalid public key length");
+        }
+
+        final byte[][] k = new byte[pk.length][BEFORENMBYTES];
+        if (pk.length <= BATCHCHUNK)
+            curve25519xsalsa20poly1305.crypto_box_beforenm_batch(k, pk, privatekey, 0, pk.length);
+        else
+            ForkJoinPool.commonPool().invoke(new BeforenmTask(k, pk, privatekey, 0, pk.length));
+
+        List<NaCl> result = new ArrayList<NaCl>(pk.length);
+        for (byte[] precomputed : k)
+            result.add(new NaCl(precomputed));
+
+        return Collections.unmodifiableList(result);
+    }
+
+    private static class BeforenmTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[][] k;
+        private final byte[][] pk;
+        private final byte[] sk;
+        private final int offset;
+        private final int count;
+
+        BeforenmTask(byte[][] k, byte[][] pk, byte[] sk, int offset, int count) {
+            this.k = k;
+            this.pk = pk;
+            this.sk = sk;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count <= BATCHCHUNK) {
+                curve25519xsalsa20poly1305.crypto_box_beforenm_batch(k, pk, sk, offset, count);
+                return;
+            }
+
+            /* split on a chunk boundary so that every leaf but the last is a full chunk */
+            int half = ((count / BATCHCHUNK + 1) / 2) * BATCHCHUNK;
+            invokeAll(new BeforenmTask(k, pk, sk, offset, half),
+                    new BeforenmTask(k, pk, sk, offset + half, count - half));
+        }
+    }
+
 	public byte[] encrypt(byte[] input, byte[] nonce)
 	{
 		return encrypt(input, input.length, nonce);
@@ -75,14 +171,27 @@ public class NaCl
 
 	public byte[] encrypt(byte[] input, int inputlength, byte[] nonce)
 	{
-        if (nonce.length != NONCEBYTES)
-            throw new Error("Invalid nonce length");
-
         byte[] output = new byte[inputlength + BOXOVERHEAD];
-		curve25519xsalsa20poly1305.crypto_box_afternm_nopad(output, 0, input, 0, input.length, nonce, this.precomputed);
+        encrypt(ByteBuffer.wrap(input, 0, inputlength), ByteBuffer.wrap(output), nonce);
 
 		return output;
 	}
+
+    /**
+     * Buffer version of {@link #encrypt(byte[], byte[])}: encrypts the remaining bytes of input and
+     * writes the box (input length + {@link #BOXOVERHEAD} bytes) to output at its position. Both
+     * buffers may be heap or direct buffers; the positions of both are advanced, and a call allocates
+     * nothing. Input and output may be distinct buffer objects over the same memory (in-place
+     * operation) if output starts {@link #BOXOVERHEAD} bytes before input.
+     *
+     * @return the number of bytes written
+     */
+    public int encrypt(ByteBuffer input, ByteBuffer output, byte[] nonce) {
+        if (nonce.length != NONCEBYTES)
+            throw new Error("Invalid nonce length");
+
+        return seal(input, output, nonce, this.precomputed, false);
+    }
 	
 	public byte[] decrypt(byte[] input, byte[] nonce)
 	{
@@ -91,27 +200,38 @@ public class NaCl
 	
 	public byte[] decrypt(byte[] input, int inputlength, byte[] nonce)
 	{
-        if (nonce.length != NONCEBYTES)
-            throw new Error("Invalid nonce length");
-
         if (inputlength < BOXOVERHEAD)
             return null;
 
         byte[] output = new byte[inputlength - BOXOVERHEAD];
-		if (curve25519xsalsa20poly1305.crypto_box_open_afternm_nopad(output, 0, input, 0, input.length, nonce, this.precomputed) != 0)
+        if (decrypt(ByteBuffer.wrap(input, 0, inputlength), ByteBuffer.wrap(output), nonce) < 0)
 			return null;
 		
 		return output;
 	}
 
+    /**
+     * Buffer version of {@link #decrypt(byte[], byte[])}: authenticates the box in the remaining bytes
+     * of input and, if successful, writes the plaintext (input length - {@link #BOXOVERHEAD} bytes) to
+     * output at its position and advances the positions of both buffers. Nothing is written and the
+     * positions are left unchanged if authentication fails. A call allocates nothing. Input and output
+     * may be distinct buffer objects over the same memory if output starts at or before input.
+     *
+     * @return the number of bytes written, or -1 if authentication failed
+     */
+    public int decrypt(ByteBuffer input, ByteBuffer output, byte[] nonce) {
+        if (nonce.length != NONCEBYTES)
+            throw new Error("Invalid nonce length");
+
+        return open(input, output, nonce, this.precomputed, false);
+    }
+
     public static void genkeypair(byte[] publickey, byte[] privatekey) {
         genkeypair(publickey, privatekey, null);
     }
 	
 	public static void genkeypair(byte[] publickey, byte[] privatekey, byte[] seed) {
-		SecureRandom random = new SecureRandom();
-		
-		random.nextBytes(privatekey);
+		RANDOM.get().nextBytes(privatekey);
 
         if (seed != null) {
             if (seed.length != SECRETKEYBYTES)
@@ -134,16 +254,26 @@ public class NaCl
     }
 
     public static byte[] symmetricEncryptData(byte[] input, byte[] key, byte[] nonce) {
+        byte[] output = new byte[input.length + BOXOVERHEAD];
+        symmetricEncryptData(ByteBuffer.wrap(input), ByteBuffer.wrap(output), key, nonce);
+
+        return output;
+    }
+
+    /**
+     * Buffer version of {@link #symmetricEncryptData(byte[], byte[], byte[])}, with the same buffer
+     * handling as {@link #encrypt(ByteBuffer, ByteBuffer, byte[])}.
+     *
+     * @return the number of bytes written
+     */
+    public static int symmetricEncryptData(ByteBuffer input, ByteBuffer output, byte[] key, byte[] nonce) {
         if (key.length != SYMMKEYBYTES)
             throw new Error("Invalid symmetric key length");
 
         if (nonce.length != NONCEBYTES)
             throw new Error("Invalid nonce length");
 
-        byte[] output = new byte[input.length + BOXOVERHEAD];
-        xsalsa20poly1305.crypto_secretbox_nopad(output, 0, input, 0, input.length, nonce, key);
-
-        return output;
+        return seal(input, output, nonce, key, true);
     }
 
     /**
@@ -157,31 +287,55 @@ public class NaCl
      * @param nonce encryption nonce
      */
     public static void symmetricEncryptDataInplace(byte[] io, byte[] key, byte[] nonce) {
+        if (io.length < BOXOVERHEAD)
+            throw new Error("Invalid I/O length");
+
+        symmetricEncryptDataInplace(io, 0, io.length, key, nonce);
+    }
 
+    /**
+     * Version of {@link #symmetricEncryptDataInplace(byte[], byte[], byte[])} for a part of an array: the
+     * box takes up length bytes from offset, and the input data begins at offset + {@link #BOXOVERHEAD}.
+     * Allocates nothing.
+     */
+    public static void symmetricEncryptDataInplace(byte[] io, int offset, int length, byte[] key, byte[] nonce) {
         if (key.length != SYMMKEYBYTES)
             throw new Error("Invalid symmetric key length");
 
         if (nonce.length != NONCEBYTES)
             throw new Error("Invalid nonce length");
 
-        if (io.length < BOXOVERHEAD)
+        if (length < BOXOVERHEAD || offset < 0 || offset + length > io.length)
             throw new Error("Invalid I/O length");
 
-        xsalsa20poly1305.crypto_secretbox_nopad(io, 0, io, BOXOVERHEAD, io.length - BOXOVERHEAD, nonce, key);
+        seal(io, offset, io, offset + BOXOVERHEAD, length - BOXOVERHEAD, nonce, key, true);
     }
 
     public static byte[] symmetricDecryptData(byte[] input, byte[] key, byte[] nonce) {
+        if (input.length < BOXOVERHEAD)
+            return null;
+
+        byte[] output = new byte[input.length - BOXOVERHEAD];
+        if (symmetricDecryptData(ByteBuffer.wrap(input), ByteBuffer.wrap(output), key, nonce) < 0)
+            return null;
+
+        return output;
+    }
+
+    /**
+     * Buffer version of {@link #symmetricDecryptData(byte[], byte[], byte[])}, with the same buffer
+     * handling as {@link #decrypt(ByteBuffer, ByteBuffer, byte[])}.
+     *
+     * @return the number of bytes written, or -1 if authentication failed
+     */
+    public static int symmetricDecryptData(ByteBuffer input, ByteBuffer output, byte[] key, byte[] nonce) {
         if (key.length != SYMMKEYBYTES)
             throw new Error("Invalid symmetric key length");
 
         if (nonce.length != NONCEBYTES)
             throw new Error("Invalid nonce length");
 
-        byte[] output = new byte[input.length - BOXOVERHEAD];
-        if (xsalsa20poly1305.crypto_secretbox_open_nopad(output, 0, input, 0, input.length, nonce, key) != 0)
-            return null;
-
-        return output;
+        return open(input, output, nonce, key, true);
     }
 
     /**
@@ -195,16 +349,10 @@ public class NaCl
      * @return decryption successful true/false
      */
     public static boolean symmetricDecryptDataInplace(byte[] io, byte[] key, byte[] nonce) {
-        if (key.length != SYMMKEYBYTES)
-            throw new Error("Invalid symmetric key length");
-
-        if (nonce.length != NONCEBYTES)
-            throw new Error("Invalid nonce length");
-
         if (io.length < BOXOVERHEAD)
             throw new Error("Invalid I/O length");
 
-        if (xsalsa20poly1305.crypto_secretbox_open_nopad(io, 0, io, 0, io.length, nonce, key) != 0)
+        if (symmetricDecryptData(ByteBuffer.wrap(io), ByteBuffer.wrap(io), key, nonce) < 0)
             return false;
 
         /* zeroize last bytes */
@@ -214,6 +362,145 @@ public class NaCl
         return true;
     }
 
+    private static boolean useParallel(int length) {
+        return length >= 2 * PARALLELCHUNK && ForkJoinPool.getCommonPoolParallelism() > 1;
+    }
+
+    /*
+     * Secretbox over buffers. Array-backed buffers are processed directly on their arrays; anything
+     * else (direct or read-only buffers) goes through the per-thread scratch array, one chunk at a
+     * time. Large array-backed messages may use the parallel engine.
+     */
+    private static int seal(ByteBuffer input, ByteBuffer output, byte[] nonce, byte[] key, boolean parallel) {
+        int len = input.remaining();
+        if (output.remaining() < len + BOXOVERHEAD)
+            throw new Error("Output buffer too small");
+
+        int outpos = output.position();
+        if (input.hasArray() && output.hasArray()) {
+            seal(output.array(), output.arrayOffset() + outpos, input.array(), input.arrayOffset() + input.position(),
+                    len, nonce, key, parallel);
+
+            input.position(input.limit());
+            output.position(outpos + BOXOVERHEAD + len);
+            return len + BOXOVERHEAD;
+        }
+
+        Scratch scratch = SCRATCH.get();
+        xsalsa20.crypto_stream_xor_at(scratch.c0, null, 0, null, 0, 0, nonce, key, 32);
+
+        byte[] buf = scratch.buf;
+        scratch.mac.reset(scratch.c0);
+        output.position(outpos + BOXOVERHEAD);
+
+        for (int pos = 0; pos < len; ) {
+            int n = Math.min(buf.length, len - pos);
+            input.get(buf, 0, n);
+            xsalsa20.crypto_stream_xor_at(null, buf, 0, buf, 0, n, nonce, key, 32 + pos);
+            scratch.mac.update(buf, 0, n);
+            output.put(buf, 0, n);
+            pos += n;
+        }
+
+        scratch.mac.finish(scratch.tag, 0);
+        int end = output.position();
+        output.position(outpos);
+        output.put(scratch.tag);
+        output.position(end);
+        return len + BOXOVERHEAD;
+    }
+
+    private static void seal(byte[] c, int coffset, byte[] m, int moffset, int len, byte[] nonce, byte[] key, boolean parallel) {
+        if (parallel && useParallel(len)) {
+            xsalsa20poly1305.crypto_secretbox_nopad_parallel(c, coffset, m, moffset, len, nonce, key,
+                    ForkJoinPool.commonPool(), PARALLELCHUNK);
+            return;
+        }
+
+        Scratch scratch = SCRATCH.get();
+        xsalsa20.crypto_stream_xor_at(scratch.c0, null, 0, null, 0, 0, nonce, key, 32);
+        xsalsa20.crypto_stream_xor_at(null, c, coffset + BOXOVERHEAD, m, moffset, len, nonce, key, 32);
+        scratch.mac.reset(scratch.c0);
+        scratch.mac.update(c, coffset + BOXOVERHEAD, len);
+        scratch.mac.finish(c, coffset);
+    }
+
+    private static int open(ByteBuffer input, ByteBuffer output, byte[] nonce, byte[] key, boolean parallel) {
+        int len = input.remaining() - BOXOVERHEAD;
+        if (len < 0)
+            return -1;
+
+        if (output.remaining() < len)
+            throw new Error("Output buffer too small");
+
+        int inpos = input.position();
+        Scratch scratch = SCRATCH.get();
+        xsalsa20.crypto_stream_xor_at(scratch.c0, null, 0, null, 0, 0, nonce, key, 32);
+
+        if (input.hasArray() && output.hasArray()) {
+            byte[] c = input.array();
+            int coffset = input.arrayOffset() + inpos;
+            byte[] m = output.array();
+            int moffset = output.arrayOffset() + output.position();
+
+            if (parallel && useParallel(len)) {
+                if (xsalsa20poly1305.crypto_secretbox_open_nopad_parallel(m, moffset, c, coffset, len + BOXOVERHEAD,
+                        nonce, key, ForkJoinPool.commonPool(), PARALLELCHUNK) != 0)
+                    return -1;
+            } else {
+                scratch.mac.reset(scratch.c0);
+                scratch.mac.update(c, coffset + BOXOVERHEAD, len);
+                scratch.mac.finish(scratch.tag, 0);
+                if (verify_16.crypto_verify(c, coffset, scratch.tag) != 0)
+                    return -1;
+
+                xsalsa20.crypto_stream_xor_at(null, m, moffset, c, coffset + BOXOVERHEAD, len, nonce, key, 32);
+            }
+
+            input.position(input.limit());
+            output.position(output.position() + len);
+            return len;
+        }
+
+        /* authenticate first, then read the input a second time to decrypt it */
+        byte[] buf = scratch.buf;
+        scratch.mac.reset(scratch.c0);
+        input.position(inpos + BOXOVERHEAD);
+
+        for (int pos = 0; pos < len; ) {
+            int n = Math.min(buf.length, len - pos);
+            input.get(buf, 0, n);
+            scratch.mac.update(buf, 0, n);
+            pos += n;
+        }
+
+        scratch.mac.finish(scratch.tag, 0);
+        input.position(inpos);
+        input.get(buf, 0, BOXOVERHEAD);
+        if (verify_16.crypto_verify(buf, 0, scratch.tag) != 0) {
+            input.position(inpos);
+            return -1;
+        }
+
+        for (int pos = 0; pos < len; ) {
+            int n = Math.min(buf.length, len - pos);
+            input.get(buf, 0, n);
+            xsalsa20.crypto_stream_xor_at(null, buf, 0, buf, 0, n, nonce, key, 32 + pos);
+            output.put(buf, 0, n);
+            pos += n;
+        }
+
+        return len;
+    }
+
+    private static final class Scratch {
+        /* a multiple of 64, and large enough for the wide Salsa20 engine */
+        final byte[] buf = new byte[16 * 1024];
+        final byte[] c0 = new byte[32];
+        final byte[] tag = new byte[BOXOVERHEAD];
+        final poly1305.state mac = new poly1305.state(c0);
+    }
+
     public static byte[] streamCryptData(byte[] input, byte[] key, byte[] nonce) {
         if (key.length != STREAMKEYBYTES)
             throw new Error("Invalid symmetric key length");
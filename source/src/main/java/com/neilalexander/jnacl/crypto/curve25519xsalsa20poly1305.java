@@ -60,6 +60,22 @@ public class curve25519xsalsa20poly1305
 		return hsalsa20.crypto_core(k, null, sp, sigmap);
 	}
 	
+	/* k[i] = beforenm(pk[i], sk) for i in offset .. offset + count - 1 */
+	public static int crypto_box_beforenm_batch(byte[][] k, byte[][] pk, byte[] sk, int offset, int count)
+	{
+		byte[][] s = new byte[pk.length][];
+		byte[] sigmap = xsalsa20.sigma;
+
+		for (int i = offset; i < offset + count; ++i)
+			s[i] = new byte[32];
+
+		curve25519.crypto_scalarmult_batch(s, sk, pk, offset, count);
+		for (int i = offset; i < offset + count; ++i)
+			hsalsa20.crypto_core(k[i], null, s[i], sigmap);
+
+		return 0;
+	}
+	
 	public static int crypto_box(byte[] c, byte[] m, long mlen, byte[] n, byte[] pk, byte[] sk)
 	{
 		byte[] k = new byte[crypto_box_BEFORENMBYTES];
@@ -0,0 +1,450 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+/*
+ * Arithmetic in GF(2^255 - 19) on ten signed limbs of alternately 26 and 25 bits
+ * (radix 2^25.5), after the ref10 implementation by Bernstein et al. Products of
+ * two limbs fit into a long, so a multiplication is 100 64-bit multiply-adds
+ * followed by one carry chain. Field elements are int[10]; all functions
+ * allow the output to alias an input.
+ */
+class fe25519
+{
+	static int[] create()
+	{
+		return new int[10];
+	}
+
+	static void zero(int[] h)
+	{
+		for (int i = 0; i < 10; ++i)
+			h[i] = 0;
+	}
+
+	static void one(int[] h)
+	{
+		zero(h);
+		h[0] = 1;
+	}
+
+	static void copy(int[] h, int[] f)
+	{
+		System.arraycopy(f, 0, h, 0, 10);
+	}
+
+	static void add(int[] h, int[] f, int[] g)
+	{
+		for (int i = 0; i < 10; ++i)
+			h[i] = f[i] + g[i];
+	}
+
+	static void sub(int[] h, int[] f, int[] g)
+	{
+		for (int i = 0; i < 10; ++i)
+			h[i] = f[i] - g[i];
+	}
+
+	static void neg(int[] h, int[] f)
+	{
+		for (int i = 0; i < 10; ++i)
+			h[i] = -f[i];
+	}
+
+	/* swap f and g if b == 1, leave them alone if b == 0 (constant time) */
+	static void cswap(int[] f, int[] g, int b)
+	{
+		int mask = -b;
+
+		for (int i = 0; i < 10; ++i)
+		{
+			int x = mask & (f[i] ^ g[i]);
+			f[i] ^= x;
+			g[i] ^= x;
+		}
+	}
+
+	/* replace f with g if b == 1, leave it alone if b == 0 (constant time) */
+	static void cmov(int[] f, int[] g, int b)
+	{
+		int mask = -b;
+
+		for (int i = 0; i < 10; ++i)
+			f[i] ^= mask & (f[i] ^ g[i]);
+	}
+
+	static long load3(byte[] s, int offset)
+	{
+		return (s[offset] & 0xff) | ((s[offset + 1] & 0xff) << 8) | ((s[offset + 2] & 0xff) << 16);
+	}
+
+	static long load4(byte[] s, int offset)
+	{
+		return load3(s, offset) | ((long) (s[offset + 3] & 0xff) << 24);
+	}
+
+	/*
+	 * Unlike ref10, bit 255 is not masked off: the input is interpreted as a 256-bit
+	 * integer mod p, which is what the original jnacl curve25519 code did as well.
+	 */
+	static void frombytes(int[] h, byte[] s)
+	{
+		long h0 = load4(s, 0);
+		long h1 = load3(s, 4) << 6;
+		long h2 = load3(s, 7) << 5;
+		long h3 = load3(s, 10) << 3;
+		long h4 = load3(s, 13) << 2;
+		long h5 = load4(s, 16);
+		long h6 = load3(s, 20) << 7;
+		long h7 = load3(s, 23) << 5;
+		long h8 = load3(s, 26) << 4;
+		long h9 = load3(s, 29) << 2;
+		long c;
+
+		c = (h9 + (1L << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+		c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+		c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+		c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+		c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+		c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+		c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+		c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+		c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+
+		h[0] = (int) h0;
+		h[1] = (int) h1;
+		h[2] = (int) h2;
+		h[3] = (int) h3;
+		h[4] = (int) h4;
+		h[5] = (int) h5;
+		h[6] = (int) h6;
+		h[7] = (int) h7;
+		h[8] = (int) h8;
+		h[9] = (int) h9;
+	}
+
+	/* fully reduce h mod p and write the canonical little-endian encoding */
+	static void tobytes(byte[] s, int soffset, int[] h)
+	{
+		int h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+		int h5 = h[5], h6 = h[6], h7 = h[7], h8 = h[8], h9 = h[9];
+		int q, c;
+
+		q = (19 * h9 + (1 << 24)) >> 25;
+		q = (h0 + q) >> 26;
+		q = (h1 + q) >> 25;
+		q = (h2 + q) >> 26;
+		q = (h3 + q) >> 25;
+		q = (h4 + q) >> 26;
+		q = (h5 + q) >> 25;
+		q = (h6 + q) >> 26;
+		q = (h7 + q) >> 25;
+		q = (h8 + q) >> 26;
+		q = (h9 + q) >> 25;
+
+		/* h - q * p, computed as h + 19 * q - q * 2^255 */
+		h0 += 19 * q;
+
+		c = h0 >> 26; h1 += c; h0 -= c << 26;
+		c = h1 >> 25; h2 += c; h1 -= c << 25;
+		c = h2 >> 26; h3 += c; h2 -= c << 26;
+		c = h3 >> 25; h4 += c; h3 -= c << 25;
+		c = h4 >> 26; h5 += c; h4 -= c << 26;
+		c = h5 >> 25; h6 += c; h5 -= c << 25;
+		c = h6 >> 26; h7 += c; h6 -= c << 26;
+		c = h7 >> 25; h8 += c; h7 -= c << 25;
+		c = h8 >> 26; h9 += c; h8 -= c << 26;
+		c = h9 >> 25; h9 -= c << 25;
+
+		s[soffset] = (byte) h0;
+		s[soffset + 1] = (byte) (h0 >> 8);
+		s[soffset + 2] = (byte) (h0 >> 16);
+		s[soffset + 3] = (byte) ((h0 >> 24) | (h1 << 2));
+		s[soffset + 4] = (byte) (h1 >> 6);
+		s[soffset + 5] = (byte) (h1 >> 14);
+		s[soffset + 6] = (byte) ((h1 >> 22) | (h2 << 3));
+		s[soffset + 7] = (byte) (h2 >> 5);
+		s[soffset + 8] = (byte) (h2 >> 13);
+		s[soffset + 9] = (byte) ((h2 >> 21) | (h3 << 5));
+		s[soffset + 10] = (byte) (h3 >> 3);
+		s[soffset + 11] = (byte) (h3 >> 11);
+		s[soffset + 12] = (byte) ((h3 >> 19) | (h4 << 6));
+		s[soffset + 13] = (byte) (h4 >> 2);
+		s[soffset + 14] = (byte) (h4 >> 10);
+		s[soffset + 15] = (byte) (h4 >> 18);
+		s[soffset + 16] = (byte) h5;
+		s[soffset + 17] = (byte) (h5 >> 8);
+		s[soffset + 18] = (byte) (h5 >> 16);
+		s[soffset + 19] = (byte) ((h5 >> 24) | (h6 << 1));
+		s[soffset + 20] = (byte) (h6 >> 7);
+		s[soffset + 21] = (byte) (h6 >> 15);
+		s[soffset + 22] = (byte) ((h6 >> 23) | (h7 << 3));
+		s[soffset + 23] = (byte) (h7 >> 5);
+		s[soffset + 24] = (byte) (h7 >> 13);
+		s[soffset + 25] = (byte) ((h7 >> 21) | (h8 << 4));
+		s[soffset + 26] = (byte) (h8 >> 4);
+		s[soffset + 27] = (byte) (h8 >> 12);
+		s[soffset + 28] = (byte) ((h8 >> 20) | (h9 << 6));
+		s[soffset + 29] = (byte) (h9 >> 2);
+		s[soffset + 30] = (byte) (h9 >> 10);
+		s[soffset + 31] = (byte) (h9 >> 18);
+	}
+
+	static void mul(int[] h, int[] f, int[] g)
+	{
+		long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+		long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4], g5 = g[5], g6 = g[6], g7 = g[7], g8 = g[8], g9 = g[9];
+		long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4, g5_19 = 19 * g5, g6_19 = 19 * g6, g7_19 = 19 * g7, g8_19 = 19 * g8, g9_19 = 19 * g9;
+		long f1_2 = 2 * f1, f3_2 = 2 * f3, f5_2 = 2 * f5, f7_2 = 2 * f7, f9_2 = 2 * f9;
+
+		long h0 = f0 * g0 + f1_2 * g9_19 + f2 * g8_19 + f3_2 * g7_19 + f4 * g6_19 + f5_2 * g5_19 + f6 * g4_19 + f7_2 * g3_19 + f8 * g2_19 + f9_2 * g1_19;
+		long h1 = f0 * g1 + f1 * g0 + f2 * g9_19 + f3 * g8_19 + f4 * g7_19 + f5 * g6_19 + f6 * g5_19 + f7 * g4_19 + f8 * g3_19 + f9 * g2_19;
+		long h2 = f0 * g2 + f1_2 * g1 + f2 * g0 + f3_2 * g9_19 + f4 * g8_19 + f5_2 * g7_19 + f6 * g6_19 + f7_2 * g5_19 + f8 * g4_19 + f9_2 * g3_19;
+		long h3 = f0 * g3 + f1 * g2 + f2 * g1 + f3 * g0 + f4 * g9_19 + f5 * g8_19 + f6 * g7_19 + f7 * g6_19 + f8 * g5_19 + f9 * g4_19;
+		long h4 = f0 * g4 + f1_2 * g3 + f2 * g2 + f3_2 * g1 + f4 * g0 + f5_2 * g9_19 + f6 * g8_19 + f7_2 * g7_19 + f8 * g6_19 + f9_2 * g5_19;
+		long h5 = f0 * g5 + f1 * g4 + f2 * g3 + f3 * g2 + f4 * g1 + f5 * g0 + f6 * g9_19 + f7 * g8_19 + f8 * g7_19 + f9 * g6_19;
+		long h6 = f0 * g6 + f1_2 * g5 + f2 * g4 + f3_2 * g3 + f4 * g2 + f5_2 * g1 + f6 * g0 + f7_2 * g9_19 + f8 * g8_19 + f9_2 * g7_19;
+		long h7 = f0 * g7 + f1 * g6 + f2 * g5 + f3 * g4 + f4 * g3 + f5 * g2 + f6 * g1 + f7 * g0 + f8 * g9_19 + f9 * g8_19;
+		long h8 = f0 * g8 + f1_2 * g7 + f2 * g6 + f3_2 * g5 + f4 * g4 + f5_2 * g3 + f6 * g2 + f7_2 * g1 + f8 * g0 + f9_2 * g9_19;
+		long h9 = f0 * g9 + f1 * g8 + f2 * g7 + f3 * g6 + f4 * g5 + f5 * g4 + f6 * g3 + f7 * g2 + f8 * g1 + f9 * g0;
+		long c;
+
+		c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+		c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+		c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+		c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+		c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+		c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+		c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+		c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+		c = (h9 + (1L << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+		c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+
+		h[0] = (int) h0;
+		h[1] = (int) h1;
+		h[2] = (int) h2;
+		h[3] = (int) h3;
+		h[4] = (int) h4;
+		h[5] = (int) h5;
+		h[6] = (int) h6;
+		h[7] = (int) h7;
+		h[8] = (int) h8;
+		h[9] = (int) h9;
+	}
+
+	static void sq(int[] h, int[] f)
+	{
+		long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+		long f0_2 = 2 * f0, f1_2 = 2 * f1, f2_2 = 2 * f2, f3_2 = 2 * f3, f4_2 = 2 * f4, f5_2 = 2 * f5, f6_2 = 2 * f6, f7_2 = 2 * f7, f8_2 = 2 * f8, f9_2 = 2 * f9;
+		long f5_19 = 19 * f5, f6_19 = 19 * f6, f7_19 = 19 * f7, f8_19 = 19 * f8, f9_19 = 19 * f9;
+		long f5_38 = 38 * f5, f6_38 = 38 * f6, f7_38 = 38 * f7, f8_38 = 38 * f8, f9_38 = 38 * f9;
+
+		long h0 = f0 * f0 + f1_2 * f9_38 + f2 * f8_38 + f3_2 * f7_38 + f4 * f6_38 + f5 * f5_38;
+		long h1 = f0_2 * f1 + f2 * f9_38 + f3 * f8_38 + f4 * f7_38 + f5 * f6_38;
+		long h2 = f0_2 * f2 + f1_2 * f1 + f3_2 * f9_38 + f4 * f8_38 + f5_2 * f7_38 + f6 * f6_19;
+		long h3 = f0_2 * f3 + f1_2 * f2 + f4 * f9_38 + f5 * f8_38 + f6 * f7_38;
+		long h4 = f0_2 * f4 + f1_2 * f3_2 + f2 * f2 + f5_2 * f9_38 + f6 * f8_38 + f7 * f7_38;
+		long h5 = f0_2 * f5 + f1_2 * f4 + f2_2 * f3 + f6 * f9_38 + f7 * f8_38;
+		long h6 = f0_2 * f6 + f1_2 * f5_2 + f2_2 * f4 + f3_2 * f3 + f7_2 * f9_38 + f8 * f8_19;
+		long h7 = f0_2 * f7 + f1_2 * f6 + f2_2 * f5 + f3_2 * f4 + f8 * f9_38;
+		long h8 = f0_2 * f8 + f1_2 * f7_2 + f2_2 * f6 + f3_2 * f5_2 + f4 * f4 + f9 * f9_38;
+		long h9 = f0_2 * f9 + f1_2 * f8 + f2_2 * f7 + f3_2 * f6 + f4_2 * f5;
+		long c;
+
+		c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+		c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+		c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+		c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+		c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+		c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+		c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+		c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+		c = (h9 + (1L << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+		c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+
+		h[0] = (int) h0;
+		h[1] = (int) h1;
+		h[2] = (int) h2;
+		h[3] = (int) h3;
+		h[4] = (int) h4;
+		h[5] = (int) h5;
+		h[6] = (int) h6;
+		h[7] = (int) h7;
+		h[8] = (int) h8;
+		h[9] = (int) h9;
+	}
+
+	/* h = 2 * f^2 */
+	static void sq2(int[] h, int[] f)
+	{
+		long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4], f5 = f[5], f6 = f[6], f7 = f[7], f8 = f[8], f9 = f[9];
+		long f0_2 = 2 * f0, f1_2 = 2 * f1, f2_2 = 2 * f2, f3_2 = 2 * f3, f4_2 = 2 * f4, f5_2 = 2 * f5, f6_2 = 2 * f6, f7_2 = 2 * f7, f8_2 = 2 * f8, f9_2 = 2 * f9;
+		long f5_19 = 19 * f5, f6_19 = 19 * f6, f7_19 = 19 * f7, f8_19 = 19 * f8, f9_19 = 19 * f9;
+		long f5_38 = 38 * f5, f6_38 = 38 * f6, f7_38 = 38 * f7, f8_38 = 38 * f8, f9_38 = 38 * f9;
+
+		long h0 = f0 * f0 + f1_2 * f9_38 + f2 * f8_38 + f3_2 * f7_38 + f4 * f6_38 + f5 * f5_38;
+		long h1 = f0_2 * f1 + f2 * f9_38 + f3 * f8_38 + f4 * f7_38 + f5 * f6_38;
+		long h2 = f0_2 * f2 + f1_2 * f1 + f3_2 * f9_38 + f4 * f8_38 + f5_2 * f7_38 + f6 * f6_19;
+		long h3 = f0_2 * f3 + f1_2 * f2 + f4 * f9_38 + f5 * f8_38 + f6 * f7_38;
+		long h4 = f0_2 * f4 + f1_2 * f3_2 + f2 * f2 + f5_2 * f9_38 + f6 * f8_38 + f7 * f7_38;
+		long h5 = f0_2 * f5 + f1_2 * f4 + f2_2 * f3 + f6 * f9_38 + f7 * f8_38;
+		long h6 = f0_2 * f6 + f1_2 * f5_2 + f2_2 * f4 + f3_2 * f3 + f7_2 * f9_38 + f8 * f8_19;
+		long h7 = f0_2 * f7 + f1_2 * f6 + f2_2 * f5 + f3_2 * f4 + f8 * f9_38;
+		long h8 = f0_2 * f8 + f1_2 * f7_2 + f2_2 * f6 + f3_2 * f5_2 + f4 * f4 + f9 * f9_38;
+		long h9 = f0_2 * f9 + f1_2 * f8 + f2_2 * f7 + f3_2 * f6 + f4_2 * f5;
+
+		h0 += h0;
+		h1 += h1;
+		h2 += h2;
+		h3 += h3;
+		h4 += h4;
+		h5 += h5;
+		h6 += h6;
+		h7 += h7;
+		h8 += h8;
+		h9 += h9;
+		long c;
+
+		c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+		c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+		c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+		c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+		c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+		c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+		c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+		c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+		c = (h9 + (1L << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+		c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+
+		h[0] = (int) h0;
+		h[1] = (int) h1;
+		h[2] = (int) h2;
+		h[3] = (int) h3;
+		h[4] = (int) h4;
+		h[5] = (int) h5;
+		h[6] = (int) h6;
+		h[7] = (int) h7;
+		h[8] = (int) h8;
+		h[9] = (int) h9;
+	}
+
+
+	static void mul121666(int[] h, int[] f)
+	{
+		long h0 = f[0] * 121666L;
+		long h1 = f[1] * 121666L;
+		long h2 = f[2] * 121666L;
+		long h3 = f[3] * 121666L;
+		long h4 = f[4] * 121666L;
+		long h5 = f[5] * 121666L;
+		long h6 = f[6] * 121666L;
+		long h7 = f[7] * 121666L;
+		long h8 = f[8] * 121666L;
+		long h9 = f[9] * 121666L;
+		long c;
+
+		c = (h9 + (1L << 24)) >> 25; h0 += c * 19; h9 -= c << 25;
+		c = (h1 + (1L << 24)) >> 25; h2 += c; h1 -= c << 25;
+		c = (h3 + (1L << 24)) >> 25; h4 += c; h3 -= c << 25;
+		c = (h5 + (1L << 24)) >> 25; h6 += c; h5 -= c << 25;
+		c = (h7 + (1L << 24)) >> 25; h8 += c; h7 -= c << 25;
+		c = (h0 + (1L << 25)) >> 26; h1 += c; h0 -= c << 26;
+		c = (h2 + (1L << 25)) >> 26; h3 += c; h2 -= c << 26;
+		c = (h4 + (1L << 25)) >> 26; h5 += c; h4 -= c << 26;
+		c = (h6 + (1L << 25)) >> 26; h7 += c; h6 -= c << 26;
+		c = (h8 + (1L << 25)) >> 26; h9 += c; h8 -= c << 26;
+
+		h[0] = (int) h0;
+		h[1] = (int) h1;
+		h[2] = (int) h2;
+		h[3] = (int) h3;
+		h[4] = (int) h4;
+		h[5] = (int) h5;
+		h[6] = (int) h6;
+		h[7] = (int) h7;
+		h[8] = (int) h8;
+		h[9] = (int) h9;
+	}
+
+	/* 1 if f is not 0 mod p, 0 otherwise (constant time) */
+	static int isnonzero(int[] f)
+	{
+		byte[] s = new byte[32];
+		int d = 0;
+
+		tobytes(s, 0, f);
+		for (int i = 0; i < 32; ++i)
+			d |= s[i] & 0xff;
+
+		return (-d) >>> 31;
+	}
+
+	/* repeated squaring: h = f^(2^n) */
+	static void sqn(int[] h, int[] f, int n)
+	{
+		sq(h, f);
+		for (int i = 1; i < n; ++i)
+			sq(h, h);
+	}
+
+	/* h = z^(p - 2) = 1/z (and 0 for z = 0) */
+	static void invert(int[] h, int[] z)
+	{
+		int[] t0 = create();
+		int[] t1 = create();
+		int[] t2 = create();
+		int[] t3 = create();
+
+		sq(t0, z);                  /* 2 */
+		sqn(t1, t0, 2);             /* 8 */
+		mul(t1, z, t1);             /* 9 */
+		mul(t0, t0, t1);            /* 11 */
+		sq(t2, t0);                 /* 22 */
+		mul(t1, t1, t2);            /* 2^5 - 2^0 */
+		sqn(t2, t1, 5);             /* 2^10 - 2^5 */
+		mul(t1, t2, t1);            /* 2^10 - 2^0 */
+		sqn(t2, t1, 10);            /* 2^20 - 2^10 */
+		mul(t2, t2, t1);            /* 2^20 - 2^0 */
+		sqn(t3, t2, 20);            /* 2^40 - 2^20 */
+		mul(t2, t3, t2);            /* 2^40 - 2^0 */
+		sqn(t2, t2, 10);            /* 2^50 - 2^10 */
+		mul(t1, t2, t1);            /* 2^50 - 2^0 */
+		sqn(t2, t1, 50);            /* 2^100 - 2^50 */
+		mul(t2, t2, t1);            /* 2^100 - 2^0 */
+		sqn(t3, t2, 100);           /* 2^200 - 2^100 */
+		mul(t2, t3, t2);            /* 2^200 - 2^0 */
+		sqn(t2, t2, 50);            /* 2^250 - 2^50 */
+		mul(t1, t2, t1);            /* 2^250 - 2^0 */
+		sqn(t1, t1, 5);             /* 2^255 - 2^5 */
+		mul(h, t1, t0);             /* 2^255 - 21 */
+	}
+}
@@ -0,0 +1,379 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+/*
+ * Fixed-base scalar multiplication on the twisted Edwards form of Curve25519
+ * (-x^2 + y^2 = 1 + d x^2 y^2), after ref10. The result is mapped back to the
+ * Montgomery u-coordinate, so it is interchangeable with a Montgomery ladder
+ * over the base point u = 9, but it only needs 64 mixed additions and four
+ * doublings using a table of small multiples of the base point.
+ *
+ * The table (32 x 8 entries of j * 256^i * B) is computed on first use
+ * instead of being embedded as constants.
+ */
+class ge25519
+{
+	/* Edwards base point B, x and y in little-endian byte order (y = 4/5) */
+	static final byte[] BASE_X = {
+		(byte) 0x1a, (byte) 0xd5, (byte) 0x25, (byte) 0x8f, (byte) 0x60, (byte) 0x2d, (byte) 0x56, (byte) 0xc9,
+		(byte) 0xb2, (byte) 0xa7, (byte) 0x25, (byte) 0x95, (byte) 0x60, (byte) 0xc7, (byte) 0x2c, (byte) 0x69,
+		(byte) 0x5c, (byte) 0xdc, (byte) 0xd6, (byte) 0xfd, (byte) 0x31, (byte) 0xe2, (byte) 0xa4, (byte) 0xc0,
+		(byte) 0xfe, (byte) 0x53, (byte) 0x6e, (byte) 0xcd, (byte) 0xd3, (byte) 0x36, (byte) 0x69, (byte) 0x21
+	};
+
+	static final byte[] BASE_Y = {
+		(byte) 0x58, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66,
+		(byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66,
+		(byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66,
+		(byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66, (byte) 0x66
+	};
+
+	static class ge_p2
+	{
+		final int[] X = fe25519.create();
+		final int[] Y = fe25519.create();
+		final int[] Z = fe25519.create();
+	}
+
+	static class ge_p3
+	{
+		final int[] X = fe25519.create();
+		final int[] Y = fe25519.create();
+		final int[] Z = fe25519.create();
+		final int[] T = fe25519.create();
+	}
+
+	static class ge_p1p1
+	{
+		final int[] X = fe25519.create();
+		final int[] Y = fe25519.create();
+		final int[] Z = fe25519.create();
+		final int[] T = fe25519.create();
+	}
+
+	static class ge_precomp
+	{
+		final int[] yplusx = fe25519.create();
+		final int[] yminusx = fe25519.create();
+		final int[] xy2d = fe25519.create();
+	}
+
+	static class ge_cached
+	{
+		final int[] YplusX = fe25519.create();
+		final int[] YminusX = fe25519.create();
+		final int[] Z = fe25519.create();
+		final int[] T2d = fe25519.create();
+	}
+
+	/* lazily built on first use of scalarmult_base (class initialization is thread safe) */
+	private static class Table
+	{
+		static final int[] D2 = fe25519.create();
+		static final ge_precomp[][] BASE = build();
+
+		private static ge_precomp[][] build()
+		{
+			/* d = -121665 / 121666 */
+			int[] d = fe25519.create();
+			int[] t = fe25519.create();
+			t[0] = 121666;
+			fe25519.invert(t, t);
+			int[] n = fe25519.create();
+			n[0] = -121665;
+			fe25519.mul(d, n, t);
+			fe25519.add(D2, d, d);
+
+			ge_p3 b = new ge_p3();
+			fe25519.frombytes(b.X, BASE_X);
+			fe25519.frombytes(b.Y, BASE_Y);
+			fe25519.one(b.Z);
+			fe25519.mul(b.T, b.X, b.Y);
+
+			ge_precomp[][] table = new ge_precomp[32][8];
+			ge_cached bc = new ge_cached();
+			ge_p1p1 r = new ge_p1p1();
+			ge_p3 p = new ge_p3();
+			ge_p2 s = new ge_p2();
+
+			for (int i = 0; i < 32; ++i)
+			{
+				/* b = 256^i * B; entries are b, 2b, ..., 8b */
+				p3_to_cached(bc, b);
+				p3_copy(p, b);
+
+				for (int j = 0; j < 8; ++j)
+				{
+					table[i][j] = to_precomp(p);
+
+					add(r, p, bc);
+					p1p1_to_p3(p, r);
+				}
+
+				/* 8 doublings */
+				p3_dbl(r, b);
+				for (int k = 1; k < 8; ++k)
+				{
+					p1p1_to_p2(s, r);
+					p2_dbl(r, s);
+				}
+				p1p1_to_p3(b, r);
+			}
+
+			return table;
+		}
+
+		private static ge_precomp to_precomp(ge_p3 p)
+		{
+			int[] recip = fe25519.create();
+			int[] x = fe25519.create();
+			int[] y = fe25519.create();
+
+			fe25519.invert(recip, p.Z);
+			fe25519.mul(x, p.X, recip);
+			fe25519.mul(y, p.Y, recip);
+
+			ge_precomp e = new ge_precomp();
+			fe25519.add(e.yplusx, y, x);
+			fe25519.sub(e.yminusx, y, x);
+			fe25519.mul(e.xy2d, x, y);
+			fe25519.mul(e.xy2d, e.xy2d, D2);
+
+			return e;
+		}
+	}
+
+	static void p3_0(ge_p3 h)
+	{
+		fe25519.zero(h.X);
+		fe25519.one(h.Y);
+		fe25519.one(h.Z);
+		fe25519.zero(h.T);
+	}
+
+	static void p3_copy(ge_p3 r, ge_p3 p)
+	{
+		fe25519.copy(r.X, p.X);
+		fe25519.copy(r.Y, p.Y);
+		fe25519.copy(r.Z, p.Z);
+		fe25519.copy(r.T, p.T);
+	}
+
+	static void p3_to_cached(ge_cached r, ge_p3 p)
+	{
+		fe25519.add(r.YplusX, p.Y, p.X);
+		fe25519.sub(r.YminusX, p.Y, p.X);
+		fe25519.copy(r.Z, p.Z);
+		fe25519.mul(r.T2d, p.T, Table.D2);
+	}
+
+	static void p1p1_to_p2(ge_p2 r, ge_p1p1 p)
+	{
+		fe25519.mul(r.X, p.X, p.T);
+		fe25519.mul(r.Y, p.Y, p.Z);
+		fe25519.mul(r.Z, p.Z, p.T);
+	}
+
+	static void p1p1_to_p3(ge_p3 r, ge_p1p1 p)
+	{
+		fe25519.mul(r.X, p.X, p.T);
+		fe25519.mul(r.Y, p.Y, p.Z);
+		fe25519.mul(r.Z, p.Z, p.T);
+		fe25519.mul(r.T, p.X, p.Y);
+	}
+
+	/* r = 2 * p */
+	static void p2_dbl(ge_p1p1 r, ge_p2 p)
+	{
+		int[] t0 = fe25519.create();
+
+		fe25519.sq(r.X, p.X);
+		fe25519.sq(r.Z, p.Y);
+		fe25519.sq2(r.T, p.Z);
+		fe25519.add(r.Y, p.X, p.Y);
+		fe25519.sq(t0, r.Y);
+		fe25519.add(r.Y, r.Z, r.X);
+		fe25519.sub(r.Z, r.Z, r.X);
+		fe25519.sub(r.X, t0, r.Y);
+		fe25519.sub(r.T, r.T, r.Z);
+	}
+
+	static void p3_dbl(ge_p1p1 r, ge_p3 p)
+	{
+		ge_p2 q = new ge_p2();
+		fe25519.copy(q.X, p.X);
+		fe25519.copy(q.Y, p.Y);
+		fe25519.copy(q.Z, p.Z);
+		p2_dbl(r, q);
+	}
+
+	/* r = p + q */
+	static void add(ge_p1p1 r, ge_p3 p, ge_cached q)
+	{
+		int[] t0 = fe25519.create();
+
+		fe25519.add(r.X, p.Y, p.X);
+		fe25519.sub(r.Y, p.Y, p.X);
+		fe25519.mul(r.Z, r.X, q.YplusX);
+		fe25519.mul(r.Y, r.Y, q.YminusX);
+		fe25519.mul(r.T, q.T2d, p.T);
+		fe25519.mul(r.X, p.Z, q.Z);
+		fe25519.add(t0, r.X, r.X);
+		fe25519.sub(r.X, r.Z, r.Y);
+		fe25519.add(r.Y, r.Z, r.Y);
+		fe25519.add(r.Z, t0, r.T);
+		fe25519.sub(r.T, t0, r.T);
+	}
+
+	/* r = p + q, q affine */
+	static void madd(ge_p1p1 r, ge_p3 p, ge_precomp q, int[] t0)
+	{
+		fe25519.add(r.X, p.Y, p.X);
+		fe25519.sub(r.Y, p.Y, p.X);
+		fe25519.mul(r.Z, r.X, q.yplusx);
+		fe25519.mul(r.Y, r.Y, q.yminusx);
+		fe25519.mul(r.T, q.xy2d, p.T);
+		fe25519.add(t0, p.Z, p.Z);
+		fe25519.sub(r.X, r.Z, r.Y);
+		fe25519.add(r.Y, r.Z, r.Y);
+		fe25519.add(r.Z, t0, r.T);
+		fe25519.sub(r.T, t0, r.T);
+	}
+
+	static int equal(int b, int c)
+	{
+		/* 1 if b == c, 0 otherwise (b, c in 0..255) */
+		return ((b ^ c) - 1) >>> 31;
+	}
+
+	static int negative(int b)
+	{
+		return b >>> 31;
+	}
+
+	/* t = b * 256^pos * B for b in -8..8, without data-dependent branches or indices */
+	static void select(ge_precomp t, ge_precomp minust, int pos, int b)
+	{
+		ge_precomp[] row = Table.BASE[pos];
+		int bnegative = negative(b);
+		int babs = b - (((-bnegative) & b) << 1);
+
+		fe25519.one(t.yplusx);
+		fe25519.one(t.yminusx);
+		fe25519.zero(t.xy2d);
+
+		for (int j = 0; j < 8; ++j)
+		{
+			int eq = equal(babs, j + 1);
+			fe25519.cmov(t.yplusx, row[j].yplusx, eq);
+			fe25519.cmov(t.yminusx, row[j].yminusx, eq);
+			fe25519.cmov(t.xy2d, row[j].xy2d, eq);
+		}
+
+		fe25519.copy(minust.yplusx, t.yminusx);
+		fe25519.copy(minust.yminusx, t.yplusx);
+		fe25519.neg(minust.xy2d, t.xy2d);
+
+		fe25519.cmov(t.yplusx, minust.yplusx, bnegative);
+		fe25519.cmov(t.yminusx, minust.yminusx, bnegative);
+		fe25519.cmov(t.xy2d, minust.xy2d, bnegative);
+	}
+
+	/*
+	 * h = a * B, where a = a[0] + 256 * a[1] + ... + 256^31 * a[31] and a[31] <= 127
+	 */
+	static void scalarmult_base(ge_p3 h, byte[] a)
+	{
+		byte[] e = new byte[64];
+		int carry;
+
+		for (int i = 0; i < 32; ++i)
+		{
+			e[2 * i] = (byte) (a[i] & 15);
+			e[2 * i + 1] = (byte) ((a[i] >>> 4) & 15);
+		}
+
+		/* each e[i] is between 0 and 15; make them signed digits between -8 and 8 */
+		carry = 0;
+		for (int i = 0; i < 63; ++i)
+		{
+			e[i] += carry;
+			carry = e[i] + 8;
+			carry >>= 4;
+			e[i] -= carry << 4;
+		}
+		e[63] += carry;
+
+		ge_p1p1 r = new ge_p1p1();
+		ge_p2 s = new ge_p2();
+		ge_precomp t = new ge_precomp();
+		ge_precomp minust = new ge_precomp();
+		int[] t0 = fe25519.create();
+
+		p3_0(h);
+		for (int i = 1; i < 64; i += 2)
+		{
+			select(t, minust, i / 2, e[i]);
+			madd(r, h, t, t0);
+			p1p1_to_p3(h, r);
+		}
+
+		p3_dbl(r, h);
+		p1p1_to_p2(s, r);
+		p2_dbl(r, s);
+		p1p1_to_p2(s, r);
+		p2_dbl(r, s);
+		p1p1_to_p2(s, r);
+		p2_dbl(r, s);
+		p1p1_to_p3(h, r);
+
+		for (int i = 0; i < 64; i += 2)
+		{
+			select(t, minust, i / 2, e[i]);
+			madd(r, h, t, t0);
+			p1p1_to_p3(h, r);
+		}
+	}
+
+	/*
+	 * Montgomery u-coordinate of a * B, i.e. the X25519 public key for the already clamped
+	 * scalar a: u = (1 + y) / (1 - y) = (Z + Y) / (Z - Y).
+	 */
+	static void scalarmult_base_montgomery(byte[] q, byte[] a)
+	{
+		ge_p3 A = new ge_p3();
+		int[] zplusy = fe25519.create();
+		int[] zminusy = fe25519.create();
+
+		scalarmult_base(A, a);
+
+		fe25519.add(zplusy, A.Z, A.Y);
+		fe25519.sub(zminusy, A.Z, A.Y);
+		fe25519.invert(zminusy, zminusy);
+		fe25519.mul(zplusy, zplusy, zminusy);
+		fe25519.tobytes(q, 0, zplusy);
+	}
+}
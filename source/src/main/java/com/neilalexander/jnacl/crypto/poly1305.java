@@ -27,12 +27,19 @@
 
 package com.neilalexander.jnacl.crypto;
 
+import java.util.Arrays;
+
+/*
+ * Poly1305 with the accumulator and key held in five 26-bit limbs (radix 2^26).
+ * Limb products are 52 bits wide and the five-term sums fit comfortably into a
+ * long, so a 16-byte block costs 25 multiplications and nothing is allocated.
+ */
 public class poly1305
 {
 	final int CRYPTO_BYTES = 16;
 	final int CRYPTO_KEYBYTES = 32;
-	
-	static final int[] minusp = {5, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 252};
+
+	static final int MASK26 = 0x3ffffff;
 
 	public static int crypto_onetimeauth_verify(byte[] h, int hoffset, byte[] inv, int invoffset, long inlen, byte[] k)
 	{
@@ -42,137 +49,301 @@ public class poly1305
 		return verify_16.crypto_verify(h, hoffset, correct);
 	}
 
-	static void add(int[] h, int[] c)
+	static int load32(byte[] x, int offset)
 	{
-		int j;
-		int u = 0;
-		
-		for (j = 0; j < 17; ++j)
-		{
-			u += h[j] + c[j];
-			h[j] = u & 255;
-			u >>>= 8;
-		}
+		return (x[offset] & 0xff) |
+				((x[offset + 1] & 0xff) << 8) |
+				((x[offset + 2] & 0xff) << 16) |
+				((x[offset + 3] & 0xff) << 24);
 	}
 
-	static void squeeze(int[] h)
+	static long load64(byte[] x, int offset)
 	{
-		int u = 0;
-		
-		for (int j = 0; j < 16; ++j)
-		{
-			u += h[j]; 
-			h[j] = u & 255; 
-			u >>>= 8;
-		}
-		
-		u += h[16];
-		h[16] = u & 3;
-		u = 5 * (u >>> 2);
-		
-		for (int j = 0; j < 16; ++j)
+		return (load32(x, offset) & 0xffffffffL) | ((long) load32(x, offset + 4) << 32);
+	}
+
+	static void store32(byte[] x, int offset, int u)
+	{
+		x[offset] = (byte) u;
+		x[offset + 1] = (byte) (u >>> 8);
+		x[offset + 2] = (byte) (u >>> 16);
+		x[offset + 3] = (byte) (u >>> 24);
+	}
+
+	public static int crypto_onetimeauth(byte[] outv, int outvoffset, byte[] inv, int invoffset, long inlen, byte[] k)
+	{
+		long[] h = new long[5];
+
+		blocks(h, k, inv, invoffset, inlen);
+		finish(outv, outvoffset, h, k);
+
+		return 0;
+	}
+
+	/*
+	 * h = (h + m) * r for every 16-byte block m of the input (Horner's rule); a final partial
+	 * block is padded. h holds five 26-bit limbs and is only partially reduced, so it can be
+	 * passed to blocks again, scaled with mulpow and added to other accumulators before finish.
+	 */
+	static void blocks(long[] h, byte[] k, byte[] inv, int invoffset, long inlen)
+	{
+		/* clamp r and split it into 26-bit limbs */
+		long t0 = load64(k, 0);
+		long t1 = load64(k, 8);
+
+		long r0 = t0 & 0x3ffffff;
+		long r1 = (t0 >>> 26) & 0x3ffff03;
+		long r2 = ((t0 >>> 52) | (t1 << 12)) & 0x3ffc0ff;
+		long r3 = (t1 >>> 14) & 0x3f03fff;
+		long r4 = (t1 >>> 40) & 0x00fffff;
+
+		long s1 = r1 * 5;
+		long s2 = r2 * 5;
+		long s3 = r3 * 5;
+		long s4 = r4 * 5;
+
+		long h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+		long d0, d1, d2, d3, d4, c;
+
+		while (inlen > 0)
 		{
-			u += h[j];
-			h[j] = u & 255;
-			u >>>= 8;
+			long hibit;
+
+			if (inlen >= 16)
+			{
+				t0 = load64(inv, invoffset);
+				t1 = load64(inv, invoffset + 8);
+				hibit = 1L << 24;
+				invoffset += 16;
+				inlen -= 16;
+			}
+			else
+			{
+				/* final partial block: append a single 1 byte and zero-fill */
+				int n = (int) inlen;
+
+				t0 = t1 = 0;
+				for (int j = 0; j < n; ++j)
+				{
+					long b = inv[invoffset + j] & 0xff;
+					if (j < 8)
+						t0 |= b << (8 * j);
+					else
+						t1 |= b << (8 * (j - 8));
+				}
+
+				if (n < 8)
+					t0 |= 1L << (8 * n);
+				else
+					t1 |= 1L << (8 * (n - 8));
+
+				hibit = 0;
+				inlen = 0;
+			}
+
+			/* h += m */
+			h0 += t0 & MASK26;
+			h1 += (t0 >>> 26) & MASK26;
+			h2 += ((t0 >>> 52) | (t1 << 12)) & MASK26;
+			h3 += (t1 >>> 14) & MASK26;
+			h4 += (t1 >>> 40) | hibit;
+
+			/* h *= r (mod 2^130 - 5) */
+			d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+			d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+			d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+			d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+			d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+			/* partial carry */
+			c = d0 >>> 26; h0 = d0 & MASK26;
+			d1 += c; c = d1 >>> 26; h1 = d1 & MASK26;
+			d2 += c; c = d2 >>> 26; h2 = d2 & MASK26;
+			d3 += c; c = d3 >>> 26; h3 = d3 & MASK26;
+			d4 += c; c = d4 >>> 26; h4 = d4 & MASK26;
+			h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+			h1 += c;
 		}
-		
-		u += h[16];
-		h[16] = u;
+
+		h[0] = h0;
+		h[1] = h1;
+		h[2] = h2;
+		h[3] = h3;
+		h[4] = h4;
 	}
 
-	static void freeze(int[] h)
+	/* h = h * g (mod 2^130 - 5), both partially reduced */
+	static void mul(long[] h, long[] g)
 	{
-		int[] horig = new int[17];
-		
-		for (int j = 0; j < 17; ++j)
-			horig[j] = h[j];
-		
-		add(h, minusp);
-		
-		int negative = (int)(-(h[16] >>> 7));
-		
-		for (int j = 0; j < 17; ++j)
-			h[j] ^= negative & (horig[j] ^ h[j]);
+		long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+		long s1 = g1 * 5, s2 = g2 * 5, s3 = g3 * 5, s4 = g4 * 5;
+		long h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+		long d0, d1, d2, d3, d4, c;
+
+		d0 = h0 * g0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+		d1 = h0 * g1 + h1 * g0 + h2 * s4 + h3 * s3 + h4 * s2;
+		d2 = h0 * g2 + h1 * g1 + h2 * g0 + h3 * s4 + h4 * s3;
+		d3 = h0 * g3 + h1 * g2 + h2 * g1 + h3 * g0 + h4 * s4;
+		d4 = h0 * g4 + h1 * g3 + h2 * g2 + h3 * g1 + h4 * g0;
+
+		c = d0 >>> 26; h0 = d0 & MASK26;
+		d1 += c; c = d1 >>> 26; h1 = d1 & MASK26;
+		d2 += c; c = d2 >>> 26; h2 = d2 & MASK26;
+		d3 += c; c = d3 >>> 26; h3 = d3 & MASK26;
+		d4 += c; c = d4 >>> 26; h4 = d4 & MASK26;
+		h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+		h1 += c;
+
+		h[0] = h0;
+		h[1] = h1;
+		h[2] = h2;
+		h[3] = h3;
+		h[4] = h4;
 	}
 
-	static void mulmod(int[] h, int[] r)
+	/*
+	 * h = h * r^e: moves an accumulator computed over one part of a message to its place in the
+	 * whole, when e further blocks follow that part. Accumulators of consecutive parts scaled
+	 * like this and added with add give the accumulator of the whole message.
+	 */
+	static void mulpow(long[] h, byte[] k, long e)
 	{
-		int[] hr = new int[17];
-		
-		for (int i = 0; i < 17; ++i)
+		long[] r = new long[5];
+
+		/* clamped r in 26-bit limbs, as in blocks */
+		long t0 = load64(k, 0);
+		long t1 = load64(k, 8);
+		r[0] = t0 & 0x3ffffff;
+		r[1] = (t0 >>> 26) & 0x3ffff03;
+		r[2] = ((t0 >>> 52) | (t1 << 12)) & 0x3ffc0ff;
+		r[3] = (t1 >>> 14) & 0x3f03fff;
+		r[4] = (t1 >>> 40) & 0x00fffff;
+
+		for (; e > 0; e >>>= 1)
 		{
-			int u = 0;
-			
-			for (int j = 0; j <= i; ++j) 
-				u += h[j] * r[i - j];
-			
-			for (int j = i + 1; j < 17; ++j) 
-				u += 320 * h[j] * r[i + 17 - j];
-			
-			hr[i] = u;
+			if ((e & 1) != 0)
+				mul(h, r);
+			mul(r, r);
 		}
-		
-		for (int i = 0; i < 17; ++i)
-			h[i] = hr[i];
-		
-		squeeze(h);
 	}
 
-	public static int crypto_onetimeauth(byte[] outv, int outvoffset, byte[] inv, int invoffset, long inlen, byte[] k)
+	/* h = h + g, both partially reduced */
+	static void add(long[] h, long[] g)
 	{
-		int j;
-		int[] r = new int[17];
-		int[] h = new int[17];
-		int[] c = new int[17];
-
-		r[0] = k[0] & 0xFF;
-		r[1] = k[1] & 0xFF;
-		r[2] = k[2] & 0xFF;
-		r[3] = k[3] & 15;
-		r[4] = k[4] & 252;
-		r[5] = k[5] & 0xFF;
-		r[6] = k[6] & 0xFF;
-		r[7] = k[7] & 15;
-		r[8] = k[8] & 252;
-		r[9] = k[9] & 0xFF;
-		r[10] = k[10] & 0xFF;
-		r[11] = k[11] & 15;
-		r[12] = k[12] & 252;
-		r[13] = k[13] & 0xFF;
-		r[14] = k[14] & 0xFF;
-		r[15] = k[15] & 15;
-		r[16] = 0;
-
-		for (j = 0; j < 17; ++j)
-			h[j] = 0;
+		long c;
 
-		while (inlen > 0)
+		h[0] += g[0];
+		h[1] += g[1];
+		h[2] += g[2];
+		h[3] += g[3];
+		h[4] += g[4];
+
+		c = h[0] >>> 26; h[0] &= MASK26;
+		h[1] += c; c = h[1] >>> 26; h[1] &= MASK26;
+		h[2] += c; c = h[2] >>> 26; h[2] &= MASK26;
+		h[3] += c; c = h[3] >>> 26; h[3] &= MASK26;
+		h[4] += c; c = h[4] >>> 26; h[4] &= MASK26;
+		h[0] += c * 5; c = h[0] >>> 26; h[0] &= MASK26;
+		h[1] += c;
+	}
+
+	/* tag = (h mod 2^130 - 5) + s mod 2^128, with s the second half of the key */
+	static void finish(byte[] outv, int outvoffset, long[] h, byte[] k)
+	{
+		long h0 = h[0], h1 = h[1], h2 = h[2], h3 = h[3], h4 = h[4];
+		long c;
+
+		/* full carry */
+		c = h1 >>> 26; h1 &= MASK26;
+		h2 += c; c = h2 >>> 26; h2 &= MASK26;
+		h3 += c; c = h3 >>> 26; h3 &= MASK26;
+		h4 += c; c = h4 >>> 26; h4 &= MASK26;
+		h0 += c * 5; c = h0 >>> 26; h0 &= MASK26;
+		h1 += c;
+
+		/* compute g = h + 5 - 2^130 and select h if g is negative (constant time) */
+		long g0 = h0 + 5; c = g0 >>> 26; g0 &= MASK26;
+		long g1 = h1 + c; c = g1 >>> 26; g1 &= MASK26;
+		long g2 = h2 + c; c = g2 >>> 26; g2 &= MASK26;
+		long g3 = h3 + c; c = g3 >>> 26; g3 &= MASK26;
+		long g4 = h4 + c - (1L << 26);
+
+		long mask = g4 >> 63;
+		h0 = (h0 & mask) | (g0 & ~mask);
+		h1 = (h1 & mask) | (g1 & ~mask);
+		h2 = (h2 & mask) | (g2 & ~mask);
+		h3 = (h3 & mask) | (g3 & ~mask);
+		h4 = (h4 & mask) | (g4 & ~mask);
+
+		/* h = (h + s) mod 2^128 */
+		long lo = h0 | (h1 << 26) | (h2 << 52);
+		long hi = (h2 >>> 12) | (h3 << 14) | (h4 << 40);
+
+		long slo = load64(k, 16);
+		long shi = load64(k, 24);
+
+		long sum = (lo & 0xffffffffL) + (slo & 0xffffffffL);
+		store32(outv, outvoffset, (int) sum);
+		sum = (lo >>> 32) + (slo >>> 32) + (sum >>> 32);
+		store32(outv, outvoffset + 4, (int) sum);
+		sum = (hi & 0xffffffffL) + (shi & 0xffffffffL) + (sum >>> 32);
+		store32(outv, outvoffset + 8, (int) sum);
+		sum = (hi >>> 32) + (shi >>> 32) + (sum >>> 32);
+		store32(outv, outvoffset + 12, (int) sum);
+	}
+
+	/*
+	 * Incremental Poly1305 for messages that do not fit in memory at once: update may be called
+	 * with pieces of any length, the tag is the same as crypto_onetimeauth over their concatenation.
+	 * A state can be reused for another message (and key) after reset, without allocating.
+	 */
+	public static class state
+	{
+		private final long[] h = new long[5];
+		private final byte[] k = new byte[32];
+		private final byte[] buf = new byte[16];
+		private int buflen;
+
+		public state(byte[] k)
 		{
-			for (j = 0; j < 17; ++j)
-				c[j] = 0;
-			
-			for (j = 0; (j < 16) && (j < inlen); ++j)
-				c[j] = inv[invoffset + j]&0xff;
-			
-			c[j] = 1;
-			invoffset += j;
-			inlen -= j;
-			add(h, c);
-			mulmod(h, r);
+			reset(k);
 		}
 
-		freeze(h);
+		public void reset(byte[] k)
+		{
+			System.arraycopy(k, 0, this.k, 0, 32);
+			Arrays.fill(h, 0);
+			buflen = 0;
+		}
 
-		for (j = 0; j < 16; ++j) 
-			c[j] = k[j + 16] & 0xFF;
-		
-		c[16] = 0;
-		add(h, c);
-		
-		for (j = 0; j < 16; ++j) 
-			outv[j + outvoffset] = (byte)h[j];
-		
-		return 0;
+		public void update(byte[] inv, int invoffset, int inlen)
+		{
+			if (buflen > 0)
+			{
+				int n = Math.min(16 - buflen, inlen);
+				System.arraycopy(inv, invoffset, buf, buflen, n);
+				buflen += n;
+				invoffset += n;
+				inlen -= n;
+
+				if (buflen < 16)
+					return;
+
+				blocks(h, k, buf, 0, 16);
+				buflen = 0;
+			}
+
+			int full = inlen & ~15;
+			blocks(h, k, inv, invoffset, full);
+
+			buflen = inlen - full;
+			System.arraycopy(inv, invoffset + full, buf, 0, buflen);
+		}
+
+		public void finish(byte[] outv, int outvoffset)
+		{
+			blocks(h, k, buf, 0, buflen);
+			poly1305.finish(outv, outvoffset, h, k);
+		}
 	}
 }
@@ -27,6 +27,8 @@
 
 package com.neilalexander.jnacl.crypto;
 
+import java.util.Arrays;
+
 public class salsa20
 {
 	final int crypto_core_salsa20_ref_OUTPUTBYTES = 64;
@@ -38,7 +40,13 @@ public class salsa20
 
 	final static int ROUNDS = 20;
 
-	static long rotate(int u, int c)
+	/* "expand 32-byte k" as little-endian words */
+	static final int SIGMA0 = 0x61707865;
+	static final int SIGMA1 = 0x3320646e;
+	static final int SIGMA2 = 0x79622d32;
+	static final int SIGMA3 = 0x6b206574;
+
+	static int rotate(int u, int c)
 	{
 		return (u << c) | (u >>> (32 - c));
 	}
@@ -157,168 +165,375 @@ public class salsa20
 	
 	public static int crypto_stream(byte[] c, int clen, byte[] n, int noffset, byte[] k)
 	{
-		byte[] inv = new byte[16];
-		byte[] block = new byte[64];
-		
-		int coffset = 0;
-		
-		if (clen == 0)
-			return 0;
-
-		for (int i = 0; i < 8; ++i)
-			inv[i] = n[noffset + i];
-		
-		for (int i = 8; i < 16; ++i)
-			inv[i] = 0;
-
-		while (clen >= 64)
-		{		
-			salsa20.crypto_core(c, inv, k, xsalsa20.sigma);
-
-			int u = 1;
-			
-			for (int i = 8; i < 16; ++i)
-			{
-				u += inv[i]&0xff;
-				inv[i] = (byte) u;
-				u >>>= 8;
-			}
+		stream_xor(null, c, 0, null, 0, clen,
+				load_littleendian(k, 0), load_littleendian(k, 4), load_littleendian(k, 8), load_littleendian(k, 12),
+				load_littleendian(k, 16), load_littleendian(k, 20), load_littleendian(k, 24), load_littleendian(k, 28),
+				load_littleendian(n, noffset), load_littleendian(n, noffset + 4), 0);
 
-			clen -= 64;
-			coffset += 64;
-		}
-
-		if (clen != 0)
-		{			
-			salsa20.crypto_core(block, inv, k, xsalsa20.sigma);
-			
-			for (int i = 0; i < clen; ++i)
-				c[coffset + i] = block[i];
-		}
-		
 		return 0;
 	}
 
 	public static int crypto_stream_xor(byte[] c, byte[] m, int mlen, byte[] n, int noffset, byte[] k)
 	{
-		byte[] inv = new byte[16];
-		byte[] block = new byte[64];
-		
-		int coffset = 0;
-		int moffset = 0;
-		
-		if (mlen == 0)
-			return 0;
-
-		for (int i = 0; i < 8; ++i)
-			inv[i] = n[noffset + i];
-		
-		for (int i = 8; i < 16; ++i)
-			inv[i] = 0;
-
-		while (mlen >= 64)
-		{			
-			salsa20.crypto_core(block, inv, k, xsalsa20.sigma);
-			
-			for (int i = 0; i < 64; ++i)
-				c[coffset + i] = (byte)(m[moffset + i] ^ block[i]);
-
-			int u = 1;
-			
-			for (int i = 8; i < 16; ++i)
+		stream_xor(null, c, 0, m, 0, mlen,
+				load_littleendian(k, 0), load_littleendian(k, 4), load_littleendian(k, 8), load_littleendian(k, 12),
+				load_littleendian(k, 16), load_littleendian(k, 20), load_littleendian(k, 24), load_littleendian(k, 28),
+				load_littleendian(n, noffset), load_littleendian(n, noffset + 4), 0);
+
+		return 0;
+	}
+
+	public static int crypto_stream_xor_skip32(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, int mlen, byte[] n, int noffset, byte[] k)
+	{
+		/* Variant of crypto_stream_xor that outputs the first 32 bytes of the cipherstream to c0 */
+
+		stream_xor(c0, c, coffset, m, moffset, mlen,
+				load_littleendian(k, 0), load_littleendian(k, 4), load_littleendian(k, 8), load_littleendian(k, 12),
+				load_littleendian(k, 16), load_littleendian(k, 20), load_littleendian(k, 24), load_littleendian(k, 28),
+				load_littleendian(n, noffset), load_littleendian(n, noffset + 4), 32);
+
+		return 0;
+	}
+
+	/**
+	 * Salsa20 keystream engine. XORs mlen bytes of keystream, starting at byte position
+	 * {@code position} of the stream, into c (or writes the plain keystream if m is null).
+	 * The key and nonce are passed as little-endian words, and the state is kept in locals,
+	 * so nothing is allocated. c and m may be the same array as long as coffset &lt;= moffset.
+	 *
+	 * If c0 is not null, the first 32 bytes of keystream block 0 are written to it, even if
+	 * mlen is 0 (this is the Poly1305 key of a secretbox); position must then be below 64.
+	 */
+	static void stream_xor(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, int mlen,
+						   int k0, int k1, int k2, int k3, int k4, int k5, int k6, int k7,
+						   int n0, int n1, long position)
+	{
+		stream_xor(c0, c, coffset, m, moffset, mlen, k0, k1, k2, k3, k4, k5, k6, k7, n0, n1, position, WIDE);
+	}
+
+	/* stream_xor with an explicit choice of engine, so that tests can compare them */
+	static void stream_xor(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, int mlen,
+						   int k0, int k1, int k2, int k3, int k4, int k5, int k6, int k7,
+						   int n0, int n1, long position, boolean wide)
+	{
+		int x0, x1, x2, x3, x4, x5, x6, x7, x8, x9, x10, x11, x12, x13, x14, x15;
+		int i;
+
+		long block = position >>> 6;
+		int skip = (int) position & 63;
+
+		if (c0 != null && block != 0)
+			throw new IllegalArgumentException("c0 requires a position within the first block");
+
+		while (mlen > 0 || c0 != null)
+		{
+			if (wide && skip == 0 && c0 == null && mlen >= WIDE_BLOCKS * 64)
 			{
-				u += inv[i]&0xff;
-				inv[i] = (byte) u;
-				u >>>= 8;
+				int nbatches = mlen / (WIDE_BLOCKS * 64);
+				int n = nbatches * WIDE_BLOCKS * 64;
+
+				stream_xor_wide(c, coffset, m, moffset, nbatches, k0, k1, k2, k3, k4, k5, k6, k7, n0, n1, block);
+				coffset += n;
+				moffset += n;
+				mlen -= n;
+				block += (long) nbatches * WIDE_BLOCKS;
+				continue;
 			}
 
-			mlen -= 64;
-			coffset += 64;
-			moffset += 64;
-		}
+			int j8 = (int) block;
+			int j9 = (int) (block >>> 32);
+
+			x0 = SIGMA0;
+			x1 = k0;
+			x2 = k1;
+			x3 = k2;
+			x4 = k3;
+			x5 = SIGMA1;
+			x6 = n0;
+			x7 = n1;
+			x8 = j8;
+			x9 = j9;
+			x10 = SIGMA2;
+			x11 = k4;
+			x12 = k5;
+			x13 = k6;
+			x14 = k7;
+			x15 = SIGMA3;
+
+			for (i = ROUNDS; i > 0; i -= 2)
+			{
+				x4 ^= rotate(x0 + x12, 7);
+				x8 ^= rotate(x4 + x0, 9);
+				x12 ^= rotate(x8 + x4, 13);
+				x0 ^= rotate(x12 + x8, 18);
+				x9 ^= rotate(x5 + x1, 7);
+				x13 ^= rotate(x9 + x5, 9);
+				x1 ^= rotate(x13 + x9, 13);
+				x5 ^= rotate(x1 + x13, 18);
+				x14 ^= rotate(x10 + x6, 7);
+				x2 ^= rotate(x14 + x10, 9);
+				x6 ^= rotate(x2 + x14, 13);
+				x10 ^= rotate(x6 + x2, 18);
+				x3 ^= rotate(x15 + x11, 7);
+				x7 ^= rotate(x3 + x15, 9);
+				x11 ^= rotate(x7 + x3, 13);
+				x15 ^= rotate(x11 + x7, 18);
+				x1 ^= rotate(x0 + x3, 7);
+				x2 ^= rotate(x1 + x0, 9);
+				x3 ^= rotate(x2 + x1, 13);
+				x0 ^= rotate(x3 + x2, 18);
+				x6 ^= rotate(x5 + x4, 7);
+				x7 ^= rotate(x6 + x5, 9);
+				x4 ^= rotate(x7 + x6, 13);
+				x5 ^= rotate(x4 + x7, 18);
+				x11 ^= rotate(x10 + x9, 7);
+				x8 ^= rotate(x11 + x10, 9);
+				x9 ^= rotate(x8 + x11, 13);
+				x10 ^= rotate(x9 + x8, 18);
+				x12 ^= rotate(x15 + x14, 7);
+				x13 ^= rotate(x12 + x15, 9);
+				x14 ^= rotate(x13 + x12, 13);
+				x15 ^= rotate(x14 + x13, 18);
+			}
 
-		if (mlen != 0)
-		{
-			salsa20.crypto_core(block, inv, k, xsalsa20.sigma);
-			
-			for (int i = 0; i < mlen; ++i)
-				c[coffset + i] = (byte)(m[moffset + i] ^ block[i]);
+			x0 += SIGMA0;
+			x1 += k0;
+			x2 += k1;
+			x3 += k2;
+			x4 += k3;
+			x5 += SIGMA1;
+			x6 += n0;
+			x7 += n1;
+			x8 += j8;
+			x9 += j9;
+			x10 += SIGMA2;
+			x11 += k4;
+			x12 += k5;
+			x13 += k6;
+			x14 += k7;
+			x15 += SIGMA3;
+
+			if (c0 != null)
+			{
+				store_littleendian(c0, 0, x0);
+				store_littleendian(c0, 4, x1);
+				store_littleendian(c0, 8, x2);
+				store_littleendian(c0, 12, x3);
+				store_littleendian(c0, 16, x4);
+				store_littleendian(c0, 20, x5);
+				store_littleendian(c0, 24, x6);
+				store_littleendian(c0, 28, x7);
+				c0 = null;
+			}
+
+			if (skip == 0 && mlen >= 64)
+			{
+				/* full block, straight into the output */
+				xor_word(c, coffset + 0, m, moffset + 0, x0);
+				xor_word(c, coffset + 4, m, moffset + 4, x1);
+				xor_word(c, coffset + 8, m, moffset + 8, x2);
+				xor_word(c, coffset + 12, m, moffset + 12, x3);
+				xor_word(c, coffset + 16, m, moffset + 16, x4);
+				xor_word(c, coffset + 20, m, moffset + 20, x5);
+				xor_word(c, coffset + 24, m, moffset + 24, x6);
+				xor_word(c, coffset + 28, m, moffset + 28, x7);
+				xor_word(c, coffset + 32, m, moffset + 32, x8);
+				xor_word(c, coffset + 36, m, moffset + 36, x9);
+				xor_word(c, coffset + 40, m, moffset + 40, x10);
+				xor_word(c, coffset + 44, m, moffset + 44, x11);
+				xor_word(c, coffset + 48, m, moffset + 48, x12);
+				xor_word(c, coffset + 52, m, moffset + 52, x13);
+				xor_word(c, coffset + 56, m, moffset + 56, x14);
+				xor_word(c, coffset + 60, m, moffset + 60, x15);
+
+				coffset += 64;
+				moffset += 64;
+				mlen -= 64;
+			}
+			else if (mlen > 0)
+			{
+				/* partial block: keystream bytes [skip, end) */
+				int end = Math.min(64, skip + mlen);
+				xor_partial(c, coffset, m, moffset, x0, 0, skip, end);
+				xor_partial(c, coffset, m, moffset, x1, 4, skip, end);
+				xor_partial(c, coffset, m, moffset, x2, 8, skip, end);
+				xor_partial(c, coffset, m, moffset, x3, 12, skip, end);
+				xor_partial(c, coffset, m, moffset, x4, 16, skip, end);
+				xor_partial(c, coffset, m, moffset, x5, 20, skip, end);
+				xor_partial(c, coffset, m, moffset, x6, 24, skip, end);
+				xor_partial(c, coffset, m, moffset, x7, 28, skip, end);
+				xor_partial(c, coffset, m, moffset, x8, 32, skip, end);
+				xor_partial(c, coffset, m, moffset, x9, 36, skip, end);
+				xor_partial(c, coffset, m, moffset, x10, 40, skip, end);
+				xor_partial(c, coffset, m, moffset, x11, 44, skip, end);
+				xor_partial(c, coffset, m, moffset, x12, 48, skip, end);
+				xor_partial(c, coffset, m, moffset, x13, 52, skip, end);
+				xor_partial(c, coffset, m, moffset, x14, 56, skip, end);
+				xor_partial(c, coffset, m, moffset, x15, 60, skip, end);
+
+				coffset += end - skip;
+				moffset += end - skip;
+				mlen -= end - skip;
+				skip = 0;
+			}
+
+			block++;
 		}
-		
-		return 0;
 	}
 
-    public static int crypto_stream_xor_skip32(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, int mlen, byte[] n, int noffset, byte[] k)
-    {
-        /* Variant of crypto_stream_xor that outputs the first 32 bytes of the cipherstream to c0 */
+	/* blocks per batch of the wide engine; large enough for the JIT to vectorize the lane loops */
+	static final int WIDE_BLOCKS = 256;
 
-        int u;
-        byte[] inv = new byte[16];
-        byte[] prevblock = new byte[64];
-        byte[] curblock = new byte[64];
+	/*
+	 * The wide engine can be switched off with -Dcom.neilalexander.jnacl.salsa20.wide=false (e.g. on a
+	 * JIT that does not vectorize); both engines produce the same output.
+	 */
+	static final boolean WIDE = !"false".equals(System.getProperty("com.neilalexander.jnacl.salsa20.wide"));
 
-        if (mlen == 0)
-            return 0;
+	/* lane state of the wide engine, kept per thread so that a call allocates nothing */
+	private static final ThreadLocal<int[][]> WIDE_STATE = new ThreadLocal<int[][]>()
+	{
+		@Override
+		protected int[][] initialValue()
+		{
+			return new int[16][WIDE_BLOCKS];
+		}
+	};
+
+	/*
+	 * Multi-block engine for long messages: computes WIDE_BLOCKS keystream blocks at once, with the
+	 * state held as sixteen arrays of lanes (x[i][l] is word i of block l). Every step of the double
+	 * round is then a simple loop over independent lanes, which HotSpot's C2 compiles to SIMD
+	 * instructions, so several blocks are computed per instruction. Processes nbatches * WIDE_BLOCKS
+	 * full blocks starting at block number block.
+	 */
+	static void stream_xor_wide(byte[] c, int coffset, byte[] m, int moffset, int nbatches,
+								int k0, int k1, int k2, int k3, int k4, int k5, int k6, int k7,
+								int n0, int n1, long block)
+	{
+		int[][] x = WIDE_STATE.get();
+		int i, l;
 
-        for (int i = 0; i < 8; ++i)
-            inv[i] = n[noffset + i];
+		for (; nbatches > 0; --nbatches)
+		{
+			Arrays.fill(x[0], SIGMA0);
+			Arrays.fill(x[1], k0);
+			Arrays.fill(x[2], k1);
+			Arrays.fill(x[3], k2);
+			Arrays.fill(x[4], k3);
+			Arrays.fill(x[5], SIGMA1);
+			Arrays.fill(x[6], n0);
+			Arrays.fill(x[7], n1);
+			Arrays.fill(x[10], SIGMA2);
+			Arrays.fill(x[11], k4);
+			Arrays.fill(x[12], k5);
+			Arrays.fill(x[13], k6);
+			Arrays.fill(x[14], k7);
+			Arrays.fill(x[15], SIGMA3);
+			for (l = 0; l < WIDE_BLOCKS; ++l)
+			{
+				x[8][l] = (int) (block + l);
+				x[9][l] = (int) ((block + l) >>> 32);
+			}
 
-        for (int i = 8; i < 16; ++i)
-            inv[i] = 0;
+			for (i = ROUNDS; i > 0; i -= 2)
+				wide_doubleround(x);
 
-        /* calculate first block */
-        salsa20.crypto_core(prevblock, inv, k, xsalsa20.sigma);
+			/* feed-forward of the block counter; the other input words are the same in every lane and are added in wide_out */
+			for (l = 0; l < WIDE_BLOCKS; ++l)
+			{
+				x[8][l] += (int) (block + l);
+				x[9][l] += (int) ((block + l) >>> 32);
+			}
+			wide_out(c, coffset, m, moffset, x, k0, k1, k2, k3, k4, k5, k6, k7, n0, n1);
 
-        /* extract first 32 bytes of cipherstream into c0 */
-        if (c0 != null)
-            System.arraycopy(prevblock, 0, c0, 0, 32);
+			coffset += WIDE_BLOCKS * 64;
+			moffset += WIDE_BLOCKS * 64;
+			block += WIDE_BLOCKS;
+		}
+	}
 
-        while (mlen >= 64)
-        {
-            u = 1;
-            for (int i = 8; i < 16; ++i)
-            {
-                u += inv[i]&0xff;
-                inv[i] = (byte) u;
-                u >>>= 8;
-            }
+	/* one column round and one row round over all lanes */
+	static void wide_doubleround(int[][] x)
+	{
+		wide_quarterround(x[0], x[4], x[8], x[12]);
+		wide_quarterround(x[5], x[9], x[13], x[1]);
+		wide_quarterround(x[10], x[14], x[2], x[6]);
+		wide_quarterround(x[15], x[3], x[7], x[11]);
+		wide_quarterround(x[0], x[1], x[2], x[3]);
+		wide_quarterround(x[5], x[6], x[7], x[4]);
+		wide_quarterround(x[10], x[11], x[8], x[9]);
+		wide_quarterround(x[15], x[12], x[13], x[14]);
+	}
 
-            salsa20.crypto_core(curblock, inv, k, xsalsa20.sigma);
+	/* the rotations are written out so that C2 recognizes and vectorizes them */
+	static void wide_quarterround(int[] a, int[] b, int[] c, int[] d)
+	{
+		for (int l = 0; l < WIDE_BLOCKS; ++l)
+		{
+			int al = a[l], bl = b[l], cl = c[l], dl = d[l], t;
 
-            for (int i = 0; i < 32; ++i)
-                c[coffset + i] = (byte)(m[moffset + i] ^ prevblock[i+32]);
+			t = al + dl; bl ^= (t << 7) | (t >>> 25);
+			t = bl + al; cl ^= (t << 9) | (t >>> 23);
+			t = cl + bl; dl ^= (t << 13) | (t >>> 19);
+			t = dl + cl; al ^= (t << 18) | (t >>> 14);
 
-            for (int i = 32; i < 64; ++i)
-                c[coffset + i] = (byte)(m[moffset + i] ^ curblock[i-32]);
+			a[l] = al;
+			b[l] = bl;
+			c[l] = cl;
+			d[l] = dl;
+		}
+	}
 
-            mlen -= 64;
-            coffset += 64;
-            moffset += 64;
+	/* XOR the batch into the output one block at a time, in order, so that c may trail m in the same array */
+	static void wide_out(byte[] c, int coffset, byte[] m, int moffset, int[][] x,
+						 int k0, int k1, int k2, int k3, int k4, int k5, int k6, int k7, int n0, int n1)
+	{
+		int[] x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3], x4 = x[4], x5 = x[5], x6 = x[6], x7 = x[7];
+		int[] x8 = x[8], x9 = x[9], x10 = x[10], x11 = x[11], x12 = x[12], x13 = x[13], x14 = x[14], x15 = x[15];
 
-            byte[] tmpblock = prevblock;
-            prevblock = curblock;
-            curblock = tmpblock;
-        }
+		for (int l = 0; l < WIDE_BLOCKS; ++l)
+		{
+			xor_word(c, coffset + 0, m, moffset + 0, x0[l] + SIGMA0);
+			xor_word(c, coffset + 4, m, moffset + 4, x1[l] + k0);
+			xor_word(c, coffset + 8, m, moffset + 8, x2[l] + k1);
+			xor_word(c, coffset + 12, m, moffset + 12, x3[l] + k2);
+			xor_word(c, coffset + 16, m, moffset + 16, x4[l] + k3);
+			xor_word(c, coffset + 20, m, moffset + 20, x5[l] + SIGMA1);
+			xor_word(c, coffset + 24, m, moffset + 24, x6[l] + n0);
+			xor_word(c, coffset + 28, m, moffset + 28, x7[l] + n1);
+			xor_word(c, coffset + 32, m, moffset + 32, x8[l]);
+			xor_word(c, coffset + 36, m, moffset + 36, x9[l]);
+			xor_word(c, coffset + 40, m, moffset + 40, x10[l] + SIGMA2);
+			xor_word(c, coffset + 44, m, moffset + 44, x11[l] + k4);
+			xor_word(c, coffset + 48, m, moffset + 48, x12[l] + k5);
+			xor_word(c, coffset + 52, m, moffset + 52, x13[l] + k6);
+			xor_word(c, coffset + 56, m, moffset + 56, x14[l] + k7);
+			xor_word(c, coffset + 60, m, moffset + 60, x15[l] + SIGMA3);
 
-        if (mlen != 0)
-        {
-            u = 1;
-            for (int i = 8; i < 16; ++i)
-            {
-                u += inv[i]&0xff;
-                inv[i] = (byte) u;
-                u >>>= 8;
-            }
+			coffset += 64;
+			moffset += 64;
+		}
+	}
 
-            salsa20.crypto_core(curblock, inv, k, xsalsa20.sigma);
+	static void xor_word(byte[] c, int coffset, byte[] m, int moffset, int w)
+	{
+		if (m != null)
+			w ^= load_littleendian(m, moffset);
 
-            for (int i = 0; i < mlen && i < 32; ++i)
-                c[coffset + i] = (byte)(m[moffset + i] ^ prevblock[i+32]);
+		store_littleendian(c, coffset, w);
+	}
 
-            for (int i = 32; i < mlen && i < 64; ++i)
-                c[coffset + i] = (byte)(m[moffset + i] ^ curblock[i-32]);
-        }
+	static void xor_partial(byte[] c, int coffset, byte[] m, int moffset, int w, int wpos, int start, int end)
+	{
+		/* XOR the bytes of keystream word w (at block position wpos) that fall into [start, end) */
+		int from = Math.max(wpos, start);
+		int to = Math.min(wpos + 4, end);
 
-        return 0;
-    }
+		for (int b = from; b < to; ++b)
+		{
+			byte ks = (byte) (w >>> (8 * (b - wpos)));
+			c[coffset + b - start] = m != null ? (byte) (m[moffset + b - start] ^ ks) : ks;
+		}
+	}
 }
@@ -39,27 +39,98 @@ public class xsalsa20
 	
 	public static int crypto_stream(byte[] c, int clen, byte[] n, byte[] k)
 	{
-		byte[] subkey = new byte[32];
-		
-		hsalsa20.crypto_core(subkey, n, k, sigma);
-		return salsa20.crypto_stream(c, clen, n, 16, subkey);
+		return crypto_stream_xor_at(null, c, 0, null, 0, clen, n, k, 0);
 	}
 	
 	public static int crypto_stream_xor(byte[] c, byte[] m, long mlen, byte[] n, byte[] k)
 	{
-		byte[] subkey = new byte[32];
-		
-		hsalsa20.crypto_core(subkey, n, k, sigma);
-		return salsa20.crypto_stream_xor(c, m, (int) mlen, n, 16, subkey);
+		return crypto_stream_xor_at(null, c, 0, m, 0, mlen, n, k, 0);
 	}
 
     public static int crypto_stream_xor_skip32(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, long mlen, byte[] n, byte[] k)
     {
         /* Variant of crypto_stream_xor that outputs the first 32 bytes of the cipherstream to c0 */
 
-        byte[] subkey = new byte[32];
-
-        hsalsa20.crypto_core(subkey, n, k, sigma);
-        return salsa20.crypto_stream_xor_skip32(c0, c, coffset, m, moffset, (int) mlen, n, 16, subkey);
+        return crypto_stream_xor_at(c0, c, coffset, m, moffset, mlen, n, k, 32);
     }
+
+	/**
+	 * XSalsa20 with an explicit stream position: XORs mlen bytes of keystream, starting at
+	 * byte {@code position} of the stream, from m into c at the given offsets (m may be null to
+	 * obtain the plain keystream). If c0 is not null, it receives the first 32 bytes of the
+	 * keystream (position must then be below 64). The HSalsa20 subkey is derived into locals and
+	 * handed to {@link salsa20#stream_xor}, so a call allocates nothing.
+	 */
+	public static int crypto_stream_xor_at(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, long mlen, byte[] n, byte[] k, long position)
+	{
+		return crypto_stream_xor_at(c0, c, coffset, m, moffset, mlen, n, k, position, salsa20.WIDE);
+	}
+
+	/* crypto_stream_xor_at with an explicit choice of Salsa20 engine, for tests and benchmarks */
+	static int crypto_stream_xor_at(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, long mlen, byte[] n, byte[] k, long position, boolean wide)
+	{
+		int x0, x1, x2, x3, x4, x5, x6, x7, x8, x9, x10, x11, x12, x13, x14, x15;
+		int i;
+
+		/* HSalsa20(k, n[0..15]) */
+		x0 = salsa20.SIGMA0;
+		x1 = salsa20.load_littleendian(k, 0);
+		x2 = salsa20.load_littleendian(k, 4);
+		x3 = salsa20.load_littleendian(k, 8);
+		x4 = salsa20.load_littleendian(k, 12);
+		x5 = salsa20.SIGMA1;
+		x6 = salsa20.load_littleendian(n, 0);
+		x7 = salsa20.load_littleendian(n, 4);
+		x8 = salsa20.load_littleendian(n, 8);
+		x9 = salsa20.load_littleendian(n, 12);
+		x10 = salsa20.SIGMA2;
+		x11 = salsa20.load_littleendian(k, 16);
+		x12 = salsa20.load_littleendian(k, 20);
+		x13 = salsa20.load_littleendian(k, 24);
+		x14 = salsa20.load_littleendian(k, 28);
+		x15 = salsa20.SIGMA3;
+
+		for (i = salsa20.ROUNDS; i > 0; i -= 2)
+		{
+			x4 ^= salsa20.rotate(x0 + x12, 7);
+			x8 ^= salsa20.rotate(x4 + x0, 9);
+			x12 ^= salsa20.rotate(x8 + x4, 13);
+			x0 ^= salsa20.rotate(x12 + x8, 18);
+			x9 ^= salsa20.rotate(x5 + x1, 7);
+			x13 ^= salsa20.rotate(x9 + x5, 9);
+			x1 ^= salsa20.rotate(x13 + x9, 13);
+			x5 ^= salsa20.rotate(x1 + x13, 18);
+			x14 ^= salsa20.rotate(x10 + x6, 7);
+			x2 ^= salsa20.rotate(x14 + x10, 9);
+			x6 ^= salsa20.rotate(x2 + x14, 13);
+			x10 ^= salsa20.rotate(x6 + x2, 18);
+			x3 ^= salsa20.rotate(x15 + x11, 7);
+			x7 ^= salsa20.rotate(x3 + x15, 9);
+			x11 ^= salsa20.rotate(x7 + x3, 13);
+			x15 ^= salsa20.rotate(x11 + x7, 18);
+			x1 ^= salsa20.rotate(x0 + x3, 7);
+			x2 ^= salsa20.rotate(x1 + x0, 9);
+			x3 ^= salsa20.rotate(x2 + x1, 13);
+			x0 ^= salsa20.rotate(x3 + x2, 18);
+			x6 ^= salsa20.rotate(x5 + x4, 7);
+			x7 ^= salsa20.rotate(x6 + x5, 9);
+			x4 ^= salsa20.rotate(x7 + x6, 13);
+			x5 ^= salsa20.rotate(x4 + x7, 18);
+			x11 ^= salsa20.rotate(x10 + x9, 7);
+			x8 ^= salsa20.rotate(x11 + x10, 9);
+			x9 ^= salsa20.rotate(x8 + x11, 13);
+			x10 ^= salsa20.rotate(x9 + x8, 18);
+			x12 ^= salsa20.rotate(x15 + x14, 7);
+			x13 ^= salsa20.rotate(x12 + x15, 9);
+			x14 ^= salsa20.rotate(x13 + x12, 13);
+			x15 ^= salsa20.rotate(x14 + x13, 18);
+		}
+
+		/* subkey = (x0, x5, x10, x15, x6, x7, x8, x9) */
+		salsa20.stream_xor(c0, c, coffset, m, moffset, (int) mlen,
+				x0, x5, x10, x15, x6, x7, x8, x9,
+				salsa20.load_littleendian(n, 16), salsa20.load_littleendian(n, 20), position, wide);
+
+		return 0;
+	}
 }
@@ -27,6 +27,9 @@
 
 package com.neilalexander.jnacl.crypto;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 public class xsalsa20poly1305
 {
 	final int crypto_secretbox_KEYBYTES = 32;
@@ -54,7 +57,7 @@ public class xsalsa20poly1305
          * 16 zero bytes before c */
         byte[] c0 = new byte[32];
 
-        xsalsa20.crypto_stream_xor_skip32(c0, c, coffset+16, m, moffset, mlen, n, k);
+        xsalsa20.crypto_stream_xor_at(c0, c, coffset+16, m, moffset, mlen, n, k, 32);
         poly1305.crypto_onetimeauth(c, coffset, c, coffset+16, mlen, c0);
 
         return 0;
@@ -90,13 +93,149 @@ public class xsalsa20poly1305
 
         byte[] subkeyp = new byte[32];
 
-        xsalsa20.crypto_stream(subkeyp, 32, n, k);
+        xsalsa20.crypto_stream_xor_at(subkeyp, null, 0, null, 0, 0, n, k, 32);
 
         if (poly1305.crypto_onetimeauth_verify(c, coffset, c, coffset+16, clen - 16, subkeyp) != 0)
             return -1;
 
-        xsalsa20.crypto_stream_xor_skip32(null, m, moffset, c, coffset+16, clen - 16, n, k);
+        xsalsa20.crypto_stream_xor_at(null, m, moffset, c, coffset+16, clen - 16, n, k, 32);
 
         return 0;
     }
+
+	/*
+	 * Parallel variants of crypto_secretbox_nopad and crypto_secretbox_open_nopad for large
+	 * messages, with bit-identical results. The message is split into chunks of chunklen bytes
+	 * (a multiple of 64) that are processed on pool: the keystream of each chunk starts at its
+	 * own position, and each chunk's Poly1305 accumulator is scaled by r^(number of blocks
+	 * after the chunk), so that the sum of all chunk accumulators is the accumulator of the
+	 * whole message.
+	 */
+	static public int crypto_secretbox_nopad_parallel(byte[] c, int coffset, byte[] m, int moffset, long mlen, byte[] n, byte[] k,
+													  ForkJoinPool pool, int chunklen)
+	{
+		checkchunklen(chunklen);
+
+		if (c == m && coffset + 16 != moffset)
+		{
+			/* overlapping in/out at different offsets: move the plaintext into place first */
+			System.arraycopy(m, moffset, c, coffset + 16, (int) mlen);
+			m = c;
+			moffset = coffset + 16;
+		}
+
+		byte[] c0 = new byte[32];
+		xsalsa20.crypto_stream_xor_at(c0, null, 0, null, 0, 0, n, k, 32);
+
+		long[] h = pool.invoke(new chunktask(c, coffset + 16, m, moffset, 0, (int) mlen, (int) mlen, n, k, c0, chunklen, true));
+		poly1305.finish(c, coffset, h, c0);
+
+		return 0;
+	}
+
+	static public int crypto_secretbox_open_nopad_parallel(byte[] m, int moffset, byte[] c, int coffset, long clen, byte[] n, byte[] k,
+														   ForkJoinPool pool, int chunklen)
+	{
+		checkchunklen(chunklen);
+
+		if (clen < 16)
+			return -1;
+
+		int len = (int) (clen - 16);
+		byte[] subkeyp = new byte[32];
+		xsalsa20.crypto_stream_xor_at(subkeyp, null, 0, null, 0, 0, n, k, 32);
+
+		/* authenticate everything before decrypting anything */
+		long[] h = pool.invoke(new chunktask(null, 0, c, coffset + 16, 0, len, len, n, k, subkeyp, chunklen, false));
+		byte[] correct = new byte[16];
+		poly1305.finish(correct, 0, h, subkeyp);
+		if (verify_16.crypto_verify(c, coffset, correct) != 0)
+			return -1;
+
+		if (m == c && moffset != coffset + 16)
+		{
+			/* chunks writing into their neighbours' input would race: decrypt in place, then move */
+			pool.invoke(new chunktask(c, coffset + 16, c, coffset + 16, 0, len, len, n, k, null, chunklen, false));
+			System.arraycopy(c, coffset + 16, m, moffset, len);
+		}
+		else
+		{
+			pool.invoke(new chunktask(m, moffset, c, coffset + 16, 0, len, len, n, k, null, chunklen, false));
+		}
+
+		return 0;
+	}
+
+	static void checkchunklen(int chunklen)
+	{
+		if (chunklen <= 0 || (chunklen & 63) != 0)
+			throw new IllegalArgumentException("chunk length must be a positive multiple of 64");
+	}
+
+	/*
+	 * Processes bytes [from, to) of a message of len bytes: XORs the keystream into out (if out
+	 * is not null) and, if polykey is not null, returns the Poly1305 accumulator of the
+	 * ciphertext in that range, scaled to its place in the whole message. The ciphertext is
+	 * the output when encrypting and the input otherwise.
+	 */
+	static class chunktask extends RecursiveTask<long[]>
+	{
+		private static final long serialVersionUID = 1L;
+
+		final byte[] out, in;
+		final int outoffset, inoffset, from, to, len, chunklen;
+		final byte[] n, k, polykey;
+		final boolean encrypt;
+
+		chunktask(byte[] out, int outoffset, byte[] in, int inoffset, int from, int to, int len,
+				  byte[] n, byte[] k, byte[] polykey, int chunklen, boolean encrypt)
+		{
+			this.out = out;
+			this.outoffset = outoffset;
+			this.in = in;
+			this.inoffset = inoffset;
+			this.from = from;
+			this.to = to;
+			this.len = len;
+			this.n = n;
+			this.k = k;
+			this.polykey = polykey;
+			this.chunklen = chunklen;
+			this.encrypt = encrypt;
+		}
+
+		@Override
+		protected long[] compute()
+		{
+			int chunks = (to - from + chunklen - 1) / chunklen;
+
+			if (chunks > 1)
+			{
+				int mid = from + (chunks / 2) * chunklen;
+				chunktask right = new chunktask(out, outoffset, in, inoffset, mid, to, len, n, k, polykey, chunklen, encrypt);
+				right.fork();
+				long[] h = new chunktask(out, outoffset, in, inoffset, from, mid, len, n, k, polykey, chunklen, encrypt).compute();
+				long[] g = right.join();
+
+				if (h != null)
+					poly1305.add(h, g);
+				return h;
+			}
+
+			if (out != null)
+				xsalsa20.crypto_stream_xor_at(null, out, outoffset + from, in, inoffset + from, to - from, n, k, 32 + from);
+
+			if (polykey == null)
+				return null;
+
+			long[] h = new long[5];
+			if (encrypt)
+				poly1305.blocks(h, polykey, out, outoffset + from, to - from);
+			else
+				poly1305.blocks(h, polykey, in, inoffset + from, to - from);
+			poly1305.mulpow(h, polykey, (len - to + 15) / 16);
+
+			return h;
+		}
+	}
 }
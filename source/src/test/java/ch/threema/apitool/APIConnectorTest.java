@@ -0,0 +1,205 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class APIConnectorTest {
+
+	private final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+
+	/* run once after the next fetch from the store, before it returns */
+	private volatile Runnable afterFetch;
+
+	private final PublicKeyStore store = new PublicKeyStore() {
+		@Override
+		protected byte[] fetchPublicKey(String threemaId) {
+			byte[] key = stored.get(threemaId);
+			Runnable action = afterFetch;
+			if (action != null) {
+				afterFetch = null;
+				action.run();
+			}
+			return key;
+		}
+
+		@Override
+		protected void save(String threemaId, byte[] publicKey) {
+			stored.put(threemaId, publicKey);
+		}
+	};
+
+	/* a connector whose key requests are answered from a map, optionally after a latch opens */
+	private class TestConnector extends APIConnector {
+		final Map<String, byte[]> server = new ConcurrentHashMap<>();
+		final AtomicInteger requests = new AtomicInteger();
+		final CountDownLatch requesting = new CountDownLatch(1);
+		volatile CountDownLatch release;
+
+		TestConnector() {
+			this(store);
+		}
+
+		TestConnector(PublicKeyStore store) {
+			super("*TESTING", "secret", store);
+		}
+
+		@Override
+		byte[] requestPublicKey(String id) throws IOException {
+			requests.incrementAndGet();
+			requesting.countDown();
+			if (release != null) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			if (id.startsWith("FAIL"))
+				throw new IOException("server unavailable");
+			return server.get(id);
+		}
+	}
+
+	@Test
+	public void testReadThrough() throws Exception {
+		TestConnector connector = new TestConnector();
+		connector.server.put("ECHOECHO", key(1));
+
+		Assert.assertEquals(key(1), connector.lookupKey("ECHOECHO"));
+		Assert.assertEquals(key(1), stored.get("ECHOECHO"));
+		Assert.assertEquals(key(1), connector.lookupKey("ECHOECHO"));
+		Assert.assertEquals(1, connector.requests.get());
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final TestConnector connector = new TestConnector();
+		connector.server.put("ECHOECHO", key(2));
+		connector.release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++)
+				results.add(executor.submit(() -> connector.lookupKey("ECHOECHO")));
+			Assert.assertTrue(connector.requesting.await(10, TimeUnit.SECONDS));
+			/* give the other lookups time to find the request in progress */
+			Thread.sleep(50);
+			connector.release.countDown();
+			for (Future<byte[]> result : results)
+				Assert.assertEquals(key(2), result.get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(1, connector.requests.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testStoredWhileMissing() throws Exception {
+		TestConnector connector = new TestConnector();
+		connector.server.put("ECHOECHO", key(4));
+
+		/* another lookup stores the key after this one missed the store, then finishes */
+		afterFetch = () -> store.setPublicKey("ECHOECHO", key(4));
+		Assert.assertEquals(key(4), connector.lookupKey("ECHOECHO"));
+		Assert.assertEquals(0, connector.requests.get());
+	}
+
+	@Test
+	public void testSaveFailure() throws Exception {
+		PublicKeyStore failing = new PublicKeyStore() {
+			@Override
+			protected byte[] fetchPublicKey(String threemaId) {
+				return null;
+			}
+
+			@Override
+			protected void save(String threemaId, byte[] publicKey) {
+				throw new IllegalStateException("store unavailable");
+			}
+		};
+		TestConnector connector = new TestConnector(failing);
+		connector.server.put("ECHOECHO", key(5));
+
+		/* the fetched key is returned and cached even though it could not be saved */
+		Assert.assertEquals(key(5), connector.lookupKey("ECHOECHO"));
+		Assert.assertEquals(key(5), connector.lookupKey("ECHOECHO"));
+		Assert.assertEquals(1, connector.requests.get());
+	}
+
+	@Test
+	public void testNotFound() throws Exception {
+		TestConnector connector = new TestConnector();
+		Assert.assertNull(connector.lookupKey("UNKNOWN1"));
+		Assert.assertNull(connector.lookupKey("UNKNOWN1"));
+		Assert.assertEquals(1, connector.requests.get());
+
+		/* looked up again once the time is over */
+		connector.setNotFoundTtl(1, TimeUnit.MILLISECONDS);
+		Assert.assertNull(connector.lookupKey("UNKNOWN1"));
+		Thread.sleep(5);
+		connector.server.put("UNKNOWN1", key(3));
+		Assert.assertEquals(key(3), connector.lookupKey("UNKNOWN1"));
+		Assert.assertEquals(3, connector.requests.get());
+
+		connector.setNotFoundTtl(0, TimeUnit.SECONDS);
+		Assert.assertNull(connector.lookupKey("UNKNOWN2"));
+		Assert.assertNull(connector.lookupKey("UNKNOWN2"));
+		Assert.assertEquals(5, connector.requests.get());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		TestConnector connector = new TestConnector();
+		for (int i = 0; i < 2; i++) {
+			try {
+				connector.lookupKey("FAILFAIL");
+				Assert.fail("exception swallowed");
+			} catch (IOException e) {
+				Assert.assertEquals("server unavailable", e.getMessage());
+			}
+		}
+		/* errors are not remembered */
+		Assert.assertEquals(2, connector.requests.get());
+	}
+
+	private static byte[] key(int i) {
+		byte[] key = new byte[32];
+		key[0] = (byte) i;
+		return key;
+	}
+}
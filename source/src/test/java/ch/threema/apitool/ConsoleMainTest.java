@@ -0,0 +1,62 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import ch.threema.apitool.console.commands.GenerateKeyPairCommand;
+import ch.threema.apitool.console.commands.GenerateKeyPairsCommand;
+import ch.threema.apitool.console.commands.HashBulkCommand;
+import ch.threema.apitool.console.commands.HashEmailCommand;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConsoleMainTest {
+
+	private static ConsoleMain.Commands commands() {
+		ConsoleMain.Commands commands = new ConsoleMain.Commands();
+		commands.create("Local operations")
+				.add(new HashEmailCommand(), "-h", "-e")
+				.add(new HashBulkCommand(), "-h", "-b")
+				.add(new GenerateKeyPairCommand(), "-g")
+				.add(new GenerateKeyPairsCommand(), "-g", "-b");
+		return commands;
+	}
+
+	@Test
+	public void testShorterPrefixStillMatches() {
+		ConsoleMain.Commands commands = commands();
+		assertTrue(commands.find("-g").command instanceof GenerateKeyPairCommand);
+		assertTrue(commands.find("-g", "priv.txt", "pub.txt").command instanceof GenerateKeyPairCommand);
+		assertTrue(commands.find("-g", "-b", "10", "keys.bin").command instanceof GenerateKeyPairsCommand);
+	}
+
+	@Test
+	public void testIncompleteArgumentsShowUsage() {
+		ConsoleMain.Commands commands = commands();
+		assertNull(commands.find("-h"));
+		assertNull(commands.find("-x"));
+	}
+}
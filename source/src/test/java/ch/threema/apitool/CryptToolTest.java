@@ -24,12 +24,32 @@
 
 package ch.threema.apitool;
 
+import ch.threema.apitool.crypto.SharedKeyCache;
+import ch.threema.apitool.exceptions.BadMessageException;
+import ch.threema.apitool.exceptions.DecryptionFailedException;
+import ch.threema.apitool.messages.DeliveryReceipt;
+import ch.threema.apitool.messages.FileMessage;
 import ch.threema.apitool.messages.TextMessage;
 import ch.threema.apitool.messages.ThreemaMessage;
+import ch.threema.apitool.messages.Utf8Text;
+import ch.threema.apitool.results.DecryptResult;
 import ch.threema.apitool.results.EncryptResult;
+import ch.threema.apitool.results.UploadResult;
 import com.neilalexander.jnacl.NaCl;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class CryptToolTest {
 
 	@Test
@@ -98,4 +118,295 @@ public class CryptToolTest {
 		Assert.assertNotNull("derived public key", derivedPublicKey);
 		Assert.assertEquals(derivedPublicKey, publicKey.key);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testDecryptMessages() throws Exception {
+		byte[] recipientPrivateKey = new byte[NaCl.SECRETKEYBYTES];
+		byte[] recipientPublicKey = new byte[NaCl.PUBLICKEYBYTES];
+		CryptTool.generateKeyPair(recipientPrivateKey, recipientPublicKey);
+
+		byte[][] senderPrivateKeys = new byte[3][NaCl.SECRETKEYBYTES];
+		byte[][] senderPublicKeys = new byte[3][NaCl.PUBLICKEYBYTES];
+		for (int i = 0; i < senderPrivateKeys.length; i++)
+			CryptTool.generateKeyPair(senderPrivateKeys[i], senderPublicKeys[i]);
+
+		/* more boxes per sender than fit into one task */
+		List<IncomingBox> boxes = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			int sender = i % senderPrivateKeys.length;
+			EncryptResult res;
+			switch (i % 3) {
+				case 0:
+					res = CryptTool.encryptTextMessage("message " + i, senderPrivateKeys[sender], recipientPublicKey);
+					break;
+				case 1:
+					/* type, receipt type, message ID, one byte of padding */
+					byte[] receipt = { (byte) DeliveryReceipt.TYPE_CODE, 1, 1, 2, 3, 4, 5, 6, 7, (byte) i, 1 };
+					res = CryptTool.encrypt(receipt, senderPrivateKeys[sender], recipientPublicKey);
+					break;
+				default:
+					res = CryptTool.encryptFileMessage(new EncryptResult(new byte[0], new byte[32], null),
+							new UploadResult(200, new byte[16]), "text/plain", "file" + i + ".txt", i, null,
+							senderPrivateKeys[sender], recipientPublicKey);
+			}
+			boxes.add(new IncomingBox(res.getResult(), res.getNonce(), recipientPrivateKey, senderPublicKeys[sender], i));
+		}
+
+		/* a tampered box and one with a bad key */
+		byte[] tampered = boxes.get(5).getBox().clone();
+		tampered[20] ^= 1;
+		boxes.add(new IncomingBox(tampered, boxes.get(5).getNonce(), recipientPrivateKey, senderPublicKeys[2], "tampered"));
+		boxes.add(new IncomingBox(tampered, boxes.get(5).getNonce(), recipientPrivateKey, new byte[5], "bad key"));
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			List<DecryptResult> results = CryptTool.decryptMessages(boxes, executor);
+			Assert.assertEquals(boxes.size(), results.size());
+
+			for (int i = 0; i < 200; i++) {
+				DecryptResult result = results.get(i);
+				Assert.assertSame(boxes.get(i), result.getBox());
+				Assert.assertTrue(result.isSuccess());
+				ThreemaMessage message = result.getMessage();
+				switch (i % 3) {
+					case 0:
+						Assert.assertEquals("message " + i, ((TextMessage) message).getText());
+						break;
+					case 1:
+						Assert.assertEquals(i & 0xff, ((DeliveryReceipt) message).getAckedMessageIds().get(0).getMessageId()[7] & 0xff);
+						break;
+					default:
+						Assert.assertEquals("file" + i + ".txt", ((FileMessage) message).getFileName());
+				}
+			}
+
+			Assert.assertFalse(results.get(200).isSuccess());
+			Assert.assertTrue(results.get(200).getError() instanceof DecryptionFailedException);
+			Assert.assertFalse(results.get(201).isSuccess());
+			Assert.assertTrue(results.get(201).getError() instanceof IllegalArgumentException);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testDecryptMessagesSharedKeyOnce() throws Exception {
+		byte[] senderPrivateKey = new byte[NaCl.SECRETKEYBYTES];
+		byte[] senderPublicKey = new byte[NaCl.PUBLICKEYBYTES];
+		byte[] recipientPrivateKey = new byte[NaCl.SECRETKEYBYTES];
+		byte[] recipientPublicKey = new byte[NaCl.PUBLICKEYBYTES];
+		CryptTool.generateKeyPair(senderPrivateKey, senderPublicKey);
+		CryptTool.generateKeyPair(recipientPrivateKey, recipientPublicKey);
+
+		/* several tasks' worth of boxes from one sender */
+		List<IncomingBox> boxes = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			EncryptResult res = CryptTool.encryptTextMessage("message " + i, senderPrivateKey, recipientPublicKey);
+			boxes.add(new IncomingBox(res.getResult(), res.getNonce(), recipientPrivateKey, senderPublicKey));
+		}
+
+		SharedKeyCache previous = CryptTool.getSharedKeyCache();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			/* also without caching, where the chunks cannot share a cached key */
+			for (int size : new int[] { SharedKeyCache.DEFAULT_MAXIMUM_SIZE, 0 }) {
+				SharedKeyCache cache = new SharedKeyCache(size, 1, TimeUnit.MINUTES);
+				CryptTool.setSharedKeyCache(cache);
+				List<DecryptResult> results = CryptTool.decryptMessages(boxes, executor);
+				for (int i = 0; i < boxes.size(); i++)
+					Assert.assertEquals("message " + i, ((TextMessage) results.get(i).getMessage()).getText());
+				Assert.assertEquals(1, cache.getMissCount());
+			}
+		} finally {
+			CryptTool.setSharedKeyCache(previous);
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testEncryptTextMessages() throws Exception {
+		byte[] senderPrivateKey = new byte[NaCl.SECRETKEYBYTES];
+		byte[] senderPublicKey = new byte[NaCl.PUBLICKEYBYTES];
+		CryptTool.generateKeyPair(senderPrivateKey, senderPublicKey);
+
+		/* several chunks, with a partial one at the end */
+		List<byte[]> recipientPrivateKeys = new ArrayList<>();
+		final List<byte[]> recipientPublicKeys = new ArrayList<>();
+		for (int i = 0; i < 150; i++) {
+			byte[] privateKey = new byte[NaCl.SECRETKEYBYTES];
+			byte[] publicKey = new byte[NaCl.PUBLICKEYBYTES];
+			CryptTool.generateKeyPair(privateKey, publicKey);
+			recipientPrivateKeys.add(privateKey);
+			recipientPublicKeys.add(publicKey);
+		}
+
+		/* one recipient with a cached shared key */
+		CryptTool.encryptTextMessage("warm up", senderPrivateKey, recipientPublicKeys.get(7));
+
+		final Map<byte[], EncryptResult> results = new IdentityHashMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			CryptTool.encryptTextMessages("Broadcast äöü", senderPrivateKey, recipientPublicKeys, (publicKey, result) -> {
+				synchronized (results) {
+					Assert.assertNull(results.put(publicKey, result));
+				}
+			}, executor);
+		} finally {
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(recipientPublicKeys.size(), results.size());
+		for (int i = 0; i < recipientPublicKeys.size(); i++) {
+			EncryptResult result = results.get(recipientPublicKeys.get(i));
+			ThreemaMessage message = CryptTool.decryptMessage(result.getResult(), recipientPrivateKeys.get(i), senderPublicKey, result.getNonce());
+			Assert.assertEquals("Broadcast äöü", ((TextMessage) message).getText());
+		}
+	}
+
+	@Test
+	public void testEncryptTextMessagesFailure() {
+		byte[] senderPrivateKey = new byte[NaCl.SECRETKEYBYTES];
+		List<byte[]> recipientPublicKeys = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+			recipientPublicKeys.add(new byte[NaCl.PUBLICKEYBYTES]);
+
+		try {
+			CryptTool.encryptTextMessages("x", senderPrivateKey, recipientPublicKeys, (publicKey, result) -> {
+				throw new IllegalStateException("consumer failed");
+			});
+			Assert.fail("consumer exception not propagated");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("consumer failed", e.getMessage());
+		}
+
+		recipientPublicKeys.add(100, new byte[5]);
+		try {
+			CryptTool.encryptTextMessages("x", senderPrivateKey, recipientPublicKeys, (publicKey, result) -> { });
+			Assert.fail("bad key accepted");
+		} catch (IllegalArgumentException e) {
+			/* expected */
+		}
+	}
+
+	@Test
+	public void testEncryptTextMessagesInterrupted() {
+		byte[] senderPrivateKey = new byte[NaCl.SECRETKEYBYTES];
+		List<byte[]> recipientPublicKeys = new ArrayList<>();
+		for (int i = 0; i < 64 * 40; i++)
+			recipientPublicKeys.add(new byte[NaCl.PUBLICKEYBYTES]);
+
+		/* the first chunk is slow, so the caller has to wait for it */
+		final AtomicBoolean first = new AtomicBoolean(true);
+		final AtomicInteger consumed = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		Thread.currentThread().interrupt();
+		try {
+			CryptTool.encryptTextMessages("x", senderPrivateKey, recipientPublicKeys, (publicKey, result) -> {
+				if (first.getAndSet(false)) {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				consumed.incrementAndGet();
+			}, executor);
+			Assert.fail("interrupt ignored");
+		} catch (CancellationException e) {
+			Assert.assertTrue(Thread.interrupted());
+			Assert.assertTrue(consumed.get() < recipientPublicKeys.size());
+		} finally {
+			Thread.interrupted();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSealTextMessage() throws Exception {
+		Key senderPrivateKey = Key.decodeKey(Common.myPrivateKey);
+		Key senderPublicKey = Key.decodeKey(Common.myPublicKey);
+		Key recipientPrivateKey = Key.decodeKey(Common.otherPrivateKey);
+		Key recipientPublicKey = Key.decodeKey(Common.otherPublicKey);
+
+		for (String text : new String[] { "Dies ist eine Testnachricht. äöü", "😀", new String(new char[4000]).replace('\0', 'x') }) {
+			SealedBox sealed = CryptTool.sealTextMessage(text, senderPrivateKey.key, recipientPublicKey.key);
+			EncryptResult res = sealed.toEncryptResult();
+			Assert.assertEquals(sealed.getLength(), res.getSize());
+
+			ThreemaMessage message = CryptTool.decryptMessage(res.getResult(), recipientPrivateKey.key, senderPublicKey.key, res.getNonce());
+			Assert.assertEquals(text, ((TextMessage) message).getText());
+		}
+	}
+
+	@Test
+	public void testDecryptMessageView() throws Exception {
+		Key senderPrivateKey = Key.decodeKey(Common.myPrivateKey);
+		Key senderPublicKey = Key.decodeKey(Common.myPublicKey);
+		Key recipientPrivateKey = Key.decodeKey(Common.otherPrivateKey);
+		Key recipientPublicKey = Key.decodeKey(Common.otherPublicKey);
+
+		/* text: ASCII (not decoded) and non-ASCII */
+		for (String text : new String[] { "route me", "Dies ist eine Testnachricht. äöü 😀" }) {
+			EncryptResult res = CryptTool.encryptTextMessage(text, senderPrivateKey.key, recipientPublicKey.key);
+			TextMessage message = (TextMessage) CryptTool.decryptMessageView(res.getResult(), recipientPrivateKey.key, senderPublicKey.key, res.getNonce());
+			CharSequence chars = message.getCharSequence();
+			Assert.assertTrue(chars instanceof Utf8Text);
+			Assert.assertEquals(text.length(), chars.length());
+			Assert.assertEquals(text.charAt(3), chars.charAt(3));
+			Assert.assertEquals(text.substring(1, 5), chars.subSequence(1, 5).toString());
+			Assert.assertEquals(text, message.getText());
+			Assert.assertEquals(text, new String(message.getData(), "UTF-8"));
+		}
+
+		/* delivery receipt with three little-endian message IDs: 1, 0x8000000000000002 and -1 */
+		byte[] receipt = { (byte) DeliveryReceipt.TYPE_CODE, 2,
+				1, 0, 0, 0, 0, 0, 0, 0,
+				2, 0, 0, 0, 0, 0, 0, -128,
+				-1, -1, -1, -1, -1, -1, -1, -1,
+				1 };
+		EncryptResult res = CryptTool.encrypt(receipt, senderPrivateKey.key, recipientPublicKey.key);
+		DeliveryReceipt view = (DeliveryReceipt) CryptTool.decryptMessageView(res.getResult(), recipientPrivateKey.key, senderPublicKey.key, res.getNonce());
+		DeliveryReceipt full = (DeliveryReceipt) CryptTool.decryptMessage(res.getResult(), recipientPrivateKey.key, senderPublicKey.key, res.getNonce());
+		Assert.assertEquals(DeliveryReceipt.Type.READ, view.getReceiptType());
+		Assert.assertEquals(3, view.getAckedMessageCount());
+		Assert.assertEquals(1L, view.getAckedMessageId(0));
+		Assert.assertEquals(0x8000000000000002L, view.getAckedMessageId(1));
+		Assert.assertEquals(-1L, view.getAckedMessageId(2));
+		Assert.assertEquals(full.toString(), view.toString());
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(full.getAckedMessageId(i), view.getAckedMessageId(i));
+			Assert.assertEquals(full.getAckedMessageIds().get(i).getMessageId(), view.getAckedMessageIds().get(i).getMessageId());
+			Assert.assertEquals(full.getAckedMessageIds().get(i).getMessageId(),
+					MessageId.fromLong(view.getAckedMessageId(i)).getMessageId());
+		}
+
+		/* file message: parsed on access */
+		res = CryptTool.encryptFileMessage(new EncryptResult(new byte[0], new byte[32], null),
+				new UploadResult(200, new byte[16]), "text/plain", "äöü.txt", 1234, null,
+				senderPrivateKey.key, recipientPublicKey.key);
+		FileMessage file = (FileMessage) CryptTool.decryptMessageView(res.getResult(), recipientPrivateKey.key, senderPublicKey.key, res.getNonce());
+		Assert.assertEquals("äöü.txt", file.getFileName());
+		Assert.assertEquals("text/plain", file.getMimeType());
+		Assert.assertEquals(1234, file.getFileSize());
+		Assert.assertEquals(new byte[32], file.getEncryptionKey());
+
+		/* malformed file message: only detected on access */
+		byte[] bad = "\u0017{\"b\":".getBytes("UTF-8");
+		bad = Arrays.copyOf(bad, bad.length + 1);
+		bad[bad.length - 1] = 1;
+		res = CryptTool.encrypt(bad, senderPrivateKey.key, recipientPublicKey.key);
+		file = (FileMessage) CryptTool.decryptMessageView(res.getResult(), recipientPrivateKey.key, senderPublicKey.key, res.getNonce());
+		try {
+			file.parse();
+			Assert.fail("malformed file message parsed");
+		} catch (BadMessageException e) {
+			/* expected */
+		}
+		try {
+			file.getFileName();
+			Assert.fail("malformed file message parsed");
+		} catch (IllegalStateException e) {
+			/* expected */
+		}
+	}
+}
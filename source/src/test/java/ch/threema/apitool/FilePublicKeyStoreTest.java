@@ -0,0 +1,285 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FilePublicKeyStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReopen() throws Exception {
+		File file = new File(folder.getRoot(), "keys");
+		try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+			for (int i = 0; i < 5000; i++)
+				store.setPublicKey(id(i), key(i, 0));
+			Assert.assertEquals(5000, store.size());
+			Assert.assertEquals(key(42, 0), store.getPublicKey(id(42)));
+		}
+
+		try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+			Assert.assertEquals(5000, store.size());
+			for (int i = 0; i < 5000; i++)
+				Assert.assertEquals(key(i, 0), store.getPublicKey(id(i)));
+			Assert.assertNull(store.getPublicKey(id(5000)));
+			Assert.assertNull(store.getPublicKey("ECHO"));
+
+			/* keys read from the file are not appended again */
+			Assert.assertEquals(5000, records(file));
+		}
+	}
+
+	@Test
+	public void testReplaceAndCompact() throws Exception {
+		File file = new File(folder.getRoot(), "keys");
+		try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+			for (int version = 0; version < 3; version++) {
+				for (int i = 0; i < 2000; i++)
+					store.setPublicKey(id(i), key(i, version));
+			}
+			Assert.assertEquals(2000, store.size());
+			store.compact();
+			Assert.assertEquals(2000, records(file));
+			for (int i = 0; i < 2000; i++)
+				Assert.assertEquals(key(i, 2), store.fetchPublicKey(id(i)));
+
+			/* changes after compaction */
+			store.setPublicKey(id(0), key(0, 3));
+			store.setPublicKey(id(2000), key(2000, 0));
+		}
+
+		try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+			Assert.assertEquals(2001, store.size());
+			Assert.assertEquals(key(0, 3), store.getPublicKey(id(0)));
+			Assert.assertEquals(key(1, 2), store.getPublicKey(id(1)));
+			Assert.assertEquals(key(2000, 0), store.getPublicKey(id(2000)));
+		}
+	}
+
+	@Test
+	public void testBackgroundCompaction() throws Exception {
+		File file = new File(folder.getRoot(), "keys");
+		try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+			for (int version = 0; version < 10; version++) {
+				for (int i = 0; i < 500; i++)
+					store.setPublicKey(id(i), key(i, version));
+			}
+		}
+		/* closing waits for the compaction, which started after 1024 replaced records */
+		Assert.assertTrue(records(file) < 5000);
+
+		try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+			for (int i = 0; i < 500; i++)
+				Assert.assertEquals(key(i, 9), store.getPublicKey(id(i)));
+		}
+	}
+
+	@Test
+	public void testIndexRebuilt() throws Exception {
+		File file = new File(folder.getRoot(), "keys");
+		File index = new File(file.getPath() + FilePublicKeyStore.INDEX_SUFFIX);
+		try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+			for (int i = 0; i < 3000; i++)
+				store.setPublicKey(id(i), key(i, i % 2));
+		}
+
+		/* missing, foreign and damaged index */
+		for (int damage = 0; damage < 3; damage++) {
+			if (damage == 0) {
+				Assert.assertTrue(index.delete());
+			} else if (damage == 1) {
+				try (FileOutputStream out = new FileOutputStream(index)) {
+					out.write(new byte[100]);
+				}
+			} else {
+				try (RandomAccessFile raf = new RandomAccessFile(index, "rw")) {
+					/* generation of another log */
+					raf.seek(8);
+					raf.writeLong(12345);
+				}
+			}
+			try (FilePublicKeyStore store = new FilePublicKeyStore(file)) {
+				Assert.assertEquals(3000, store.size());
+				for (int i = 0; i < 3000; i++)
+					Assert.assertEquals(key(i, i % 2), store.getPublicKey(id(i)));
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAStore() throws Exception {
+		File file = folder.newFile("other");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write("not a key store, just some text".getBytes("US-ASCII"));
+		}
+		new FilePublicKeyStore(file).close();
+	}
+
+	/* a failed background compaction is reported and not retried after every change */
+	@Test
+	public void testCompactionFailure() throws Exception {
+		File file = new File(folder.getRoot(), "keys");
+		File blocker = new File(file.getPath() + ".compact");
+		Assert.assertTrue(blocker.mkdir());
+		Assert.assertTrue(new File(blocker, "file").createNewFile());
+
+		FilePublicKeyStore store = new FilePublicKeyStore(file);
+		for (int version = 0; version < 4; version++) {
+			for (int i = 0; i < 500; i++)
+				store.setPublicKey(id(i), key(i, version));
+		}
+		IOException failure = null;
+		for (int wait = 0; wait < 500 && failure == null; wait++) {
+			Thread.sleep(10);
+			failure = store.getCompactionFailure();
+		}
+		Assert.assertNotNull(failure);
+
+		/* the log has not doubled since the failure: no new attempt */
+		for (int i = 0; i < 500; i++)
+			store.setPublicKey(id(i), key(i, 4));
+		Thread.sleep(100);
+		Assert.assertSame(failure, store.getCompactionFailure());
+
+		try {
+			store.close();
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertSame(failure, e.getCause());
+		}
+
+		/* the keys are all there, and compaction works once it can write its files */
+		Assert.assertTrue(new File(blocker, "file").delete());
+		Assert.assertTrue(blocker.delete());
+		try (FilePublicKeyStore reopened = new FilePublicKeyStore(file)) {
+			for (int i = 0; i < 500; i++)
+				Assert.assertEquals(key(i, 4), reopened.getPublicKey(id(i)));
+			reopened.compact();
+			Assert.assertEquals(500, records(file));
+			Assert.assertNull(reopened.getCompactionFailure());
+		}
+	}
+
+	/* a store that cannot be opened closes its files again */
+	@Test
+	public void testNotAStoreClosesFiles() throws Exception {
+		File fds = new File("/proc/self/fd");
+		Assume.assumeTrue(fds.isDirectory());
+
+		File file = new File(folder.getRoot(), "other");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(4096);
+		}
+		Assert.assertTrue(new File(file.getPath() + FilePublicKeyStore.INDEX_SUFFIX).createNewFile());
+
+		int before = fds.list().length;
+		for (int i = 0; i < 50; i++) {
+			try {
+				new FilePublicKeyStore(file).close();
+				Assert.fail();
+			} catch (IOException e) {
+				/* expected: no magic number */
+			}
+		}
+		Assert.assertTrue(fds.list().length <= before + 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidId() throws Exception {
+		try (FilePublicKeyStore store = new FilePublicKeyStore(new File(folder.getRoot(), "keys"))) {
+			store.setPublicKey("ECHO", key(1, 0));
+		}
+	}
+
+	/* readers never see a wrong key while the files grow and are compacted */
+	@Test
+	public void testConcurrentReads() throws Exception {
+		final FilePublicKeyStore store = new FilePublicKeyStore(new File(folder.getRoot(), "keys"));
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<>();
+		Thread[] readers = new Thread[3];
+		for (int r = 0; r < readers.length; r++) {
+			final Random random = new Random(r);
+			readers[r] = new Thread(() -> {
+				byte[] out = new byte[32];
+				while (!done.get()) {
+					int i = random.nextInt(20000);
+					if (store.get(PublicKeyTable.pack(id(i)), out, 0) && (out[0] != (byte) i || out[1] != (byte) (i >> 8)))
+						failure.set("wrong key for " + id(i));
+				}
+			});
+			readers[r].start();
+		}
+
+		try {
+			Random random = new Random(9);
+			for (int n = 0; n < 60000; n++) {
+				int i = random.nextInt(20000);
+				store.setPublicKey(id(i), key(i, n));
+			}
+			store.compact();
+		} finally {
+			done.set(true);
+			for (Thread reader : readers)
+				reader.join();
+			store.close();
+		}
+		Assert.assertNull(failure.get());
+	}
+
+	/* number of records in the log header */
+	private static long records(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(16);
+			return raf.readLong();
+		}
+	}
+
+	private static String id(int i) {
+		return String.format("%08d", i);
+	}
+
+	private static byte[] key(int i, int version) {
+		byte[] key = new byte[32];
+		key[0] = (byte) i;
+		key[1] = (byte) (i >> 8);
+		key[2] = (byte) version;
+		key[3] = (byte) (version >> 8);
+		return key;
+	}
+}
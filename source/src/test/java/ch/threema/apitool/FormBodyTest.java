@@ -0,0 +1,69 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FormBodyTest {
+	private static final String[] VALUES = {
+		"", "ECHOECHO", "a b+c&d=e%f", "Dies ist eine Testnachricht. äöü", "日本語", "😀 emoji",
+		"lone \ud83d surrogate", "trailing \ud83d", "\udc00 low", ".-*_~!'()"
+	};
+
+	@Test
+	public void testMatchesUrlEncoder() throws Exception {
+		FormBody body = new FormBody(4);
+		for (String value : VALUES) {
+			body.reset().add("to", value).add("text", value);
+			String expected = "to=" + URLEncoder.encode(value, "UTF-8") + "&text=" + URLEncoder.encode(value, "UTF-8");
+			Assert.assertEquals(expected, new String(body.getData(), 0, body.getLength(), "US-ASCII"));
+		}
+	}
+
+	@Test
+	public void testHex() throws Exception {
+		byte[] data = new byte[300];
+		new Random(4).nextBytes(data);
+
+		FormBody body = new FormBody(16).reset().add("from", "ECHOECHO").addHex("box", data, 10, 200);
+		String expected = "from=ECHOECHO&box=" + DataUtils.byteArrayToHexString(Arrays.copyOfRange(data, 10, 210));
+		Assert.assertEquals(expected, new String(body.getData(), 0, body.getLength(), "US-ASCII"));
+	}
+
+	@Test
+	public void testUtf8MatchesString() throws Exception {
+		for (String value : VALUES) {
+			byte[] expected = value.getBytes("UTF-8");
+			byte[] actual = new byte[DataUtils.utf8Length(value) + 3];
+			Assert.assertEquals(expected.length, DataUtils.utf8Length(value));
+			Assert.assertEquals(3 + expected.length, DataUtils.encodeUtf8(value, actual, 3));
+			Assert.assertEquals(expected, Arrays.copyOfRange(actual, 3, actual.length));
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class IdentityHasherTest {
+
+	@Test
+	public void testKnownHashes() {
+		Assert.assertEquals("1ea093239cc5f0e1b6ec81b866265b921f26dc4033025410063309f4d1a8ee2c",
+				DataUtils.byteArrayToHexString(CryptTool.hashEmail("test@threema.ch")));
+		Assert.assertEquals("ad398f4d7ebe63c6550a486cc6e07f9baa09bd9d8b3d8cb9d9be106d35a7fdbc",
+				DataUtils.byteArrayToHexString(CryptTool.hashPhoneNo("41791234567")));
+	}
+
+	/* normalized values are checked against the normalization CryptTool used before */
+	@Test
+	public void testEmail() throws Exception {
+		for (String email : new String[] { "test@threema.ch", "  Test@Threema.CH\t", "", " ", "\u00e4\u00f6\u00fc@example.com",
+				"KELVIN\u212a@example.com", "\ud83d\ude00@example.com" }) {
+			byte[] expected = IdentityHasher.EMAIL.hash(ascii(email.toLowerCase().trim()));
+			Assert.assertEquals(expected, IdentityHasher.EMAIL.hash(email));
+			Assert.assertEquals(expected, CryptTool.hashEmail(email));
+
+			byte[] utf8 = ("x" + email + "y").getBytes(StandardCharsets.UTF_8);
+			byte[] out = new byte[IdentityHasher.HASH_BYTES];
+			IdentityHasher.EMAIL.hash(utf8, 1, utf8.length - 2, out, 0);
+			Assert.assertEquals(expected, out);
+		}
+	}
+
+	@Test
+	public void testPhoneNo() throws Exception {
+		for (String phoneNo : new String[] { "41791234567", "+41 79 123 45 67", "(079) 123-45-67", "", "\u0661\u0662" }) {
+			byte[] expected = IdentityHasher.PHONE_NO.hash(phoneNo.replaceAll("[^0-9]", ""));
+			Assert.assertEquals(expected, IdentityHasher.PHONE_NO.hash(phoneNo));
+			Assert.assertEquals(expected, CryptTool.hashPhoneNo(phoneNo));
+
+			byte[] utf8 = phoneNo.getBytes(StandardCharsets.UTF_8);
+			byte[] out = new byte[IdentityHasher.HASH_BYTES];
+			IdentityHasher.PHONE_NO.hash(utf8, 0, utf8.length, out, 0);
+			Assert.assertEquals(expected, out);
+		}
+	}
+
+	@Test
+	public void testHashLines() throws Exception {
+		StringBuilder input = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			String email = "User" + i + "@Example.com";
+			switch (i % 4) {
+				case 0:
+					input.append(email).append('\n');
+					expected.append(email);
+					break;
+				case 1:
+					input.append(email).append(",Name ").append(i).append("\r\n");
+					expected.append(email);
+					break;
+				case 2:
+					input.append('"').append(email).append("\"\n\n");
+					expected.append('"').append(email).append('"');
+					break;
+				default:
+					/* a line longer than a batch */
+					input.append(email).append(',').append(new String(new char[300]).replace('\0', 'x')).append('\n');
+					expected.append(email);
+			}
+			expected.append(',').append(DataUtils.byteArrayToHexString(CryptTool.hashEmail(email))).append('\n');
+		}
+		input.append("last@example.com");
+		expected.append("last@example.com,").append(DataUtils.byteArrayToHexString(CryptTool.hashEmail("last@example.com"))).append('\n');
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			long count = IdentityHasher.EMAIL.hashLines(new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8)),
+					out, executor, 3, 256);
+			Assert.assertEquals(1001, count);
+			Assert.assertEquals(expected.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/* as String.getBytes("US-ASCII") replaces non-ASCII characters */
+	private static String ascii(String s) {
+		return new String(s.getBytes(StandardCharsets.US_ASCII), StandardCharsets.US_ASCII);
+	}
+}
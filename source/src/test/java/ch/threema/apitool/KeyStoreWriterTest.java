@@ -0,0 +1,111 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import com.neilalexander.jnacl.NaCl;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class KeyStoreWriterTest {
+
+	@Test
+	public void testBinary() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		List<Long> progress = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try (KeyStoreWriter writer = new KeyStoreWriter(out, KeyStoreWriter.Format.BINARY)) {
+			CryptTool.generateKeyPairs(1000, writer, progress::add, executor, 3);
+			Assert.assertEquals(1000, writer.getCount());
+		} finally {
+			executor.shutdown();
+		}
+
+		byte[] data = out.toByteArray();
+		Assert.assertEquals(KeyStoreWriter.MAGIC.length + 1000 * KeyStoreWriter.PAIR_BYTES, data.length);
+		Assert.assertEquals(KeyStoreWriter.MAGIC, Arrays.copyOf(data, KeyStoreWriter.MAGIC.length));
+
+		Set<String> privateKeys = new HashSet<>();
+		for (int pos = KeyStoreWriter.MAGIC.length; pos < data.length; pos += KeyStoreWriter.PAIR_BYTES) {
+			byte[] privateKey = Arrays.copyOfRange(data, pos, pos + NaCl.SECRETKEYBYTES);
+			byte[] publicKey = Arrays.copyOfRange(data, pos + NaCl.SECRETKEYBYTES, pos + KeyStoreWriter.PAIR_BYTES);
+			Assert.assertEquals(CryptTool.derivePublicKey(privateKey), publicKey);
+			privateKeys.add(DataUtils.byteArrayToHexString(privateKey));
+		}
+		Assert.assertEquals(1000, privateKeys.size());
+
+		/* reported after each chunk, ending with the total */
+		Assert.assertEquals(Long.valueOf(1000), progress.get(progress.size() - 1));
+		for (int i = 1; i < progress.size(); i++)
+			Assert.assertTrue(progress.get(i) > progress.get(i - 1));
+	}
+
+	@Test
+	public void testNdjson() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] privateKey = new byte[NaCl.SECRETKEYBYTES];
+		byte[] publicKey = new byte[NaCl.PUBLICKEYBYTES];
+		CryptTool.generateKeyPair(privateKey, publicKey);
+		try (KeyStoreWriter writer = new KeyStoreWriter(out, KeyStoreWriter.Format.NDJSON)) {
+			writer.write(privateKey, publicKey);
+			CryptTool.generateKeyPairs(300, writer, null);
+			Assert.assertEquals(301, writer.getCount());
+		}
+
+		BufferedReader reader = new BufferedReader(new StringReader(new String(out.toByteArray(), StandardCharsets.US_ASCII)));
+		int lines = 0;
+		for (String line; (line = reader.readLine()) != null; lines++) {
+			JSONObject json = new JSONObject(line);
+			Key priv = Key.decodeKey(json.getString("privateKey"), Key.KeyType.PRIVATE);
+			Key pub = Key.decodeKey(json.getString("publicKey"), Key.KeyType.PUBLIC);
+			Assert.assertEquals(CryptTool.derivePublicKey(priv.key), pub.key);
+			if (lines == 0) {
+				Assert.assertEquals(privateKey, priv.key);
+				Assert.assertEquals(publicKey, pub.key);
+			}
+		}
+		Assert.assertEquals(301, lines);
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (KeyStoreWriter writer = new KeyStoreWriter(out, KeyStoreWriter.Format.BINARY)) {
+			CryptTool.generateKeyPairs(0, writer, null);
+		}
+		Assert.assertEquals(KeyStoreWriter.MAGIC, out.toByteArray());
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PublicKeyCacheTest {
+
+	/* cache with a clock that only moves when told to */
+	private static class ManualClockCache extends PublicKeyCache {
+		long time;
+
+		ManualClockCache(long maximumSize, long expireAfterWrite) {
+			super(maximumSize, expireAfterWrite, TimeUnit.NANOSECONDS, Policy.SEGMENTED_LRU);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	@Test
+	public void testBounded() {
+		for (PublicKeyCache.Policy policy : PublicKeyCache.Policy.values()) {
+			PublicKeyCache cache = new PublicKeyCache(100, 0, TimeUnit.SECONDS, policy);
+			for (int i = 0; i < 1000; i++) {
+				cache.put(id(i), key(i));
+				Assert.assertTrue(cache.size() <= 100);
+			}
+			Assert.assertEquals(100, cache.size());
+			Assert.assertEquals(900, cache.getEvictionCount());
+
+			/* the most recent entries are kept */
+			Assert.assertEquals(key(999), cache.get(id(999)));
+			Assert.assertNull(cache.get(id(0)));
+			Assert.assertEquals(0.5, cache.getHitRate(), 0);
+		}
+	}
+
+	@Test
+	public void testScanResistance() {
+		int[] hotKept = new int[2];
+		for (PublicKeyCache.Policy policy : PublicKeyCache.Policy.values()) {
+			PublicKeyCache cache = new PublicKeyCache(100, 0, TimeUnit.SECONDS, policy);
+			for (int i = 0; i < 50; i++) {
+				cache.put(id(i), key(i));
+				cache.get(id(i));
+			}
+
+			/* a burst of one-off lookups */
+			for (int i = 1000; i < 2000; i++)
+				cache.putIfAbsent(id(i), key(i));
+
+			for (int i = 0; i < 50; i++) {
+				if (cache.get(id(i)) != null)
+					hotKept[policy.ordinal()]++;
+			}
+		}
+		Assert.assertEquals(0, hotKept[PublicKeyCache.Policy.LRU.ordinal()]);
+		Assert.assertEquals(50, hotKept[PublicKeyCache.Policy.SEGMENTED_LRU.ordinal()]);
+	}
+
+	@Test
+	public void testExpiry() {
+		ManualClockCache cache = new ManualClockCache(100, 1000);
+		cache.put("ECHOECHO", key(1));
+		cache.time = 999;
+		Assert.assertEquals(key(1), cache.get("ECHOECHO"));
+
+		cache.time = 1000;
+		Assert.assertNull(cache.get("ECHOECHO"));
+		Assert.assertEquals(1, cache.getExpirationCount());
+		Assert.assertEquals(0, cache.size());
+
+		/* an expired entry does not block putIfAbsent */
+		cache.put("ECHOECHO", key(1));
+		cache.time = 2000;
+		Assert.assertNull(cache.putIfAbsent("ECHOECHO", key(2)));
+		Assert.assertEquals(key(2), cache.get("ECHOECHO"));
+		Assert.assertEquals(key(2), cache.putIfAbsent("ECHOECHO", key(3)));
+	}
+
+	@Test
+	public void testInvalidate() {
+		PublicKeyCache cache = new PublicKeyCache(10, 0, TimeUnit.SECONDS, PublicKeyCache.Policy.LRU);
+		for (int i = 0; i < 10; i++)
+			cache.put(id(i), key(i));
+		cache.invalidate(id(3));
+		Assert.assertNull(cache.get(id(3)));
+		Assert.assertEquals(9, cache.size());
+
+		/* room for one more without eviction */
+		cache.put(id(10), key(10));
+		Assert.assertEquals(0, cache.getEvictionCount());
+
+		cache.invalidateAll();
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testStoreDoesNotSaveOnEviction() {
+		final Map<String, byte[]> stored = new HashMap<>();
+		final AtomicInteger fetches = new AtomicInteger();
+		final AtomicInteger saves = new AtomicInteger();
+		for (int i = 0; i < 100; i++)
+			stored.put(id(i), key(i));
+
+		PublicKeyCache cache = new PublicKeyCache(10, 0, TimeUnit.SECONDS, PublicKeyCache.Policy.SEGMENTED_LRU);
+		PublicKeyStore store = new PublicKeyStore(cache) {
+			@Override
+			protected byte[] fetchPublicKey(String threemaId) {
+				fetches.incrementAndGet();
+				return stored.get(threemaId);
+			}
+
+			@Override
+			protected void save(String threemaId, byte[] publicKey) {
+				saves.incrementAndGet();
+			}
+		};
+
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < 100; i++)
+				Assert.assertEquals(key(i), store.getPublicKey(id(i)));
+		}
+		Assert.assertEquals(200, fetches.get());
+		/* fetched keys are saved as before, evicted ones are not */
+		Assert.assertEquals(200, saves.get());
+		Assert.assertEquals(10, store.getCache().size());
+		Assert.assertEquals(190, cache.getEvictionCount());
+	}
+
+	private static String id(int i) {
+		return String.format("%08d", i);
+	}
+
+	private static byte[] key(int i) {
+		byte[] key = new byte[32];
+		key[0] = (byte) i;
+		key[1] = (byte) (i >> 8);
+		return key;
+	}
+}
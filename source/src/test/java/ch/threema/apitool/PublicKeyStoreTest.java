@@ -0,0 +1,131 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PublicKeyStoreTest {
+
+	/* a store whose fetch blocks until released */
+	private static class SlowStore extends PublicKeyStore {
+		final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+		final AtomicInteger fetches = new AtomicInteger();
+		final AtomicInteger saves = new AtomicInteger();
+		final CountDownLatch fetching = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		protected byte[] fetchPublicKey(String threemaId) {
+			fetches.incrementAndGet();
+			if (threemaId.startsWith("SLOW")) {
+				fetching.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			if (threemaId.startsWith("FAIL"))
+				throw new IllegalStateException("store unavailable");
+			return stored.get(threemaId);
+		}
+
+		@Override
+		protected void save(String threemaId, byte[] publicKey) {
+			saves.incrementAndGet();
+			stored.put(threemaId, publicKey);
+		}
+	}
+
+	@Test
+	public void testGetAndSet() {
+		SlowStore store = new SlowStore();
+		store.stored.put("ECHOECHO", new byte[] { 1 });
+
+		Assert.assertEquals(new byte[] { 1 }, store.getPublicKey("ECHOECHO"));
+		Assert.assertEquals(new byte[] { 1 }, store.getPublicKey("ECHOECHO"));
+		Assert.assertEquals(1, store.fetches.get());
+
+		/* not found is not cached */
+		Assert.assertNull(store.getPublicKey("UNKNOWN1"));
+		Assert.assertNull(store.getPublicKey("UNKNOWN1"));
+		Assert.assertEquals(3, store.fetches.get());
+
+		store.setPublicKey("NEWNEWNE", new byte[] { 2 });
+		Assert.assertEquals(new byte[] { 2 }, store.getPublicKey("NEWNEWNE"));
+		Assert.assertEquals(new byte[] { 2 }, store.stored.get("NEWNEWNE"));
+		Assert.assertEquals(3, store.fetches.get());
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		SlowStore store = new SlowStore();
+		store.stored.put("SLOWSLOW", new byte[] { 3 });
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++)
+				results.add(executor.submit(() -> store.getPublicKey("SLOWSLOW")));
+			Assert.assertTrue(store.fetching.await(10, TimeUnit.SECONDS));
+
+			/* other IDs are not held up by the slow fetch */
+			store.setPublicKey("FASTFAST", new byte[] { 4 });
+			Assert.assertEquals(new byte[] { 4 }, store.getPublicKey("FASTFAST"));
+
+			store.release.countDown();
+			for (Future<byte[]> result : results)
+				Assert.assertEquals(new byte[] { 3 }, result.get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(1, store.fetches.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFetchFailure() {
+		SlowStore store = new SlowStore();
+		for (int i = 0; i < 2; i++) {
+			try {
+				store.getPublicKey("FAILFAIL");
+				Assert.fail("exception swallowed");
+			} catch (IllegalStateException e) {
+				Assert.assertEquals("store unavailable", e.getMessage());
+			}
+		}
+		/* a failed fetch is retried on the next call */
+		Assert.assertEquals(2, store.fetches.get());
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PublicKeyTableTest {
+
+	@Test
+	public void testPack() {
+		Assert.assertEquals(0x4543484f4543484fL, PublicKeyTable.pack("ECHOECHO"));
+		Assert.assertEquals("*THREEMA", PublicKeyTable.unpack(PublicKeyTable.pack("*THREEMA")));
+
+		for (String invalid : new String[] { "ECHO", "ECHOECHO1", "ECHO\u00c4CHO", "ECHO\0CHO" }) {
+			try {
+				PublicKeyTable.pack(invalid);
+				Assert.fail("packed " + invalid);
+			} catch (IllegalArgumentException e) {
+				/* expected */
+			}
+		}
+
+		/* IDs that cannot be packed are not cached */
+		PublicKeyTable table = new PublicKeyTable();
+		table.put("ECHO", key(1, 0));
+		Assert.assertNull(table.get("ECHO"));
+		Assert.assertEquals(0, table.size());
+	}
+
+	/* random changes, checked against a HashMap */
+	@Test
+	public void testAgainstMap() {
+		Random random = new Random(5);
+		PublicKeyTable table = new PublicKeyTable();
+		Map<Long, byte[]> expected = new HashMap<>();
+		byte[] out = new byte[PublicKeyTable.KEY_BYTES];
+
+		for (int i = 0; i < 200000; i++) {
+			long id = PublicKeyTable.pack(String.format("%08d", random.nextInt(20000)));
+			int op = random.nextInt(10);
+			if (op < 6) {
+				byte[] key = key(i, id);
+				table.put(id, key, 0);
+				expected.put(id, key);
+			} else if (op < 8) {
+				Assert.assertEquals(expected.remove(id) != null, table.remove(id));
+			} else {
+				boolean found = table.get(id, out, 0);
+				Assert.assertEquals(expected.containsKey(id), found);
+				if (found)
+					Assert.assertEquals(expected.get(id), out);
+			}
+			Assert.assertEquals(expected.size(), table.size());
+		}
+
+		for (Map.Entry<Long, byte[]> entry : expected.entrySet())
+			Assert.assertEquals(entry.getValue(), table.get(PublicKeyTable.unpack(entry.getKey())));
+	}
+
+	@Test
+	public void testCacheInterface() {
+		PublicKeyTable table = new PublicKeyTable(4);
+		Assert.assertNull(table.putIfAbsent("ECHOECHO", key(1, 0)));
+		Assert.assertEquals(key(1, 0), table.putIfAbsent("ECHOECHO", key(2, 0)));
+		table.put("ECHOECHO", key(3, 0));
+		Assert.assertEquals(key(3, 0), table.get("ECHOECHO"));
+		Assert.assertNull(table.get("UNKNOWN1"));
+		Assert.assertEquals(1, table.getHitCount());
+		Assert.assertEquals(1, table.getMissCount());
+
+		table.invalidate("ECHOECHO");
+		Assert.assertNull(table.peek("ECHOECHO"));
+		Assert.assertEquals(0, table.size());
+	}
+
+	/* readers never see a key that does not belong to the ID while the table grows and changes */
+	@Test
+	public void testConcurrentReads() throws Exception {
+		final PublicKeyTable table = new PublicKeyTable();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<>();
+		Thread[] readers = new Thread[3];
+		for (int r = 0; r < readers.length; r++) {
+			final Random random = new Random(r);
+			readers[r] = new Thread(() -> {
+				byte[] out = new byte[PublicKeyTable.KEY_BYTES];
+				while (!done.get()) {
+					long id = random.nextInt(50000) + 1;
+					if (table.get(id, out, 0)) {
+						/* key(version, id): bytes 8..15 hold the ID */
+						for (int i = 0; i < 8; i++) {
+							if (out[8 + i] != (byte) (id >>> (8 * i)))
+								failure.set("wrong key for " + id);
+						}
+					}
+				}
+			});
+			readers[r].start();
+		}
+
+		Random random = new Random(9);
+		for (int i = 0; i < 300000; i++) {
+			long id = random.nextInt(50000) + 1;
+			if (random.nextInt(4) == 0)
+				table.remove(id);
+			else
+				table.put(id, key(i, id), 0);
+		}
+		done.set(true);
+		for (Thread reader : readers)
+			reader.join();
+		Assert.assertNull(failure.get());
+	}
+
+	@Test
+	public void testAsStoreCache() {
+		final Map<String, byte[]> stored = new HashMap<>();
+		stored.put("ECHOECHO", key(7, 0));
+		PublicKeyTable table = new PublicKeyTable();
+		PublicKeyStore store = new PublicKeyStore(table) {
+			@Override
+			protected byte[] fetchPublicKey(String threemaId) {
+				return stored.get(threemaId);
+			}
+
+			@Override
+			protected void save(String threemaId, byte[] publicKey) {
+				stored.put(threemaId, publicKey);
+			}
+		};
+
+		Assert.assertEquals(key(7, 0), store.getPublicKey("ECHOECHO"));
+		store.setPublicKey("*THREEMA", key(8, 0));
+		Assert.assertEquals(key(8, 0), store.getPublicKey("*THREEMA"));
+		Assert.assertEquals(2, table.size());
+		Assert.assertEquals(1, table.getHitCount());
+	}
+
+	private static byte[] key(int version, long id) {
+		byte[] key = new byte[PublicKeyTable.KEY_BYTES];
+		for (int i = 0; i < 4; i++)
+			key[i] = (byte) (version >>> (8 * i));
+		for (int i = 0; i < 8; i++)
+			key[8 + i] = (byte) (id >>> (8 * i));
+		return key;
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.console.commands;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class CommandTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/* opens a connector, then optionally fails */
+	private static class ConnectorCommand extends Command {
+		boolean fail;
+
+		ConnectorCommand() {
+			super("Connector", "Open a connector");
+		}
+
+		@Override
+		protected void execute() throws Exception {
+			this.createConnector("*TESTING", "secret");
+			if (this.fail) {
+				throw new IllegalStateException("failed");
+			}
+		}
+	}
+
+	@Test
+	public void testPublicKeyStoreClosed() throws Exception {
+		File fds = new File("/proc/self/fd");
+		Assume.assumeTrue(fds.isDirectory());
+
+		String previous = System.getProperty(Command.PUBLIC_KEY_STORE_PROPERTY);
+		System.setProperty(Command.PUBLIC_KEY_STORE_PROPERTY, new File(folder.getRoot(), "keys").getPath());
+		try {
+			ConnectorCommand command = new ConnectorCommand();
+			command.run(new String[0]);
+
+			int before = fds.list().length;
+			for (int i = 0; i < 50; i++) {
+				command.fail = i % 2 == 1;
+				try {
+					command.run(new String[0]);
+					Assert.assertFalse(command.fail);
+				} catch (IllegalStateException e) {
+					Assert.assertEquals("failed", e.getMessage());
+				}
+			}
+			Assert.assertTrue(fds.list().length <= before + 5);
+		} finally {
+			if (previous == null) {
+				System.clearProperty(Command.PUBLIC_KEY_STORE_PROPERTY);
+			} else {
+				System.setProperty(Command.PUBLIC_KEY_STORE_PROPERTY, previous);
+			}
+		}
+	}
+}
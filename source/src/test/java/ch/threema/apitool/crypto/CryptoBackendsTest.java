@@ -0,0 +1,89 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import com.neilalexander.jnacl.NaCl;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class CryptoBackendsTest {
+
+	@Test
+	public void testSelfTest() {
+		Assert.assertTrue(CryptoBackends.selfTest(new JnaclCryptoBackend()));
+		Assert.assertTrue(CryptoBackends.selfTest(CryptoBackends.get()));
+	}
+
+	@Test
+	public void testForcedBackend() {
+		Assert.assertEquals("jnacl", CryptoBackends.select(null).getName());
+		Assert.assertEquals("jnacl", CryptoBackends.select("jnacl").getName());
+		Assert.assertTrue(CryptoBackends.selfTest(CryptoBackends.select("jca")));
+		try {
+			CryptoBackends.select("nope");
+			Assert.fail("unknown backend accepted");
+		} catch (IllegalArgumentException e) {
+			/* expected */
+		}
+	}
+
+	@Test
+	public void testJcaMatchesJnacl() {
+		CryptoBackend jca;
+		try {
+			jca = new JcaCryptoBackend();
+		} catch (Exception e) {
+			jca = null;
+		}
+		Assume.assumeNotNull(jca);
+
+		CryptoBackend jnacl = new JnaclCryptoBackend();
+		Random random = new Random(11);
+		byte[] privateKey = new byte[NaCl.SECRETKEYBYTES];
+		byte[] publicKey = new byte[NaCl.PUBLICKEYBYTES];
+
+		for (int i = 0; i < 100; i++) {
+			random.nextBytes(privateKey);
+			random.nextBytes(publicKey);
+
+			/* every other key has bit 255 set, which X25519 would ignore */
+			if (i % 2 == 0)
+				publicKey[31] &= 0x7f;
+
+			Assert.assertArrayEquals(jnacl.derivePublicKey(privateKey), jca.derivePublicKey(privateKey));
+			Assert.assertArrayEquals(jnacl.beforenm(privateKey, publicKey), jca.beforenm(privateKey, publicKey));
+		}
+
+		/* low-order points: X25519 rejects the all-zero result */
+		byte[] zero = new byte[NaCl.PUBLICKEYBYTES];
+		byte[] one = new byte[NaCl.PUBLICKEYBYTES];
+		one[0] = 1;
+		Assert.assertArrayEquals(jnacl.beforenm(privateKey, zero), jca.beforenm(privateKey, zero));
+		Assert.assertArrayEquals(jnacl.beforenm(privateKey, one), jca.beforenm(privateKey, one));
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.Common;
+import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.Key;
+import ch.threema.apitool.SealedBox;
+import ch.threema.apitool.messages.TextMessage;
+import ch.threema.apitool.results.EncryptResult;
+import com.neilalexander.jnacl.NaCl;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class PaddingPolicyTest {
+
+	@Test
+	public void testRandom() {
+		RandomSource random = RandomSources.deterministic(1);
+		int[] counts = new int[256];
+		for (int i = 0; i < 254 * 100; i++)
+			counts[PaddingPolicy.RANDOM.padding(17, random)]++;
+		Assert.assertEquals(0, counts[0]);
+		Assert.assertEquals(0, counts[255]);
+		for (int i = 1; i <= 254; i++)
+			Assert.assertTrue(counts[i] > 0);
+	}
+
+	@Test
+	public void testBucketed() {
+		RandomSource random = RandomSources.deterministic(2);
+		for (int[] params : new int[][] { { 32, 16 }, { 16, 1 }, { 1, 255 }, { 255, 1 }, { 128, 128 } }) {
+			PaddingPolicy policy = PaddingPolicy.bucketed(params[0], params[1]);
+			for (int length = 1; length < 600; length++) {
+				int padding = policy.padding(length, random);
+				Assert.assertTrue(padding >= 1 && padding <= PaddingPolicy.MAX_PADDING);
+				Assert.assertEquals(0, (length + padding) % params[0]);
+				/* no more than needed to reach the bucket after the random part */
+				Assert.assertTrue(padding < params[0] + params[1]);
+			}
+		}
+
+		/* 1 + 8 bytes of text plus 1 to 16 random bytes always end up in the first bucket */
+		PaddingPolicy policy = PaddingPolicy.bucketed(32, 16);
+		for (int i = 0; i < 1000; i++)
+			Assert.assertEquals(32, 9 + policy.padding(9, random));
+	}
+
+	@Test
+	public void testInvalid() {
+		for (int[] params : new int[][] { { 0, 16 }, { 32, 0 }, { 128, 129 }, { 256, 1 } }) {
+			try {
+				PaddingPolicy.bucketed(params[0], params[1]);
+				Assert.fail("accepted " + params[0] + ", " + params[1]);
+			} catch (IllegalArgumentException e) {
+				/* expected */
+			}
+		}
+	}
+
+	@Test
+	public void testEncryptWithBuckets() throws Exception {
+		Key senderPrivateKey = Key.decodeKey(Common.myPrivateKey);
+		Key senderPublicKey = Key.decodeKey(Common.myPublicKey);
+		Key recipientPrivateKey = Key.decodeKey(Common.otherPrivateKey);
+		Key recipientPublicKey = Key.decodeKey(Common.otherPublicKey);
+		String text = "Hi there";
+
+		PaddingPolicy previous = CryptTool.getPaddingPolicy();
+		CryptTool.setPaddingPolicy(PaddingPolicy.bucketed(32, 16));
+		try {
+			List<EncryptResult> results = new ArrayList<>();
+			results.add(CryptTool.encryptTextMessage(text, senderPrivateKey.key, recipientPublicKey.key));
+			SealedBox sealed = CryptTool.sealTextMessage(text, senderPrivateKey.key, recipientPublicKey.key);
+			results.add(sealed.toEncryptResult());
+			CryptTool.encryptTextMessages(text, senderPrivateKey.key, Collections.singletonList(recipientPublicKey.key),
+					(publicKey, result) -> {
+						synchronized (results) {
+							results.add(result);
+						}
+					});
+
+			Assert.assertEquals(3, results.size());
+			for (EncryptResult result : results) {
+				Assert.assertEquals(NaCl.BOXOVERHEAD + 32, result.getResult().length);
+				TextMessage message = (TextMessage) CryptTool.decryptMessage(result.getResult(), recipientPrivateKey.key,
+						senderPublicKey.key, result.getNonce());
+				Assert.assertEquals(text, message.getText());
+			}
+		} finally {
+			CryptTool.setPaddingPolicy(previous);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.CryptTool;
+import ch.threema.apitool.results.EncryptResult;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RandomSourcesTest {
+
+	@Test
+	public void testDeterministic() {
+		byte[] whole = new byte[3 * RandomSources.BLOCK_BYTES + 17];
+		RandomSources.deterministic(42).nextBytes(whole);
+
+		/* the same stream when read in pieces across block boundaries */
+		RandomSource source = RandomSources.deterministic(42);
+		byte[] pieces = new byte[whole.length];
+		for (int offset = 0; offset < pieces.length; ) {
+			int length = Math.min(pieces.length - offset, 1 + offset % 300);
+			source.nextBytes(pieces, offset, length);
+			offset += length;
+		}
+		Assert.assertEquals(whole, pieces);
+
+		byte[] other = new byte[whole.length];
+		RandomSources.deterministic(43).nextBytes(other);
+		Assert.assertFalse(Arrays.equals(whole, other));
+	}
+
+	@Test
+	public void testNextInt() {
+		for (RandomSource source : new RandomSource[] { RandomSources.system(), RandomSources.deterministic(1) }) {
+			int[] counts = new int[254];
+			for (int i = 0; i < 254 * 200; i++)
+				counts[source.nextInt(254)]++;
+			for (int count : counts)
+				Assert.assertTrue(count > 100 && count < 300);
+
+			Assert.assertEquals(0, source.nextInt(1));
+			try {
+				source.nextInt(0);
+				Assert.fail("bound 0 accepted");
+			} catch (IllegalArgumentException e) {
+				/* expected */
+			}
+		}
+	}
+
+	@Test
+	public void testSystemThreads() throws Exception {
+		final RandomSource source = RandomSources.system();
+		byte[] mine = new byte[32];
+		source.nextBytes(mine);
+
+		final AtomicReference<byte[]> theirs = new AtomicReference<>();
+		Thread thread = new Thread(() -> {
+			byte[] b = new byte[32];
+			source.nextBytes(b);
+			theirs.set(b);
+		});
+		thread.start();
+		thread.join();
+		Assert.assertFalse(Arrays.equals(mine, theirs.get()));
+
+		/* small requests are handed out from the block, large ones generated directly */
+		byte[] small = new byte[24];
+		byte[] large = new byte[RandomSources.BLOCK_BYTES * 2];
+		source.nextBytes(small);
+		source.nextBytes(large, 0, large.length);
+		Assert.assertFalse(Arrays.equals(small, Arrays.copyOf(mine, 24)));
+		Assert.assertFalse(Arrays.equals(new byte[64], Arrays.copyOfRange(large, large.length - 64, large.length)));
+	}
+
+	@Test
+	public void testSetMakesCryptToolReproducible() {
+		byte[] privateKey = new byte[32];
+		byte[] publicKey = new byte[32];
+		try {
+			RandomSources.set(RandomSources.deterministic(7));
+			CryptTool.generateKeyPair(privateKey, publicKey);
+			byte[] nonce = CryptTool.randomNonce();
+			EncryptResult res = CryptTool.encryptTextMessage("hello", privateKey, publicKey);
+
+			RandomSources.set(RandomSources.deterministic(7));
+			byte[] privateKey2 = new byte[32];
+			byte[] publicKey2 = new byte[32];
+			CryptTool.generateKeyPair(privateKey2, publicKey2);
+			Assert.assertEquals(privateKey, privateKey2);
+			Assert.assertEquals(publicKey, publicKey2);
+			Assert.assertEquals(nonce, CryptTool.randomNonce());
+			Assert.assertEquals(res.getResult(), CryptTool.encryptTextMessage("hello", privateKey, publicKey).getResult());
+		} finally {
+			RandomSources.set(RandomSources.system());
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import ch.threema.apitool.exceptions.DecryptionFailedException;
+import com.neilalexander.jnacl.NaCl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+public class SecretBoxStreamTest {
+	private static final int[] LENGTHS = {
+		0, 1, 15, 16, 17, 63, 64, 65,
+		SecretBoxStream.BUFFER_SIZE - 1, SecretBoxStream.BUFFER_SIZE, SecretBoxStream.BUFFER_SIZE + 1,
+		3 * SecretBoxStream.BUFFER_SIZE + 4321
+	};
+
+	private final Random random = new Random(5);
+	private final byte[] key = new byte[NaCl.SYMMKEYBYTES];
+	private final byte[] nonce = new byte[NaCl.NONCEBYTES];
+	private File plain, box, result;
+
+	@Before
+	public void setUp() throws IOException {
+		random.nextBytes(key);
+		random.nextBytes(nonce);
+		plain = File.createTempFile("plain", null);
+		box = File.createTempFile("box", null);
+		result = File.createTempFile("result", null);
+	}
+
+	@After
+	public void tearDown() {
+		plain.delete();
+		box.delete();
+		result.delete();
+	}
+
+	@Test
+	public void testEncryptMatchesNaCl() throws IOException {
+		for (int len : LENGTHS) {
+			byte[] data = write(plain, len);
+			byte[] expected = NaCl.symmetricEncryptData(data, key, nonce);
+
+			try (FileChannel in = open(plain); FileChannel out = create(box)) {
+				Assert.assertEquals(expected.length, SecretBoxStream.encrypt(in, out, key, nonce));
+			}
+			Assert.assertArrayEquals(expected, Files.readAllBytes(box.toPath()));
+
+			try (FileChannel in = open(plain); FileChannel out = create(box)) {
+				Assert.assertEquals(expected.length, SecretBoxStream.encryptTwoPass(in, out, key, nonce));
+			}
+			Assert.assertArrayEquals(expected, Files.readAllBytes(box.toPath()));
+		}
+	}
+
+	@Test
+	public void testDecryptMatchesNaCl() throws IOException, DecryptionFailedException {
+		for (int len : LENGTHS) {
+			byte[] data = new byte[len];
+			random.nextBytes(data);
+			Files.write(box.toPath(), NaCl.symmetricEncryptData(data, key, nonce));
+
+			try (FileChannel in = open(box); FileChannel out = create(result)) {
+				Assert.assertEquals(len, SecretBoxStream.decrypt(in, out, key, nonce));
+			}
+			Assert.assertArrayEquals(data, Files.readAllBytes(result.toPath()));
+
+			try (FileChannel in = open(box); FileChannel out = create(result)) {
+				Assert.assertEquals(len, SecretBoxStream.decryptSinglePass(in, out, key, nonce));
+			}
+			Assert.assertArrayEquals(data, Files.readAllBytes(result.toPath()));
+		}
+	}
+
+	@Test
+	public void testTamperedData() throws IOException {
+		byte[] data = write(plain, 2 * SecretBoxStream.BUFFER_SIZE + 7);
+		byte[] encrypted = NaCl.symmetricEncryptData(data, key, nonce);
+
+		for (int pos : new int[] { 0, 15, 16, encrypted.length - 1 }) {
+			encrypted[pos] ^= 0x04;
+			Files.write(box.toPath(), encrypted);
+			encrypted[pos] ^= 0x04;
+
+			try (FileChannel in = open(box); FileChannel out = create(result)) {
+				SecretBoxStream.decrypt(in, out, key, nonce);
+				Assert.fail("tampered data accepted");
+			} catch (DecryptionFailedException e) {
+				Assert.assertEquals(0, result.length());
+			}
+
+			try (FileChannel in = open(box); FileChannel out = create(result)) {
+				SecretBoxStream.decryptSinglePass(in, out, key, nonce);
+				Assert.fail("tampered data accepted");
+			} catch (DecryptionFailedException e) {
+				Assert.assertEquals(0, result.length());
+			}
+		}
+
+		/* shorter than the authenticator */
+		Files.write(box.toPath(), new byte[NaCl.BOXOVERHEAD - 1]);
+		try (FileChannel in = open(box); FileChannel out = create(result)) {
+			SecretBoxStream.decrypt(in, out, key, nonce);
+			Assert.fail("truncated data accepted");
+		} catch (DecryptionFailedException e) {
+			/* expected */
+		}
+	}
+
+	private byte[] write(File file, int len) throws IOException {
+		byte[] data = new byte[len];
+		random.nextBytes(data);
+		Files.write(file.toPath(), data);
+		return data;
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	private static FileChannel create(File file) throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.crypto;
+
+import com.neilalexander.jnacl.NaCl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class SharedKeyCacheTest {
+	private final Random random = new Random(8);
+	private final CryptoBackend backend = new JnaclCryptoBackend();
+
+	/* cache with a clock that only moves when told to */
+	private static class ManualClockCache extends SharedKeyCache {
+		long time;
+
+		ManualClockCache(int maximumSize, long idleTimeout) {
+			super(maximumSize, idleTimeout, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		SharedKeyCache cache = new SharedKeyCache();
+		byte[] privateKey = key();
+		byte[] publicKey = key();
+		byte[] expected = backend.beforenm(privateKey, publicKey);
+
+		Assert.assertArrayEquals(expected, cache.get(privateKey, publicKey, backend));
+		Assert.assertArrayEquals(expected, cache.get(privateKey.clone(), publicKey.clone(), backend));
+		Assert.assertEquals(1, cache.getMissCount());
+		Assert.assertEquals(1, cache.getHitCount());
+
+		/* the cache keeps its own copy of the key pair */
+		privateKey[0] ^= 1;
+		Assert.assertArrayEquals(backend.beforenm(privateKey, publicKey), cache.get(privateKey, publicKey, backend));
+		Assert.assertEquals(2, cache.getMissCount());
+		Assert.assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testIdleEviction() {
+		ManualClockCache cache = new ManualClockCache(100, 1000);
+		byte[] privateKey = key();
+		byte[] publicKey = key();
+
+		cache.get(privateKey, publicKey, backend);
+		cache.time = 999;
+		cache.get(privateKey, publicKey, backend);
+		Assert.assertEquals(1, cache.getHitCount());
+
+		/* idle for the full timeout after the last use */
+		cache.time = 1999;
+		cache.get(privateKey, publicKey, backend);
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+		Assert.assertEquals(1, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testSizeEviction() {
+		ManualClockCache cache = new ManualClockCache(10, Long.MAX_VALUE);
+		byte[] privateKey = key();
+		byte[][] publicKeys = new byte[11][];
+		for (int i = 0; i < publicKeys.length; i++) {
+			publicKeys[i] = key();
+			cache.time = i;
+			cache.get(privateKey, publicKeys[i], backend);
+
+			/* keep the first key in use */
+			cache.get(privateKey, publicKeys[0], backend);
+		}
+
+		/* the eleventh entry evicts the least recently used ones, down to 90% */
+		Assert.assertEquals(9, cache.size());
+		Assert.assertEquals(2, cache.getEvictionCount());
+		long misses = cache.getMissCount();
+		cache.get(privateKey, publicKeys[0], backend);
+		cache.get(privateKey, publicKeys[10], backend);
+		Assert.assertEquals(misses, cache.getMissCount());
+		cache.get(privateKey, publicKeys[1], backend);
+		Assert.assertEquals(misses + 1, cache.getMissCount());
+	}
+
+	@Test
+	public void testInvalidate() {
+		SharedKeyCache cache = new SharedKeyCache();
+		byte[] privateKey1 = key();
+		byte[] privateKey2 = key();
+		byte[] publicKey1 = key();
+		byte[] publicKey2 = key();
+		cache.get(privateKey1, publicKey1, backend);
+		cache.get(privateKey2, publicKey1, backend);
+		cache.get(privateKey1, publicKey2, backend);
+
+		cache.invalidate(publicKey1);
+		Assert.assertEquals(1, cache.size());
+		cache.invalidate(privateKey1, publicKey2);
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(0, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testDisabled() {
+		SharedKeyCache cache = new SharedKeyCache(0, 1, TimeUnit.MINUTES);
+		byte[] privateKey = key();
+		byte[] publicKey = key();
+		Assert.assertArrayEquals(backend.beforenm(privateKey, publicKey), cache.get(privateKey, publicKey, backend));
+		cache.get(privateKey, publicKey, backend);
+		Assert.assertEquals(0, cache.size());
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+
+	private byte[] key() {
+		byte[] key = new byte[NaCl.SECRETKEYBYTES];
+		random.nextBytes(key);
+		return key;
+	}
+}
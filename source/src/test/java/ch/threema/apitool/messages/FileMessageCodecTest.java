@@ -0,0 +1,246 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package ch.threema.apitool.messages;
+
+import ch.threema.apitool.Assert;
+import ch.threema.apitool.DataUtils;
+import ch.threema.apitool.exceptions.BadMessageException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks {@link FileMessageCodec} against the org.json based encoding and parsing that file
+ * messages used before, on random messages.
+ */
+public class FileMessageCodecTest {
+	private static final int ROUNDS = 2000;
+
+	/* characters that exercise escaping and every UTF-8 length */
+	private static final String ALPHABET = "ab/<\"\\\b\t\n\f\r\u0000\u001f\u007f\u0080\u009f\u00a0\u00e4\u07ff\u0800"
+			+ "\u2000\u2028\u20ff\u2100\uffff\ud83d\ude00";
+
+	@Test
+	public void testEncodeMatchesJsonObject() throws Exception {
+		Random random = new Random(1);
+		for (int round = 0; round < ROUNDS; round++) {
+			FileMessage message = randomMessage(random);
+			byte[] encoded = message.getData();
+
+			JSONObject expected = new JSONObject(jsonEncode(message));
+			JSONObject actual = new JSONObject(new String(encoded, StandardCharsets.UTF_8));
+			Assert.assertEquals(expected.length(), actual.length());
+			for (String key : JSONObject.getNames(expected))
+				Assert.assertEquals(expected.get(key), actual.get(key));
+
+			/* string values are written byte for byte like JSONObject.quote */
+			String json = new String(encoded, StandardCharsets.UTF_8);
+			Assert.assertTrue(json.contains("\"m\":" + JSONObject.quote(message.getMimeType())));
+			Assert.assertTrue(json.contains("\"n\":" + JSONObject.quote(message.getFileName())));
+		}
+	}
+
+	@Test
+	public void testDecodeMatchesJsonObject() throws Exception {
+		Random random = new Random(2);
+		for (int round = 0; round < ROUNDS; round++) {
+			FileMessage message = randomMessage(random);
+			JSONObject o = new JSONObject(jsonEncode(message));
+
+			/* unknown keys with arbitrary values are skipped */
+			int extra = random.nextInt(4);
+			for (int i = 0; i < extra; i++)
+				o.put("x" + randomString(random, 3), randomValue(random, 0));
+
+			byte[] json = o.toString().getBytes(StandardCharsets.UTF_8);
+			assertSame(jsonDecode(o.toString()), FileMessageCodec.decode(json, 0, json.length));
+		}
+	}
+
+	@Test
+	public void testDecodeMutated() throws Exception {
+		Random random = new Random(3);
+		int decoded = 0;
+		for (int round = 0; round < ROUNDS * 5; round++) {
+			byte[] json = randomMessage(random).getData();
+			int mutations = 1 + random.nextInt(3);
+			for (int i = 0; i < mutations && json.length > 0; i++) {
+				switch (random.nextInt(3)) {
+					case 0:
+						json[random.nextInt(json.length)] = (byte) random.nextInt(256);
+						break;
+					case 1:
+						json[random.nextInt(json.length)] = (byte) "{}[]\":,\\ nu0".charAt(random.nextInt(12));
+						break;
+					default:
+						json = Arrays.copyOf(json, random.nextInt(json.length));
+				}
+			}
+
+			/* only BadMessageException is allowed, and a successful decode agrees with org.json */
+			FileMessage message;
+			try {
+				message = FileMessageCodec.decode(json, 0, json.length);
+			} catch (BadMessageException e) {
+				continue;
+			}
+			decoded++;
+
+			FileMessage expected;
+			try {
+				expected = jsonDecode(new String(json, StandardCharsets.UTF_8));
+			} catch (BadMessageException | RuntimeException e) {
+				continue;
+			}
+			assertSame(expected, message);
+		}
+		Assert.assertTrue(decoded > 0);
+	}
+
+	@Test
+	public void testDecodeTolerance() throws Exception {
+		String json = " {\"i\":0, \"x\":{\"a\":[1,2.5e3,true,false,null,\"}\"]}, \"s\":\"12\",\"k\":\"00ff\","
+				+ "\"m\":\"text\\/plain\",\"b\":\"0A-0b\",\"t\":null} ";
+		byte[] data = json.getBytes(StandardCharsets.UTF_8);
+		FileMessage message = FileMessageCodec.decode(data, 0, data.length);
+		Assert.assertEquals(new byte[] { 0x0a, 0x0b }, message.getBlobId());
+		Assert.assertEquals(new byte[] { 0, (byte) 0xff }, message.getEncryptionKey());
+		Assert.assertEquals("text/plain", message.getMimeType());
+		Assert.assertEquals("unnamed", message.getFileName());
+		Assert.assertEquals(12, message.getFileSize());
+		Assert.assertNull(message.getThumbnailBlobId());
+
+		for (String bad : new String[] { "", "{", "{}", "[]", "{\"b\":\"00\",\"k\":\"00\",\"m\":\"x\"}",
+				"{\"b\":\"00\",\"k\":\"00\",\"m\":\"x\",\"s\":1,\"s\":2}", "{\"b\":\"000\",\"k\":\"00\",\"m\":\"x\",\"s\":1}",
+				"{\"b\":1,\"k\":\"00\",\"m\":\"x\",\"s\":1}", "{\"b\":\"00\",\"k\":\"00\",\"m\":\"x\",\"s\":1" }) {
+			data = bad.getBytes(StandardCharsets.UTF_8);
+			try {
+				FileMessageCodec.decode(data, 0, data.length);
+				Assert.fail("decoded " + bad);
+			} catch (BadMessageException e) {
+				/* expected */
+			}
+		}
+	}
+
+	private static void assertSame(FileMessage expected, FileMessage actual) {
+		Assert.assertEquals(expected.getBlobId(), actual.getBlobId());
+		Assert.assertEquals(expected.getEncryptionKey(), actual.getEncryptionKey());
+		Assert.assertEquals(expected.getMimeType(), actual.getMimeType());
+		Assert.assertEquals(expected.getFileName(), actual.getFileName());
+		Assert.assertEquals(expected.getFileSize(), actual.getFileSize());
+		if (expected.getThumbnailBlobId() == null)
+			Assert.assertNull(actual.getThumbnailBlobId());
+		else
+			Assert.assertEquals(expected.getThumbnailBlobId(), actual.getThumbnailBlobId());
+	}
+
+	private static FileMessage randomMessage(Random random) {
+		byte[] blobId = new byte[16];
+		byte[] key = new byte[32];
+		random.nextBytes(blobId);
+		random.nextBytes(key);
+		byte[] thumbnailBlobId = null;
+		if (random.nextBoolean()) {
+			thumbnailBlobId = new byte[16];
+			random.nextBytes(thumbnailBlobId);
+		}
+		return new FileMessage(blobId, key, randomString(random, 20), randomString(random, 40),
+				random.nextInt(), thumbnailBlobId);
+	}
+
+	private static String randomString(Random random, int maxLength) {
+		StringBuilder sb = new StringBuilder();
+		int length = random.nextInt(maxLength + 1);
+		while (sb.length() < length) {
+			if (random.nextBoolean()) {
+				sb.append((char) ('a' + random.nextInt(26)));
+			} else {
+				int i = random.nextInt(ALPHABET.length());
+				char c = ALPHABET.charAt(i);
+				sb.append(c);
+				if (Character.isHighSurrogate(c))
+					sb.append(ALPHABET.charAt(i + 1));
+				else if (Character.isLowSurrogate(c))
+					sb.setLength(sb.length() - 1);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static Object randomValue(Random random, int depth) throws JSONException {
+		switch (random.nextInt(depth < 3 ? 7 : 5)) {
+			case 0: return randomString(random, 10);
+			case 1: return random.nextInt();
+			case 2: return random.nextDouble();
+			case 3: return random.nextBoolean();
+			case 4: return JSONObject.NULL;
+			case 5:
+				JSONArray a = new JSONArray();
+				for (int i = random.nextInt(4); i > 0; i--)
+					a.put(randomValue(random, depth + 1));
+				return a;
+			default:
+				JSONObject o = new JSONObject();
+				for (int i = random.nextInt(4); i > 0; i--)
+					o.put(randomString(random, 5), randomValue(random, depth + 1));
+				return o;
+		}
+	}
+
+	/* the org.json based encoding that FileMessage.getData used before */
+	private static String jsonEncode(FileMessage message) throws JSONException {
+		JSONObject o = new JSONObject();
+		o.put("b", DataUtils.byteArrayToHexString(message.getBlobId()));
+		o.put("t", message.getThumbnailBlobId() != null ? DataUtils.byteArrayToHexString(message.getThumbnailBlobId()) : null);
+		o.put("k", DataUtils.byteArrayToHexString(message.getEncryptionKey()));
+		o.put("m", message.getMimeType());
+		o.put("n", message.getFileName());
+		o.put("s", message.getFileSize());
+		o.put("i", 0);
+		return o.toString();
+	}
+
+	/* the org.json based parsing that FileMessage.fromString used before */
+	private static FileMessage jsonDecode(String json) throws BadMessageException {
+		try {
+			JSONObject o = new JSONObject(json);
+			byte[] encryptionKey = DataUtils.hexStringToByteArray(o.getString("k"));
+			String mimeType = o.getString("m");
+			int fileSize = o.getInt("s");
+			byte[] blobId = DataUtils.hexStringToByteArray(o.getString("b"));
+			byte[] thumbnailBlobId = o.has("t") ? DataUtils.hexStringToByteArray(o.getString("t")) : null;
+			String fileName = o.has("n") ? o.getString("n") : "unnamed";
+			return new FileMessage(blobId, encryptionKey, mimeType, fileName, fileSize, thumbnailBlobId);
+		} catch (JSONException e) {
+			throw new BadMessageException();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl;
+
+import com.neilalexander.jnacl.crypto.verify_16;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class NaClTest {
+
+	@Test
+	public void testPrecomputeBatch() {
+		Random random = new Random(1);
+		byte[] senderPrivate = new byte[NaCl.SECRETKEYBYTES];
+		random.nextBytes(senderPrivate);
+		byte[] senderPublic = NaCl.derivePublicKey(senderPrivate);
+
+		byte[] nonce = new byte[NaCl.NONCEBYTES];
+		byte[] message = "batch".getBytes();
+
+		/* spans several fork/join chunks, with a partial one at the end */
+		List<byte[]> recipientPrivate = new ArrayList<byte[]>();
+		List<byte[]> recipientPublic = new ArrayList<byte[]>();
+		for (int i = 0; i < 150; i++) {
+			byte[] sk = new byte[NaCl.SECRETKEYBYTES];
+			random.nextBytes(sk);
+			recipientPrivate.add(sk);
+			recipientPublic.add(NaCl.derivePublicKey(sk));
+		}
+
+		List<NaCl> batch = NaCl.precomputeBatch(senderPrivate, recipientPublic);
+		Assert.assertEquals(recipientPublic.size(), batch.size());
+
+		for (int i = 0; i < batch.size(); i++) {
+			byte[] box = batch.get(i).encrypt(message, nonce);
+			Assert.assertArrayEquals(new NaCl(senderPrivate, recipientPublic.get(i)).encrypt(message, nonce), box);
+			Assert.assertArrayEquals(message, new NaCl(recipientPrivate.get(i), senderPublic).decrypt(box, nonce));
+		}
+	}
+
+	@Test
+	public void testPrecomputeBatchEmpty() {
+		Assert.assertTrue(NaCl.precomputeBatch(new byte[NaCl.SECRETKEYBYTES], new ArrayList<byte[]>()).isEmpty());
+	}
+
+	/* every byte of the authenticator counts, including the last one */
+	@Test
+	public void testTamperedTag() {
+		Random random = new Random(2);
+		byte[] privateKey = new byte[NaCl.SECRETKEYBYTES];
+		random.nextBytes(privateKey);
+		NaCl nacl = new NaCl(privateKey, NaCl.derivePublicKey(privateKey));
+		byte[] nonce = new byte[NaCl.NONCEBYTES];
+		byte[] box = nacl.encrypt("tag".getBytes(), nonce);
+
+		for (int i = 0; i < NaCl.BOXOVERHEAD; i++) {
+			byte[] tampered = box.clone();
+			tampered[i] ^= 1;
+			Assert.assertNull("byte " + i, nacl.decrypt(tampered, nonce));
+		}
+		Assert.assertArrayEquals("tag".getBytes(), nacl.decrypt(box, nonce));
+
+		byte[] tag = new byte[16];
+		random.nextBytes(tag);
+		for (int i = 0; i < 16; i++) {
+			byte[] other = tag.clone();
+			other[i] ^= (byte) 0x80;
+			Assert.assertEquals(-1, verify_16.crypto_verify(other, 0, tag));
+		}
+		Assert.assertEquals(0, verify_16.crypto_verify(tag, 0, tag.clone()));
+	}
+
+	@Test
+	public void testBufferBoxMatchesArray() {
+		Random random = new Random(2);
+		byte[] alicePrivate = new byte[NaCl.SECRETKEYBYTES];
+		byte[] bobPrivate = new byte[NaCl.SECRETKEYBYTES];
+		byte[] nonce = new byte[NaCl.NONCEBYTES];
+		random.nextBytes(alicePrivate);
+		random.nextBytes(bobPrivate);
+		random.nextBytes(nonce);
+		NaCl alice = new NaCl(alicePrivate, NaCl.derivePublicKey(bobPrivate));
+		NaCl bob = new NaCl(bobPrivate, NaCl.derivePublicKey(alicePrivate));
+
+		for (int len : new int[] { 0, 1, 16, 100, 16 * 1024, 40000 }) {
+			byte[] message = new byte[len];
+			random.nextBytes(message);
+			byte[] expected = alice.encrypt(message, nonce);
+
+			for (int kind = 0; kind < 3; kind++) {
+				ByteBuffer in = buffer(message, 3, kind);
+				ByteBuffer box = allocate(len + NaCl.BOXOVERHEAD + 10, kind);
+				box.position(5);
+				Assert.assertEquals(expected.length, alice.encrypt(in, box, nonce));
+				Assert.assertFalse(in.hasRemaining());
+				Assert.assertEquals(5 + expected.length, box.position());
+				Assert.assertArrayEquals(expected, contents(box, 5, expected.length));
+
+				box.flip();
+				box.position(5);
+				ByteBuffer out = allocate(len, kind);
+				Assert.assertEquals(len, bob.decrypt(box, out, nonce));
+				Assert.assertFalse(box.hasRemaining());
+				Assert.assertArrayEquals(message, contents(out, 0, len));
+			}
+		}
+	}
+
+	@Test
+	public void testBufferSecretboxMatchesArray() {
+		Random random = new Random(3);
+		byte[] key = new byte[NaCl.SYMMKEYBYTES];
+		byte[] nonce = new byte[NaCl.NONCEBYTES];
+		random.nextBytes(key);
+		random.nextBytes(nonce);
+
+		for (int len : new int[] { 0, 63, 64, 65, 16 * 1024 + 1, 100000 }) {
+			byte[] message = new byte[len];
+			random.nextBytes(message);
+			byte[] expected = NaCl.symmetricEncryptData(message, key, nonce);
+
+			for (int kind = 0; kind < 3; kind++) {
+				ByteBuffer box = allocate(expected.length, kind);
+				Assert.assertEquals(expected.length, NaCl.symmetricEncryptData(buffer(message, 0, kind), box, key, nonce));
+				Assert.assertArrayEquals(expected, contents(box, 0, expected.length));
+
+				/* in place, output BOXOVERHEAD bytes before the input */
+				ByteBuffer io = allocate(expected.length, kind);
+				io.position(NaCl.BOXOVERHEAD);
+				io.put(message);
+				io.position(NaCl.BOXOVERHEAD);
+				NaCl.symmetricEncryptData(io, at(io, 0), key, nonce);
+				Assert.assertArrayEquals(expected, contents(io, 0, expected.length));
+
+				io.position(0);
+				Assert.assertEquals(len, NaCl.symmetricDecryptData(io, at(io, 0), key, nonce));
+				Assert.assertArrayEquals(message, contents(io, 0, len));
+			}
+		}
+	}
+
+	@Test
+	public void testBufferTampered() {
+		byte[] key = new byte[NaCl.SYMMKEYBYTES];
+		byte[] nonce = new byte[NaCl.NONCEBYTES];
+		byte[] box = NaCl.symmetricEncryptData(new byte[50000], key, nonce);
+		box[box.length - 1] ^= 1;
+
+		for (int kind = 0; kind < 3; kind++) {
+			ByteBuffer in = buffer(box, 7, kind);
+			ByteBuffer out = allocate(box.length, kind);
+			Assert.assertEquals(-1, NaCl.symmetricDecryptData(in, out, key, nonce));
+			Assert.assertEquals(7, in.position());
+			Assert.assertEquals(0, out.position());
+			Assert.assertArrayEquals(new byte[box.length], contents(out, 0, box.length));
+		}
+
+		Assert.assertEquals(-1, NaCl.symmetricDecryptData(ByteBuffer.allocate(NaCl.BOXOVERHEAD - 1),
+				ByteBuffer.allocate(0), key, nonce));
+	}
+
+	/* kind 0: heap, 1: direct, 2: read-only heap (no accessible array); data starts at offset */
+	private static ByteBuffer buffer(byte[] data, int offset, int kind) {
+		ByteBuffer buffer = allocate(offset + data.length, kind == 2 ? 0 : kind);
+		buffer.position(offset);
+		buffer.put(data);
+		buffer.position(offset);
+		return kind == 2 ? buffer.asReadOnlyBuffer() : buffer;
+	}
+
+	/* view of the same memory, positioned at position */
+	private static ByteBuffer at(ByteBuffer buffer, int position) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		return view;
+	}
+
+	private static ByteBuffer allocate(int capacity, int kind) {
+		return kind == 1 ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	private static byte[] contents(ByteBuffer buffer, int offset, int length) {
+		byte[] data = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.clear();
+		view.position(offset);
+		view.get(data);
+		return data;
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+public class Curve25519Test {
+
+	@Test
+	public void testRfc7748Vector() {
+		byte[] q = new byte[32];
+		curve25519.crypto_scalarmult(q,
+				Poly1305Test.hex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"),
+				Poly1305Test.hex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c"));
+		Assert.assertArrayEquals(Poly1305Test.hex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"), q);
+	}
+
+	/* RFC 7748, section 5.2: k = u = 9, then k = X25519(k, u) and u = the old k */
+	@Test
+	public void testRfc7748Iterated() {
+		byte[] k = new byte[32];
+		byte[] u = new byte[32];
+		k[0] = 9;
+		u[0] = 9;
+		for (int i = 1; i <= 1000; i++) {
+			byte[] q = new byte[32];
+			curve25519.crypto_scalarmult(q, k, u);
+			u = k;
+			k = q;
+			if (i == 1)
+				Assert.assertArrayEquals(Poly1305Test.hex("422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079"), k);
+		}
+		Assert.assertArrayEquals(Poly1305Test.hex("684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51"), k);
+	}
+
+	@Test
+	public void testBaseMatchesReference() {
+		Random random = new Random(25519);
+		byte[] n = new byte[32];
+
+		for (int i = 0; i < 50; i++) {
+			random.nextBytes(n);
+
+			byte[] expected = new byte[32];
+			byte[] actual = new byte[32];
+			reference(expected, n, curve25519.basev);
+			curve25519.crypto_scalarmult_base(actual, n);
+			Assert.assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testBaseMatchesLadder() {
+		Random random = new Random(9);
+		byte[][] scalars = new byte[1002][32];
+		for (int i = 2; i < scalars.length; i++)
+			random.nextBytes(scalars[i]);
+		Arrays.fill(scalars[1], (byte) 0xff);
+
+		for (byte[] n : scalars) {
+			byte[] expected = new byte[32];
+			byte[] actual = new byte[32];
+			curve25519.crypto_scalarmult(expected, n, curve25519.basev);
+			curve25519.crypto_scalarmult_base(actual, n);
+			Assert.assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testScalarmultMatchesReference() {
+		Random random = new Random(19);
+		byte[] n = new byte[32];
+		byte[] p = new byte[32];
+
+		for (int i = 0; i < 50; i++) {
+			random.nextBytes(n);
+			random.nextBytes(p);
+
+			/* the top bit of p is not masked, so half of the points exercise that as well */
+			byte[] expected = new byte[32];
+			byte[] actual = new byte[32];
+			reference(expected, n, p);
+			curve25519.crypto_scalarmult(actual, n, p);
+			Assert.assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testLowOrderPoint() {
+		byte[] n = new byte[32];
+		byte[] q = new byte[32];
+		new Random(0).nextBytes(n);
+
+		/* u = 0 has order 4 and must map to 0 */
+		curve25519.crypto_scalarmult(q, n, new byte[32]);
+		Assert.assertArrayEquals(new byte[32], q);
+	}
+
+	@Test
+	public void testBatchMatchesSingle() {
+		Random random = new Random(5);
+		byte[] n = new byte[32];
+		byte[][] p = new byte[40][32];
+		random.nextBytes(n);
+		for (int i = 0; i < p.length; i++)
+			random.nextBytes(p[i]);
+
+		/* low-order points must not spoil the shared inversion for the others */
+		p[0] = new byte[32];
+		p[17] = new byte[32];
+		p[17][0] = 1;
+		p[39] = new byte[32];
+
+		byte[][] q = new byte[p.length][32];
+		curve25519.crypto_scalarmult_batch(q, n, p, 3, p.length - 3);
+
+		for (int i = 0; i < p.length; i++) {
+			byte[] expected = new byte[32];
+			if (i >= 3)
+				curve25519.crypto_scalarmult(expected, n, p[i]);
+			Assert.assertArrayEquals("point " + i, expected, q[i]);
+		}
+	}
+
+	private static final BigInteger P = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.valueOf(19));
+	private static final BigInteger A24 = BigInteger.valueOf(121665);
+
+	/*
+	 * The Montgomery ladder of RFC 7748, section 5, on BigIntegers. As in NaCl, the top bit of the
+	 * point is not masked: u is read as a 256-bit number and reduced.
+	 */
+	private static void reference(byte[] q, byte[] n, byte[] p) {
+		byte[] e = n.clone();
+		e[0] &= (byte) 248;
+		e[31] &= 127;
+		e[31] |= 64;
+		BigInteger k = littleEndian(e);
+		BigInteger u = littleEndian(p).mod(P);
+
+		BigInteger x2 = BigInteger.ONE, z2 = BigInteger.ZERO, x3 = u, z3 = BigInteger.ONE;
+		for (int t = 254; t >= 0; t--) {
+			if (k.testBit(t) != k.testBit(t + 1)) {
+				BigInteger x = x2, z = z2;
+				x2 = x3;
+				z2 = z3;
+				x3 = x;
+				z3 = z;
+			}
+			BigInteger a = x2.add(z2), aa = a.multiply(a).mod(P);
+			BigInteger b = x2.subtract(z2), bb = b.multiply(b).mod(P);
+			BigInteger c = x3.add(z3), d = x3.subtract(z3);
+			BigInteger da = d.multiply(a).mod(P), cb = c.multiply(b).mod(P);
+			BigInteger en = aa.subtract(bb);
+			x3 = da.add(cb).pow(2).mod(P);
+			z3 = u.multiply(da.subtract(cb).pow(2)).mod(P);
+			x2 = aa.multiply(bb).mod(P);
+			z2 = en.multiply(aa.add(A24.multiply(en))).mod(P);
+		}
+		if (k.testBit(0)) {
+			x2 = x3;
+			z2 = z3;
+		}
+
+		BigInteger x = x2.multiply(z2.modPow(P.subtract(BigInteger.valueOf(2)), P)).mod(P);
+		byte[] be = x.toByteArray();
+		Arrays.fill(q, (byte) 0);
+		for (int i = 0; i < be.length && i < 32; i++)
+			q[i] = be[be.length - 1 - i];
+	}
+
+	static BigInteger littleEndian(byte[] data) {
+		byte[] be = new byte[data.length + 1];
+		for (int i = 0; i < data.length; i++)
+			be[be.length - 1 - i] = data[i];
+		return new BigInteger(be);
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+public class Poly1305Test {
+
+	/* test vector from tests/onetimeauth.c in nacl distribution */
+	private static final String KEY = "eea6a7251c1e72916d11c2cb214d3c252539121d8e234e652d651fa4c8cff880";
+	private static final String MESSAGE = "8e993b9f48681273c29650ba32fc76ce48332ea7164d96a4476fb8c531a1186ac0dfc17c98dce87b4da7f011ec48c97271d2c20f9b928fe2270d6fb863d51738b48eeee314a7cc8ab932164548e526ae90224368517acfeabd6bb3732bc0e9da99832b61ca01b6de56244a9e88d5f9b37973f622a43d14a6599b1f654cb45a74e355a5";
+	private static final String TAG = "f3ffc7703f9400e52a7dfb4b3d3305d9";
+
+	@Test
+	public void testVector() {
+		byte[] message = hex(MESSAGE);
+		byte[] tag = new byte[16];
+
+		poly1305.crypto_onetimeauth(tag, 0, message, 0, message.length, hex(KEY));
+		Assert.assertArrayEquals(hex(TAG), tag);
+		Assert.assertEquals(0, poly1305.crypto_onetimeauth_verify(tag, 0, message, 0, message.length, hex(KEY)));
+
+		tag[5] ^= 1;
+		Assert.assertEquals(-1, poly1305.crypto_onetimeauth_verify(tag, 0, message, 0, message.length, hex(KEY)));
+	}
+
+	@Test
+	public void testMatchesReference() {
+		Random random = new Random(1305);
+		byte[] key = new byte[32];
+		byte[] data = new byte[600];
+
+		for (int len = 0; len < 560; len++) {
+			random.nextBytes(key);
+			random.nextBytes(data);
+			int offset = random.nextInt(40);
+
+			byte[] expected = new byte[16];
+			byte[] actual = new byte[20];
+			reference(expected, data, offset, len, key);
+			poly1305.crypto_onetimeauth(actual, 4, data, offset, len, key);
+
+			for (int i = 0; i < 16; i++)
+				Assert.assertEquals("length " + len, expected[i], actual[i + 4]);
+		}
+	}
+
+	@Test
+	public void testMaximumValues() {
+		/* all-ones input exercises the final reduction close to 2^130 - 5 */
+		byte[] key = new byte[32];
+		byte[] data = new byte[256];
+		Arrays.fill(key, (byte) 0xff);
+		Arrays.fill(data, (byte) 0xff);
+
+		for (int len = 0; len <= data.length; len += 16) {
+			byte[] expected = new byte[16];
+			byte[] actual = new byte[16];
+			reference(expected, data, 0, len, key);
+			poly1305.crypto_onetimeauth(actual, 0, data, 0, len, key);
+			Assert.assertArrayEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testIncrementalMatchesOneShot() {
+		Random random = new Random(9);
+		byte[] key = new byte[32];
+		byte[] data = new byte[1000];
+		random.nextBytes(key);
+		random.nextBytes(data);
+
+		for (int step = 1; step <= 70; step += 3) {
+			byte[] expected = new byte[16];
+			byte[] actual = new byte[16];
+			poly1305.crypto_onetimeauth(expected, 0, data, 0, data.length, key);
+
+			/* feed uneven pieces so that the partial block buffer is exercised */
+			poly1305.state state = new poly1305.state(key);
+			for (int off = 0; off < data.length; off += step)
+				state.update(data, off, Math.min(step, data.length - off));
+			state.finish(actual, 0);
+
+			Assert.assertArrayEquals(expected, actual);
+		}
+	}
+
+	private static final BigInteger P = BigInteger.ONE.shiftLeft(130).subtract(BigInteger.valueOf(5));
+	private static final BigInteger CLAMP = new BigInteger("0ffffffc0ffffffc0ffffffc0fffffff", 16);
+
+	/* Poly1305 as specified, on BigIntegers */
+	private static void reference(byte[] tag, byte[] m, int offset, int len, byte[] key) {
+		BigInteger r = Curve25519Test.littleEndian(Arrays.copyOfRange(key, 0, 16)).and(CLAMP);
+		BigInteger s = Curve25519Test.littleEndian(Arrays.copyOfRange(key, 16, 32));
+
+		BigInteger h = BigInteger.ZERO;
+		for (int i = 0; i < len; i += 16) {
+			int n = Math.min(16, len - i);
+			BigInteger block = Curve25519Test.littleEndian(Arrays.copyOfRange(m, offset + i, offset + i + n));
+			h = h.add(block.setBit(8 * n)).multiply(r).mod(P);
+		}
+
+		byte[] be = h.add(s).toByteArray();
+		Arrays.fill(tag, 0, 16, (byte) 0);
+		for (int i = 0; i < 16 && i < be.length; i++)
+			tag[i] = be[be.length - 1 - i];
+	}
+
+	static byte[] hex(String s) {
+		byte[] data = new byte[s.length() / 2];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		return data;
+	}
+}
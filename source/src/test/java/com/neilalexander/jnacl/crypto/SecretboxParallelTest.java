@@ -0,0 +1,128 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class SecretboxParallelTest {
+	private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+	@AfterClass
+	public static void shutdown() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void testPoly1305Split() {
+		Random random = new Random(1305);
+		byte[] key = new byte[32];
+		byte[] data = new byte[1000];
+		random.nextBytes(key);
+		random.nextBytes(data);
+
+		byte[] expected = new byte[16];
+		poly1305.crypto_onetimeauth(expected, 0, data, 0, data.length, key);
+
+		for (int split = 0; split <= data.length; split += 16) {
+			long[] h = new long[5];
+			long[] g = new long[5];
+			poly1305.blocks(h, key, data, 0, split);
+			poly1305.mulpow(h, key, (data.length - split + 15) / 16);
+			poly1305.blocks(g, key, data, split, data.length - split);
+			poly1305.add(h, g);
+
+			byte[] actual = new byte[16];
+			poly1305.finish(actual, 0, h, key);
+			Assert.assertArrayEquals("split " + split, expected, actual);
+		}
+	}
+
+	@Test
+	public void testMatchesSequential() {
+		Random random = new Random(8);
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+
+		int[] lengths = {0, 1, 15, 16, 63, 64, 65, 500, 1024, 4095, 4096, 4097, 20000};
+		int[] chunks = {64, 128, 1024};
+
+		for (int len : lengths) {
+			for (int chunk : chunks) {
+				random.nextBytes(key);
+				random.nextBytes(nonce);
+				byte[] m = new byte[len];
+				random.nextBytes(m);
+
+				byte[] expected = new byte[len + 16];
+				byte[] actual = new byte[len + 16];
+				xsalsa20poly1305.crypto_secretbox_nopad(expected, 0, m, 0, len, nonce, key);
+				xsalsa20poly1305.crypto_secretbox_nopad_parallel(actual, 0, m, 0, len, nonce, key, pool, chunk);
+				Assert.assertArrayEquals("length " + len + ", chunk " + chunk, expected, actual);
+
+				byte[] opened = new byte[len];
+				Assert.assertEquals(0, xsalsa20poly1305.crypto_secretbox_open_nopad_parallel(opened, 0, actual, 0, actual.length, nonce, key, pool, chunk));
+				Assert.assertArrayEquals(m, opened);
+
+				/* in place, laid out as in NaCl.symmetricEncryptDataInplace/symmetricDecryptDataInplace */
+				byte[] io = new byte[len + 16];
+				System.arraycopy(m, 0, io, 16, len);
+				xsalsa20poly1305.crypto_secretbox_nopad_parallel(io, 0, io, 16, len, nonce, key, pool, chunk);
+				Assert.assertArrayEquals(expected, io);
+				Assert.assertEquals(0, xsalsa20poly1305.crypto_secretbox_open_nopad_parallel(io, 0, io, 0, io.length, nonce, key, pool, chunk));
+				Assert.assertArrayEquals(m, Arrays.copyOf(io, len));
+			}
+		}
+	}
+
+	@Test
+	public void testTamperedBoxRejected() {
+		Random random = new Random(16);
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+		byte[] m = new byte[5000];
+		random.nextBytes(key);
+		random.nextBytes(nonce);
+		random.nextBytes(m);
+
+		byte[] c = new byte[m.length + 16];
+		xsalsa20poly1305.crypto_secretbox_nopad_parallel(c, 0, m, 0, m.length, nonce, key, pool, 256);
+
+		for (int pos : new int[] {0, 15, 16, 1000, c.length - 1}) {
+			byte[] tampered = c.clone();
+			tampered[pos] ^= 1;
+
+			/* nothing may be decrypted into the output if authentication fails */
+			byte[] out = new byte[m.length];
+			Assert.assertEquals(-1, xsalsa20poly1305.crypto_secretbox_open_nopad_parallel(out, 0, tampered, 0, tampered.length, nonce, key, pool, 256));
+			Assert.assertArrayEquals(new byte[m.length], out);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * $Id$
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2015 Threema GmbH
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE
+ */
+
+package com.neilalexander.jnacl.crypto;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class XSalsa20Test {
+
+	@Test
+	public void testStreamMatchesReference() {
+		Random random = new Random(20);
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+
+		for (int len = 0; len < 300; len++) {
+			random.nextBytes(key);
+			random.nextBytes(nonce);
+
+			byte[] expected = new byte[len];
+			byte[] actual = new byte[len];
+			referenceXor(expected, new byte[len], len, nonce, key);
+			xsalsa20.crypto_stream(actual, len, nonce, key);
+			Assert.assertArrayEquals("length " + len, expected, actual);
+
+			byte[] m = new byte[len];
+			random.nextBytes(m);
+			referenceXor(expected, m, len, nonce, key);
+			xsalsa20.crypto_stream_xor(actual, m, len, nonce, key);
+			Assert.assertArrayEquals("length " + len, expected, actual);
+		}
+	}
+
+	@Test
+	public void testSkip32MatchesReference() {
+		Random random = new Random(32);
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+
+		for (int len = 1; len < 300; len++) {
+			random.nextBytes(key);
+			random.nextBytes(nonce);
+			byte[] m = new byte[len + 7];
+			random.nextBytes(m);
+
+			byte[] c0Expected = new byte[32];
+			byte[] c0Actual = new byte[32];
+			byte[] expected = new byte[len + 5];
+			byte[] actual = new byte[len + 5];
+			referenceSkip32(c0Expected, expected, 5, m, 7, len, nonce, key);
+			xsalsa20.crypto_stream_xor_skip32(c0Actual, actual, 5, m, 7, len, nonce, key);
+
+			Assert.assertArrayEquals("length " + len, c0Expected, c0Actual);
+			Assert.assertArrayEquals("length " + len, expected, actual);
+		}
+	}
+
+	@Test
+	public void testArbitraryPosition() {
+		Random random = new Random(64);
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+		random.nextBytes(key);
+		random.nextBytes(nonce);
+
+		byte[] keystream = new byte[1024];
+		referenceXor(keystream, new byte[keystream.length], keystream.length, nonce, key);
+
+		for (int i = 0; i < 200; i++) {
+			int position = random.nextInt(900);
+			int len = random.nextInt(keystream.length - position);
+
+			byte[] actual = new byte[len];
+			xsalsa20.crypto_stream_xor_at(null, actual, 0, null, 0, len, nonce, key, position);
+			Assert.assertArrayEquals(Arrays.copyOfRange(keystream, position, position + len), actual);
+		}
+	}
+
+	@Test
+	public void testInPlace() {
+		Random random = new Random(16);
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+		random.nextBytes(key);
+		random.nextBytes(nonce);
+
+		byte[] m = new byte[1000];
+		random.nextBytes(m);
+
+		/* output 16 bytes before the input, as used by the in-place secretbox open */
+		byte[] expected = new byte[m.length - 16];
+		referenceSkip32(null, expected, 0, m, 16, m.length - 16, nonce, key);
+
+		byte[] io = m.clone();
+		xsalsa20.crypto_stream_xor_skip32(null, io, 0, io, 16, io.length - 16, nonce, key);
+		Assert.assertArrayEquals(expected, Arrays.copyOf(io, expected.length));
+	}
+
+	@Test
+	public void testWideEngineMatchesScalar() {
+		Random random = new Random(256);
+		byte[] key = new byte[32];
+		byte[] nonce = new byte[24];
+		random.nextBytes(key);
+		random.nextBytes(nonce);
+
+		/* several batches of the wide engine, plus partial blocks before and after */
+		int batch = salsa20.WIDE_BLOCKS * 64;
+		byte[] m = new byte[3 * batch + 1000];
+		random.nextBytes(m);
+
+		int[][] cases = {{0, m.length}, {32, m.length - 32}, {100, batch}, {7, 2 * batch + 333}, {batch - 5, batch + 10}};
+		for (int[] t : cases) {
+			int position = t[0];
+			int len = t[1];
+
+			byte[] expected = new byte[len];
+			byte[] actual = new byte[len];
+			xsalsa20.crypto_stream_xor_at(null, expected, 0, m, 0, len, nonce, key, position, false);
+			xsalsa20.crypto_stream_xor_at(null, actual, 0, m, 0, len, nonce, key, position, true);
+			Assert.assertArrayEquals("position " + position + ", length " + len, expected, actual);
+		}
+
+		/* in place, with the output 16 bytes before the input as in the secretbox open */
+		byte[] expected = new byte[m.length - 16];
+		referenceSkip32(null, expected, 0, m, 16, m.length - 16, nonce, key);
+
+		byte[] io = m.clone();
+		xsalsa20.crypto_stream_xor_skip32(null, io, 0, io, 16, io.length - 16, nonce, key);
+		Assert.assertArrayEquals(expected, Arrays.copyOf(io, expected.length));
+	}
+
+	/* XSalsa20 one block at a time from the Salsa20 core, independent of the stream engine */
+	private static void referenceXor(byte[] c, byte[] m, int len, byte[] nonce, byte[] key) {
+		reference(null, c, 0, m, 0, len, nonce, key, 0);
+	}
+
+	private static void referenceSkip32(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, int len, byte[] nonce, byte[] key) {
+		reference(c0, c, coffset, m, moffset, len, nonce, key, 32);
+	}
+
+	private static void reference(byte[] c0, byte[] c, int coffset, byte[] m, int moffset, int len, byte[] nonce, byte[] key, int skip) {
+		byte[] subkey = new byte[32];
+		hsalsa20.crypto_core(subkey, nonce, key, xsalsa20.sigma);
+
+		byte[] keystream = new byte[(skip + len + 63) / 64 * 64 + 64];
+		byte[] in = new byte[16];
+		byte[] block = new byte[64];
+		System.arraycopy(nonce, 16, in, 0, 8);
+		for (int b = 0; b * 64 < keystream.length; b++) {
+			for (int i = 0; i < 8; i++)
+				in[8 + i] = (byte) ((long) b >>> (8 * i));
+			salsa20.crypto_core(block, in, subkey, xsalsa20.sigma);
+			System.arraycopy(block, 0, keystream, 64 * b, 64);
+		}
+
+		if (c0 != null)
+			System.arraycopy(keystream, 0, c0, 0, 32);
+		for (int i = 0; i < len; i++)
+			c[coffset + i] = (byte) (m[moffset + i] ^ keystream[skip + i]);
+	}
+}